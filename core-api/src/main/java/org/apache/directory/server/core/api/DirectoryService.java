@@ -558,6 +558,21 @@ public interface DirectoryService extends ServerEntryFactory
     long getSyncPeriodMillis();
 
 
+    /**
+     * Sets the maximum number of entries sorted in memory when a search uses the server
+     * side sort control. Bigger results are sorted in temporary files.
+     *
+     * @param maxSortedEntriesInMemory the maximum number of entries sorted in memory
+     */
+    void setMaxSortedEntriesInMemory( int maxSortedEntriesInMemory );
+
+
+    /**
+     * @return the maximum number of entries sorted in memory
+     */
+    int getMaxSortedEntriesInMemory();
+
+
     /**
      * @return the cache service
      */
@@ -24,6 +24,7 @@ import java.util.concurrent.locks.ReadWriteLock;
 
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
@@ -161,4 +162,14 @@ public interface OperationManager
      * @return the OperationManager R/W lock
      */
     ReadWriteLock getRWLock();
+
+
+    /**
+     * Gets the R/W lock protecting the partition containing a given Dn. When the
+     * partition locking is not enabled, this is the global OperationManager lock.
+     *
+     * @param dn The Dn of an entry, or the suffix of a partition
+     * @return the R/W lock for the partition containing the Dn
+     */
+    ReadWriteLock getRWLock( Dn dn );
 }
@@ -31,6 +31,7 @@ import org.apache.directory.api.ldap.model.message.MessageTypeEnum;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.controls.ManageDsaIT;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.util.StringConstants;
 import org.apache.directory.server.core.api.CoreSession;
@@ -66,6 +67,12 @@ public class SearchOperationContext extends FilteringOperationContext
 
     /** flag to indicate if this search is done for replication */
     private boolean syncreplSearch;
+
+    /** The server side sort control to honor, once it has been validated */
+    private SortRequest sortRequest;
+
+    /** flag to indicate if the partition returns the entries in the requested sort order */
+    private boolean sorted;
     
     /**
      * Creates a new instance of SearchOperationContext.
@@ -156,6 +163,43 @@ public class SearchOperationContext extends FilteringOperationContext
     }
 
 
+    /**
+     * Creates a new instance of SearchOperationContext, copying all the parameters
+     * of an existing search but the base and the filter. This is used when the same
+     * search has to be run on more than one partition at the same time : the filter
+     * gets annotated by the partition search engine, so each search needs its own.
+     * 
+     * @param searchContext the search context to copy
+     * @param dn the search base
+     * @param filter the filter AST to use for the search
+     */
+    public SearchOperationContext( SearchOperationContext searchContext, Dn dn, ExprNode filter )
+    {
+        super( searchContext.getSession(), dn );
+        this.filter = filter;
+        scope = searchContext.scope;
+        aliasDerefMode = searchContext.aliasDerefMode;
+        sizeLimit = searchContext.sizeLimit;
+        timeLimit = searchContext.timeLimit;
+        syncreplSearch = searchContext.syncreplSearch;
+        sortRequest = searchContext.sortRequest;
+        abandoned = searchContext.abandoned;
+
+        returningAttributes = searchContext.returningAttributes;
+        returningAttributesString = searchContext.returningAttributesString;
+        setAllUserAttributes( searchContext.isAllUserAttributes() );
+        setAllOperationalAttributes( searchContext.isAllOperationalAttributes() );
+        setNoAttributes( searchContext.isNoAttributes() );
+        typesOnly = searchContext.typesOnly;
+
+        requestControls = searchContext.requestControls;
+        throwReferral = searchContext.throwReferral;
+        authorizedPrincipal = searchContext.authorizedPrincipal;
+        interceptors = searchContext.interceptors;
+        currentInterceptor = searchContext.currentInterceptor;
+    }
+
+
     /**
      * Checks whether or not the ManageDsaITControl is present.  If not
      * present then the filter is modified to force the return of all referral
@@ -217,6 +261,48 @@ public class SearchOperationContext extends FilteringOperationContext
     }
 
 
+    /**
+     * @return the validated server side sort control, or null if the entries don't have to be sorted
+     */
+    public SortRequest getSortRequest()
+    {
+        return sortRequest;
+    }
+
+
+    /**
+     * Sets the server side sort control the entries have to be sorted with. A partition
+     * able to return the entries in this order can do so and set the sorted flag.
+     * 
+     * @param sortRequest the validated sort control
+     */
+    public void setSortRequest( SortRequest sortRequest )
+    {
+        this.sortRequest = sortRequest;
+    }
+
+
+    /**
+     * @return true if the partition already returns the entries in the requested sort order
+     */
+    public boolean isSorted()
+    {
+        return sorted;
+    }
+
+
+    /**
+     * sets the flag to indicate if the partition already returns the entries in the
+     * requested sort order
+     * 
+     * @param sorted
+     */
+    public void setSorted( boolean sorted )
+    {
+        this.sorted = sorted;
+    }
+
+
     /**
      * @return The alias dereferencing mode
      */
@@ -476,6 +476,17 @@ public class MockDirectoryService implements DirectoryService
     }
 
 
+    public int getMaxSortedEntriesInMemory()
+    {
+        return 0;
+    }
+
+
+    public void setMaxSortedEntriesInMemory( int maxSortedEntriesInMemory )
+    {
+    }
+
+
     public CacheService getCacheService()
     {
         return null;
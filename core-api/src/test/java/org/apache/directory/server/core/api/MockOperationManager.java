@@ -25,6 +25,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursorImpl;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
@@ -46,6 +47,9 @@ public class MockOperationManager implements OperationManager
 {
     int count;
 
+    /** The global lock, shared by all the partitions */
+    private ReadWriteLock rwLock = new ReentrantReadWriteLock();
+
 
     public MockOperationManager( int count )
     {
@@ -152,6 +156,15 @@ public class MockOperationManager implements OperationManager
      */
     public ReadWriteLock getRWLock()
     {
-        return new ReentrantReadWriteLock();
+        return rwLock;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock getRWLock( Dn dn )
+    {
+        return rwLock;
     }
 }
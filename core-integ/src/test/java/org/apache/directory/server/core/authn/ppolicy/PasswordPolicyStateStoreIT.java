@@ -0,0 +1,314 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn.ppolicy;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.util.DateUtils;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.api.InterceptorEnum;
+import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyConfiguration;
+import org.apache.directory.server.core.authn.AuthenticationInterceptor;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Tests the PasswordPolicyStateStore : when the password policy state of a user is
+ * written to the entry, and when it is dropped from memory.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(name = "PasswordPolicyStateStoreIT-DS")
+public class PasswordPolicyStateStoreIT extends AbstractLdapTestUnit
+{
+    /** A flush interval long enough for the background thread to never run during a test */
+    private static final long NEVER = 3600000L;
+
+    /** The tested store */
+    private PasswordPolicyStateStore store;
+
+
+    @After
+    public void destroyStore()
+    {
+        if ( store != null )
+        {
+            store.destroy();
+            store = null;
+        }
+
+        IntegrationUtils.closeConnections();
+    }
+
+
+    private void createStore( long flushInterval, boolean syncLockouts ) throws Exception
+    {
+        AuthenticationInterceptor authenticationInterceptor = ( AuthenticationInterceptor ) getService()
+            .getInterceptor( InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
+
+        store = new PasswordPolicyStateStore( getService(), authenticationInterceptor );
+        store.setFlushInterval( flushInterval );
+        store.setSyncLockouts( syncLockouts );
+        store.init();
+    }
+
+
+    /**
+     * Adds a user, each test using its own user
+     */
+    private Dn addUser( String uid ) throws Exception
+    {
+        String userDn = "uid=" + uid + ",ou=system";
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+
+        connection.add( new DefaultEntry( userDn,
+            "objectClass: inetOrgPerson",
+            "uid: " + uid,
+            "cn: " + uid,
+            "sn: " + uid,
+            "userPassword: secret" ) );
+
+        return new Dn( getService().getSchemaManager(), userDn );
+    }
+
+
+    private Entry lookup( Dn userDn ) throws Exception
+    {
+        return getService().getAdminSession().lookup( userDn, "*", "+" );
+    }
+
+
+    private String getValue( Dn userDn, String attributeType ) throws Exception
+    {
+        Attribute attribute = lookup( userDn ).get( attributeType );
+
+        return attribute == null ? null : attribute.getString();
+    }
+
+
+    @Test
+    public void testWriteThrough() throws Exception
+    {
+        createStore( 0L, true );
+        Dn userDn = addUser( "writeThrough" );
+        String now = DateUtils.getGeneralizedTime();
+
+        store.recordSuccess( lookup( userDn ), now );
+
+        assertEquals( now, getValue( userDn, PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) );
+    }
+
+
+    @Test
+    public void testWriteBehindFlush() throws Exception
+    {
+        createStore( NEVER, true );
+        Dn userDn = addUser( "writeBehind" );
+        String now = DateUtils.getGeneralizedTime();
+
+        store.recordSuccess( lookup( userDn ), now );
+
+        // Not written yet, but the store knows about it
+        assertNull( getValue( userDn, PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) );
+        assertEquals( now, store.getLastSuccessTime( lookup( userDn ) ) );
+        assertEquals( 1, store.size() );
+
+        store.flushAll();
+
+        assertEquals( now, getValue( userDn, PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) );
+    }
+
+
+    @Test
+    public void testBackgroundFlush() throws Exception
+    {
+        createStore( 100L, true );
+        Dn userDn = addUser( "background" );
+        String now = DateUtils.getGeneralizedTime();
+
+        store.recordSuccess( lookup( userDn ), now );
+
+        // The background thread writes the state, then evicts it once idle
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while ( ( ( getValue( userDn, PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) == null ) || ( store
+            .size() > 0 ) ) && ( System.currentTimeMillis() < deadline ) )
+        {
+            Thread.sleep( 50L );
+        }
+
+        assertEquals( now, getValue( userDn, PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) );
+        assertEquals( 0, store.size() );
+    }
+
+
+    @Test
+    public void testLockoutWithSyncLockouts() throws Exception
+    {
+        createStore( NEVER, true );
+        Dn userDn = addUser( "syncLockout" );
+        PasswordPolicyConfiguration policyConfig = new PasswordPolicyConfiguration();
+
+        // Two distinct failure times, as the attribute values are a set
+        String first = "20260101000000Z";
+        String now = "20260101000001Z";
+
+        // A failure alone is delayed
+        assertEquals( 1, store.recordFailure( lookup( userDn ), policyConfig, first ) );
+        store.commit( lookup( userDn ) );
+
+        assertNull( getValue( userDn, PasswordPolicySchemaConstants.PWD_FAILURE_TIME_AT ) );
+
+        // The lockout is written at once, along with the failure
+        assertEquals( 2, store.recordFailure( lookup( userDn ), policyConfig, now ) );
+        store.lock( lookup( userDn ), now );
+        store.commit( lookup( userDn ) );
+
+        assertEquals( now, getValue( userDn, PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT ) );
+        assertEquals( 2, lookup( userDn ).get( PasswordPolicySchemaConstants.PWD_FAILURE_TIME_AT ).size() );
+        assertEquals( now, store.getLockedTime( lookup( userDn ) ) );
+    }
+
+
+    @Test
+    public void testLockoutWithoutSyncLockouts() throws Exception
+    {
+        createStore( NEVER, false );
+        Dn userDn = addUser( "asyncLockout" );
+        String now = DateUtils.getGeneralizedTime();
+
+        store.recordFailure( lookup( userDn ), new PasswordPolicyConfiguration(), now );
+        store.lock( lookup( userDn ), now );
+        store.commit( lookup( userDn ) );
+
+        // The lockout is delayed, but it's still enforced from memory
+        assertNull( getValue( userDn, PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT ) );
+        assertEquals( now, store.getLockedTime( lookup( userDn ) ) );
+
+        store.flushAll();
+
+        assertEquals( now, getValue( userDn, PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT ) );
+
+        // A successful bind clears the lockout
+        store.recordSuccess( lookup( userDn ), null );
+
+        assertNull( store.getLockedTime( lookup( userDn ) ) );
+
+        store.flushAll();
+
+        assertNull( getValue( userDn, PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT ) );
+        assertNull( getValue( userDn, PasswordPolicySchemaConstants.PWD_FAILURE_TIME_AT ) );
+    }
+
+
+    @Test
+    public void testInvalidateOnModify() throws Exception
+    {
+        createStore( NEVER, true );
+        Dn userDn = addUser( "invalidate" );
+        String now = DateUtils.getGeneralizedTime();
+
+        store.recordSuccess( lookup( userDn ), now );
+
+        assertNull( getValue( userDn, PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) );
+
+        // Called before the entry is modified : the pending state is written and dropped
+        store.invalidate( userDn );
+
+        assertEquals( 0, store.size() );
+        assertEquals( now, getValue( userDn, PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) );
+
+        // The state is now read from the entry
+        assertEquals( now, store.getLastSuccessTime( lookup( userDn ) ) );
+
+        // Invalidating an unknown user does nothing
+        store.invalidate( userDn );
+
+        assertEquals( 0, store.size() );
+    }
+
+
+    @Test
+    public void testRemoveOnDelete() throws Exception
+    {
+        createStore( NEVER, true );
+        Dn userDn = addUser( "remove" );
+        String now = DateUtils.getGeneralizedTime();
+
+        store.recordSuccess( lookup( userDn ), now );
+        store.remove( userDn );
+
+        // The pending state is dropped without being written
+        assertEquals( 0, store.size() );
+
+        store.flushAll();
+
+        assertNull( getValue( userDn, PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) );
+    }
+
+
+    @Test
+    public void testEvictionOfDirtyState() throws Exception
+    {
+        createStore( NEVER, true );
+        Dn userDn = addUser( "eviction" );
+        String now = DateUtils.getGeneralizedTime();
+
+        store.recordSuccess( lookup( userDn ), now );
+        Thread.sleep( 10L );
+
+        // A state which has not been written is never evicted, even when idle
+        store.evictIdleStates( 0L );
+
+        assertEquals( 1, store.size() );
+        assertEquals( now, store.getLastSuccessTime( lookup( userDn ) ) );
+
+        // Once written, it can be evicted
+        store.flushAll();
+        Thread.sleep( 10L );
+        store.evictIdleStates( 0L );
+
+        assertEquals( 0, store.size() );
+        assertEquals( now, getValue( userDn, PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) );
+
+        // A state used recently is kept
+        store.recordSuccess( lookup( userDn ), now );
+        store.flushAll();
+        store.evictIdleStates( NEVER );
+
+        assertEquals( 1, store.size() );
+        assertTrue( lookup( userDn ).containsAttribute( PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT ) );
+    }
+}
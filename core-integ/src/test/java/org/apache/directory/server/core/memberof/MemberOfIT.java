@@ -0,0 +1,369 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.memberof;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.DefaultOperationManager;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreateIndex;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.EventType;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Checks the memberOf values maintained by the MemberOfInterceptor when the groups and
+ * their members are added, deleted, renamed or modified.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(
+    name = "MemberOfIT-DS",
+    additionalInterceptors =
+        { MemberOfInterceptor.class },
+    partitions =
+        {
+            @CreatePartition(
+                name = "example",
+                suffix = "dc=example,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=example,dc=com\n" +
+                        "dc: example\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "member"),
+                        @CreateIndex(attribute = "uniqueMember")
+                })
+    })
+public class MemberOfIT extends AbstractLdapTestUnit
+{
+    /** A connection to the server */
+    private LdapConnection connection;
+
+
+    @Before
+    public void init() throws Exception
+    {
+        connection = IntegrationUtils.getAdminConnection( getService() );
+    }
+
+
+    @After
+    public void closeConnections()
+    {
+        IntegrationUtils.closeConnections();
+    }
+
+
+    private String addUser( String uid ) throws Exception
+    {
+        String dn = "uid=" + uid + ",dc=example,dc=com";
+
+        connection.add( new DefaultEntry( dn,
+            "objectClass: inetOrgPerson",
+            "uid: " + uid,
+            "cn: " + uid,
+            "sn: " + uid ) );
+
+        return dn;
+    }
+
+
+    private String addGroup( String cn, String suffix, String... members ) throws Exception
+    {
+        String dn = "cn=" + cn + "," + suffix;
+        Entry group = new DefaultEntry( dn,
+            "objectClass: groupOfNames",
+            "cn: " + cn );
+
+        for ( String member : members )
+        {
+            group.add( "member", member );
+        }
+
+        connection.add( group );
+
+        return dn;
+    }
+
+
+    /**
+     * @return the normalized values of the memberOf attribute of an entry
+     */
+    private Set<String> getMemberOf( String dn ) throws Exception
+    {
+        Set<String> groups = new HashSet<String>();
+        Entry entry = connection.lookup( dn, "+" );
+        Attribute memberOf = entry.get( MemberOfInterceptor.MEMBER_OF_AT );
+
+        if ( memberOf != null )
+        {
+            for ( Value<?> value : memberOf )
+            {
+                groups.add( normalize( value.getString() ) );
+            }
+        }
+
+        return groups;
+    }
+
+
+    private String normalize( String dn ) throws Exception
+    {
+        return new Dn( getService().getSchemaManager(), dn ).getNormName();
+    }
+
+
+    private Set<String> groups( String... dns ) throws Exception
+    {
+        Set<String> groups = new HashSet<String>();
+
+        for ( String dn : dns )
+        {
+            groups.add( normalize( dn ) );
+        }
+
+        return groups;
+    }
+
+
+    @Test
+    public void testAddGroup() throws Exception
+    {
+        String user1 = addUser( "addGroup1" );
+        String user2 = addUser( "addGroup2" );
+        String other = addUser( "addGroupOther" );
+
+        String group = addGroup( "addGroup", "dc=example,dc=com", user1, user2 );
+
+        assertEquals( groups( group ), getMemberOf( user1 ) );
+        assertEquals( groups( group ), getMemberOf( user2 ) );
+        assertTrue( getMemberOf( other ).isEmpty() );
+
+        // A second group
+        String group2 = addGroup( "addGroup2", "dc=example,dc=com", user1 );
+
+        assertEquals( groups( group, group2 ), getMemberOf( user1 ) );
+        assertEquals( groups( group ), getMemberOf( user2 ) );
+    }
+
+
+    @Test
+    public void testAddMemberAfterGroup() throws Exception
+    {
+        // The group lists an entry which does not exist yet
+        String group = addGroup( "addMember", "dc=example,dc=com", "uid=addMemberLate,dc=example,dc=com" );
+
+        // The group is found when the entry is added, the partition being indexed
+        String user = addUser( "addMemberLate" );
+
+        assertEquals( groups( group ), getMemberOf( user ) );
+    }
+
+
+    @Test
+    public void testAddMemberAfterGroupInNotIndexedPartition() throws Exception
+    {
+        // The system partition has no index on member : it's not searched when an entry is added
+        String group = addGroup( "addMemberNotIndexed", "ou=system", "uid=addMemberNotIndexed,dc=example,dc=com" );
+
+        String user = addUser( "addMemberNotIndexed" );
+
+        assertTrue( getMemberOf( user ).isEmpty() );
+
+        // Without nesting, a new group is added to the memberOf attribute of its members,
+        // the other groups are not searched
+        String group2 = addGroup( "addMemberNotIndexed2", "ou=system", user );
+
+        assertEquals( groups( group2 ), getMemberOf( user ) );
+    }
+
+
+    @Test
+    public void testDeleteGroup() throws Exception
+    {
+        String user = addUser( "deleteGroup" );
+        String group = addGroup( "deleteGroup", "dc=example,dc=com", user );
+        String group2 = addGroup( "deleteGroup2", "dc=example,dc=com", user );
+
+        assertEquals( groups( group, group2 ), getMemberOf( user ) );
+
+        connection.delete( group );
+
+        assertEquals( groups( group2 ), getMemberOf( user ) );
+
+        connection.delete( group2 );
+
+        assertTrue( getMemberOf( user ).isEmpty() );
+    }
+
+
+    @Test
+    public void testRenameGroup() throws Exception
+    {
+        String user = addUser( "renameGroup" );
+        String group = addGroup( "renameGroup", "dc=example,dc=com", user );
+
+        assertEquals( groups( group ), getMemberOf( user ) );
+
+        connection.rename( group, "cn=renamedGroup" );
+
+        assertEquals( groups( "cn=renamedGroup,dc=example,dc=com" ), getMemberOf( user ) );
+    }
+
+
+    @Test
+    public void testRenameMember() throws Exception
+    {
+        String user = addUser( "renameMember" );
+        String group = addGroup( "renameMember", "dc=example,dc=com", user );
+
+        assertEquals( groups( group ), getMemberOf( user ) );
+
+        // The group still lists the old Dn : the renamed entry is not a member anymore
+        connection.rename( user, "uid=renamedMember" );
+
+        assertTrue( getMemberOf( "uid=renamedMember,dc=example,dc=com" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testModifyGroup() throws Exception
+    {
+        String user1 = addUser( "modifyGroup1" );
+        String user2 = addUser( "modifyGroup2" );
+        String group = addGroup( "modifyGroup", "dc=example,dc=com", user1 );
+
+        assertEquals( groups( group ), getMemberOf( user1 ) );
+        assertTrue( getMemberOf( user2 ).isEmpty() );
+
+        // Add a member
+        connection.modify( group, new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, "member", user2 ) );
+
+        assertEquals( groups( group ), getMemberOf( user1 ) );
+        assertEquals( groups( group ), getMemberOf( user2 ) );
+
+        // Remove a member
+        connection.modify( group,
+            new DefaultModification( ModificationOperation.REMOVE_ATTRIBUTE, "member", user1 ) );
+
+        assertTrue( getMemberOf( user1 ).isEmpty() );
+        assertEquals( groups( group ), getMemberOf( user2 ) );
+
+        // Replace the members
+        connection.modify( group,
+            new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, "member", user1 ) );
+
+        assertEquals( groups( group ), getMemberOf( user1 ) );
+        assertTrue( getMemberOf( user2 ).isEmpty() );
+    }
+
+
+    @Test
+    public void testMemberOfUpdatesAreNotified() throws Exception
+    {
+        String user = addUser( "notified" );
+        final List<String> modified = new ArrayList<String>();
+
+        // The default filter, (objectClass=*), is evaluated against the whole entry
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setBase( new Dn( getService().getSchemaManager(), "dc=example,dc=com" ) );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setEventMask( EventType.MODIFY );
+
+        DirectoryListenerAdapter listener = new DirectoryListenerAdapter()
+        {
+            public void entryModified( ModifyOperationContext modifyContext )
+            {
+                synchronized ( modified )
+                {
+                    modified.add( modifyContext.getDn().getNormName() );
+                }
+            }
+
+
+            public boolean isSynchronous()
+            {
+                return true;
+            }
+        };
+
+        getService().getEventService().addListener( listener, criteria );
+
+        try
+        {
+            String group = addGroup( "notified", "dc=example,dc=com", user );
+
+            assertEquals( groups( group ), getMemberOf( user ) );
+
+            synchronized ( modified )
+            {
+                assertTrue( modified.contains( normalize( user ) ) );
+            }
+        }
+        finally
+        {
+            getService().getEventService().removeListener( listener );
+        }
+    }
+
+
+    /**
+     * The members may be in another partition than the group : the partitions can't be
+     * locked separately.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testPartitionLockingIsRefused() throws Exception
+    {
+        ( ( DefaultOperationManager ) getService().getOperationManager() ).setPartitionLocking( true );
+    }
+}
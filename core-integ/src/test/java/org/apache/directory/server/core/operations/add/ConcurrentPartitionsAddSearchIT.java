@@ -0,0 +1,258 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.operations.add;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.DefaultOperationManager;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreateIndex;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Runs additions in one partition while some searches are done on another
+ * partition, with the global lock and with the partition locking, and checks
+ * that all the operations succeed and see consistent data in both modes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(
+    name = "ConcurrentPartitionsDS",
+    partitions =
+        {
+            @CreatePartition(
+                name = "foo",
+                suffix = "dc=foo,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=foo,dc=com\n" +
+                        "dc: foo\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "cn")
+                }),
+            @CreatePartition(
+                name = "bar",
+                suffix = "dc=bar,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=bar,dc=com\n" +
+                        "dc: bar\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "cn")
+                })
+    },
+    enableChangeLog = false)
+public class ConcurrentPartitionsAddSearchIT extends AbstractLdapTestUnit
+{
+    /** The number of entries added in dc=foo,dc=com for each run */
+    private static final int NB_ADDS = 200;
+
+    /** The number of entries in dc=bar,dc=com */
+    private static final int NB_ENTRIES = 100;
+
+    /** The number of threads searching dc=bar,dc=com */
+    private static final int NB_SEARCHERS = 4;
+
+
+    /**
+     * Adds NB_ADDS entries in dc=foo,dc=com while NB_SEARCHERS threads search dc=bar,dc=com,
+     * and checks that every operation succeeded.
+     */
+    private void run( final String prefix ) throws Exception
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger nbSearches = new AtomicInteger();
+        final AtomicInteger nbAdded = new AtomicInteger();
+
+        Thread writer = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+
+                    for ( int i = 0; i < NB_ADDS; i++ )
+                    {
+                        connection.add( new DefaultEntry( getService().getSchemaManager(),
+                            "cn=" + prefix + i + ",dc=foo,dc=com",
+                            "ObjectClass: top",
+                            "ObjectClass: person",
+                            "sn: TEST",
+                            "cn", prefix + i ) );
+                        nbAdded.incrementAndGet();
+                    }
+
+                    connection.close();
+                }
+                catch ( Throwable t )
+                {
+                    failure.compareAndSet( null, t );
+                }
+            }
+        };
+
+        Thread[] searchers = new Thread[NB_SEARCHERS];
+
+        for ( int i = 0; i < NB_SEARCHERS; i++ )
+        {
+            searchers[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+
+                        // Search at least once, even if the additions are already done
+                        do
+                        {
+                            EntryCursor cursor = connection.search( "dc=bar,dc=com", "(cn=*)",
+                                SearchScope.SUBTREE, "*" );
+                            int nbFound = 0;
+
+                            while ( cursor.next() )
+                            {
+                                cursor.get();
+                                nbFound++;
+                            }
+
+                            cursor.close();
+
+                            assertEquals( NB_ENTRIES, nbFound );
+                            nbSearches.incrementAndGet();
+                        }
+                        while ( nbAdded.get() < NB_ADDS && ( failure.get() == null ) );
+
+                        connection.close();
+                    }
+                    catch ( Throwable t )
+                    {
+                        failure.compareAndSet( null, t );
+                    }
+                }
+            };
+        }
+
+        writer.start();
+
+        for ( Thread searcher : searchers )
+        {
+            searcher.start();
+        }
+
+        writer.join();
+
+        for ( Thread searcher : searchers )
+        {
+            searcher.join();
+        }
+
+        assertNull( String.valueOf( failure.get() ), failure.get() );
+        assertEquals( NB_ADDS, nbAdded.get() );
+        assertTrue( nbSearches.get() > 0 );
+
+        // All the added entries must be found
+        assertEquals( NB_ADDS, count( "(cn=" + prefix + "*)" ) );
+    }
+
+
+    /**
+     * Counts the entries matching a filter in dc=foo,dc=com
+     */
+    private int count( String filter ) throws Exception
+    {
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+        EntryCursor cursor = connection.search( "dc=foo,dc=com", filter, SearchScope.ONELEVEL, "1.1" );
+        int nbFound = 0;
+
+        while ( cursor.next() )
+        {
+            nbFound++;
+        }
+
+        cursor.close();
+        connection.close();
+
+        return nbFound;
+    }
+
+
+    @Test
+    public void testAddAndSearchInDifferentPartitions() throws Exception
+    {
+        LdapConnection connection = IntegrationUtils.getAdminConnection( getService() );
+
+        for ( int i = 0; i < NB_ENTRIES; i++ )
+        {
+            connection.add( new DefaultEntry( getService().getSchemaManager(),
+                "cn=entry" + i + ",dc=bar,dc=com",
+                "ObjectClass: top",
+                "ObjectClass: person",
+                "sn: TEST",
+                "cn", "entry" + i ) );
+        }
+
+        connection.close();
+
+        DefaultOperationManager operationManager = ( DefaultOperationManager ) getService().getOperationManager();
+
+        try
+        {
+            operationManager.setPartitionLocking( false );
+            run( "global" );
+
+            operationManager.setPartitionLocking( true );
+            run( "partition" );
+
+            assertEquals( 2 * NB_ADDS, count( "(cn=*)" ) );
+        }
+        finally
+        {
+            operationManager.setPartitionLocking( false );
+        }
+    }
+}
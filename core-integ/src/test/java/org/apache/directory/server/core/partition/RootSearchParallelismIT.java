@@ -0,0 +1,230 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapConnection;
+import org.apache.directory.server.core.annotations.ContextEntry;
+import org.apache.directory.server.core.annotations.CreateDS;
+import org.apache.directory.server.core.annotations.CreateIndex;
+import org.apache.directory.server.core.annotations.CreatePartition;
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.apache.directory.server.core.integ.FrameworkRunner;
+import org.apache.directory.server.core.integ.IntegrationUtils;
+import org.apache.directory.server.core.shared.partition.DefaultPartitionNexus;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+
+/**
+ * Checks that a subtree search from the rootDSE returns the same entries, in the same
+ * order, when the partitions are searched one after the other and when they are
+ * searched concurrently.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+@RunWith(FrameworkRunner.class)
+@CreateDS(
+    name = "RootSearchParallelismDS",
+    partitions =
+        {
+            @CreatePartition(
+                name = "foo",
+                suffix = "dc=foo,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=foo,dc=com\n" +
+                        "dc: foo\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "cn")
+                }),
+            @CreatePartition(
+                name = "bar",
+                suffix = "dc=bar,dc=com",
+                contextEntry = @ContextEntry(
+                    entryLdif =
+                    "dn: dc=bar,dc=com\n" +
+                        "dc: bar\n" +
+                        "objectClass: top\n" +
+                        "objectClass: domain\n\n"),
+                indexes =
+                    {
+                        @CreateIndex(attribute = "objectClass"),
+                        @CreateIndex(attribute = "cn")
+                })
+    })
+public class RootSearchParallelismIT extends AbstractLdapTestUnit
+{
+    /** The number of entries added in each partition */
+    private static final int NB_ENTRIES = 20;
+
+    /** The nexus */
+    private DefaultPartitionNexus nexus;
+
+    /** A connection to the server */
+    private LdapConnection connection;
+
+
+    @Before
+    public void init() throws Exception
+    {
+        nexus = ( DefaultPartitionNexus ) getService().getPartitionNexus();
+        connection = IntegrationUtils.getAdminConnection( getService() );
+
+        for ( String suffix : new String[]
+            { "dc=foo,dc=com", "dc=bar,dc=com" } )
+        {
+            for ( int i = 0; i < NB_ENTRIES; i++ )
+            {
+                if ( connection.exists( "cn=person" + i + "," + suffix ) )
+                {
+                    continue;
+                }
+
+                connection.add( new DefaultEntry(
+                    "cn=person" + i + "," + suffix,
+                    "objectClass: person",
+                    "cn: person" + i,
+                    "sn: person" + i ) );
+            }
+        }
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        nexus.setRootSearchParallelism( 0 );
+        connection.close();
+    }
+
+
+    private List<String> search( String filter ) throws Exception
+    {
+        List<String> dns = new ArrayList<String>();
+        EntryCursor cursor = connection.search( "", filter, SearchScope.SUBTREE, "1.1" );
+
+        while ( cursor.next() )
+        {
+            dns.add( cursor.get().getDn().getNormName() );
+        }
+
+        cursor.close();
+
+        return dns;
+    }
+
+
+    @Test
+    public void testParallelSearchReturnsTheSameEntries() throws Exception
+    {
+        List<String> sequential = search( "(cn=person*)" );
+
+        assertEquals( 2 * NB_ENTRIES, sequential.size() );
+
+        nexus.setRootSearchParallelism( 4 );
+
+        // The same entries, in the same order
+        assertEquals( sequential, search( "(cn=person*)" ) );
+
+        // The filter is cloned for each partition : a second search gets the same result
+        assertEquals( sequential, search( "(cn=person*)" ) );
+
+        // An equality filter only matches one entry in each partition
+        assertEquals( 2, search( "(cn=person1)" ).size() );
+
+        // No entry at all
+        assertTrue( search( "(cn=nobody)" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testConcurrentParallelSearches() throws Exception
+    {
+        final List<String> expected = search( "(cn=person*)" );
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        nexus.setRootSearchParallelism( 2 );
+
+        Thread[] searchers = new Thread[4];
+
+        for ( int i = 0; i < searchers.length; i++ )
+        {
+            searchers[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        LdapConnection searcherConnection = IntegrationUtils.getAdminConnection( getService() );
+
+                        for ( int j = 0; j < 10; j++ )
+                        {
+                            List<String> dns = new ArrayList<String>();
+                            EntryCursor cursor = searcherConnection.search( "", "(cn=person*)",
+                                SearchScope.SUBTREE, "1.1" );
+
+                            while ( cursor.next() )
+                            {
+                                dns.add( cursor.get().getDn().getNormName() );
+                            }
+
+                            cursor.close();
+
+                            assertEquals( expected, dns );
+                        }
+
+                        searcherConnection.close();
+                    }
+                    catch ( Throwable t )
+                    {
+                        failure.compareAndSet( null, t );
+                    }
+                }
+            };
+
+            searchers[i].start();
+        }
+
+        for ( Thread searcher : searchers )
+        {
+            searcher.join();
+        }
+
+        assertNull( failure.get() );
+    }
+}
@@ -20,15 +20,18 @@
 package org.apache.directory.server.core.shared;
 
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-import java.util.UUID;
 
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncInfoValue.SyncRequestValue;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
@@ -36,6 +39,7 @@ import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.cursor.EmptyCursor;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
 import org.apache.directory.api.ldap.model.entry.BinaryValue;
 import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
@@ -71,13 +75,6 @@ import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.MatchingRule;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
-import org.apache.directory.mavibot.btree.BTree;
-import org.apache.directory.mavibot.btree.BTreeFactory;
-import org.apache.directory.mavibot.btree.PersistedBTreeConfiguration;
-import org.apache.directory.mavibot.btree.RecordManager;
-import org.apache.directory.mavibot.btree.exception.BTreeAlreadyManagedException;
-import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
-import org.apache.directory.mavibot.btree.serializer.StringSerializer;
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -1119,13 +1116,21 @@ public class DefaultCoreSession implements CoreSession
             }
         }
 
+        boolean sort = ( sortRespCtrl != null ) && ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS );
+
+        if ( sort )
+        {
+            // Let the partition return the entries in order if it can
+            searchContext.setSortRequest( sortControl );
+        }
+
         Cursor<Entry> cursor = null;
 
         try
         {
             cursor = operationManager.search( searchContext );
 
-            if ( ( sortRespCtrl != null ) && ( sortRespCtrl.getSortResult() == SortResultCode.SUCCESS ) )
+            if ( sort && !searchContext.isSorted() )
             {
                 cursor = sortResults( cursor, sortControl, getDirectoryService().getSchemaManager() );
             }
@@ -1139,11 +1144,9 @@ public class DefaultCoreSession implements CoreSession
                 {
                     sortRespCtrl = null;
                 }
-                else
-                {
-                    // move the cursor back
-                    cursor.previous();
-                }
+
+                // move the cursor back
+                cursor.beforeFirst();
             }
         }
         catch ( LdapException e )
@@ -1206,16 +1209,38 @@ public class DefaultCoreSession implements CoreSession
 
         List<SortKey> keys = sortControl.getSortKeys();
 
-        // only ONE key is supported by the server for now
-        if ( keys.size() > 1 )
+        if ( ( keys == null ) || keys.isEmpty() )
         {
-            ldapResult.setDiagnosticMessage( "Cannot sort results based on more than one attribute" );
+            ldapResult.setDiagnosticMessage( "At least one sort key is required" );
             resp.setSortResult( SortResultCode.UNWILLINGTOPERFORM );
             return resp;
         }
 
-        SortKey sk = keys.get( 0 );
+        for ( SortKey sk : keys )
+        {
+            if ( !canSort( sk, ldapResult, resp, schemaManager ) )
+            {
+                return resp;
+            }
+        }
+
+        resp.setSortResult( SortResultCode.SUCCESS );
 
+        return resp;
+    }
+
+
+    /**
+     * Checks if the search results can be sorted on a sort key
+     * 
+     * @param sk the sort key
+     * @param ldapResult the refrence to the LDAP result of the ongoing search operation
+     * @param resp the sort response control, updated if the results can't be sorted
+     * @param schemaManager the schema manager
+     * @return true if the results can be sorted on this key
+     */
+    private boolean canSort( SortKey sk, LdapResult ldapResult, SortResponse resp, SchemaManager schemaManager )
+    {
         AttributeType at = schemaManager.getAttributeType( sk.getAttributeTypeDesc() );
 
         if ( at == null )
@@ -1224,7 +1249,7 @@ public class DefaultCoreSession implements CoreSession
                 + " exists in the server's schema" );
             resp.setSortResult( SortResultCode.NOSUCHATTRIBUTE );
             resp.setAttributeName( sk.getAttributeTypeDesc() );
-            return resp;
+            return false;
         }
 
         String mrOid = sk.getMatchingRuleId();
@@ -1241,7 +1266,7 @@ public class DefaultCoreSession implements CoreSession
                         + " is not applicable for the attribute " + sk.getAttributeTypeDesc() );
                     resp.setSortResult( SortResultCode.INAPPROPRIATEMATCHING );
                     resp.setAttributeName( sk.getAttributeTypeDesc() );
-                    return resp;
+                    return false;
                 }
             }
 
@@ -1254,7 +1279,7 @@ public class DefaultCoreSession implements CoreSession
                 ldapResult.setDiagnosticMessage( "Given matchingrule " + mrOid + " is not supported" );
                 resp.setSortResult( SortResultCode.INAPPROPRIATEMATCHING );
                 resp.setAttributeName( sk.getAttributeTypeDesc() );
-                return resp;
+                return false;
             }
         }
         else
@@ -1266,34 +1291,39 @@ public class DefaultCoreSession implements CoreSession
                 mr = at.getEquality();
             }
 
-            ldapResult.setDiagnosticMessage( "Matchingrule is required for sorting by the attribute "
-                + sk.getAttributeTypeDesc() );
-            resp.setSortResult( SortResultCode.INAPPROPRIATEMATCHING );
-            resp.setAttributeName( sk.getAttributeTypeDesc() );
+            boolean hasComparator = ( mr != null );
 
-            if ( mr == null )
+            if ( hasComparator )
             {
-                return resp;
+                try
+                {
+                    schemaManager.lookupComparatorRegistry( mr.getOid() );
+                }
+                catch ( LdapException e )
+                {
+                    hasComparator = false;
+                }
             }
 
-            try
-            {
-                schemaManager.lookupComparatorRegistry( mr.getOid() );
-            }
-            catch ( LdapException e )
+            if ( !hasComparator )
             {
-                return resp;
+                ldapResult.setDiagnosticMessage( "Matchingrule is required for sorting by the attribute "
+                    + sk.getAttributeTypeDesc() );
+                resp.setSortResult( SortResultCode.INAPPROPRIATEMATCHING );
+                resp.setAttributeName( sk.getAttributeTypeDesc() );
+                return false;
             }
         }
 
-        resp.setSortResult( SortResultCode.SUCCESS );
-
-        return resp;
+        return true;
     }
 
 
     /**
-     * Sorts the entries based on the given sortkey and returns the cursor
+     * Sorts the entries based on the given sort keys and returns the cursor. The entries
+     * are sorted in memory if there are less than the DirectoryService's maximum number of
+     * entries sorted in memory, otherwise they are sorted by chunks written in temporary
+     * files, which are then merged.
      * 
      * @param unsortedEntries the cursor containing un-sorted entries
      * @param control the sort control
@@ -1302,10 +1332,9 @@ public class DefaultCoreSession implements CoreSession
      * @throws CursorException
      * @throws LdapException
      * @throws IOException
-     * @throws KeyNotFoundException 
      */
     private Cursor<Entry> sortResults( Cursor<Entry> unsortedEntries, SortRequest control, SchemaManager schemaManager )
-        throws CursorException, LdapException, IOException, KeyNotFoundException
+        throws CursorException, LdapException, IOException
     {
         unsortedEntries.beforeFirst();
 
@@ -1323,48 +1352,157 @@ public class DefaultCoreSession implements CoreSession
             return unsortedEntries;
         }
 
-        SortKey sk = control.getSortKeys().get( 0 );
+        SortedEntryComparator comparator = new SortedEntryComparator( control.getSortKeys(), schemaManager );
 
-        AttributeType at = schemaManager.getAttributeType( sk.getAttributeTypeDesc() );
+        int maxInMemory = Math.max( 2, directoryService.getMaxSortedEntriesInMemory() );
+        List<SortedEntry> chunk = new ArrayList<SortedEntry>();
+        chunk.add( new SortedEntry( first, comparator ) );
+
+        // at this stage the cursor will be _on_ the next element, so read it
+        chunk.add( new SortedEntry( unsortedEntries.get(), comparator ) );
+
+        List<File> runFiles = null;
+        SortedEntrySerializer serializer = null;
+
+        try
+        {
+            while ( unsortedEntries.next() )
+            {
+                if ( chunk.size() == maxInMemory )
+                {
+                    // Too many entries : spill the sorted chunk in a file
+                    if ( runFiles == null )
+                    {
+                        runFiles = new ArrayList<File>();
+                        SortedEntrySerializer.setSchemaManager( schemaManager );
+                        serializer = new SortedEntrySerializer( comparator );
+                    }
+
+                    runFiles.add( writeRun( chunk, serializer ) );
+                    chunk.clear();
+                }
+
+                chunk.add( new SortedEntry( unsortedEntries.get(), comparator ) );
+            }
+
+            // A stable sort, the entries with equal keys keep their order
+            Collections.sort( chunk );
+
+            if ( runFiles == null )
+            {
+                List<Entry> sortedEntries = new ArrayList<Entry>( chunk.size() );
+
+                for ( SortedEntry sortedEntry : chunk )
+                {
+                    sortedEntries.add( sortedEntry.entry );
+                }
+
+                return new ListCursor<Entry>( sortedEntries );
+            }
+
+            runFiles.add( writeRun( chunk, serializer ) );
+            chunk.clear();
 
-        SortedEntryComparator comparator = new SortedEntryComparator( at, sk.getMatchingRuleId(), sk.isReverseOrder(),
-            schemaManager );
+            return new SortedEntryCursor( runFiles, comparator, serializer );
+        }
+        catch ( IOException ioe )
+        {
+            if ( runFiles != null )
+            {
+                for ( File runFile : runFiles )
+                {
+                    runFile.delete();
+                }
+            }
 
-        SortedEntrySerializer keySerializer = new SortedEntrySerializer( comparator );
+            throw ioe;
+        }
+        finally
+        {
+            unsortedEntries.close();
+        }
+    }
 
-        PersistedBTreeConfiguration<Entry, String> config = new PersistedBTreeConfiguration<Entry, String>();
-        config.setName( UUID.randomUUID().toString() );
-        config.setKeySerializer( keySerializer );
-        config.setValueSerializer( StringSerializer.INSTANCE );
 
-        BTree<Entry, String> btree = BTreeFactory.createPersistedBTree( config );
+    /**
+     * Sorts a chunk of entries and writes it in a temporary file
+     *
+     * @param chunk the entries to sort
+     * @param serializer the serializer used to write the entries
+     * @return the file containing the sorted entries
+     * @throws IOException if the file can't be written
+     */
+    private File writeRun( List<SortedEntry> chunk, SortedEntrySerializer serializer ) throws IOException
+    {
+        Collections.sort( chunk );
 
-        File file = File.createTempFile( btree.getName(), ".sorted-data" );
-        RecordManager recMan = new RecordManager( file.getAbsolutePath() );
+        File file = File.createTempFile( "apacheds-sort", ".sorted-data" );
+        DataOutputStream out = null;
 
         try
         {
-            recMan.manage( btree );
+            out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+
+            for ( SortedEntry sortedEntry : chunk )
+            {
+                byte[] bytes = serializer.serialize( sortedEntry.entry );
+                out.writeInt( bytes.length );
+                out.write( bytes );
+            }
+
+            out.close();
+            out = null;
+
+            return file;
         }
-        catch ( BTreeAlreadyManagedException e )
+        catch ( IOException ioe )
         {
-            throw new LdapException( e );
+            file.delete();
+            throw ioe;
+        }
+        finally
+        {
+            if ( out != null )
+            {
+                try
+                {
+                    out.close();
+                }
+                catch ( IOException ioe )
+                {
+                    // Nothing to do
+                }
+            }
         }
+    }
 
-        btree.insert( first, null );
 
-        // at this stage the cursor will be _on_ the next element, so read it
-        btree.insert( unsortedEntries.get(), null );
+    /**
+     * An entry and its sort key values, extracted once
+     */
+    private static class SortedEntry implements Comparable<SortedEntry>
+    {
+        /** The entry */
+        private final Entry entry;
 
-        while ( unsortedEntries.next() )
+        /** The values of the sort keys */
+        private final Object[] keyValues;
+
+        /** The comparator */
+        private final SortedEntryComparator comparator;
+
+
+        private SortedEntry( Entry entry, SortedEntryComparator comparator )
         {
-            Entry entry = unsortedEntries.get();
-            btree.insert( entry, null );
+            this.entry = entry;
+            this.comparator = comparator;
+            keyValues = comparator.getKeyValues( entry );
         }
 
-        unsortedEntries.close();
 
-        return new SortedEntryCursor( btree, recMan, file );
+        public int compareTo( SortedEntry that )
+        {
+            return comparator.compareKeyValues( keyValues, that.keyValues );
+        }
     }
-
 }
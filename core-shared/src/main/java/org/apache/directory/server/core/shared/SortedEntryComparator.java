@@ -21,172 +21,209 @@ package org.apache.directory.server.core.shared;
 
 
 import java.util.Comparator;
-import java.util.TreeSet;
+import java.util.List;
 
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.LdapComparator;
 import org.apache.directory.api.ldap.model.schema.MatchingRule;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 
+
 /**
- * A comparator to sort the entries as per <a href="http://tools.ietf.org/html/rfc2891">RFC 2891</a>
+ * A comparator to sort the entries as per <a href="http://tools.ietf.org/html/rfc2891">RFC 2891</a>.
+ * The entries are compared on the first sort key, then on the next one when they are
+ * equal, and so on.
+ * <p>
+ * The values used for each key can be extracted once per entry with {@link #getKeyValues(Entry)},
+ * and compared with {@link #compareKeyValues(Object[], Object[])}, to avoid extracting them at each
+ * comparison.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 class SortedEntryComparator implements Comparator<Entry>
 {
+    /** the attributes' type */
+    private AttributeType[] types;
 
-    /** the attribute's type */
-    private AttributeType type;
-
-    /** comparator used for comparing the values of the given attribute type */
-    private Comparator comparator;
+    /** comparators used for comparing the values of the given attribute types */
+    private Comparator[] comparators;
 
-    /** flag to indicate if the attribute type is multivalued */
-    private boolean multivalued;
+    /** flags for indicating the order of sorting */
+    private boolean[] reverse;
 
-    /** flag for indicating the order of sorting */
-    private boolean reverse;
-
-    /** flag to indicate if the attribute is human readable or binary */
-    private boolean hr;
+    /** flags to indicate if the attributes are human readable or binary */
+    private boolean[] hr;
 
 
     /**
      * 
      * Creates a new instance of SortedEntryComparator.
      *
-     * @param at the attribute's type
-     * @param mrOid the OID or name of the matchingrule
-     * @param reverse flag to indicate the sort order
+     * @param sortKeys the sort keys, in order of precedence
+     * @param schemaManager the schema manager
+     * @throws LdapException if one of the attributes or of the matching rules is unknown
      */
-    public SortedEntryComparator( AttributeType at, String mrule, boolean reverse, SchemaManager schemaManager ) throws LdapException
+    public SortedEntryComparator( List<SortKey> sortKeys, SchemaManager schemaManager ) throws LdapException
     {
-        this.type = at;
-        this.reverse = reverse;
+        int nbKeys = sortKeys.size();
+
+        types = new AttributeType[nbKeys];
+        comparators = new Comparator[nbKeys];
+        reverse = new boolean[nbKeys];
+        hr = new boolean[nbKeys];
 
-        if ( !at.isSingleValued() )
+        for ( int i = 0; i < nbKeys; i++ )
         {
-            multivalued = true;
+            SortKey sortKey = sortKeys.get( i );
+            AttributeType at = schemaManager.lookupAttributeTypeRegistry( sortKey.getAttributeTypeDesc() );
+
+            types[i] = at;
+            reverse[i] = sortKey.isReverseOrder();
+            hr[i] = at.getSyntax().isHumanReadable();
+            comparators[i] = getComparator( at, sortKey.getMatchingRuleId(), schemaManager );
         }
+    }
 
-        hr = at.getSyntax().isHumanReadable();
 
-        if( mrule != null )
+    /**
+     * Gets the comparator of the given matching rule, or of the attribute's ordering or
+     * equality matching rule if none is given
+     */
+    private static Comparator getComparator( AttributeType at, String mrule, SchemaManager schemaManager )
+        throws LdapException
+    {
+        Comparator comparator = null;
+
+        if ( mrule != null )
         {
             comparator = schemaManager.lookupComparatorRegistry( mrule );
         }
         else
         {
             MatchingRule mr = at.getOrdering();
-            
-            if( mr == null )
+
+            if ( mr == null )
             {
                 mr = at.getEquality();
             }
-            
+
             comparator = schemaManager.lookupComparatorRegistry( mr.getOid() );
         }
-        
+
         ( ( LdapComparator ) comparator ).setSchemaManager( schemaManager );
+
+        return comparator;
     }
 
 
-    @Override
-    public int compare( Entry entry1, Entry entry2 )
+    /**
+     * Extracts the values an entry is sorted on : for each sort key, the least value
+     * of the attribute, or null if the entry does not have it.
+     *
+     * @param entry the entry
+     * @return the values of the sort keys
+     */
+    public Object[] getKeyValues( Entry entry )
     {
-        Attribute at1 = entry1.get( type );
-
-        Attribute at2 = entry2.get( type );
+        Object[] values = new Object[types.length];
 
-        // as per section 2.2 of the spec null values are considered larger
-        if ( at1 == null )
+        for ( int i = 0; i < types.length; i++ )
         {
-            return ( reverse ? -1 : 1 );
-        }
-        else if ( at2 == null )
-        {
-            return ( reverse ? 1 : -1 );
+            Attribute attribute = entry.get( types[i] );
+
+            if ( attribute != null )
+            {
+                values[i] = getLeastValue( attribute, i );
+            }
         }
 
-        Object o1 = null;
-        Object o2 = null;
+        return values;
+    }
+
 
-        if ( multivalued )
+    /**
+     * Compares the sort key values of two entries
+     *
+     * @param values1 the values of the first entry
+     * @param values2 the values of the second entry
+     * @return a negative number, 0 or a positive number if the first entry sorts before, as, or after the second one
+     */
+    public int compareKeyValues( Object[] values1, Object[] values2 )
+    {
+        for ( int i = 0; i < types.length; i++ )
         {
-            TreeSet ts = new TreeSet( comparator );
+            Object o1 = values1[i];
+            Object o2 = values2[i];
 
-            o1 = sortAndGetFirst( at1, ts );
+            if ( o1 == o2 )
+            {
+                continue;
+            }
 
-            ts.clear();
-            o2 = sortAndGetFirst( at2, ts );
-        }
-        else
-        {
-            Value<?> v1 = at1.get();
-            Value<?> v2 = at2.get();
+            // as per section 2.2 of the spec null values are considered larger
+            if ( o1 == null )
+            {
+                return ( reverse[i] ? -1 : 1 );
+            }
+            else if ( o2 == null )
+            {
+                return ( reverse[i] ? 1 : -1 );
+            }
+
+            int c;
 
-            if ( hr )
+            if ( reverse[i] )
             {
-                o1 = v1.getString();
-                o2 = v2.getString();
+                c = comparators[i].compare( o2, o1 );
             }
             else
             {
-                o1 = v1.getBytes();
-                o2 = v2.getBytes();
+                c = comparators[i].compare( o1, o2 );
             }
-        }
 
-        if( o1 == null || o2 == null )
-        {
-            System.out.println("");
+            if ( c != 0 )
+            {
+                return c;
+            }
         }
-        int c = 1;
 
-        if ( reverse )
-        {
-            c = comparator.compare( o2, o1 );
-        }
-        else
-        {
-            c = comparator.compare( o1, o2 );
-        }
+        return 0;
+    }
 
-        if ( c == 0 )
-        {
-            return 1;
-        }
 
-        return c;
+    @Override
+    public int compare( Entry entry1, Entry entry2 )
+    {
+        return compareKeyValues( getKeyValues( entry1 ), getKeyValues( entry2 ) );
     }
 
 
     /**
-     * sorts the values of an attribute and picks the least value
+     * picks the least value of an attribute
      * 
      * @param at the attribute
-     * @param ts the TreeSet for sorting 
+     * @param keyIndex the sort key position
      * @return the least value among the values of the attribute
      */
-    private Object sortAndGetFirst( Attribute at, TreeSet ts )
+    private Object getLeastValue( Attribute at, int keyIndex )
     {
-        for ( Value v : at )
+        Object least = null;
+
+        for ( Value<?> v : at )
         {
-            if ( hr )
-            {
-                ts.add( v.getString() );
-            }
-            else
+            Object value = ( hr[keyIndex] ? v.getString() : v.getBytes() );
+
+            if ( ( least == null ) || ( comparators[keyIndex].compare( value, least ) < 0 ) )
             {
-                ts.add( v.getBytes() );
+                least = value;
             }
         }
 
-        return ts.first();
+        return least;
     }
-}
\ No newline at end of file
+}
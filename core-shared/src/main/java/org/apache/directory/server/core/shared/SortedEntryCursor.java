@@ -1,40 +1,43 @@
 /*
- *   Licensed to the Apache Software Foundation (ASF) under one
- *   or more contributor license agreements.  See the NOTICE file
- *   distributed with this work for additional information
- *   regarding copyright ownership.  The ASF licenses this file
- *   to you under the Apache License, Version 2.0 (the
- *   "License"); you may not use this file except in compliance
- *   with the License.  You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- *   Unless required by applicable law or agreed to in writing,
- *   software distributed under the License is distributed on an
- *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
- *   KIND, either express or implied.  See the License for the
- *   specific language governing permissions and limitations
- *   under the License.
- *
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ * 
  */
 package org.apache.directory.server.core.shared;
 
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.mavibot.btree.BTree;
-import org.apache.directory.mavibot.btree.RecordManager;
-import org.apache.directory.mavibot.btree.Tuple;
-import org.apache.directory.mavibot.btree.TupleCursor;
-import org.apache.directory.mavibot.btree.exception.KeyNotFoundException;
 import org.apache.directory.server.core.api.filtering.EntryFilter;
 import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
@@ -43,35 +46,76 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * TODO SortedEntryCursor.
+ * A cursor merging sorted runs of entries stored in temporary files, used when a server
+ * side sort has too many entries to be sorted in memory. Only one entry per run is kept
+ * in memory. The entries with the same sort key values are returned in the order they
+ * were written.
+ * <p>
+ * The runs are merged once, while the cursor moves forward. The position of each merged
+ * entry in its run file is remembered, so that the cursor can move backward, or forward
+ * again, by reading the entries back from the run files. The run files are deleted when
+ * the cursor is closed.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
 public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFilteringCursor
 {
-
     private static final Logger LOG = LoggerFactory.getLogger( SortedEntryCursor.class );
-    
-    private TupleCursor<Entry, String> wrapped;
 
-    private Tuple<Entry, String> tuple;
+    /** The files containing the sorted runs */
+    private List<File> runFiles;
+
+    /** The comparator used to sort the runs */
+    private SortedEntryComparator comparator;
+
+    /** The serializer used to write the entries in the runs */
+    private SortedEntrySerializer serializer;
+
+    /** The runs not yet merged, ordered by their current entry */
+    private PriorityQueue<Run> queue;
+
+    /** Tells if all the runs have been merged */
+    private boolean merged;
+
+    /** The run of each merged entry, in the sort order */
+    private int[] mergedRuns = new int[1024];
+
+    /** The position of each merged entry in its run file, in the sort order */
+    private long[] mergedOffsets = new long[1024];
+
+    /** The number of merged entries */
+    private int nbMerged;
 
-    private RecordManager recMan;
+    /** The position of the current entry in the merged entries, -1 when before the first entry */
+    private int position = -1;
 
-    private File dataFile;
-    
-    public SortedEntryCursor( BTree<Entry,String> btree, RecordManager recMan, File dataFile ) throws IOException, KeyNotFoundException
+    /** The files used to read back the merged entries, opened when needed */
+    private RandomAccessFile[] readers;
+
+    /** The current entry */
+    private Entry entry;
+
+
+    /**
+     * Creates a new instance of SortedEntryCursor.
+     *
+     * @param runFiles the files containing the sorted runs
+     * @param comparator the comparator used to sort the runs
+     * @param serializer the serializer used to write the entries in the runs
+     */
+    public SortedEntryCursor( List<File> runFiles, SortedEntryComparator comparator, SortedEntrySerializer serializer )
     {
-        this.recMan = recMan;
-        this.dataFile = dataFile;
-        wrapped = btree.browse();
+        this.runFiles = runFiles;
+        this.comparator = comparator;
+        this.serializer = serializer;
+        readers = new RandomAccessFile[runFiles.size()];
     }
 
 
     @Override
     public boolean available()
     {
-        return ( tuple != null );
+        return ( entry != null );
     }
 
 
@@ -92,129 +136,103 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public void beforeFirst() throws LdapException, CursorException
     {
-        try
-        {
-            tuple = null;
-            wrapped.beforeFirst();
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
+        position = -1;
+        entry = null;
     }
 
 
     @Override
     public void afterLast() throws LdapException, CursorException
     {
-        try
+        // Merge the remaining entries
+        while ( merge() != null )
         {
-            tuple = null;
-            wrapped.afterLast();
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
+            // Nothing to do
         }
 
+        position = nbMerged;
+        entry = null;
     }
 
 
     @Override
     public boolean first() throws LdapException, CursorException
     {
-        try
-        {
-            wrapped.beforeFirst();
-            return next();
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
+        beforeFirst();
 
+        return next();
     }
 
 
     @Override
     public boolean last() throws LdapException, CursorException
     {
-        try
-        {
-            wrapped.afterLast();
-            return previous();
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
+        afterLast();
 
+        return previous();
     }
 
 
     @Override
     public boolean previous() throws LdapException, CursorException
     {
-        try
+        if ( position <= 0 )
         {
-            tuple = wrapped.prev();
-            return true;
-        }
-        catch ( IOException e )
-        {
-            throw new CursorException( e );
-        }
-        catch ( NoSuchElementException e )
-        {
-            // ignore this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasPrev())
+            position = -1;
+            entry = null;
+
+            return false;
         }
 
-        tuple = null;
-        return false;
+        position--;
+        entry = read( position );
+
+        return true;
     }
 
 
     @Override
     public boolean next() throws LdapException, CursorException
     {
-        try
-        {
-            tuple = wrapped.next();
-            return true;
-        }
-        catch ( IOException e )
+        if ( position >= nbMerged )
         {
-            throw new CursorException( e );
+            // Already after the last entry
+            return false;
         }
-        catch ( NoSuchElementException e )
+
+        if ( position + 1 < nbMerged )
         {
-            // ignore, this is due to the call wrapped.prev()
-            // instead of doing a check like if(wrapped.hasNext())
+            position++;
+            entry = read( position );
+
+            return true;
         }
 
-        tuple = null;
-        return false;
+        entry = merge();
+        position = nbMerged - ( ( entry == null ) ? 0 : 1 );
+
+        return ( entry != null );
     }
 
 
     @Override
     public Entry get() throws CursorException
     {
-        if ( tuple == null )
+        if ( entry == null )
         {
             throw new InvalidCursorPositionException();
         }
 
-        return tuple.getKey();
+        return entry;
     }
 
 
     @Override
     public void close()
     {
-        wrapped.close();
-        deleteFile();
+        closeRuns();
+        closeReaders();
+        deleteFiles();
         super.close();
     }
 
@@ -222,8 +240,9 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
     @Override
     public void close( Exception cause )
     {
-        wrapped.close();
-        deleteFile();
+        closeRuns();
+        closeReaders();
+        deleteFiles();
         super.close( cause );
     }
 
@@ -248,21 +267,267 @@ public class SortedEntryCursor extends AbstractCursor<Entry> implements EntryFil
         return null;
     }
 
-    private void deleteFile()
+
+    /**
+     * Opens the runs, and prepares their merge
+     */
+    private void openRuns() throws CursorException
     {
-        if( recMan == null )
+        queue = new PriorityQueue<Run>( Math.max( 1, runFiles.size() ), new Comparator<Run>()
         {
-            return;
+            public int compare( Run run1, Run run2 )
+            {
+                int c = comparator.compareKeyValues( run1.keyValues, run2.keyValues );
+
+                if ( c == 0 )
+                {
+                    // Keep the entries in the order they were written
+                    return run1.position - run2.position;
+                }
+
+                return c;
+            }
+        } );
+
+        try
+        {
+            for ( int i = 0; i < runFiles.size(); i++ )
+            {
+                Run run = new Run( runFiles.get( i ), i );
+
+                if ( run.read() )
+                {
+                    queue.add( run );
+                }
+                else
+                {
+                    run.close();
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            closeRuns();
+            throw new CursorException( e );
+        }
+    }
+
+
+    /**
+     * Merges the next entry, and remembers where it is stored.
+     *
+     * @return The merged entry, or null if all the entries have been merged
+     */
+    private Entry merge() throws CursorException
+    {
+        if ( merged )
+        {
+            return null;
+        }
+
+        if ( queue == null )
+        {
+            openRuns();
+        }
+
+        Run run = queue.poll();
+
+        if ( run == null )
+        {
+            merged = true;
+            queue = null;
+
+            return null;
         }
-        
+
+        if ( nbMerged == mergedRuns.length )
+        {
+            mergedRuns = Arrays.copyOf( mergedRuns, nbMerged * 2 );
+            mergedOffsets = Arrays.copyOf( mergedOffsets, nbMerged * 2 );
+        }
+
+        mergedRuns[nbMerged] = run.position;
+        mergedOffsets[nbMerged] = run.offset;
+        nbMerged++;
+
+        Entry mergedEntry = run.entry;
+
         try
         {
-            recMan.close();
-            dataFile.delete();
+            if ( run.read() )
+            {
+                queue.add( run );
+            }
+            else
+            {
+                run.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new CursorException( e );
         }
-        catch( IOException e )
+
+        return mergedEntry;
+    }
+
+
+    /**
+     * Reads back a merged entry from its run file
+     *
+     * @param index The position of the entry in the merged entries
+     * @return The entry
+     */
+    private Entry read( int index ) throws CursorException
+    {
+        int run = mergedRuns[index];
+
+        try
+        {
+            if ( readers[run] == null )
+            {
+                readers[run] = new RandomAccessFile( runFiles.get( run ), "r" );
+            }
+
+            RandomAccessFile reader = readers[run];
+            reader.seek( mergedOffsets[index] );
+
+            byte[] bytes = new byte[reader.readInt()];
+            reader.readFully( bytes );
+
+            return serializer.deserialize( ByteBuffer.wrap( bytes ) );
+        }
+        catch ( IOException e )
+        {
+            throw new CursorException( e );
+        }
+    }
+
+
+    private void closeReaders()
+    {
+        for ( int i = 0; i < readers.length; i++ )
+        {
+            if ( readers[i] != null )
+            {
+                try
+                {
+                    readers[i].close();
+                }
+                catch ( IOException e )
+                {
+                    LOG.warn( "Failed to close a sorted entry data file", e );
+                }
+
+                readers[i] = null;
+            }
+        }
+    }
+
+
+    private void closeRuns()
+    {
+        if ( queue == null )
+        {
+            return;
+        }
+
+        for ( Run run : queue )
+        {
+            run.close();
+        }
+
+        queue = null;
+    }
+
+
+    private void deleteFiles()
+    {
+        for ( File file : runFiles )
+        {
+            if ( !file.delete() )
+            {
+                LOG.warn( "Failed to delete the sorted entry data file {}", file );
+            }
+        }
+    }
+
+
+    /**
+     * A sorted run, and its current entry
+     */
+    private class Run
+    {
+        /** The run's position, used to keep the order of equal entries */
+        private int position;
+
+        /** The stream the entries are read from */
+        private DataInputStream in;
+
+        /** The position of the current entry in the run file */
+        private long offset;
+
+        /** The position of the next entry in the run file */
+        private long nextOffset;
+
+        /** The current entry */
+        private Entry entry;
+
+        /** The sort key values of the current entry */
+        private Object[] keyValues;
+
+
+        private Run( File file, int position ) throws IOException
+        {
+            this.position = position;
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        }
+
+
+        /**
+         * Reads the next entry of the run
+         *
+         * @return false if the run has no more entry
+         */
+        private boolean read() throws IOException
+        {
+            int length;
+
+            try
+            {
+                length = in.readInt();
+            }
+            catch ( EOFException eofe )
+            {
+                entry = null;
+                keyValues = null;
+
+                return false;
+            }
+
+            byte[] bytes = new byte[length];
+            in.readFully( bytes );
+
+            offset = nextOffset;
+            nextOffset += 4 + length;
+
+            entry = serializer.deserialize( ByteBuffer.wrap( bytes ) );
+            keyValues = comparator.getKeyValues( entry );
+
+            return true;
+        }
+
+
+        private void close()
         {
-            LOG.warn( "Failed to delete the sorted entry data file {}", dataFile, e );
+            try
+            {
+                in.close();
+            }
+            catch ( IOException e )
+            {
+                LOG.warn( "Failed to close a sorted entry data file", e );
+            }
         }
     }
 }
@@ -30,6 +30,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.EmptyCursor;
@@ -49,6 +56,7 @@ import org.apache.directory.api.ldap.model.exception.LdapOperationErrorException
 import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.filter.ObjectClassNode;
+import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.extended.NoticeOfDisconnect;
 import org.apache.directory.api.ldap.model.name.Dn;
@@ -136,6 +144,12 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
     /** The cn=schema Dn */
     private Dn subschemSubentryDn;
 
+    /** The number of partitions searched concurrently on a subtree search from the rootDSE. 0 means sequential */
+    private volatile int rootSearchParallelism = 0;
+
+    /** The executor used for the concurrent rootDSE subtree searches, created on demand */
+    private ExecutorService rootSearchExecutor;
+
 
     /**
      * Creates the root nexus singleton of the entire system.  The root DSE has
@@ -264,6 +278,13 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
      */
     protected synchronized void doDestroy()
     {
+        // The pool may have been created even if the nexus is not initialized anymore
+        if ( rootSearchExecutor != null )
+        {
+            rootSearchExecutor.shutdownNow();
+            rootSearchExecutor = null;
+        }
+
         if ( !initialized )
         {
             return;
@@ -645,6 +666,9 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
     {
         ExprNode filter = searchContext.getFilter();
 
+        // The entries of several partitions are concatenated, they can't be returned sorted
+        searchContext.setSortRequest( null );
+
         // We are searching from the rootDSE. We have to distinguish three cases :
         // 1) The scope is OBJECT : we have to return the rootDSE entry, filtered
         // 2) The scope is ONELEVEL : we have to return all the Naming Contexts
@@ -699,6 +723,11 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
 
             return new CursorList( cursors, searchContext );
         }
+        else if ( ( rootSearchParallelism > 0 ) && ( partitions.size() > 1 ) )
+        {
+            // This is a SUBLEVEL search, and the partitions are searched concurrently
+            return searchPartitionsInParallel( searchContext );
+        }
         else
         {
             // This is a SUBLEVEL search. We will do multiple searches and wrap
@@ -725,6 +754,171 @@ public class DefaultPartitionNexus extends AbstractPartition implements Partitio
     }
 
 
+    /**
+     * Runs a SUBTREE search from the rootDSE on all the partitions at the same time. Each
+     * partition gets its own copy of the search context, as the filter is annotated by the
+     * partition search engine. The cursors are returned in the same order than the sequential
+     * search would return them.
+     */
+    private EntryFilteringCursor searchPartitionsInParallel( final SearchOperationContext searchContext )
+        throws LdapException
+    {
+        List<Future<EntryFilteringCursor>> futures = new ArrayList<Future<EntryFilteringCursor>>();
+        List<SearchOperationContext> partitionContexts = new ArrayList<SearchOperationContext>();
+        ExecutorService executor = getRootSearchExecutor();
+
+        for ( final Partition partition : partitions.values() )
+        {
+            final Dn contextDn = partition.getSuffixDn();
+            final SearchOperationContext partitionContext = new SearchOperationContext( searchContext, contextDn,
+                ( ExprNode ) searchContext.getFilter().clone() );
+            partitionContexts.add( partitionContext );
+
+            futures.add( executor.submit( new Callable<EntryFilteringCursor>()
+            {
+                public EntryFilteringCursor call() throws Exception
+                {
+                    HasEntryOperationContext hasEntryContext = new HasEntryOperationContext(
+                        searchContext.getSession(), contextDn );
+
+                    // search only if the context entry exists
+                    if ( partition.hasEntry( hasEntryContext ) )
+                    {
+                        return partition.search( partitionContext );
+                    }
+
+                    return null;
+                }
+            } ) );
+        }
+
+        List<EntryFilteringCursor> cursors = new ArrayList<EntryFilteringCursor>();
+        LdapException error = null;
+
+        // Wait for all the searches, even if one fails, so that no cursor is left open
+        for ( Future<EntryFilteringCursor> future : futures )
+        {
+            try
+            {
+                EntryFilteringCursor cursor = future.get();
+
+                if ( cursor != null )
+                {
+                    cursors.add( cursor );
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+
+                if ( error == null )
+                {
+                    error = new LdapOtherException( ie.getMessage(), ie );
+                }
+            }
+            catch ( ExecutionException ee )
+            {
+                if ( error == null )
+                {
+                    Throwable cause = ee.getCause();
+
+                    if ( cause instanceof LdapException )
+                    {
+                        error = ( LdapException ) cause;
+                    }
+                    else
+                    {
+                        error = new LdapOtherException( cause.getMessage(), cause );
+                    }
+                }
+            }
+        }
+
+        if ( error != null )
+        {
+            for ( EntryFilteringCursor cursor : cursors )
+            {
+                try
+                {
+                    cursor.close();
+                }
+                catch ( Exception e )
+                {
+                    LOG.warn( "Failed to close a partition cursor", e );
+                }
+            }
+
+            throw error;
+        }
+
+        // Report the response controls the partitions may have added
+        for ( SearchOperationContext partitionContext : partitionContexts )
+        {
+            for ( Control control : partitionContext.getResponseControls() )
+            {
+                searchContext.addResponseControl( control );
+            }
+        }
+
+        return new CursorList( cursors, searchContext );
+    }
+
+
+    /**
+     * @return the executor used for the concurrent rootDSE subtree searches
+     */
+    private synchronized ExecutorService getRootSearchExecutor()
+    {
+        if ( rootSearchExecutor == null )
+        {
+            rootSearchExecutor = Executors.newFixedThreadPool( Math.max( 1, rootSearchParallelism ), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "RootSearch-" + count.incrementAndGet() );
+                    thread.setDaemon( true );
+
+                    return thread;
+                }
+            } );
+        }
+
+        return rootSearchExecutor;
+    }
+
+
+    /**
+     * @return the number of partitions searched concurrently on a subtree search from the rootDSE
+     */
+    public int getRootSearchParallelism()
+    {
+        return rootSearchParallelism;
+    }
+
+
+    /**
+     * Sets the number of partitions searched concurrently on a subtree search from the
+     * rootDSE. The default, 0, searches the partitions one after the other. The current
+     * pool, if any, is shut down once its searches are done, and a new one is created with
+     * the new size on the next concurrent search.
+     *
+     * @param rootSearchParallelism the number of threads used for the rootDSE subtree searches
+     */
+    public synchronized void setRootSearchParallelism( int rootSearchParallelism )
+    {
+        this.rootSearchParallelism = rootSearchParallelism;
+
+        if ( rootSearchExecutor != null )
+        {
+            rootSearchExecutor.shutdown();
+            rootSearchExecutor = null;
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
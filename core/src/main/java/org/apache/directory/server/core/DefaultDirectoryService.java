@@ -200,6 +200,12 @@ public class DefaultDirectoryService implements DirectoryService
     /** The default delay to wait between sync on disk : 15 seconds */
     private static final long DEFAULT_SYNC_PERIOD = 15000;
 
+    /** The maximum number of entries sorted in memory for a server side sort */
+    private int maxSortedEntriesInMemory;
+
+    /** The default maximum number of entries sorted in memory : 10 000 */
+    private static final int DEFAULT_MAX_SORTED_ENTRIES_IN_MEMORY = 10000;
+
     /** */
     private Thread workerThread;
 
@@ -305,6 +311,7 @@ public class DefaultDirectoryService implements DirectoryService
         changeLog = new DefaultChangeLog();
         journal = new DefaultJournal();
         syncPeriodMillis = DEFAULT_SYNC_PERIOD;
+        maxSortedEntriesInMemory = DEFAULT_MAX_SORTED_ENTRIES_IN_MEMORY;
         csnFactory = new CsnFactory( replicaId );
         evaluator = new SubtreeEvaluator( schemaManager );
         setDefaultInterceptorConfigurations();
@@ -2139,6 +2146,24 @@ public class DefaultDirectoryService implements DirectoryService
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public int getMaxSortedEntriesInMemory()
+    {
+        return maxSortedEntriesInMemory;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setMaxSortedEntriesInMemory( int maxSortedEntriesInMemory )
+    {
+        this.maxSortedEntriesInMemory = maxSortedEntriesInMemory;
+    }
+
+
     /**
      * checks if the working directory is already in use by some other directory service, if yes
      * then throws a runtime exception else will obtain the lock on the working directory
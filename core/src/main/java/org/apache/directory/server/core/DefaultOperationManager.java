@@ -22,6 +22,9 @@ package org.apache.directory.server.core;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -62,6 +65,7 @@ import org.apache.directory.server.core.api.interceptor.context.OperationContext
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -88,12 +92,22 @@ public class DefaultOperationManager implements OperationManager
     private static final boolean IS_TIME = OPERATION_TIME.isDebugEnabled();
     private static final boolean IS_STAT = OPERATION_STAT.isDebugEnabled();
 
+    /** The interceptors writing in other partitions than the target one, which prevent the partition locking */
+    private static final String[] CROSS_PARTITION_INTERCEPTORS =
+        { "memberOfInterceptor" };
+
     /** The directory service instance */
     private final DirectoryService directoryService;
 
     /** A lock used to protect against concurrent operations */
     private ReadWriteLock rwLock = new ReentrantReadWriteLock( true );
 
+    /** The locks protecting each partition, by partition suffix, when the partition locking is enabled */
+    private final ConcurrentMap<String, ReadWriteLock> partitionLocks = new ConcurrentHashMap<String, ReadWriteLock>();
+
+    /** Tells if the operations lock their target partition only, instead of the whole server */
+    private volatile boolean partitionLocking = false;
+
 
     public DefaultOperationManager( DirectoryService directoryService )
     {
@@ -110,6 +124,65 @@ public class DefaultOperationManager implements OperationManager
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public ReadWriteLock getRWLock( Dn dn )
+    {
+        ReadWriteLock partitionLock = getPartitionLock( dn );
+
+        if ( partitionLock == null )
+        {
+            return rwLock;
+        }
+
+        return partitionLock;
+    }
+
+
+    /**
+     * @return true if the operations lock their target partition only
+     */
+    public boolean isPartitionLocking()
+    {
+        return partitionLocking;
+    }
+
+
+    /**
+     * Enables or disables the partition locking. When enabled, an operation only blocks
+     * the operations done on the same partition, and holds the global lock in shared
+     * mode. Operations which can't be associated with a single partition (a move from
+     * one partition to another, an operation on the rootDSE) still lock the whole server.
+     * <br/>
+     * The partition locking can't be enabled when an interceptor doing internal writes on
+     * another partition than the one targeted by the current operation (the memberOf
+     * interceptor) is used : those writes would not be protected by the lock of their
+     * partition, and taking it could deadlock with an operation done on this partition.
+     * <br/>
+     * This flag must not be changed while some operations are being processed.
+     *
+     * @param partitionLocking true to lock the target partition only
+     * @throws IllegalStateException If an interceptor writing in other partitions is used
+     */
+    public void setPartitionLocking( boolean partitionLocking )
+    {
+        if ( partitionLocking )
+        {
+            for ( String interceptorName : CROSS_PARTITION_INTERCEPTORS )
+            {
+                if ( directoryService.getInterceptor( interceptorName ) != null )
+                {
+                    throw new IllegalStateException( "The partition locking can't be enabled, the "
+                        + interceptorName + " writes in other partitions than the target one" );
+                }
+            }
+        }
+
+        this.partitionLocking = partitionLocking;
+    }
+
+
     /**
      * Acquires a ReadLock
      */
@@ -146,6 +219,164 @@ public class DefaultOperationManager implements OperationManager
     }
 
 
+    /**
+     * Gets the lock associated with the partition containing the given Dn.
+     *
+     * @param dn The Dn of the target entry
+     * @return The partition lock, or null if the partition locking is disabled or if
+     * the Dn does not belong to any partition
+     */
+    private ReadWriteLock getPartitionLock( Dn dn )
+    {
+        if ( !partitionLocking || ( dn == null ) || dn.isEmpty() )
+        {
+            return null;
+        }
+
+        Partition partition = null;
+
+        try
+        {
+            partition = directoryService.getPartitionNexus().getPartition( dn );
+        }
+        catch ( LdapException le )
+        {
+            // No partition for this Dn : we will use the global lock
+            return null;
+        }
+
+        String suffix = partition.getSuffixDn().getNormName();
+        ReadWriteLock partitionLock = partitionLocks.get( suffix );
+
+        if ( partitionLock == null )
+        {
+            partitionLock = new ReentrantReadWriteLock( true );
+            ReadWriteLock existing = partitionLocks.putIfAbsent( suffix, partitionLock );
+
+            if ( existing != null )
+            {
+                partitionLock = existing;
+            }
+        }
+
+        return partitionLock;
+    }
+
+
+    /**
+     * Acquires the locks needed to read the partition containing a Dn : a read lock on the
+     * partition lock and on the global lock if the partition locking is enabled, a read
+     * lock on the global lock otherwise.
+     *
+     * @param dn The Dn of the target entry
+     * @return The partition lock which has been acquired, or null if only the global lock is held
+     */
+    private Lock lockRead( Dn dn )
+    {
+        ReadWriteLock partitionLock = getPartitionLock( dn );
+
+        lockRead();
+
+        if ( partitionLock == null )
+        {
+            return null;
+        }
+
+        Lock lock = partitionLock.readLock();
+        lock.lock();
+
+        return lock;
+    }
+
+
+    /**
+     * Releases the locks acquired by {@link #lockRead(Dn)}
+     *
+     * @param lock The acquired partition lock, if any
+     */
+    private void unlockRead( Lock lock )
+    {
+        if ( lock != null )
+        {
+            lock.unlock();
+        }
+
+        unlockRead();
+    }
+
+
+    /**
+     * Acquires the locks needed to update the partition containing a Dn : a write lock
+     * on the partition lock and a read lock on the global lock if the partition locking is
+     * enabled, a write lock on the global lock otherwise.
+     *
+     * @param dn The Dn of the target entry
+     * @return The partition lock which has been acquired, or null if the global write lock is held
+     */
+    private Lock lockWrite( Dn dn )
+    {
+        return lockWrite( getPartitionLock( dn ) );
+    }
+
+
+    /**
+     * Acquires the locks needed to update the partition containing two Dns. If they
+     * don't belong to the same partition, the global write lock is acquired.
+     *
+     * @param dn The Dn of the target entry
+     * @param otherDn The Dn of the new superior
+     * @return The partition lock which has been acquired, or null if the global write lock is held
+     */
+    private Lock lockWrite( Dn dn, Dn otherDn )
+    {
+        ReadWriteLock partitionLock = getPartitionLock( dn );
+
+        if ( ( partitionLock != null ) && ( partitionLock != getPartitionLock( otherDn ) ) )
+        {
+            partitionLock = null;
+        }
+
+        return lockWrite( partitionLock );
+    }
+
+
+    private Lock lockWrite( ReadWriteLock partitionLock )
+    {
+        if ( partitionLock == null )
+        {
+            lockWrite();
+
+            return null;
+        }
+
+        lockRead();
+
+        Lock lock = partitionLock.writeLock();
+        lock.lock();
+
+        return lock;
+    }
+
+
+    /**
+     * Releases the locks acquired by {@link #lockWrite(Dn)}
+     *
+     * @param lock The acquired partition lock, if any
+     */
+    private void unlockWrite( Lock lock )
+    {
+        if ( lock != null )
+        {
+            lock.unlock();
+            unlockRead();
+        }
+        else
+        {
+            unlockWrite();
+        }
+    }
+
+
     /**
      * Eagerly populates fields of operation contexts so multiple Interceptors
      * in the processing pathway can reuse this value without performing a
@@ -387,7 +618,7 @@ public class DefaultOperationManager implements OperationManager
         // Call the Add method
         Interceptor head = directoryService.getInterceptor( addContext.getNextInterceptor() );
 
-        lockWrite();
+        Lock lock = lockWrite( dn );
 
         try
         {
@@ -395,7 +626,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
         if ( IS_DEBUG )
@@ -432,7 +663,7 @@ public class DefaultOperationManager implements OperationManager
         // Call the Delete method
         Interceptor head = directoryService.getInterceptor( bindContext.getNextInterceptor() );
 
-        lockRead();
+        Lock lock = lockRead( bindContext.getDn() );
 
         try
         {
@@ -440,7 +671,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            unlockRead( lock );
         }
 
         if ( IS_DEBUG )
@@ -532,7 +763,7 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
+        Lock lock = lockRead( dn );
 
         try
         {
@@ -540,7 +771,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            unlockRead( lock );
         }
 
         if ( IS_DEBUG )
@@ -629,7 +860,7 @@ public class DefaultOperationManager implements OperationManager
         }
 
         // populate the context with the old entry
-        lockWrite();
+        Lock lock = lockWrite( dn );
 
         try
         {
@@ -642,7 +873,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
         if ( IS_DEBUG )
@@ -717,7 +948,7 @@ public class DefaultOperationManager implements OperationManager
 
         boolean result = false;
 
-        lockRead();
+        Lock lock = lockRead( hasEntryContext.getDn() );
 
         try
         {
@@ -725,7 +956,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            unlockRead( lock );
         }
 
         if ( IS_DEBUG )
@@ -765,7 +996,7 @@ public class DefaultOperationManager implements OperationManager
 
         Entry entry = null;
 
-        lockRead();
+        Lock lock = lockRead( lookupContext.getDn() );
 
         try
         {
@@ -773,7 +1004,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            unlockRead( lock );
         }
 
         if ( IS_DEBUG )
@@ -870,7 +1101,7 @@ public class DefaultOperationManager implements OperationManager
             referralManager.unlock();
         }
 
-        lockWrite();
+        Lock lock = lockWrite( dn );
 
         try
         {
@@ -884,7 +1115,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
         if ( IS_DEBUG )
@@ -988,7 +1219,7 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
+        Lock lock = lockWrite( dn, newSuperiorDn );
 
         try
         {
@@ -1003,7 +1234,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
         if ( IS_DEBUG )
@@ -1108,7 +1339,7 @@ public class DefaultOperationManager implements OperationManager
             directoryService.getReferralManager().unlock();
         }
 
-        lockWrite();
+        Lock lock = lockWrite( dn, moveAndRenameContext.getNewSuperiorDn() );
 
         try
         {
@@ -1122,7 +1353,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
         if ( IS_DEBUG )
@@ -1221,7 +1452,7 @@ public class DefaultOperationManager implements OperationManager
         // Call the rename method
         // populate the context with the old entry
 
-        lockWrite();
+        Lock lock = lockWrite( dn );
 
         try
         {
@@ -1237,7 +1468,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockWrite();
+            unlockWrite( lock );
         }
 
         if ( IS_DEBUG )
@@ -1332,7 +1563,7 @@ public class DefaultOperationManager implements OperationManager
 
         EntryFilteringCursor cursor = null;
 
-        lockRead();
+        Lock lock = lockRead( dn );
 
         try
         {
@@ -1340,7 +1571,7 @@ public class DefaultOperationManager implements OperationManager
         }
         finally
         {
-            unlockRead();
+            unlockRead( lock );
         }
 
         if ( IS_DEBUG )
@@ -22,22 +22,16 @@ package org.apache.directory.server.core.authn;
 
 import static org.apache.directory.api.ldap.extras.controls.ppolicy.PasswordPolicyErrorEnum.ACCOUNT_LOCKED;
 import static org.apache.directory.api.ldap.extras.controls.ppolicy.PasswordPolicyErrorEnum.PASSWORD_EXPIRED;
-import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT;
 import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_CHANGED_TIME_AT;
 import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_END_TIME_AT;
 import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_GRACE_USE_TIME_AT;
-import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT;
 import static org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants.PWD_START_TIME_AT;
 
-import java.util.Collections;
 import java.util.Date;
 
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.entry.Attribute;
-import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
-import org.apache.directory.api.ldap.model.entry.Modification;
-import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.password.PasswordUtil;
@@ -46,7 +40,7 @@ import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.InterceptorEnum;
 import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyConfiguration;
 import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyException;
-import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.authn.ppolicy.PasswordPolicyStateStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -168,17 +162,19 @@ public abstract class AbstractAuthenticator implements Authenticator
             InterceptorEnum.AUTHENTICATION_INTERCEPTOR.getName() );
         PasswordPolicyConfiguration pPolicyConfig = authenticationInterceptor.getPwdPolicy( userEntry );
 
-        // check for locked out account
+        // check for locked out account. The lockout state is read from memory, as the
+        // latest changes may not have been written to the entry yet
+        PasswordPolicyStateStore stateStore = authenticationInterceptor.getPwdPolicyStateStore();
+
         if ( pPolicyConfig.isPwdLockout() )
         {
             LOG.debug( "checking if account with the Dn {} is locked", userEntry.getDn() );
 
-            Attribute accountLockAttr = userEntry.get( PWD_ACCOUNT_LOCKED_TIME_AT );
+            String lockedTime = stateStore.getLockedTime( userEntry );
 
-            if ( accountLockAttr != null )
+            if ( lockedTime != null )
             {
-                String lockedTime = accountLockAttr.getString();
-                if ( lockedTime.equals( "000001010000Z" ) )
+                if ( lockedTime.equals( PasswordPolicyStateStore.PERMANENT_LOCK_TIME ) )
                 {
                     throw new PasswordPolicyException( "account was permanently locked", ACCOUNT_LOCKED.getValue() );
                 }
@@ -199,15 +195,7 @@ public abstract class AbstractAuthenticator implements Authenticator
                     else
                     {
                         // remove pwdAccountLockedTime attribute
-                        Modification pwdAccountLockMod = new DefaultModification(
-                            ModificationOperation.REMOVE_ATTRIBUTE, accountLockAttr );
-                        ModifyOperationContext modContext = new ModifyOperationContext(
-                            directoryService.getAdminSession() );
-                        modContext.setDn( userEntry.getDn() );
-
-                        modContext.setModItems( Collections.singletonList( pwdAccountLockMod ) );
-
-                        directoryService.getPartitionNexus().modify( modContext );
+                        stateStore.unlock( userEntry );
                     }
                 }
             }
@@ -242,13 +230,13 @@ public abstract class AbstractAuthenticator implements Authenticator
 
         if ( pPolicyConfig.getPwdMaxIdle() > 0 )
         {
-            Attribute pwdLastSuccessTimeAttr = userEntry.get( PWD_LAST_SUCCESS_AT );
+            String pwdLastSuccessTime = stateStore.getLastSuccessTime( userEntry );
 
             // Let's be sure that the user has already logged in
-            if ( pwdLastSuccessTimeAttr != null )
+            if ( pwdLastSuccessTime != null )
             {
                 long time = pPolicyConfig.getPwdMaxIdle() * 1000L;
-                time += DateUtils.getDate( pwdLastSuccessTimeAttr.getString() ).getTime();
+                time += DateUtils.getDate( pwdLastSuccessTime ).getTime();
 
                 if ( System.currentTimeMillis() >= time )
                 {
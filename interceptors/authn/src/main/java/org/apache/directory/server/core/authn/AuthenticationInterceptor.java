@@ -40,7 +40,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -97,6 +96,7 @@ import org.apache.directory.server.core.api.interceptor.context.OperationContext
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.UnbindOperationContext;
+import org.apache.directory.server.core.authn.ppolicy.PasswordPolicyStateStore;
 import org.apache.directory.server.core.authn.ppolicy.PpolicyConfigContainer;
 import org.apache.directory.server.core.shared.DefaultCoreSession;
 import org.apache.directory.server.i18n.I18n;
@@ -151,6 +151,15 @@ public class AuthenticationInterceptor extends BaseInterceptor
     /** the pwdPolicySubentry AT */
     private AttributeType pwdPolicySubentryAT;
 
+    /** The in-memory password policy state of the users who bind */
+    private PasswordPolicyStateStore pwdPolicyStateStore;
+
+    /** The delay between two writes of the password policy states, in milliseconds. 0 means write-through */
+    private long pwdPolicyStateFlushInterval = 0L;
+
+    /** Tells if the lockouts are written immediately when the password policy states writes are delayed */
+    private boolean syncPwdLockouts = true;
+
 
     /**
      * Creates an authentication service interceptor.
@@ -184,6 +193,11 @@ public class AuthenticationInterceptor extends BaseInterceptor
         }
 
         loadPwdPolicyStateAttributeTypes();
+
+        pwdPolicyStateStore = new PasswordPolicyStateStore( directoryService, this );
+        pwdPolicyStateStore.setFlushInterval( pwdPolicyStateFlushInterval );
+        pwdPolicyStateStore.setSyncLockouts( syncPwdLockouts );
+        pwdPolicyStateStore.init();
     }
 
 
@@ -258,6 +272,11 @@ public class AuthenticationInterceptor extends BaseInterceptor
      */
     public void destroy()
     {
+        if ( pwdPolicyStateStore != null )
+        {
+            pwdPolicyStateStore.destroy();
+        }
+
         authenticatorsMapByType.clear();
         Set<Authenticator> copy = new HashSet<Authenticator>( authenticators );
         authenticators = new HashSet<Authenticator>();
@@ -508,8 +527,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
         PasswordPolicyConfiguration policyConfig = getPwdPolicy( userEntry );
 
-        // load the user entry again if ppolicy is enabled, cause the authenticator might have modified the entry
-        if ( policyConfig != null )
+        // load the user entry if ppolicy is enabled and the authenticator did not. The password
+        // policy state changes the authenticator may have done are kept in the pwdPolicyStateStore
+        if ( ( policyConfig != null ) && ( userEntry == null ) )
         {
             LookupOperationContext lookupContext = new LookupOperationContext( adminSession, bindContext.getDn(),
                 SchemaConstants.ALL_ATTRIBUTES_ARRAY );
@@ -532,25 +552,8 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
             if ( ( policyConfig != null ) && ( userEntry != null ) )
             {
-                Attribute pwdFailTimeAt = userEntry.get( AT_PWD_FAILURE_TIME );
-
-                if ( pwdFailTimeAt == null )
-                {
-                    pwdFailTimeAt = new DefaultAttribute( AT_PWD_FAILURE_TIME );
-                }
-                else
-                {
-                    purgeFailureTimes( policyConfig, pwdFailTimeAt );
-                }
-
                 String failureTime = DateUtils.getGeneralizedTime();
-                pwdFailTimeAt.add( failureTime );
-                Modification pwdFailTimeMod = new DefaultModification( REPLACE_ATTRIBUTE, pwdFailTimeAt );
-
-                List<Modification> mods = new ArrayList<Modification>();
-                mods.add( pwdFailTimeMod );
-
-                int numFailures = pwdFailTimeAt.size();
+                int numFailures = pwdPolicyStateStore.recordFailure( userEntry, policyConfig, failureTime );
 
                 if ( policyConfig.isPwdLockout() && ( numFailures >= policyConfig.getPwdMaxFailure() ) )
                 {
@@ -558,22 +561,16 @@ public class AuthenticationInterceptor extends BaseInterceptor
                     // See DIRSERVER-1812 (The default admin account should never get locked forever)
                     if ( !userEntry.getDn().equals( new Dn( schemaManager, ServerDNConstants.ADMIN_SYSTEM_DN ) ) )
                     {
-                        Attribute pwdAccountLockedTimeAt = new DefaultAttribute( AT_PWD_ACCOUNT_LOCKED_TIME );
-
                         // if zero, lockout permanently, only admin can unlock it
                         if ( policyConfig.getPwdLockoutDuration() == 0 )
                         {
-                            pwdAccountLockedTimeAt.add( "000001010000Z" );
+                            pwdPolicyStateStore.lock( userEntry, PasswordPolicyStateStore.PERMANENT_LOCK_TIME );
                         }
                         else
                         {
-                            pwdAccountLockedTimeAt.add( failureTime );
+                            pwdPolicyStateStore.lock( userEntry, failureTime );
                         }
 
-                        Modification pwdAccountLockedMod = new DefaultModification( ADD_ATTRIBUTE,
-                            pwdAccountLockedTimeAt );
-                        mods.add( pwdAccountLockedMod );
-
                         pwdRespCtrl.getResponse().setPasswordPolicyError( PasswordPolicyErrorEnum.ACCOUNT_LOCKED );
                     }
                 }
@@ -599,20 +596,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
                     }
                 }
 
-                if ( !mods.isEmpty() )
-                {
-                    String csnVal = directoryService.getCSN().toString();
-                    Modification csnMod = new DefaultModification( REPLACE_ATTRIBUTE, ENTRY_CSN_AT, csnVal );
-                    mods.add( csnMod );
-
-                    ModifyOperationContext bindModCtx = new ModifyOperationContext( adminSession );
-                    bindModCtx.setDn( dn );
-                    bindModCtx.setEntry( userEntry );
-                    bindModCtx.setModItems( mods );
-                    bindModCtx.setPushToEvtInterceptor( true );
-
-                    directoryService.getPartitionNexus().modify( bindModCtx );
-                }
+                pwdPolicyStateStore.commit( userEntry );
             }
 
             String upDn = ( dn == null ? "" : dn.getName() );
@@ -620,31 +604,17 @@ public class AuthenticationInterceptor extends BaseInterceptor
         }
         else if ( policyConfig != null )
         {
-            List<Modification> mods = new ArrayList<Modification>();
+            String lastSuccessTime = null;
 
             if ( policyConfig.getPwdMaxIdle() > 0 )
             {
-                Attribute pwdLastSuccesTimeAt = new DefaultAttribute( AT_PWD_LAST_SUCCESS );
-                pwdLastSuccesTimeAt.add( DateUtils.getGeneralizedTime() );
-                Modification pwdLastSuccesTimeMod = new DefaultModification( REPLACE_ATTRIBUTE, pwdLastSuccesTimeAt );
-                mods.add( pwdLastSuccesTimeMod );
-            }
-
-            Attribute pwdFailTimeAt = userEntry.get( AT_PWD_FAILURE_TIME );
-
-            if ( pwdFailTimeAt != null )
-            {
-                Modification pwdFailTimeMod = new DefaultModification( REMOVE_ATTRIBUTE, pwdFailTimeAt );
-                mods.add( pwdFailTimeMod );
+                lastSuccessTime = DateUtils.getGeneralizedTime();
             }
 
-            Attribute pwdAccLockedTimeAt = userEntry.get( AT_PWD_ACCOUNT_LOCKED_TIME );
+            // The failure times and the lockout are cleared, and the last success recorded
+            pwdPolicyStateStore.recordSuccess( userEntry, lastSuccessTime );
 
-            if ( pwdAccLockedTimeAt != null )
-            {
-                Modification pwdAccLockedTimeMod = new DefaultModification( REMOVE_ATTRIBUTE, pwdAccLockedTimeAt );
-                mods.add( pwdAccLockedTimeMod );
-            }
+            List<Modification> mods = new ArrayList<Modification>();
 
             // checking the expiration time *after* performing authentication, do we need to care about millisecond precision?
             if ( ( policyConfig.getPwdMaxAge() > 0 ) && ( policyConfig.getPwdGraceAuthNLimit() > 0 ) )
@@ -693,6 +663,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
                 bindModCtx.setPushToEvtInterceptor( true );
 
                 directoryService.getPartitionNexus().modify( bindModCtx );
+                invalidateAuthenticatorCaches( dn );
             }
 
             if ( isPPolicyReqCtrlPresent )
@@ -748,6 +719,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
         checkPwdReset( deleteContext );
         next( deleteContext );
         invalidateAuthenticatorCaches( deleteContext.getDn() );
+        pwdPolicyStateStore.remove( deleteContext.getDn() );
     }
 
 
@@ -802,7 +774,12 @@ public class AuthenticationInterceptor extends BaseInterceptor
     }
 
 
-    private void invalidateAuthenticatorCaches( Dn principalDn )
+    /**
+     * Removes the credentials of a user from the authenticators caches.
+     *
+     * @param principalDn The user entry Dn
+     */
+    public void invalidateAuthenticatorCaches( Dn principalDn )
     {
         for ( AuthenticationLevel authMech : authenticatorsMapByType.keySet() )
         {
@@ -829,10 +806,21 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
         checkAuthenticated( modifyContext );
 
+        // Write the pending password policy state of the entry first, so that it does not overwrite this modification
+        pwdPolicyStateStore.invalidate( modifyContext.getDn() );
+
         if ( !directoryService.isPwdPolicyEnabled() || modifyContext.isReplEvent() )
         {
             next( modifyContext );
 
+            if ( directoryService.isPwdPolicyEnabled() )
+            {
+                // The cached entries are used to check the password policy, they must see any change
+                invalidateAuthenticatorCaches( modifyContext.getDn() );
+
+                return;
+            }
+
             List<Modification> modifications = modifyContext.getModItems();
 
             for ( Modification modification : modifications )
@@ -1121,6 +1109,9 @@ public class AuthenticationInterceptor extends BaseInterceptor
         {
             next( modifyContext );
         }
+
+        // The cached entries are used to check the password policy, they must see any change
+        invalidateAuthenticatorCaches( modifyContext.getDn() );
     }
 
 
@@ -1136,6 +1127,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
         checkAuthenticated( moveContext );
         checkPwdReset( moveContext );
+        pwdPolicyStateStore.invalidate( moveContext.getDn() );
         next( moveContext );
         invalidateAuthenticatorCaches( moveContext.getDn() );
     }
@@ -1153,6 +1145,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
         checkAuthenticated( moveAndRenameContext );
         checkPwdReset( moveAndRenameContext );
+        pwdPolicyStateStore.invalidate( moveAndRenameContext.getDn() );
         next( moveAndRenameContext );
         invalidateAuthenticatorCaches( moveAndRenameContext.getDn() );
     }
@@ -1170,6 +1163,7 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
         checkAuthenticated( renameContext );
         checkPwdReset( renameContext );
+        pwdPolicyStateStore.invalidate( renameContext.getDn() );
         next( renameContext );
         invalidateAuthenticatorCaches( renameContext.getDn() );
     }
@@ -1676,35 +1670,50 @@ public class AuthenticationInterceptor extends BaseInterceptor
 
 
     /**
-     * purges failure timestamps which are older than the configured interval
-     * (section 7.6 in the draft)
+     * @return the in-memory password policy state of the users who bind
      */
-    private void purgeFailureTimes( PasswordPolicyConfiguration config, Attribute pwdFailTimeAt )
+    public PasswordPolicyStateStore getPwdPolicyStateStore()
     {
-        long interval = config.getPwdFailureCountInterval();
+        return pwdPolicyStateStore;
+    }
 
-        if ( interval == 0 )
-        {
-            return;
-        }
 
-        interval *= 1000;
+    /**
+     * @return the delay between two writes of the password policy states, in milliseconds
+     */
+    public long getPwdPolicyStateFlushInterval()
+    {
+        return pwdPolicyStateFlushInterval;
+    }
 
-        long currentTime = DateUtils.getDate( DateUtils.getGeneralizedTime() ).getTime();
 
-        Iterator<Value<?>> itr = pwdFailTimeAt.iterator();
+    /**
+     * Sets the delay between two writes of the password policy states (failure times, lockout,
+     * last success) recorded on bind. The default, 0, writes them during each bind.
+     *
+     * @param pwdPolicyStateFlushInterval the delay between two writes, in milliseconds
+     */
+    public void setPwdPolicyStateFlushInterval( long pwdPolicyStateFlushInterval )
+    {
+        this.pwdPolicyStateFlushInterval = pwdPolicyStateFlushInterval;
+    }
 
-        while ( itr.hasNext() )
-        {
-            Value<?> value = itr.next();
-            String failureTime = value.getString();
-            long time = DateUtils.getDate( failureTime ).getTime();
-            time += interval;
 
-            if ( currentTime >= time )
-            {
-                itr.remove();
-            }
-        }
+    /**
+     * @return true if the lockouts are written immediately
+     */
+    public boolean isSyncPwdLockouts()
+    {
+        return syncPwdLockouts;
+    }
+
+
+    /**
+     * @param syncPwdLockouts true if the lockouts have to be written immediately, even when
+     * the other password policy state changes are delayed
+     */
+    public void setSyncPwdLockouts( boolean syncPwdLockouts )
+    {
+        this.syncPwdLockouts = syncPwdLockouts;
     }
 }
@@ -0,0 +1,384 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authn;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * A LRU cache used by the authenticators to keep the credentials of the users who bind.
+ * The cache is split in segments, each of them being a LRU map protected by its own lock,
+ * so that concurrent binds for different users rarely contend. The elements can also
+ * expire after a time to live.
+ * <br/>
+ * As the credentials are read from the backend outside of any lock, a bind may read an
+ * entry just before it gets modified, and store it in the cache after the modification
+ * has invalidated it. To avoid that, the generation of the segment has to be read before
+ * the backend lookup, and given back when storing the value : the value is discarded if
+ * the segment has been invalidated in between.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @param <V> The cached value type
+ */
+public class CredentialCache<V>
+{
+    /** The segments */
+    private final Segment<V>[] segments;
+
+    /** The mask used to select a segment from a key hash */
+    private final int segmentMask;
+
+    /** The time to live of the elements, in milliseconds. 0 means they never expire */
+    private final long timeToLive;
+
+    /** The number of successful lookups */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /** The number of failed lookups */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /** The number of elements removed because the cache was full or they had expired */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+
+    /**
+     * An element stored in the cache
+     */
+    private static class Element<V>
+    {
+        private final V value;
+        private final long creationTime;
+
+
+        private Element( V value, long creationTime )
+        {
+            this.value = value;
+            this.creationTime = creationTime;
+        }
+    }
+
+
+    /**
+     * A part of the cache, a LRU map with its own lock
+     */
+    private static class Segment<V> extends LinkedHashMap<String, Element<V>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** The lock protecting this segment */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** The maximum number of elements in this segment */
+        private final int capacity;
+
+        /** Incremented each time an element of this segment is invalidated */
+        private long generation;
+
+        /** The eviction counter of the cache */
+        private final AtomicLong evictionCount;
+
+
+        private Segment( int capacity, AtomicLong evictionCount )
+        {
+            super( 16, 0.75f, true );
+            this.capacity = capacity;
+            this.evictionCount = evictionCount;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        protected boolean removeEldestEntry( Map.Entry<String, Element<V>> eldest )
+        {
+            if ( size() > capacity )
+            {
+                evictionCount.incrementAndGet();
+
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of CredentialCache.
+     *
+     * @param maxSize The maximum number of elements in the cache
+     * @param concurrencyLevel The expected number of concurrent binds. It's rounded to a power of 2
+     * @param timeToLive The time to live of the elements, in milliseconds. 0 means they never expire
+     */
+    @SuppressWarnings("unchecked")
+    public CredentialCache( int maxSize, int concurrencyLevel, long timeToLive )
+    {
+        if ( maxSize <= 0 )
+        {
+            throw new IllegalArgumentException( "The credential cache size must be positive" );
+        }
+
+        int nbSegments = 1;
+
+        while ( ( nbSegments < concurrencyLevel ) && ( nbSegments < maxSize ) )
+        {
+            nbSegments <<= 1;
+        }
+
+        segments = new Segment[nbSegments];
+        segmentMask = nbSegments - 1;
+        this.timeToLive = timeToLive;
+
+        // Spread the capacity over the segments, rounding up
+        int segmentCapacity = ( maxSize + nbSegments - 1 ) / nbSegments;
+
+        for ( int i = 0; i < nbSegments; i++ )
+        {
+            segments[i] = new Segment<V>( segmentCapacity, evictionCount );
+        }
+    }
+
+
+    /**
+     * Gets a value from the cache.
+     *
+     * @param key The key, usually a normalized Dn
+     * @return The cached value, or null if it's not present or has expired
+     */
+    public V get( String key )
+    {
+        Segment<V> segment = getSegment( key );
+        Element<V> element;
+
+        segment.lock.lock();
+
+        try
+        {
+            element = segment.get( key );
+
+            if ( ( element != null ) && isExpired( element ) )
+            {
+                segment.remove( key );
+                evictionCount.incrementAndGet();
+                element = null;
+            }
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+
+        if ( element == null )
+        {
+            missCount.incrementAndGet();
+
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+
+        return element.value;
+    }
+
+
+    /**
+     * Gets the generation of the segment a key belongs to. It has to be read before looking up
+     * the value to cache in the backend, and given to {@link #put(String, Object, long)}.
+     *
+     * @param key The key
+     * @return The current generation
+     */
+    public long getGeneration( String key )
+    {
+        Segment<V> segment = getSegment( key );
+
+        segment.lock.lock();
+
+        try
+        {
+            return segment.generation;
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Stores a value in the cache, unless an element of its segment has been invalidated
+     * since the given generation has been read.
+     *
+     * @param key The key
+     * @param value The value to store
+     * @param generation The generation read before the value was looked up
+     * @return true if the value has been stored
+     */
+    public boolean put( String key, V value, long generation )
+    {
+        Segment<V> segment = getSegment( key );
+
+        segment.lock.lock();
+
+        try
+        {
+            if ( segment.generation != generation )
+            {
+                return false;
+            }
+
+            segment.put( key, new Element<V>( value, System.currentTimeMillis() ) );
+
+            return true;
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes a value from the cache.
+     *
+     * @param key The key to remove
+     */
+    public void invalidate( String key )
+    {
+        Segment<V> segment = getSegment( key );
+
+        segment.lock.lock();
+
+        try
+        {
+            segment.generation++;
+            segment.remove( key );
+        }
+        finally
+        {
+            segment.lock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes all the values from the cache.
+     */
+    public void clear()
+    {
+        for ( Segment<V> segment : segments )
+        {
+            segment.lock.lock();
+
+            try
+            {
+                segment.generation++;
+                segment.clear();
+            }
+            finally
+            {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of values in the cache
+     */
+    public int size()
+    {
+        int size = 0;
+
+        for ( Segment<V> segment : segments )
+        {
+            segment.lock.lock();
+
+            try
+            {
+                size += segment.size();
+            }
+            finally
+            {
+                segment.lock.unlock();
+            }
+        }
+
+        return size;
+    }
+
+
+    /**
+     * @return The number of successful lookups
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+
+    /**
+     * @return The number of failed lookups
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+
+    /**
+     * @return The number of values removed because the cache was full or they had expired
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+        return "CredentialCache[size=" + size() + ", segments=" + segments.length + ", hits=" + hitCount
+            + ", misses=" + missCount + ", evictions=" + evictionCount + "]";
+    }
+
+
+    private boolean isExpired( Element<V> element )
+    {
+        return ( timeToLive > 0 ) && ( System.currentTimeMillis() - element.creationTime >= timeToLive );
+    }
+
+
+    private Segment<V> getSegment( String key )
+    {
+        int hash = key.hashCode();
+
+        // Spread the high bits, as the normalized Dns often share long suffixes
+        hash ^= ( hash >>> 16 );
+
+        return segments[hash & segmentMask];
+    }
+}
@@ -27,7 +27,6 @@ import java.util.Arrays;
 
 import javax.naming.Context;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.constants.LdapSecurityConstants;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
@@ -81,12 +80,37 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * just have to offer an access to refresh the local cache.
      *
      * We need to be sure that frequently used passwords be always in cache, and not discarded.
-     * We will use a LRU cache for this purpose.
+     * We will use a LRU cache for this purpose. It's split in segments so that concurrent binds
+     * don't contend on a single lock.
+     *
+     * When the password policy is enabled, the user entry is cached along with the password, as
+     * it's needed to check the policy. The cache is then invalidated on any modification of the
+     * entry, and the lockout state is read from the PasswordPolicyStateStore.
      */
-    private final LRUMap credentialCache;
+    private final CredentialCache<CachedPrincipal> credentialCache;
+
+    /** Declare a default for this cache */
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    /** The expected number of concurrent binds, used to split the cache */
+    private static final int CACHE_CONCURRENCY_LEVEL = 32;
 
-    /** Declare a default for this cache. 100 entries seems to be enough */
-    private static final int DEFAULT_CACHE_SIZE = 100;
+
+    /**
+     * A cached principal, with the user entry when the password policy is enabled
+     */
+    private static class CachedPrincipal
+    {
+        private final LdapPrincipal principal;
+        private final Entry entry;
+
+
+        private CachedPrincipal( LdapPrincipal principal, Entry entry )
+        {
+            this.principal = principal;
+            this.entry = entry;
+        }
+    }
 
 
     /**
@@ -95,8 +119,7 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public SimpleAuthenticator()
     {
-        super( AuthenticationLevel.SIMPLE );
-        credentialCache = new LRUMap( DEFAULT_CACHE_SIZE );
+        this( DEFAULT_CACHE_SIZE, 0L );
     }
 
 
@@ -105,10 +128,22 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      * @param cacheSize the size of the credential cache
      */
     public SimpleAuthenticator( int cacheSize )
+    {
+        this( cacheSize, 0L );
+    }
+
+
+    /**
+     * Creates a new instance, with an initial cache size and a time to live for the cached credentials
+     * @param cacheSize the size of the credential cache
+     * @param cacheTimeToLive the time to live of the cached credentials, in milliseconds. 0 means forever
+     */
+    public SimpleAuthenticator( int cacheSize, long cacheTimeToLive )
     {
         super( AuthenticationLevel.SIMPLE );
 
-        credentialCache = new LRUMap( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE );
+        credentialCache = new CredentialCache<CachedPrincipal>( cacheSize > 0 ? cacheSize : DEFAULT_CACHE_SIZE,
+            CACHE_CONCURRENCY_LEVEL, cacheTimeToLive );
     }
 
 
@@ -120,50 +155,59 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     private LdapPrincipal getStoredPassword( BindOperationContext bindContext ) throws LdapException
     {
-        LdapPrincipal principal = null;
+        String key = bindContext.getDn().getNormName();
+        boolean pwdPolicyEnabled = getDirectoryService().isPwdPolicyEnabled();
+        CachedPrincipal cached = credentialCache.get( key );
 
-        // use cache only if pwdpolicy is not enabled
-        if ( !getDirectoryService().isPwdPolicyEnabled() )
+        if ( cached != null )
         {
-            synchronized ( credentialCache )
+            if ( !pwdPolicyEnabled )
+            {
+                return cached.principal;
+            }
+
+            if ( cached.entry != null )
             {
-                principal = ( LdapPrincipal ) credentialCache.get( bindContext.getDn().getNormName() );
+                // The policy has to be checked on each bind, even if the entry hasn't changed
+                checkPwdPolicy( cached.entry );
+                bindContext.setEntry( new ClonedServerEntry( cached.entry ) );
+
+                return cached.principal;
             }
         }
 
-        byte[][] storedPasswords;
+        // Not found in the cache. Read the generation before the backend lookup, so that the
+        // value is not cached if the entry is modified in between
+        long generation = credentialCache.getGeneration( key );
+
+        // Get the user password from the backend
+        byte[][] storedPasswords = lookupUserPassword( bindContext );
 
-        if ( principal == null )
+        // Deal with the special case where the user didn't enter a password
+        // We will compare the empty array with the credentials. Sometime,
+        // a user does not set a password. This is bad, but there is nothing
+        // we can do against that, except education ...
+        if ( storedPasswords == null )
         {
-            // Not found in the cache
-            // Get the user password from the backend
-            storedPasswords = lookupUserPassword( bindContext );
-
-            // Deal with the special case where the user didn't enter a password
-            // We will compare the empty array with the credentials. Sometime,
-            // a user does not set a password. This is bad, but there is nothing
-            // we can do against that, except education ...
-            if ( storedPasswords == null )
-            {
-                storedPasswords = new byte[][]
-                    {};
-            }
+            storedPasswords = new byte[][]
+                {};
+        }
 
-            // Create the new principal before storing it in the cache
-            principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
-                AuthenticationLevel.SIMPLE );
-            principal.setUserPassword( storedPasswords );
+        // Create the new principal before storing it in the cache
+        LdapPrincipal principal = new LdapPrincipal( getDirectoryService().getSchemaManager(), bindContext.getDn(),
+            AuthenticationLevel.SIMPLE );
+        principal.setUserPassword( storedPasswords );
 
-            // Now, update the local cache ONLY if pwdpolicy is not enabled.
-            if ( !getDirectoryService().isPwdPolicyEnabled() )
-            {
-                synchronized ( credentialCache )
-                {
-                    credentialCache.put( bindContext.getDn().getNormName(), principal );
-                }
-            }
+        // Now, update the local cache. The entry is only needed when the pwdpolicy is enabled
+        Entry entry = null;
+
+        if ( pwdPolicyEnabled )
+        {
+            entry = bindContext.getEntry();
         }
 
+        credentialCache.put( key, new CachedPrincipal( principal, entry ), generation );
+
         return principal;
     }
 
@@ -403,9 +447,15 @@ public class SimpleAuthenticator extends AbstractAuthenticator
      */
     public void invalidateCache( Dn bindDn )
     {
-        synchronized ( credentialCache )
-        {
-            credentialCache.remove( bindDn.getNormName() );
-        }
+        credentialCache.invalidate( bindDn.getNormName() );
+    }
+
+
+    /**
+     * @return the credential cache, for monitoring purposes
+     */
+    public CredentialCache<?> getCredentialCache()
+    {
+        return credentialCache;
     }
 }
@@ -0,0 +1,959 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+
+package org.apache.directory.server.core.authn.ppolicy;
+
+
+import static org.apache.directory.api.ldap.model.entry.ModificationOperation.REPLACE_ATTRIBUTE;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.DateUtils;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.OperationManager;
+import org.apache.directory.server.core.api.authn.ppolicy.PasswordPolicyConfiguration;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.authn.AuthenticationInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Keeps the password policy state of the users who bind (the failure times, the lockout
+ * time and the last successful bind time) in memory, and writes it back to the entries.
+ * The lockout decisions are always taken from the in-memory state, which is the most
+ * recent one.
+ * <br/>
+ * When the flush interval is 0, each change is written to the entry immediately, in the
+ * thread doing the bind, as it used to be. Otherwise the changes are coalesced and written
+ * by a background thread every flush interval : a user doing many binds during an interval
+ * only costs one write. The lockouts can still be written immediately, so that they are
+ * never lost if the server stops abruptly.
+ * <br/>
+ * The writes done for a bind are done in the bind thread, under the global lock. When the
+ * OperationManager locks each partition separately, they are done right after the bind by
+ * the background thread, which takes the lock of the entry partition for writing.
+ * <br/>
+ * A state is dropped from memory once it has been written and hasn't been used during a
+ * whole flush interval (a minute in write-through mode). The copies of the entry cached by
+ * the authenticators are then invalidated. A state is also written and dropped before the
+ * entry gets modified, moved or renamed by a standard operation, so that the changes made
+ * by an administrator are not overwritten.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PasswordPolicyStateStore
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PasswordPolicyStateStore.class );
+
+    /** The value stored in pwdAccountLockedTime when the account is permanently locked */
+    public static final String PERMANENT_LOCK_TIME = "000001010000Z";
+
+    /** The delay after which an unused state is dropped when the writes are not delayed */
+    private static final long DEFAULT_IDLE_TIME = 60000L;
+
+    /** The DirectoryService instance */
+    private final DirectoryService directoryService;
+
+    /** The interceptor owning this store, used to invalidate the authenticators caches */
+    private final AuthenticationInterceptor authenticationInterceptor;
+
+    /** The states, per user entry normalized Dn */
+    private final ConcurrentMap<String, PasswordPolicyState> states =
+        new ConcurrentHashMap<String, PasswordPolicyState>();
+
+    /** The delay between two writes of the pending states, in milliseconds. 0 means write-through */
+    private long flushInterval = 0L;
+
+    /** Tells if the lockouts are written immediately, even if the other changes are delayed */
+    private boolean syncLockouts = true;
+
+    /** The thread writing the pending states */
+    private volatile ScheduledExecutorService flusher;
+
+    /** Some AttributeTypes used to write the states */
+    private AttributeType pwdFailureTimeAT;
+    private AttributeType pwdAccountLockedTimeAT;
+    private AttributeType pwdLastSuccessAT;
+    private AttributeType entryCsnAT;
+
+
+    /**
+     * The password policy state of one user
+     */
+    private static class PasswordPolicyState
+    {
+        /** The user entry, as read at the last bind */
+        private Entry entry;
+
+        /** The pwdFailureTime values */
+        private final List<String> failureTimes = new ArrayList<String>();
+
+        /** The pwdAccountLockedTime value, or null if the account is not locked */
+        private String lockedTime;
+
+        /** The pwdLastSuccess value */
+        private String lastSuccessTime;
+
+        /** Tells which attributes have to be written */
+        private boolean failuresChanged;
+        private boolean lockChanged;
+        private boolean lastSuccessChanged;
+
+        /** The last time this state was used */
+        private long lastAccessTime;
+
+        /** Set when the state has been dropped from the store */
+        private boolean detached;
+
+
+        private PasswordPolicyState( Entry entry )
+        {
+            this.entry = entry;
+            lastAccessTime = System.currentTimeMillis();
+
+            Attribute failureTimeAt = entry.get( PasswordPolicySchemaConstants.PWD_FAILURE_TIME_AT );
+
+            if ( failureTimeAt != null )
+            {
+                for ( Value<?> value : failureTimeAt )
+                {
+                    failureTimes.add( value.getString() );
+                }
+            }
+
+            Attribute lockedTimeAt = entry.get( PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT );
+
+            if ( lockedTimeAt != null )
+            {
+                lockedTime = lockedTimeAt.get().getString();
+            }
+
+            Attribute lastSuccessAt = entry.get( PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT );
+
+            if ( lastSuccessAt != null )
+            {
+                lastSuccessTime = lastSuccessAt.get().getString();
+            }
+        }
+
+
+        private boolean isDirty()
+        {
+            return failuresChanged || lockChanged || lastSuccessChanged;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of PasswordPolicyStateStore.
+     *
+     * @param directoryService The DirectoryService instance
+     * @param authenticationInterceptor The interceptor owning this store
+     */
+    public PasswordPolicyStateStore( DirectoryService directoryService,
+        AuthenticationInterceptor authenticationInterceptor )
+    {
+        this.directoryService = directoryService;
+        this.authenticationInterceptor = authenticationInterceptor;
+    }
+
+
+    /**
+     * Initialize the store, and starts the thread writing the pending states and dropping
+     * the idle ones.
+     *
+     * @throws LdapException If the password policy AttributeTypes can't be found
+     */
+    public void init() throws LdapException
+    {
+        SchemaManager schemaManager = directoryService.getSchemaManager();
+        pwdFailureTimeAT = schemaManager
+            .lookupAttributeTypeRegistry( PasswordPolicySchemaConstants.PWD_FAILURE_TIME_AT );
+        pwdAccountLockedTimeAT = schemaManager
+            .lookupAttributeTypeRegistry( PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT );
+        pwdLastSuccessAT = schemaManager
+            .lookupAttributeTypeRegistry( PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT );
+        entryCsnAT = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.ENTRY_CSN_AT );
+
+        flusher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "PasswordPolicyStateFlusher" );
+                thread.setDaemon( true );
+
+                return thread;
+            }
+        } );
+
+        // In write-through mode, there is nothing to write : the thread only drops the idle states
+        final long period = getIdleTime();
+
+        flusher.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                flushAll();
+                evictIdleStates( period );
+            }
+        }, period, period, TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * Writes all the pending states and stops the background thread.
+     */
+    public void destroy()
+    {
+        if ( flusher != null )
+        {
+            flusher.shutdown();
+
+            try
+            {
+                flusher.awaitTermination( getIdleTime(), TimeUnit.MILLISECONDS );
+            }
+            catch ( InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            flusher = null;
+        }
+
+        flushAll();
+        states.clear();
+    }
+
+
+    /**
+     * Records a failed bind for the given user. The failure times older than the
+     * policy failure count interval are discarded. The change is only written by
+     * {@link #commit(Entry)}, so that it can be written along with a lockout.
+     *
+     * @param userEntry The user entry
+     * @param policyConfig The policy applied to the user
+     * @param failureTime The time of the failure
+     * @return The number of failures still counted for this user
+     */
+    public int recordFailure( Entry userEntry, PasswordPolicyConfiguration policyConfig, String failureTime )
+    {
+        PasswordPolicyState state;
+        int numFailures;
+
+        do
+        {
+            state = getState( userEntry );
+
+            synchronized ( state )
+            {
+                if ( state.detached )
+                {
+                    continue;
+                }
+
+                purgeFailureTimes( policyConfig, state.failureTimes );
+                state.failureTimes.add( failureTime );
+                state.failuresChanged = true;
+                numFailures = state.failureTimes.size();
+                break;
+            }
+        }
+        while ( true );
+
+        return numFailures;
+    }
+
+
+    /**
+     * Locks the given user account. The lockout is written by {@link #commit(Entry)}.
+     *
+     * @param userEntry The user entry
+     * @param lockedTime The lockout time, or {@link #PERMANENT_LOCK_TIME}
+     */
+    public void lock( Entry userEntry, String lockedTime )
+    {
+        setLockedTime( userEntry, lockedTime );
+    }
+
+
+    /**
+     * Writes the pending changes of the given user, if the store is in write-through mode or
+     * if the account has just been locked and the lockouts are written immediately. Otherwise
+     * the changes are left to the background thread.
+     *
+     * @param userEntry The user entry
+     * @throws LdapException If the state can't be written
+     */
+    public void commit( Entry userEntry ) throws LdapException
+    {
+        PasswordPolicyState state = states.get( userEntry.getDn().getNormName() );
+
+        if ( state == null )
+        {
+            return;
+        }
+
+        boolean write = ( flushInterval == 0 );
+
+        synchronized ( state )
+        {
+            write |= ( syncLockouts && state.lockChanged && ( state.lockedTime != null ) );
+        }
+
+        if ( write )
+        {
+            write( state );
+        }
+    }
+
+
+    /**
+     * Unlocks the given user account, once its lockout duration has expired.
+     *
+     * @param userEntry The user entry
+     * @throws LdapException If the state can't be written
+     */
+    public void unlock( Entry userEntry ) throws LdapException
+    {
+        PasswordPolicyState state = setLockedTime( userEntry, null );
+
+        if ( flushInterval == 0 )
+        {
+            flush( state );
+        }
+    }
+
+
+    /**
+     * Records a successful bind for the given user : the failure times and the lockout
+     * are cleared.
+     *
+     * @param userEntry The user entry
+     * @param lastSuccessTime The time of the bind, or null if it does not have to be recorded
+     * @throws LdapException If the state can't be written
+     */
+    public void recordSuccess( Entry userEntry, String lastSuccessTime ) throws LdapException
+    {
+        PasswordPolicyState state;
+
+        do
+        {
+            state = getState( userEntry );
+
+            synchronized ( state )
+            {
+                if ( state.detached )
+                {
+                    continue;
+                }
+
+                if ( !state.failureTimes.isEmpty() )
+                {
+                    state.failureTimes.clear();
+                    state.failuresChanged = true;
+                }
+
+                if ( state.lockedTime != null )
+                {
+                    state.lockedTime = null;
+                    state.lockChanged = true;
+                }
+
+                if ( lastSuccessTime != null )
+                {
+                    state.lastSuccessTime = lastSuccessTime;
+                    state.lastSuccessChanged = true;
+                }
+
+                break;
+            }
+        }
+        while ( true );
+
+        if ( flushInterval == 0 )
+        {
+            write( state );
+        }
+    }
+
+
+    /**
+     * Gets the pwdAccountLockedTime of the given user, from memory if the user has a
+     * state, from the entry otherwise.
+     *
+     * @param userEntry The user entry
+     * @return The lockout time, or null if the account is not locked
+     */
+    public String getLockedTime( Entry userEntry )
+    {
+        PasswordPolicyState state = states.get( userEntry.getDn().getNormName() );
+
+        if ( state != null )
+        {
+            synchronized ( state )
+            {
+                if ( !state.detached )
+                {
+                    return state.lockedTime;
+                }
+            }
+        }
+
+        Attribute lockedTimeAt = userEntry.get( PasswordPolicySchemaConstants.PWD_ACCOUNT_LOCKED_TIME_AT );
+
+        return lockedTimeAt == null ? null : lockedTimeAt.get().getString();
+    }
+
+
+    /**
+     * Gets the pwdLastSuccess of the given user, from memory if the user has a
+     * state, from the entry otherwise.
+     *
+     * @param userEntry The user entry
+     * @return The last successful bind time, or null if the user never bound
+     */
+    public String getLastSuccessTime( Entry userEntry )
+    {
+        PasswordPolicyState state = states.get( userEntry.getDn().getNormName() );
+
+        if ( state != null )
+        {
+            synchronized ( state )
+            {
+                if ( !state.detached )
+                {
+                    return state.lastSuccessTime;
+                }
+            }
+        }
+
+        Attribute lastSuccessAt = userEntry.get( PasswordPolicySchemaConstants.PWD_LAST_SUCCESS_AT );
+
+        return lastSuccessAt == null ? null : lastSuccessAt.get().getString();
+    }
+
+
+    /**
+     * Writes the pending state of the given user, if any, and drops it from memory. This
+     * has to be called before the entry is modified, moved or renamed by another operation.
+     * The caller is expected to hold the lock protecting the entry.
+     *
+     * @param dn The user entry Dn
+     * @throws LdapException If the state can't be written
+     */
+    public void invalidate( Dn dn ) throws LdapException
+    {
+        PasswordPolicyState state = states.remove( dn.getNormName() );
+
+        if ( state != null )
+        {
+            synchronized ( state )
+            {
+                state.detached = true;
+            }
+
+            flush( state );
+        }
+    }
+
+
+    /**
+     * Drops the state of the given user without writing it, as its entry is deleted.
+     *
+     * @param dn The user entry Dn
+     */
+    public void remove( Dn dn )
+    {
+        PasswordPolicyState state = states.remove( dn.getNormName() );
+
+        if ( state != null )
+        {
+            synchronized ( state )
+            {
+                state.detached = true;
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of states kept in memory
+     */
+    public int size()
+    {
+        return states.size();
+    }
+
+
+    /**
+     * @return The delay between two writes of the pending states, in milliseconds
+     */
+    public long getFlushInterval()
+    {
+        return flushInterval;
+    }
+
+
+    /**
+     * Sets the delay between two writes of the pending states. The default, 0, writes each
+     * change immediately. It has to be set before the store is initialized.
+     *
+     * @param flushInterval The delay between two writes, in milliseconds
+     */
+    public void setFlushInterval( long flushInterval )
+    {
+        this.flushInterval = flushInterval;
+    }
+
+
+    /**
+     * @return true if the lockouts are written immediately
+     */
+    public boolean isSyncLockouts()
+    {
+        return syncLockouts;
+    }
+
+
+    /**
+     * Tells if the lockouts are written immediately when the other changes are delayed,
+     * so that a lockout is never lost. Default to true.
+     *
+     * @param syncLockouts true to write the lockouts immediately
+     */
+    public void setSyncLockouts( boolean syncLockouts )
+    {
+        this.syncLockouts = syncLockouts;
+    }
+
+
+    /**
+     * @return the delay after which a state which has been written and not used is dropped
+     */
+    private long getIdleTime()
+    {
+        return flushInterval > 0 ? flushInterval : DEFAULT_IDLE_TIME;
+    }
+
+
+    /**
+     * Gets the state of a user, creating it from the entry if needed.
+     */
+    private PasswordPolicyState getState( Entry userEntry )
+    {
+        String key = userEntry.getDn().getNormName();
+        PasswordPolicyState state = states.get( key );
+
+        if ( state == null )
+        {
+            PasswordPolicyState newState = new PasswordPolicyState( userEntry );
+            state = states.putIfAbsent( key, newState );
+
+            if ( state == null )
+            {
+                return newState;
+            }
+        }
+
+        synchronized ( state )
+        {
+            state.entry = userEntry;
+            state.lastAccessTime = System.currentTimeMillis();
+        }
+
+        return state;
+    }
+
+
+    private PasswordPolicyState setLockedTime( Entry userEntry, String lockedTime )
+    {
+        do
+        {
+            PasswordPolicyState state = getState( userEntry );
+
+            synchronized ( state )
+            {
+                if ( state.detached )
+                {
+                    continue;
+                }
+
+                state.lockedTime = lockedTime;
+                state.lockChanged = true;
+
+                return state;
+            }
+        }
+        while ( true );
+    }
+
+
+    /**
+     * Writes the pending changes of one state, for a bind. The bind only holds the lock
+     * protecting the entry in shared mode. When the partitions are locked separately, the
+     * write is handed to the flusher thread, which takes the partition lock in exclusive
+     * mode, so that it does not run along with another update of the partition.
+     */
+    private void write( PasswordPolicyState state ) throws LdapException
+    {
+        OperationManager operationManager = directoryService.getOperationManager();
+        Dn dn;
+
+        synchronized ( state )
+        {
+            dn = state.entry.getDn();
+        }
+
+        final ReadWriteLock partitionLock = operationManager.getRWLock( dn );
+        ScheduledExecutorService executor = flusher;
+
+        if ( ( partitionLock == operationManager.getRWLock() ) || ( executor == null ) )
+        {
+            flush( state );
+
+            return;
+        }
+
+        final List<PasswordPolicyState> batch = Collections.singletonList( state );
+
+        try
+        {
+            executor.execute( new Runnable()
+            {
+                public void run()
+                {
+                    flush( partitionLock, batch );
+                }
+            } );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            // The store is being destroyed : the state will be written by the last flushAll()
+            LOG.debug( "The password policy state of {} will be written on shutdown", dn );
+        }
+    }
+
+
+    /**
+     * Writes the pending changes of one state, in the current thread.
+     */
+    private void flush( PasswordPolicyState state ) throws LdapException
+    {
+        ModifyOperationContext modifyContext = createModifyContext( state );
+
+        if ( modifyContext == null )
+        {
+            return;
+        }
+
+        try
+        {
+            directoryService.getPartitionNexus().modify( modifyContext );
+        }
+        catch ( LdapException le )
+        {
+            restore( state, modifyContext.getModItems() );
+            throw le;
+        }
+    }
+
+
+    /**
+     * Writes all the pending states. The states are grouped by the lock protecting their
+     * entry, so that each lock is taken once per batch.
+     */
+    void flushAll()
+    {
+        Map<ReadWriteLock, List<PasswordPolicyState>> batches =
+            new LinkedHashMap<ReadWriteLock, List<PasswordPolicyState>>();
+
+        for ( PasswordPolicyState state : states.values() )
+        {
+            Dn dn;
+
+            synchronized ( state )
+            {
+                if ( !state.isDirty() )
+                {
+                    continue;
+                }
+
+                dn = state.entry.getDn();
+            }
+
+            ReadWriteLock rwLock = directoryService.getOperationManager().getRWLock( dn );
+            List<PasswordPolicyState> batch = batches.get( rwLock );
+
+            if ( batch == null )
+            {
+                batch = new ArrayList<PasswordPolicyState>();
+                batches.put( rwLock, batch );
+            }
+
+            batch.add( state );
+        }
+
+        for ( Map.Entry<ReadWriteLock, List<PasswordPolicyState>> batch : batches.entrySet() )
+        {
+            flush( batch.getKey(), batch.getValue() );
+        }
+    }
+
+
+    /**
+     * Writes some pending states, protected by the same lock. The locks are taken as the
+     * OperationManager does for an update : the global read lock first, then the partition
+     * write lock, or only the global write lock when the partition locking is disabled.
+     */
+    private void flush( ReadWriteLock partitionLock, List<PasswordPolicyState> batch )
+    {
+        ReadWriteLock globalLock = directoryService.getOperationManager().getRWLock();
+        Lock globalReadLock = null;
+
+        if ( partitionLock != globalLock )
+        {
+            globalReadLock = globalLock.readLock();
+            globalReadLock.lock();
+        }
+
+        Lock writeLock = partitionLock.writeLock();
+        writeLock.lock();
+
+        try
+        {
+            for ( PasswordPolicyState state : batch )
+            {
+                try
+                {
+                    flush( state );
+                }
+                catch ( LdapException le )
+                {
+                    LOG.warn( "Failed to write the password policy state of {}", state.entry.getDn(), le );
+                }
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+
+            if ( globalReadLock != null )
+            {
+                globalReadLock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Drops the states which have been written and haven't been used since the
+     * previous flush.
+     */
+    void evictIdleStates( long idleTime )
+    {
+        long limit = System.currentTimeMillis() - idleTime;
+        Iterator<Map.Entry<String, PasswordPolicyState>> iterator = states.entrySet().iterator();
+
+        while ( iterator.hasNext() )
+        {
+            Map.Entry<String, PasswordPolicyState> element = iterator.next();
+            PasswordPolicyState state = element.getValue();
+
+            synchronized ( state )
+            {
+                if ( !state.isDirty() && ( state.lastAccessTime < limit ) )
+                {
+                    state.detached = true;
+                    states.remove( element.getKey(), state );
+                }
+                else
+                {
+                    continue;
+                }
+            }
+
+            // The state will now be read from the entry : the cached copies of the entry are stale
+            authenticationInterceptor.invalidateAuthenticatorCaches( state.entry.getDn() );
+        }
+    }
+
+
+    /**
+     * Builds the modification writing the pending changes of a state, and marks it as clean.
+     *
+     * @return The ModifyOperationContext to apply, or null if there is nothing to write
+     * @throws LdapException If the modification can't be built
+     */
+    private ModifyOperationContext createModifyContext( PasswordPolicyState state ) throws LdapException
+    {
+        List<Modification> mods = new ArrayList<Modification>();
+        Entry entry;
+
+        synchronized ( state )
+        {
+            if ( !state.isDirty() )
+            {
+                return null;
+            }
+
+            entry = state.entry;
+
+            if ( state.failuresChanged )
+            {
+                Attribute failureTimeAt = new DefaultAttribute( pwdFailureTimeAT );
+
+                for ( String failureTime : state.failureTimes )
+                {
+                    failureTimeAt.add( failureTime );
+                }
+
+                mods.add( new DefaultModification( REPLACE_ATTRIBUTE, failureTimeAt ) );
+                state.failuresChanged = false;
+            }
+
+            if ( state.lockChanged )
+            {
+                Attribute lockedTimeAt = new DefaultAttribute( pwdAccountLockedTimeAT );
+
+                if ( state.lockedTime != null )
+                {
+                    lockedTimeAt.add( state.lockedTime );
+                }
+
+                mods.add( new DefaultModification( REPLACE_ATTRIBUTE, lockedTimeAt ) );
+                state.lockChanged = false;
+            }
+
+            if ( state.lastSuccessChanged )
+            {
+                Attribute lastSuccessAt = new DefaultAttribute( pwdLastSuccessAT );
+                lastSuccessAt.add( state.lastSuccessTime );
+                mods.add( new DefaultModification( REPLACE_ATTRIBUTE, lastSuccessAt ) );
+                state.lastSuccessChanged = false;
+            }
+        }
+
+        String csnVal = directoryService.getCSN().toString();
+        mods.add( new DefaultModification( REPLACE_ATTRIBUTE, entryCsnAT, csnVal ) );
+
+        ModifyOperationContext modifyContext = new ModifyOperationContext( directoryService.getAdminSession() );
+        modifyContext.setDn( entry.getDn() );
+        modifyContext.setEntry( entry );
+        modifyContext.setModItems( mods );
+        modifyContext.setPushToEvtInterceptor( true );
+
+        return modifyContext;
+    }
+
+
+    /**
+     * Marks the attributes of a failed write as pending again, unless they have
+     * been changed in between.
+     */
+    private void restore( PasswordPolicyState state, List<Modification> mods )
+    {
+        synchronized ( state )
+        {
+            if ( state.detached )
+            {
+                return;
+            }
+
+            for ( Modification mod : mods )
+            {
+                AttributeType attributeType = mod.getAttribute().getAttributeType();
+
+                if ( pwdFailureTimeAT.equals( attributeType ) )
+                {
+                    state.failuresChanged = true;
+                }
+                else if ( pwdAccountLockedTimeAT.equals( attributeType ) )
+                {
+                    state.lockChanged = true;
+                }
+                else if ( pwdLastSuccessAT.equals( attributeType ) )
+                {
+                    state.lastSuccessChanged = true;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * purges failure timestamps which are older than the configured interval
+     * (section 7.6 in the draft)
+     */
+    private static void purgeFailureTimes( PasswordPolicyConfiguration config, List<String> failureTimes )
+    {
+        long interval = config.getPwdFailureCountInterval();
+
+        if ( interval == 0 )
+        {
+            return;
+        }
+
+        interval *= 1000;
+
+        long currentTime = DateUtils.getDate( DateUtils.getGeneralizedTime() ).getTime();
+
+        Iterator<String> itr = failureTimes.iterator();
+
+        while ( itr.hasNext() )
+        {
+            long time = DateUtils.getDate( itr.next() ).getTime();
+            time += interval;
+
+            if ( currentTime >= time )
+            {
+                itr.remove();
+            }
+        }
+    }
+}
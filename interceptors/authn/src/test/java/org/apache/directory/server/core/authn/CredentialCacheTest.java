@@ -0,0 +1,131 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.authn;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Test the CredentialCache class
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CredentialCacheTest
+{
+    @Test
+    public void testGetPut()
+    {
+        CredentialCache<String> cache = new CredentialCache<String>( 100, 4, 0L );
+
+        assertNull( cache.get( "uid=a" ) );
+        assertTrue( cache.put( "uid=a", "secret", cache.getGeneration( "uid=a" ) ) );
+        assertEquals( "secret", cache.get( "uid=a" ) );
+
+        assertEquals( 1, cache.getHitCount() );
+        assertEquals( 1, cache.getMissCount() );
+        assertEquals( 1, cache.size() );
+    }
+
+
+    @Test
+    public void testInvalidate()
+    {
+        CredentialCache<String> cache = new CredentialCache<String>( 100, 4, 0L );
+
+        cache.put( "uid=a", "secret", cache.getGeneration( "uid=a" ) );
+        cache.invalidate( "uid=a" );
+
+        assertNull( cache.get( "uid=a" ) );
+        assertEquals( 0, cache.size() );
+    }
+
+
+    @Test
+    public void testPutAfterInvalidationIsDiscarded()
+    {
+        CredentialCache<String> cache = new CredentialCache<String>( 100, 4, 0L );
+
+        // A bind reads the generation, then the entry is modified before it stores the value
+        long generation = cache.getGeneration( "uid=a" );
+        cache.invalidate( "uid=a" );
+
+        assertFalse( cache.put( "uid=a", "old secret", generation ) );
+        assertNull( cache.get( "uid=a" ) );
+    }
+
+
+    @Test
+    public void testLruEviction()
+    {
+        // A single segment, so that the LRU order is global
+        CredentialCache<String> cache = new CredentialCache<String>( 2, 1, 0L );
+
+        cache.put( "uid=a", "a", cache.getGeneration( "uid=a" ) );
+        cache.put( "uid=b", "b", cache.getGeneration( "uid=b" ) );
+
+        // Access a, so that b is the least recently used
+        cache.get( "uid=a" );
+        cache.put( "uid=c", "c", cache.getGeneration( "uid=c" ) );
+
+        assertEquals( "a", cache.get( "uid=a" ) );
+        assertNull( cache.get( "uid=b" ) );
+        assertEquals( "c", cache.get( "uid=c" ) );
+        assertEquals( 1, cache.getEvictionCount() );
+    }
+
+
+    @Test
+    public void testExpiration() throws Exception
+    {
+        CredentialCache<String> cache = new CredentialCache<String>( 100, 4, 50L );
+
+        cache.put( "uid=a", "secret", cache.getGeneration( "uid=a" ) );
+        assertEquals( "secret", cache.get( "uid=a" ) );
+
+        Thread.sleep( 100L );
+
+        assertNull( cache.get( "uid=a" ) );
+        assertEquals( 1, cache.getEvictionCount() );
+    }
+
+
+    @Test
+    public void testClear()
+    {
+        CredentialCache<String> cache = new CredentialCache<String>( 100, 4, 0L );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            cache.put( "uid=" + i, "secret", cache.getGeneration( "uid=" + i ) );
+        }
+
+        assertEquals( 10, cache.size() );
+
+        cache.clear();
+
+        assertEquals( 0, cache.size() );
+    }
+}
@@ -24,8 +24,10 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.naming.directory.SearchControls;
@@ -1304,7 +1306,21 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
     }
 
 
-    private boolean filter( OperationContext opContext, Dn normName, Entry clonedEntry ) throws LdapException
+    /**
+     * Checks the permissions of the current user on an entry returned by a search, removing the
+     * attributes and the values the user is not allowed to read.
+     *
+     * @param opContext the search context
+     * @param normName the normalized entry Dn
+     * @param clonedEntry the entry to return
+     * @param userEntry the current user entry
+     * @param compiled the ACI tuples applying to the entry, already filtered for the user, or null
+     * if the tuples have to be computed for this entry
+     * @return false if the entry must not be returned
+     * @throws LdapException if the ACIs can't be evaluated
+     */
+    private boolean filter( OperationContext opContext, Dn normName, Entry clonedEntry, Entry userEntry,
+        CompiledAciTuples compiled ) throws LdapException
     {
         /*
          * First call hasPermission() for entry level "Browse" and "ReturnDN" perm
@@ -1315,21 +1331,44 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         LdapPrincipal principal = opContext.getSession().getEffectivePrincipal();
         Dn userDn = principal.getDn();
         Set<Dn> userGroups = groupCache.getGroups( userDn.getNormName() );
-        Collection<ACITuple> tuples = new HashSet<ACITuple>();
-        addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
-        addEntryAciTuples( tuples, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
-        addSubentryAciTuples( opContext, tuples, normName, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        Collection<ACITuple> tuples;
 
-        AciContext aciContext = new AciContext( schemaManager, opContext );
-        aciContext.setUserGroupNames( userGroups );
-        aciContext.setUserDn( userDn );
-        aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
-        aciContext.setEntryDn( normName );
-        aciContext.setMicroOperations( SEARCH_ENTRY_PERMS );
-        aciContext.setAciTuples( tuples );
-        aciContext.setEntry( ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        if ( compiled != null )
+        {
+            tuples = compiled.getTuples();
+        }
+        else
+        {
+            tuples = new HashSet<ACITuple>();
+            addPerscriptiveAciTuples( opContext, tuples, normName, clonedEntry );
+            addEntryAciTuples( tuples, ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+            addSubentryAciTuples( opContext, tuples, normName,
+                ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+        }
+
+        Boolean entryDecision = ( compiled == null ? null : compiled.getEntryDecision() );
 
-        if ( !engine.hasPermission( aciContext ) )
+        if ( entryDecision == null )
+        {
+            AciContext aciContext = new AciContext( schemaManager, opContext );
+            aciContext.setUserGroupNames( userGroups );
+            aciContext.setUserDn( userDn );
+            aciContext.setUserEntry( userEntry );
+            aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
+            aciContext.setEntryDn( normName );
+            aciContext.setMicroOperations( SEARCH_ENTRY_PERMS );
+            aciContext.setAciTuples( tuples );
+            aciContext.setEntry( ( ( ClonedServerEntry ) clonedEntry ).getOriginalEntry() );
+
+            entryDecision = engine.hasPermission( aciContext );
+
+            if ( compiled != null )
+            {
+                compiled.setEntryDecision( entryDecision );
+            }
+        }
+
+        if ( !entryDecision )
         {
             return false;
         }
@@ -1349,17 +1388,30 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             AttributeType attributeType = attribute.getAttributeType();
             Attribute attr = clonedEntry.get( attributeType );
 
-            aciContext = new AciContext( schemaManager, opContext );
-            aciContext.setUserGroupNames( userGroups );
-            aciContext.setUserDn( userDn );
-            aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
-            aciContext.setEntryDn( normName );
-            aciContext.setAttributeType( attributeType );
-            aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
-            aciContext.setAciTuples( tuples );
-            aciContext.setEntry( clonedEntry );
+            Boolean attributeDecision = ( compiled == null ? null : compiled.getDecision( attributeType ) );
+
+            if ( attributeDecision == null )
+            {
+                AciContext aciContext = new AciContext( schemaManager, opContext );
+                aciContext.setUserGroupNames( userGroups );
+                aciContext.setUserDn( userDn );
+                aciContext.setUserEntry( userEntry );
+                aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
+                aciContext.setEntryDn( normName );
+                aciContext.setAttributeType( attributeType );
+                aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
+                aciContext.setAciTuples( tuples );
+                aciContext.setEntry( clonedEntry );
+
+                attributeDecision = engine.hasPermission( aciContext );
+
+                if ( compiled != null )
+                {
+                    compiled.setDecision( attributeType, attributeDecision );
+                }
+            }
 
-            if ( !engine.hasPermission( aciContext ) )
+            if ( !attributeDecision )
             {
                 attributeToRemove.add( attributeType );
 
@@ -1371,18 +1423,31 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
             // attribute type scope is ok now let's determine value level scope
             for ( Value<?> value : attr )
             {
-                aciContext = new AciContext( schemaManager, opContext );
-                aciContext.setUserGroupNames( userGroups );
-                aciContext.setUserDn( userDn );
-                aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
-                aciContext.setEntryDn( normName );
-                aciContext.setAttributeType( attr.getAttributeType() );
-                aciContext.setAttrValue( value );
-                aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
-                aciContext.setAciTuples( tuples );
-                aciContext.setEntry( clonedEntry );
+                Boolean valueDecision = ( compiled == null ? null : compiled.getDecision( attributeType, value ) );
+
+                if ( valueDecision == null )
+                {
+                    AciContext aciContext = new AciContext( schemaManager, opContext );
+                    aciContext.setUserGroupNames( userGroups );
+                    aciContext.setUserDn( userDn );
+                    aciContext.setUserEntry( userEntry );
+                    aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
+                    aciContext.setEntryDn( normName );
+                    aciContext.setAttributeType( attr.getAttributeType() );
+                    aciContext.setAttrValue( value );
+                    aciContext.setMicroOperations( SEARCH_ATTRVAL_PERMS );
+                    aciContext.setAciTuples( tuples );
+                    aciContext.setEntry( clonedEntry );
+
+                    valueDecision = engine.hasPermission( aciContext );
+
+                    if ( compiled != null )
+                    {
+                        compiled.setDecision( attributeType, value, valueDecision );
+                    }
+                }
 
-                if ( !engine.hasPermission( aciContext ) )
+                if ( !valueDecision )
                 {
                     valueToRemove.add( value );
                 }
@@ -1407,11 +1472,54 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         return true;
     }
 
+
+    /**
+     * Builds the ACI tuples applying to the entries which have the given set of access
+     * control subentries, and removes the ones which can't apply to the current user.
+     */
+    private CompiledAciTuples compileAciTuples( OperationContext opContext, Attribute subentries, Entry userEntry )
+        throws LdapException
+    {
+        Collection<ACITuple> tuples = new HashSet<ACITuple>();
+
+        if ( subentries != null )
+        {
+            for ( Value<?> value : subentries )
+            {
+                tuples.addAll( tupleCache.getACITuples( value.getString() ) );
+            }
+        }
+
+        LdapPrincipal principal = opContext.getSession().getEffectivePrincipal();
+        Dn userDn = principal.getDn();
+
+        AciContext aciContext = new AciContext( schemaManager, opContext );
+        aciContext.setUserGroupNames( groupCache.getGroups( userDn.getNormName() ) );
+        aciContext.setUserDn( userDn );
+        aciContext.setUserEntry( userEntry );
+        aciContext.setAuthenticationLevel( principal.getAuthenticationLevel() );
+        aciContext.setAciTuples( tuples );
+
+        return new CompiledAciTuples( engine.filterUnrelatedTuples( aciContext ) );
+    }
+
+
     /**
      * WARNING: create one of these filters fresh every time for each new search.
+     *
+     * The filter keeps the user entry and the ACI tuples compiled for each set of access
+     * control subentries met during the search, so that they are not computed again for
+     * each returned entry.
      */
     private class AuthorizationFilter implements EntryFilter
     {
+        /** The user entry, read once per search */
+        private Entry userEntry;
+
+        /** The compiled tuples, per set of access control subentries */
+        private final Map<String, CompiledAciTuples> compiledTuples = new HashMap<String, CompiledAciTuples>();
+
+
         /**
          * {@inheritDoc}
          */
@@ -1419,7 +1527,34 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         {
             Dn normName = entry.getDn().apply( schemaManager );
 
-            return filter( searchContext, normName, entry );
+            if ( userEntry == null )
+            {
+                Dn userDn = searchContext.getSession().getEffectivePrincipal().getDn();
+                LookupOperationContext lookupContext = new LookupOperationContext( searchContext.getSession(),
+                    userDn, SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+                userEntry = directoryService.getPartitionNexus().lookup( lookupContext );
+            }
+
+            Entry originalEntry = ( ( ClonedServerEntry ) entry ).getOriginalEntry();
+
+            // The entries with their own ACIs, and the subentries, have their tuples computed each time
+            if ( originalEntry.containsAttribute( ENTRY_ACI_AT )
+                || originalEntry.contains( OBJECT_CLASS_AT, SchemaConstants.SUBENTRY_OC ) )
+            {
+                return filter( searchContext, normName, entry, userEntry, null );
+            }
+
+            Attribute subentries = originalEntry.get( ACCESS_CONTROL_SUBENTRIES_AT );
+            String key = getSubentriesKey( subentries );
+            CompiledAciTuples compiled = compiledTuples.get( key );
+
+            if ( compiled == null )
+            {
+                compiled = compileAciTuples( searchContext, subentries, userEntry );
+                compiledTuples.put( key, compiled );
+            }
+
+            return filter( searchContext, normName, entry, userEntry, compiled );
         }
 
 
@@ -1430,6 +1565,42 @@ public class AciAuthorizationInterceptor extends BaseInterceptor
         {
             return tabs + "AuthorizationFilter";
         }
+
+
+        /**
+         * Builds a key from the values of the accessControlSubentries attribute, which
+         * does not depend on the order of the values
+         */
+        private String getSubentriesKey( Attribute subentries )
+        {
+            if ( ( subentries == null ) || ( subentries.size() == 0 ) )
+            {
+                return "";
+            }
+
+            if ( subentries.size() == 1 )
+            {
+                return subentries.get().getString();
+            }
+
+            List<String> values = new ArrayList<String>( subentries.size() );
+
+            for ( Value<?> value : subentries )
+            {
+                values.add( value.getString() );
+            }
+
+            Collections.sort( values );
+
+            StringBuilder sb = new StringBuilder();
+
+            for ( String value : values )
+            {
+                sb.append( value ).append( '\n' );
+            }
+
+            return sb.toString();
+        }
     }
 
 
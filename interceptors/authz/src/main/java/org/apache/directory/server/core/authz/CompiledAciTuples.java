@@ -0,0 +1,183 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.core.authz.support.ACDFEngine;
+
+
+/**
+ * The ACI tuples applying to a user for a given set of access control subentries, with the
+ * tuples which can't apply to this user already removed. It's built once per set of subentries
+ * during a search, and used for all the returned entries which have no entryACI.
+ * <br/>
+ * When none of the remaining tuples depends on the target entry, the decisions taken for the
+ * entry, the attribute types and the values are the same for all the entries, and are
+ * memoized here.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class CompiledAciTuples
+{
+    /** The maximum number of memoized value decisions */
+    private static final int MAX_VALUE_DECISIONS = 10000;
+
+    /** The tuples which may apply to the user */
+    private final Collection<ACITuple> tuples;
+
+    /** Tells if the decisions can be reused for any entry */
+    private final boolean entryIndependent;
+
+    /** The entry level decision */
+    private Boolean entryDecision;
+
+    /** The attribute type level decisions, per attribute type OID */
+    private final Map<String, Boolean> attributeTypeDecisions = new HashMap<String, Boolean>();
+
+    /** The value level decisions, per attribute type OID */
+    private final Map<String, Map<Value<?>, Boolean>> valueDecisions = new HashMap<String, Map<Value<?>, Boolean>>();
+
+    /** The number of memoized value decisions */
+    private int nbValueDecisions;
+
+
+    /**
+     * Creates a new instance of CompiledAciTuples.
+     *
+     * @param tuples The tuples which may apply to the user
+     */
+    CompiledAciTuples( Collection<ACITuple> tuples )
+    {
+        this.tuples = tuples;
+
+        boolean independent = true;
+
+        for ( ACITuple tuple : tuples )
+        {
+            if ( ACDFEngine.dependsOnEntry( tuple ) )
+            {
+                independent = false;
+                break;
+            }
+        }
+
+        entryIndependent = independent;
+    }
+
+
+    /**
+     * @return The tuples which may apply to the user
+     */
+    Collection<ACITuple> getTuples()
+    {
+        return tuples;
+    }
+
+
+    /**
+     * @return The memoized entry level decision, or null if it has to be computed
+     */
+    Boolean getEntryDecision()
+    {
+        return entryDecision;
+    }
+
+
+    /**
+     * Memoizes the entry level decision, if it does not depend on the entry
+     */
+    void setEntryDecision( boolean decision )
+    {
+        if ( entryIndependent )
+        {
+            entryDecision = decision;
+        }
+    }
+
+
+    /**
+     * @return The memoized decision for an attribute type, or null if it has to be computed
+     */
+    Boolean getDecision( AttributeType attributeType )
+    {
+        return attributeTypeDecisions.get( attributeType.getOid() );
+    }
+
+
+    /**
+     * Memoizes the decision for an attribute type, if it does not depend on the entry
+     */
+    void setDecision( AttributeType attributeType, boolean decision )
+    {
+        if ( entryIndependent )
+        {
+            attributeTypeDecisions.put( attributeType.getOid(), decision );
+        }
+    }
+
+
+    /**
+     * @return The memoized decision for a value, or null if it has to be computed
+     */
+    Boolean getDecision( AttributeType attributeType, Value<?> value )
+    {
+        Map<Value<?>, Boolean> decisions = valueDecisions.get( attributeType.getOid() );
+
+        if ( decisions == null )
+        {
+            return null;
+        }
+
+        return decisions.get( value );
+    }
+
+
+    /**
+     * Memoizes the decision for a value, if it does not depend on the entry, and if there
+     * is still room for it
+     */
+    void setDecision( AttributeType attributeType, Value<?> value, boolean decision )
+    {
+        if ( !entryIndependent || ( nbValueDecisions >= MAX_VALUE_DECISIONS ) )
+        {
+            return;
+        }
+
+        Map<Value<?>, Boolean> decisions = valueDecisions.get( attributeType.getOid() );
+
+        if ( decisions == null )
+        {
+            decisions = new HashMap<Value<?>, Boolean>();
+            valueDecisions.put( attributeType.getOid(), decisions );
+        }
+
+        if ( decisions.put( value, decision ) == null )
+        {
+            nbValueDecisions++;
+        }
+    }
+}
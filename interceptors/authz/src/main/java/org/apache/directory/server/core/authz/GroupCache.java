@@ -20,9 +20,14 @@
 package org.apache.directory.server.core.authz;
 
 
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.naming.directory.SearchControls;
 
@@ -58,7 +63,10 @@ import org.slf4j.LoggerFactory;
 
 
 /**
- * A cache for tracking static group membership.
+ * A cache for tracking static group membership. Beside the members of each group, it
+ * maintains a reverse index giving the groups of each member, so that the groups of a
+ * user can be found without walking all the groups. Nested groups are resolved, and the
+ * resolved groups of the users are cached until a group changes.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -95,9 +103,21 @@ public class GroupCache
 
     private static final Set<Dn> EMPTY_GROUPS = new HashSet<Dn>();
 
+    /** The maximum number of users whose resolved groups are cached */
+    private static final int MAX_RESOLVED_GROUPS = 10000;
+
     /** String key for the Dn of a group to a Set (HashSet) for the Strings of member DNs */
     private Cache ehCache;
 
+    /** The reverse index, from the members to their groups */
+    private final GroupMembershipIndex membershipIndex = new GroupMembershipIndex();
+
+    /** The groups of the users, nested groups included, by normalized user Dn */
+    private final Map<String, Set<Dn>> resolvedGroups = new ConcurrentHashMap<String, Set<Dn>>();
+
+    /** Protects the reverse index : the changes to the groups hold the write lock */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
 
     /**
      * Creates a static group cache.
@@ -172,8 +192,7 @@ public class GroupCache
                         Set<String> memberSet = new HashSet<String>( members.size() );
                         addMembers( memberSet, members );
 
-                        Element cacheElement = new Element( groupDn.getNormName(), memberSet );
-                        ehCache.put( cacheElement );
+                        updateMembers( groupDn.getNormName(), memberSet );
                     }
                     else
                     {
@@ -302,8 +321,7 @@ public class GroupCache
         Set<String> memberSet = new HashSet<String>( members.size() );
         addMembers( memberSet, members );
 
-        Element cacheElement = new Element( name.getNormName(), memberSet );
-        ehCache.put( cacheElement );
+        updateMembers( name.getNormName(), memberSet );
 
         if ( IS_DEBUG )
         {
@@ -329,7 +347,7 @@ public class GroupCache
             return;
         }
 
-        ehCache.remove( name.getNormName() );
+        updateMembers( name.getNormName(), null );
 
         if ( IS_DEBUG )
         {
@@ -414,12 +432,12 @@ public class GroupCache
         {
             if ( memberAttr.getOid() == modification.getAttribute().getId() )
             {
-                Element memSetElement = ehCache.get( name.getNormName() );
+                Set<String> memberSet = getMembers( name.getNormName() );
 
-                if ( memSetElement != null )
+                if ( memberSet != null )
                 {
-                    Set<String> memberSet = ( Set<String> ) memSetElement.getValue();
                     modify( memberSet, modification.getOperation(), modification.getAttribute() );
+                    updateMembers( name.getNormName(), memberSet );
                 }
 
                 break;
@@ -452,12 +470,12 @@ public class GroupCache
             return;
         }
 
-        Element memSetElement = ehCache.get( name.getNormName() );
+        Set<String> memberSet = getMembers( name.getNormName() );
 
-        if ( memSetElement != null )
+        if ( memberSet != null )
         {
-            Set<String> memberSet = ( Set<String> ) memSetElement.getValue();
             modify( memberSet, modOp, members );
+            updateMembers( name.getNormName(), memberSet );
         }
 
         if ( IS_DEBUG )
@@ -468,6 +486,83 @@ public class GroupCache
     }
 
 
+    /**
+     * Gets a copy of the members of a group.
+     *
+     * @param group the normalized Dn of the group
+     * @return the normalized Dns of the members, or null if the group isn't cached
+     */
+    private Set<String> getMembers( String group )
+    {
+        Element element = ehCache.get( group );
+
+        if ( ( element == null ) || ( element.getValue() == null ) )
+        {
+            return null;
+        }
+
+        return new HashSet<String>( ( Set<String> ) element.getValue() );
+    }
+
+
+    /**
+     * Replaces the members of a group in the cache, and updates the reverse index with
+     * the members which have been added or removed.
+     *
+     * @param group the normalized Dn of the group
+     * @param memberSet the new members, or null to remove the group
+     */
+    private void updateMembers( String group, Set<String> memberSet )
+    {
+        lock.writeLock().lock();
+
+        try
+        {
+            Element element = ehCache.get( group );
+            Set<String> oldMembers = null;
+
+            if ( element != null )
+            {
+                oldMembers = ( Set<String> ) element.getValue();
+            }
+
+            if ( oldMembers != null )
+            {
+                for ( String member : oldMembers )
+                {
+                    if ( ( memberSet == null ) || !memberSet.contains( member ) )
+                    {
+                        membershipIndex.remove( group, member );
+                    }
+                }
+            }
+
+            if ( memberSet == null )
+            {
+                ehCache.remove( group );
+            }
+            else
+            {
+                for ( String member : memberSet )
+                {
+                    if ( ( oldMembers == null ) || !oldMembers.contains( member ) )
+                    {
+                        membershipIndex.add( group, member );
+                    }
+                }
+
+                ehCache.put( new Element( group, memberSet ) );
+            }
+
+            resolvedGroups.clear();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+
     /**
      * An optimization.  By having this method here we can directly access the group
      * membership information and lookup to see if the principalDn is contained within.
@@ -522,39 +617,47 @@ public class GroupCache
             return EMPTY_GROUPS;
         }
 
-        Set<Dn> memberGroups = null;
+        Set<Dn> memberGroups = resolvedGroups.get( normMember.getNormName() );
 
-        for ( Object obj : ehCache.getKeys() )
+        if ( memberGroups != null )
         {
-            String group = ( String ) obj;
-            Element element = ehCache.get( group );
+            return memberGroups;
+        }
 
-            if ( element == null )
-            {
-                continue;
-            }
+        lock.readLock().lock();
 
-            Set<String> members = ( Set<String> ) element.getValue();
+        try
+        {
+            BitSet groupIds = membershipIndex.getTransitiveGroups( normMember.getNormName() );
 
-            if ( members == null )
+            if ( groupIds.isEmpty() )
             {
-                continue;
+                memberGroups = EMPTY_GROUPS;
             }
-
-            if ( members.contains( normMember.getNormName() ) )
+            else
             {
-                if ( memberGroups == null )
+                memberGroups = new HashSet<Dn>( groupIds.cardinality() * 2 );
+
+                for ( int id = groupIds.nextSetBit( 0 ); id >= 0; id = groupIds.nextSetBit( id + 1 ) )
                 {
-                    memberGroups = new HashSet<Dn>();
+                    memberGroups.add( parseNormalized( membershipIndex.getName( id ) ) );
                 }
 
-                memberGroups.add( parseNormalized( group ) );
+                memberGroups = Collections.unmodifiableSet( memberGroups );
+            }
+
+            // Stored while holding the read lock, so that a concurrent change of the groups,
+            // which clears the resolved groups, can't be missed
+            if ( resolvedGroups.size() >= MAX_RESOLVED_GROUPS )
+            {
+                resolvedGroups.clear();
             }
-        }
 
-        if ( memberGroups == null )
+            resolvedGroups.put( normMember.getNormName(), memberGroups );
+        }
+        finally
         {
-            return EMPTY_GROUPS;
+            lock.readLock().unlock();
         }
 
         return memberGroups;
@@ -563,16 +666,12 @@ public class GroupCache
 
     public boolean groupRenamed( Dn oldName, Dn newName )
     {
-        Element membersElement = ehCache.get( oldName.getNormName() );
+        Set<String> members = getMembers( oldName.getNormName() );
 
-        if ( membersElement != null )
+        if ( members != null )
         {
-            Set<String> members = ( Set<String> ) membersElement.getValue();
-
-            ehCache.remove( oldName.getNormName() );
-
-            Element cacheElement = new Element( newName.getNormName(), members );
-            ehCache.put( cacheElement );
+            updateMembers( oldName.getNormName(), null );
+            updateMembers( newName.getNormName(), members );
 
             if ( IS_DEBUG )
             {
@@ -0,0 +1,302 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * A reverse index of the static groups, giving the groups a member belongs to. The
+ * normalized Dns are interned as int identifiers, and the groups of each member are
+ * stored as a sorted array of identifiers, so that the index stays compact even with
+ * large groups. The identifiers are reference counted, and reused once a Dn is not a
+ * member or a group anymore.
+ * <br/>
+ * This class is not thread safe, the {@link GroupCache} protects it with its lock.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class GroupMembershipIndex
+{
+    /** The identifiers of the interned normalized Dns */
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /** The normalized Dns, by identifier */
+    private String[] names = new String[64];
+
+    /** The number of references to each identifier */
+    private int[] refCounts = new int[64];
+
+    /** The sorted identifiers of the groups each identifier is a member of */
+    private int[][] groups = new int[64][];
+
+    /** The number of groups each identifier is a member of */
+    private int[] groupCounts = new int[64];
+
+    /** The released identifiers, which can be reused */
+    private int[] freeIds = new int[16];
+
+    /** The number of released identifiers */
+    private int nbFreeIds;
+
+    /** The next never used identifier */
+    private int nextId;
+
+
+    /**
+     * Records that a Dn is a member of a group.
+     *
+     * @param group the normalized Dn of the group
+     * @param member the normalized Dn of the member
+     */
+    void add( String group, String member )
+    {
+        int memberId = acquire( member );
+        int groupId = acquire( group );
+
+        int[] memberGroups = groups[memberId];
+        int count = groupCounts[memberId];
+
+        if ( memberGroups == null )
+        {
+            memberGroups = new int[2];
+            groups[memberId] = memberGroups;
+        }
+
+        int pos = Arrays.binarySearch( memberGroups, 0, count, groupId );
+
+        if ( pos >= 0 )
+        {
+            // Already a member of this group
+            release( groupId );
+            release( memberId );
+
+            return;
+        }
+
+        pos = -( pos + 1 );
+
+        if ( count == memberGroups.length )
+        {
+            memberGroups = Arrays.copyOf( memberGroups, count * 2 );
+            groups[memberId] = memberGroups;
+        }
+
+        System.arraycopy( memberGroups, pos, memberGroups, pos + 1, count - pos );
+        memberGroups[pos] = groupId;
+        groupCounts[memberId] = count + 1;
+    }
+
+
+    /**
+     * Records that a Dn is not a member of a group anymore.
+     *
+     * @param group the normalized Dn of the group
+     * @param member the normalized Dn of the member
+     */
+    void remove( String group, String member )
+    {
+        Integer memberId = ids.get( member );
+        Integer groupId = ids.get( group );
+
+        if ( ( memberId == null ) || ( groupId == null ) )
+        {
+            return;
+        }
+
+        int[] memberGroups = groups[memberId];
+        int count = groupCounts[memberId];
+
+        if ( memberGroups == null )
+        {
+            return;
+        }
+
+        int pos = Arrays.binarySearch( memberGroups, 0, count, groupId );
+
+        if ( pos < 0 )
+        {
+            return;
+        }
+
+        System.arraycopy( memberGroups, pos + 1, memberGroups, pos, count - pos - 1 );
+        groupCounts[memberId] = count - 1;
+
+        if ( count == 1 )
+        {
+            groups[memberId] = null;
+        }
+
+        release( groupId );
+        release( memberId );
+    }
+
+
+    /**
+     * Gets the groups a Dn is a member of, directly or through nested groups.
+     *
+     * @param member the normalized Dn of the member
+     * @return the identifiers of the groups, possibly empty
+     */
+    BitSet getTransitiveGroups( String member )
+    {
+        BitSet found = new BitSet();
+        Integer memberId = ids.get( member );
+
+        if ( memberId == null )
+        {
+            return found;
+        }
+
+        int[] pending = new int[16];
+        int nbPending = 0;
+        pending[nbPending++] = memberId;
+
+        while ( nbPending > 0 )
+        {
+            int id = pending[--nbPending];
+            int[] idGroups = groups[id];
+
+            for ( int i = 0; i < groupCounts[id]; i++ )
+            {
+                int groupId = idGroups[i];
+
+                // The visited check also protects against cycles
+                if ( !found.get( groupId ) )
+                {
+                    found.set( groupId );
+
+                    if ( nbPending == pending.length )
+                    {
+                        pending = Arrays.copyOf( pending, nbPending * 2 );
+                    }
+
+                    pending[nbPending++] = groupId;
+                }
+            }
+        }
+
+        return found;
+    }
+
+
+    /**
+     * @param id an identifier
+     * @return the normalized Dn associated with the identifier
+     */
+    String getName( int id )
+    {
+        return names[id];
+    }
+
+
+    /**
+     * @return the number of interned Dns
+     */
+    int size()
+    {
+        return ids.size();
+    }
+
+
+    /**
+     * Removes everything from the index.
+     */
+    void clear()
+    {
+        ids.clear();
+        Arrays.fill( names, null );
+        Arrays.fill( refCounts, 0 );
+        Arrays.fill( groups, null );
+        Arrays.fill( groupCounts, 0 );
+        nbFreeIds = 0;
+        nextId = 0;
+    }
+
+
+    /**
+     * Gets the identifier of a Dn, interning it if needed, and increments its reference count.
+     */
+    private int acquire( String name )
+    {
+        Integer existing = ids.get( name );
+
+        if ( existing != null )
+        {
+            refCounts[existing]++;
+
+            return existing;
+        }
+
+        int id;
+
+        if ( nbFreeIds > 0 )
+        {
+            id = freeIds[--nbFreeIds];
+        }
+        else
+        {
+            id = nextId++;
+
+            if ( id == names.length )
+            {
+                int newLength = names.length * 2;
+                names = Arrays.copyOf( names, newLength );
+                refCounts = Arrays.copyOf( refCounts, newLength );
+                groups = Arrays.copyOf( groups, newLength );
+                groupCounts = Arrays.copyOf( groupCounts, newLength );
+            }
+        }
+
+        ids.put( name, id );
+        names[id] = name;
+        refCounts[id] = 1;
+
+        return id;
+    }
+
+
+    /**
+     * Decrements the reference count of an identifier, and releases it when it's not used anymore.
+     */
+    private void release( int id )
+    {
+        if ( --refCounts[id] > 0 )
+        {
+            return;
+        }
+
+        ids.remove( names[id] );
+        names[id] = null;
+        groups[id] = null;
+        groupCounts[id] = 0;
+
+        if ( nbFreeIds == freeIds.length )
+        {
+            freeIds = Arrays.copyOf( freeIds, nbFreeIds * 2 );
+        }
+
+        freeIds[nbFreeIds++] = id;
+    }
+}
@@ -24,6 +24,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.AllAttributeValuesItem;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeTypeItem;
+import org.apache.directory.api.ldap.aci.protectedItem.AttributeValueItem;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
@@ -124,10 +129,12 @@ public class ACDFEngine
             throw new IllegalArgumentException( "entryName" );
         }
 
-        CoreSession session = aciContext.getOperationContext().getSession();
-        LookupOperationContext lookupContext = new LookupOperationContext( session, aciContext.getUserDn(),
-            SchemaConstants.ALL_ATTRIBUTES_ARRAY );
-        Entry userEntry = session.getDirectoryService().getPartitionNexus().lookup( lookupContext );
+        Entry userEntry = aciContext.getUserEntry();
+
+        if ( userEntry == null )
+        {
+            userEntry = lookupUserEntry( aciContext );
+        }
 
         // Determine the scope of the requested operation.
         OperationScope scope;
@@ -179,4 +186,102 @@ public class ACDFEngine
 
         return true;
     }
+
+
+    /**
+     * Removes from the tuples of the given context the ones which are not related to its user,
+     * as the first filter of {@link #hasPermission(AciContext)} would. The tuples whose relation
+     * to the user depends on the target entry are kept. The result can then be used for all
+     * the entries a user is accessing with the same set of ACIs.
+     *
+     * @param aciContext the container for ACI items
+     * @return the tuples which may apply to the user
+     * @throws LdapException if failed to evaluate ACI items
+     */
+    public Collection<ACITuple> filterUnrelatedTuples( AciContext aciContext ) throws LdapException
+    {
+        Entry userEntry = aciContext.getUserEntry();
+
+        if ( userEntry == null )
+        {
+            userEntry = lookupUserEntry( aciContext );
+        }
+
+        Collection<ACITuple> related = new ArrayList<ACITuple>();
+        Collection<ACITuple> candidates = new ArrayList<ACITuple>();
+
+        for ( ACITuple tuple : aciContext.getAciTuples() )
+        {
+            if ( hasEntryDependentUserClass( tuple ) )
+            {
+                related.add( tuple );
+            }
+            else
+            {
+                candidates.add( tuple );
+            }
+        }
+
+        aciContext.setAciTuples( candidates );
+        related.addAll( filters[0].filter( aciContext, OperationScope.ENTRY, userEntry ) );
+        aciContext.setAciTuples( related );
+
+        return related;
+    }
+
+
+    /**
+     * Tells if the evaluation of a tuple depends on the target entry, beside its name. The
+     * decisions taken with tuples that don't can be reused for any entry.
+     *
+     * @param tuple the tuple to check
+     * @return true if the tuple has a user class or a protected item which depends on the entry
+     */
+    public static boolean dependsOnEntry( ACITuple tuple )
+    {
+        if ( hasEntryDependentUserClass( tuple ) )
+        {
+            return true;
+        }
+
+        for ( ProtectedItem item : tuple.getProtectedItems() )
+        {
+            if ( ( item != ProtectedItem.ENTRY ) && ( item != ProtectedItem.ALL_USER_ATTRIBUTE_TYPES )
+                && ( item != ProtectedItem.ALL_USER_ATTRIBUTE_TYPES_AND_VALUES )
+                && !( item instanceof AllAttributeValuesItem ) && !( item instanceof AttributeTypeItem )
+                && !( item instanceof AttributeValueItem ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * The thisEntry and parentOfEntry user classes relate the user to the target entry
+     */
+    private static boolean hasEntryDependentUserClass( ACITuple tuple )
+    {
+        for ( UserClass userClass : tuple.getUserClasses() )
+        {
+            if ( ( userClass == UserClass.THIS_ENTRY ) || ( userClass == UserClass.PARENT_OF_ENTRY ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    private Entry lookupUserEntry( AciContext aciContext ) throws LdapException
+    {
+        CoreSession session = aciContext.getOperationContext().getSession();
+        LookupOperationContext lookupContext = new LookupOperationContext( session, aciContext.getUserDn(),
+            SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+
+        return session.getDirectoryService().getPartitionNexus().lookup( lookupContext );
+    }
 }
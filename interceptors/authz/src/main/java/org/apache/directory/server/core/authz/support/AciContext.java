@@ -77,6 +77,9 @@ public class AciContext
     /** ??? */
     private Entry entryView;
 
+    /** The user entry, if already known. It's looked up by the ACDFEngine otherwise */
+    private Entry userEntry;
+
 
     /**
      * Creates a new instance of AciContext.
@@ -305,4 +308,22 @@ public class AciContext
     {
         this.entryView = entryView;
     }
+
+
+    /**
+     * @return the user entry, or null if it has to be looked up
+     */
+    public Entry getUserEntry()
+    {
+        return userEntry;
+    }
+
+
+    /**
+     * @param userEntry the user entry to set, to avoid a lookup on each evaluation
+     */
+    public void setUserEntry( Entry userEntry )
+    {
+        this.userEntry = userEntry;
+    }
 }
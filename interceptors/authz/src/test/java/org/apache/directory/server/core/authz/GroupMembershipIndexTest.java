@@ -0,0 +1,119 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.authz;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link GroupMembershipIndex}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class GroupMembershipIndexTest
+{
+    private static Set<String> getGroupNames( GroupMembershipIndex index, String member )
+    {
+        BitSet ids = index.getTransitiveGroups( member );
+        Set<String> names = new HashSet<String>();
+
+        for ( int id = ids.nextSetBit( 0 ); id >= 0; id = ids.nextSetBit( id + 1 ) )
+        {
+            names.add( index.getName( id ) );
+        }
+
+        return names;
+    }
+
+
+    @Test
+    public void testDirectMembership()
+    {
+        GroupMembershipIndex index = new GroupMembershipIndex();
+        index.add( "cn=g1", "uid=a" );
+        index.add( "cn=g2", "uid=a" );
+        index.add( "cn=g2", "uid=b" );
+
+        // Adding twice doesn't change anything
+        index.add( "cn=g2", "uid=b" );
+
+        assertEquals( 2, getGroupNames( index, "uid=a" ).size() );
+        assertEquals( 1, getGroupNames( index, "uid=b" ).size() );
+        assertTrue( getGroupNames( index, "uid=b" ).contains( "cn=g2" ) );
+        assertTrue( getGroupNames( index, "uid=c" ).isEmpty() );
+
+        index.remove( "cn=g2", "uid=a" );
+        assertEquals( 1, getGroupNames( index, "uid=a" ).size() );
+        assertTrue( getGroupNames( index, "uid=a" ).contains( "cn=g1" ) );
+    }
+
+
+    @Test
+    public void testNestedGroups()
+    {
+        GroupMembershipIndex index = new GroupMembershipIndex();
+        index.add( "cn=g1", "uid=a" );
+        index.add( "cn=g2", "cn=g1" );
+        index.add( "cn=g3", "cn=g2" );
+
+        // A cycle
+        index.add( "cn=g1", "cn=g3" );
+
+        Set<String> groups = getGroupNames( index, "uid=a" );
+        assertEquals( 3, groups.size() );
+        assertTrue( groups.contains( "cn=g3" ) );
+
+        index.remove( "cn=g2", "cn=g1" );
+        assertEquals( 1, getGroupNames( index, "uid=a" ).size() );
+    }
+
+
+    @Test
+    public void testIdentifiersAreReleased()
+    {
+        GroupMembershipIndex index = new GroupMembershipIndex();
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            index.add( "cn=g", "uid=user" + i );
+        }
+
+        assertEquals( 1001, index.size() );
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            index.remove( "cn=g", "uid=user" + i );
+        }
+
+        assertEquals( 0, index.size() );
+
+        index.add( "cn=g", "uid=again" );
+        assertEquals( 2, index.size() );
+        assertTrue( getGroupNames( index, "uid=again" ).contains( "cn=g" ) );
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.authz.support;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.aci.ACITuple;
+import org.apache.directory.api.ldap.aci.MicroOperation;
+import org.apache.directory.api.ldap.aci.ProtectedItem;
+import org.apache.directory.api.ldap.aci.UserClass;
+import org.apache.directory.api.ldap.aci.protectedItem.MaxImmSubItem;
+import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schemamanager.impl.DefaultSchemaManager;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the tuple pre-filtering done by {@link ACDFEngine}.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ACDFEngineTest
+{
+    private static final Set<MicroOperation> EMPTY_MICRO_OPERATION_SET = Collections
+        .unmodifiableSet( new HashSet<MicroOperation>() );
+
+    private static SchemaManager schemaManager;
+    private static ACDFEngine engine;
+    private static Dn USER_NAME;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager();
+        engine = new ACDFEngine( schemaManager );
+        USER_NAME = new Dn( schemaManager, "ou=test, ou=users, ou=system" );
+    }
+
+
+    @Test
+    public void testDependsOnEntry() throws Exception
+    {
+        assertFalse( ACDFEngine.dependsOnEntry( getTuple( UserClass.ALL_USERS, ProtectedItem.ENTRY, true ) ) );
+        assertFalse( ACDFEngine.dependsOnEntry( getTuple( UserClass.ALL_USERS,
+            ProtectedItem.ALL_USER_ATTRIBUTE_TYPES_AND_VALUES, true ) ) );
+
+        // thisEntry relates the user to the target entry
+        assertTrue( ACDFEngine.dependsOnEntry( getTuple( UserClass.THIS_ENTRY, ProtectedItem.ENTRY, true ) ) );
+
+        // maxImmSub depends on the target entry children
+        assertTrue( ACDFEngine.dependsOnEntry( getTuple( UserClass.ALL_USERS, new MaxImmSubItem( 2 ), true ) ) );
+    }
+
+
+    @Test
+    public void testFilterUnrelatedTuples() throws Exception
+    {
+        Set<Dn> names = new HashSet<Dn>();
+        names.add( new Dn( schemaManager, "cn=someone else" ) );
+
+        Collection<ACITuple> tuples = new ArrayList<ACITuple>();
+
+        // Kept : granted to all users
+        tuples.add( getTuple( UserClass.ALL_USERS, ProtectedItem.ENTRY, true ) );
+
+        // Removed : granted to another user
+        tuples.add( getTuple( new UserClass.Name( names ), ProtectedItem.ENTRY, true ) );
+
+        // Kept : depends on the target entry
+        tuples.add( getTuple( UserClass.THIS_ENTRY, ProtectedItem.ENTRY, true ) );
+
+        AciContext aciContext = new AciContext( schemaManager, null );
+        aciContext.setUserDn( USER_NAME );
+        aciContext.setUserEntry( new DefaultEntry( schemaManager, USER_NAME ) );
+        aciContext.setUserGroupNames( new HashSet<Dn>() );
+        aciContext.setAuthenticationLevel( AuthenticationLevel.SIMPLE );
+        aciContext.setAciTuples( tuples );
+
+        Collection<ACITuple> related = engine.filterUnrelatedTuples( aciContext );
+
+        assertEquals( 2, related.size() );
+
+        for ( ACITuple tuple : related )
+        {
+            assertFalse( tuple.getUserClasses().iterator().next() instanceof UserClass.Name );
+        }
+    }
+
+
+    private static ACITuple getTuple( UserClass userClass, ProtectedItem protectedItem, boolean grant )
+    {
+        Collection<UserClass> classes = new ArrayList<UserClass>();
+        classes.add( userClass );
+
+        Collection<ProtectedItem> protectedItems = new ArrayList<ProtectedItem>();
+        protectedItems.add( protectedItem );
+
+        return new ACITuple( classes, AuthenticationLevel.NONE, protectedItems, EMPTY_MICRO_OPERATION_SET, grant, 0 );
+    }
+}
@@ -20,11 +20,15 @@
 package org.apache.directory.server.core.event;
 
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
+import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
 import org.apache.directory.api.ldap.model.schema.normalizers.NameComponentNormalizer;
@@ -34,6 +38,7 @@ import org.apache.directory.server.core.api.event.EventService;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
 import org.apache.directory.server.core.api.event.RegistrationEntry;
 import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.core.event.RegistrationIndex.IndexedRegistration;
 
 
 /**
@@ -45,7 +50,10 @@ import org.apache.directory.server.core.api.normalization.FilterNormalizingVisit
 class DefaultEventService implements EventService
 {
     /** The list of RegistrationEntries being registered */
-    private List<RegistrationEntry> registrations = new CopyOnWriteArrayList<RegistrationEntry>();
+    private List<IndexedRegistration> registrations = new CopyOnWriteArrayList<IndexedRegistration>();
+
+    /** The registrations, indexed by base and filter assertion */
+    private RegistrationIndex index;
 
     /** The DirectoryService instance */
     private DirectoryService directoryService;
@@ -53,18 +61,39 @@ class DefaultEventService implements EventService
     /** A normalizer used for filters */
     private FilterNormalizingVisitor filterNormalizer;
 
+    /** The executor delivering the events to the asynchronous listeners */
+    private Executor executor;
+
+    /** The maximum number of events waiting to be delivered to an asynchronous listener */
+    private int queueCapacity;
+
+    /** What to do when an asynchronous listener's queue is full */
+    private EventQueueOverflowPolicy overflowPolicy;
+
+    /** The maximum time, in milliseconds, an operation waits for room in a listener's queue */
+    private long overflowTimeout;
+
 
     /**
      * Create an instance of EventService
      * @param directoryService The associated DirectoryService
-     * @param registrations The list of Registrations
+     * @param executor The executor delivering the events to the asynchronous listeners
+     * @param queueCapacity The maximum number of events waiting to be delivered to an asynchronous listener
+     * @param overflowPolicy What to do when an asynchronous listener's queue is full
+     * @param overflowTimeout The maximum time, in milliseconds, an operation waits for room in a listener's queue
      */
-    public DefaultEventService( DirectoryService directoryService )
+    public DefaultEventService( DirectoryService directoryService, Executor executor, int queueCapacity,
+        EventQueueOverflowPolicy overflowPolicy, long overflowTimeout )
     {
         this.directoryService = directoryService;
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowTimeout = overflowTimeout;
         SchemaManager schemaManager = directoryService.getSchemaManager();
         NameComponentNormalizer ncn = new ConcreteNameComponentNormalizer( schemaManager );
         filterNormalizer = new FilterNormalizingVisitor( ncn, schemaManager );
+        index = new RegistrationIndex( ncn );
     }
 
 
@@ -76,7 +105,18 @@ class DefaultEventService implements EventService
         criteria.getBase().apply( directoryService.getSchemaManager() );
         ExprNode result = ( ExprNode ) criteria.getFilter().accept( filterNormalizer );
         criteria.setFilter( result );
-        registrations.add( new RegistrationEntry( listener, criteria ) );
+
+        ListenerEventQueue queue = null;
+
+        if ( !listener.isSynchronous() )
+        {
+            queue = new ListenerEventQueue( listener, executor, queueCapacity, overflowPolicy, overflowTimeout );
+        }
+
+        IndexedRegistration registration = new IndexedRegistration( new RegistrationEntry( listener, criteria ),
+            queue );
+        index.add( registration );
+        registrations.add( registration );
     }
 
 
@@ -85,11 +125,12 @@ class DefaultEventService implements EventService
      */
     public void removeListener( DirectoryListener listener )
     {
-        for ( RegistrationEntry entry : registrations )
+        for ( IndexedRegistration registration : registrations )
         {
-            if ( entry.getListener() == listener )
+            if ( registration.getRegistration().getListener() == listener )
             {
-                registrations.remove( entry );
+                registrations.remove( registration );
+                index.remove( registration );
             }
         }
     }
@@ -100,6 +141,27 @@ class DefaultEventService implements EventService
      */
     public List<RegistrationEntry> getRegistrationEntries()
     {
-        return Collections.unmodifiableList( registrations );
+        List<RegistrationEntry> entries = new ArrayList<RegistrationEntry>( registrations.size() );
+
+        for ( IndexedRegistration registration : registrations )
+        {
+            entries.add( registration.getRegistration() );
+        }
+
+        return Collections.unmodifiableList( entries );
+    }
+
+
+    /**
+     * Gets the registrations which scope contains the given Dn and which filter may select the
+     * given entry. The filter still has to be evaluated on the returned registrations.
+     *
+     * @param dn The entry's Dn
+     * @param entry The entry
+     * @return The candidate registrations
+     */
+    List<IndexedRegistration> getCandidateRegistrations( Dn dn, Entry entry )
+    {
+        return index.getCandidates( dn, entry );
     }
 }
@@ -20,22 +20,16 @@
 package org.apache.directory.server.core.event;
 
 
-import static org.apache.directory.api.ldap.model.message.SearchScope.OBJECT;
-import static org.apache.directory.api.ldap.model.message.SearchScope.ONELEVEL;
-import static org.apache.directory.api.ldap.model.message.SearchScope.SUBTREE;
-
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -46,7 +40,6 @@ import org.apache.directory.server.core.api.event.Evaluator;
 import org.apache.directory.server.core.api.event.EventType;
 import org.apache.directory.server.core.api.event.ExpressionEvaluator;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
-import org.apache.directory.server.core.api.event.RegistrationEntry;
 import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
@@ -56,6 +49,7 @@ import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOpe
 import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.event.RegistrationIndex.IndexedRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,8 +64,32 @@ public class EventInterceptor extends BaseInterceptor
     /** A logger for this class */
     private static final Logger LOG = LoggerFactory.getLogger( EventInterceptor.class );
 
+    /** The default maximum number of events waiting to be delivered to an asynchronous listener */
+    public static final int DEFAULT_EVENT_QUEUE_CAPACITY = 1000;
+
+    /** The default number of threads delivering the events to the asynchronous listeners */
+    public static final int DEFAULT_NB_NOTIFICATION_THREADS = 10;
+
+    /** The default maximum time, in milliseconds, an operation waits for room in a listener's queue */
+    public static final long DEFAULT_EVENT_QUEUE_OVERFLOW_TIMEOUT = 1000L;
+
     private Evaluator evaluator;
-    private ExecutorService executor;
+    private ThreadPoolExecutor executor;
+
+    /** The event service, which indexes the registrations */
+    private DefaultEventService eventService;
+
+    /** The maximum number of events waiting to be delivered to an asynchronous listener */
+    private int eventQueueCapacity = DEFAULT_EVENT_QUEUE_CAPACITY;
+
+    /** What to do when an asynchronous listener's queue is full */
+    private EventQueueOverflowPolicy overflowPolicy = EventQueueOverflowPolicy.BLOCK;
+
+    /** The maximum time, in milliseconds, an operation waits for room in a listener's queue */
+    private long overflowTimeout = DEFAULT_EVENT_QUEUE_OVERFLOW_TIMEOUT;
+
+    /** The number of threads delivering the events to the asynchronous listeners */
+    private int nbNotificationThreads = DEFAULT_NB_NOTIFICATION_THREADS;
 
 
     /**
@@ -93,126 +111,72 @@ public class EventInterceptor extends BaseInterceptor
         super.init( directoryService );
 
         evaluator = new ExpressionEvaluator( schemaManager );
-        executor = new ThreadPoolExecutor( 1, 10, 1000, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( 100 ) );
 
-        this.directoryService.setEventService( new DefaultEventService( directoryService ) );
+        // Each asynchronous listener has its own bounded queue, and at most one task
+        // in the executor's queue, so this queue is bounded by the number of listeners
+        executor = new ThreadPoolExecutor( nbNotificationThreads, nbNotificationThreads, 1000, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>() );
+        executor.allowCoreThreadTimeOut( true );
+
+        eventService = new DefaultEventService( directoryService, executor, eventQueueCapacity, overflowPolicy,
+            overflowTimeout );
+        this.directoryService.setEventService( eventService );
         LOG.info( "Initialization complete." );
     }
 
 
     /**
-     * Call the listener passing it the context.
+     * Call the listener passing it the context. The asynchronous listeners are
+     * called through their own queue of events.
      */
-    private void fire( final OperationContext opContext, EventType type, final DirectoryListener listener )
+    private void fire( final OperationContext opContext, final EventType type, IndexedRegistration registration )
     {
-        switch ( type )
+        final DirectoryListener listener = registration.getRegistration().getListener();
+        ListenerEventQueue queue = registration.getQueue();
+
+        if ( queue == null )
         {
-            case ADD:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryAdded( ( AddOperationContext ) opContext );
-                }
-                else
+            notifyListener( opContext, type, listener );
+        }
+        else
+        {
+            queue.submit( new Runnable()
+            {
+                public void run()
                 {
-                    executor.execute( new Runnable()
-                    {
-                        public void run()
-                        {
-                            listener.entryAdded( ( AddOperationContext ) opContext );
-                        }
-                    } );
+                    EventInterceptor.notifyListener( opContext, type, listener );
                 }
+            } );
+        }
+    }
 
+
+    private static void notifyListener( OperationContext opContext, EventType type, DirectoryListener listener )
+    {
+        switch ( type )
+        {
+            case ADD:
+                listener.entryAdded( ( AddOperationContext ) opContext );
                 break;
 
             case DELETE:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryDeleted( ( DeleteOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        public void run()
-                        {
-                            listener.entryDeleted( ( DeleteOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                listener.entryDeleted( ( DeleteOperationContext ) opContext );
                 break;
 
             case MODIFY:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryModified( ( ModifyOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        public void run()
-                        {
-                            listener.entryModified( ( ModifyOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                listener.entryModified( ( ModifyOperationContext ) opContext );
                 break;
 
             case MOVE:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryMoved( ( MoveOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        public void run()
-                        {
-                            listener.entryMoved( ( MoveOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                listener.entryMoved( ( MoveOperationContext ) opContext );
                 break;
 
             case RENAME:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryRenamed( ( RenameOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        public void run()
-                        {
-                            listener.entryRenamed( ( RenameOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                listener.entryRenamed( ( RenameOperationContext ) opContext );
                 break;
 
             case MOVE_AND_RENAME:
-                if ( listener.isSynchronous() )
-                {
-                    listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
-                }
-                else
-                {
-                    executor.execute( new Runnable()
-                    {
-                        public void run()
-                        {
-                            listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
-                        }
-                    } );
-                }
-
+                listener.entryMovedAndRenamed( ( MoveAndRenameOperationContext ) opContext );
                 break;
         }
     }
@@ -225,18 +189,18 @@ public class EventInterceptor extends BaseInterceptor
     {
         next( addContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( addContext.getDn(), addContext.getEntry() );
+        List<IndexedRegistration> selecting = getSelectingRegistrations( addContext.getDn(), addContext.getEntry() );
 
         if ( selecting.isEmpty() )
         {
             return;
         }
 
-        for ( final RegistrationEntry registration : selecting )
+        for ( final IndexedRegistration registration : selecting )
         {
-            if ( EventType.isAdd( registration.getCriteria().getEventMask() ) )
+            if ( EventType.isAdd( registration.getRegistration().getCriteria().getEventMask() ) )
             {
-                fire( addContext, EventType.ADD, registration.getListener() );
+                fire( addContext, EventType.ADD, registration );
             }
         }
     }
@@ -249,18 +213,19 @@ public class EventInterceptor extends BaseInterceptor
     {
         next( deleteContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( deleteContext.getDn(), deleteContext.getEntry() );
+        List<IndexedRegistration> selecting = getSelectingRegistrations( deleteContext.getDn(),
+            deleteContext.getEntry() );
 
         if ( selecting.isEmpty() )
         {
             return;
         }
 
-        for ( final RegistrationEntry registration : selecting )
+        for ( final IndexedRegistration registration : selecting )
         {
-            if ( EventType.isDelete( registration.getCriteria().getEventMask() ) )
+            if ( EventType.isDelete( registration.getRegistration().getCriteria().getEventMask() ) )
             {
-                fire( deleteContext, EventType.DELETE, registration.getListener() );
+                fire( deleteContext, EventType.DELETE, registration );
             }
         }
     }
@@ -279,7 +244,7 @@ public class EventInterceptor extends BaseInterceptor
             next( modifyContext );
         }
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( modifyContext.getDn(), oriEntry );
+        List<IndexedRegistration> selecting = getSelectingRegistrations( modifyContext.getDn(), oriEntry );
 
         if ( selecting.isEmpty() )
         {
@@ -294,11 +259,11 @@ public class EventInterceptor extends BaseInterceptor
         Entry alteredEntry = directoryService.getPartitionNexus().lookup( lookupContext );
         modifyContext.setAlteredEntry( alteredEntry );
 
-        for ( final RegistrationEntry registration : selecting )
+        for ( final IndexedRegistration registration : selecting )
         {
-            if ( EventType.isModify( registration.getCriteria().getEventMask() ) )
+            if ( EventType.isModify( registration.getRegistration().getCriteria().getEventMask() ) )
             {
-                fire( modifyContext, EventType.MODIFY, registration.getListener() );
+                fire( modifyContext, EventType.MODIFY, registration );
             }
         }
     }
@@ -313,18 +278,18 @@ public class EventInterceptor extends BaseInterceptor
 
         next( moveContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( moveContext.getDn(), oriEntry );
+        List<IndexedRegistration> selecting = getSelectingRegistrations( moveContext.getDn(), oriEntry );
 
         if ( selecting.isEmpty() )
         {
             return;
         }
 
-        for ( final RegistrationEntry registration : selecting )
+        for ( final IndexedRegistration registration : selecting )
         {
-            if ( EventType.isMove( registration.getCriteria().getEventMask() ) )
+            if ( EventType.isMove( registration.getRegistration().getCriteria().getEventMask() ) )
             {
-                fire( moveContext, EventType.MOVE, registration.getListener() );
+                fire( moveContext, EventType.MOVE, registration );
             }
         }
     }
@@ -338,18 +303,18 @@ public class EventInterceptor extends BaseInterceptor
         Entry oriEntry = moveAndRenameContext.getOriginalEntry();
         next( moveAndRenameContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( moveAndRenameContext.getDn(), oriEntry );
+        List<IndexedRegistration> selecting = getSelectingRegistrations( moveAndRenameContext.getDn(), oriEntry );
 
         if ( selecting.isEmpty() )
         {
             return;
         }
 
-        for ( final RegistrationEntry registration : selecting )
+        for ( final IndexedRegistration registration : selecting )
         {
-            if ( EventType.isMoveAndRename( registration.getCriteria().getEventMask() ) )
+            if ( EventType.isMoveAndRename( registration.getRegistration().getCriteria().getEventMask() ) )
             {
-                fire( moveAndRenameContext, EventType.MOVE_AND_RENAME, registration.getListener() );
+                fire( moveAndRenameContext, EventType.MOVE_AND_RENAME, registration );
             }
         }
     }
@@ -364,7 +329,7 @@ public class EventInterceptor extends BaseInterceptor
 
         next( renameContext );
 
-        List<RegistrationEntry> selecting = getSelectingRegistrations( renameContext.getDn(), oriEntry );
+        List<IndexedRegistration> selecting = getSelectingRegistrations( renameContext.getDn(), oriEntry );
 
         if ( selecting.isEmpty() )
         {
@@ -379,56 +344,37 @@ public class EventInterceptor extends BaseInterceptor
         Entry alteredEntry = directoryService.getPartitionNexus().lookup( lookupContext );
         renameContext.setModifiedEntry( alteredEntry );
 
-        for ( final RegistrationEntry registration : selecting )
+        for ( final IndexedRegistration registration : selecting )
         {
-            if ( EventType.isRename( registration.getCriteria().getEventMask() ) )
+            if ( EventType.isRename( registration.getRegistration().getCriteria().getEventMask() ) )
             {
-                fire( renameContext, EventType.RENAME, registration.getListener() );
+                fire( renameContext, EventType.RENAME, registration );
             }
         }
     }
 
 
     /**
-     * Find a list of registrationEntries given an entry and a name. We check against
-     * the criteria for each registrationEntry
+     * Find a list of registrationEntries given an entry and a name. The event service
+     * only returns the registrations which scope contains the name, and which filter may
+     * select the entry : we check their filter against the entry.
      */
-    private List<RegistrationEntry> getSelectingRegistrations( Dn name, Entry entry ) throws LdapException
+    private List<IndexedRegistration> getSelectingRegistrations( Dn name, Entry entry ) throws LdapException
     {
-        List<RegistrationEntry> registrations = directoryService.getEventService().getRegistrationEntries();
+        List<IndexedRegistration> candidates = eventService.getCandidateRegistrations( name, entry );
 
-        if ( registrations.isEmpty() )
+        if ( candidates.isEmpty() )
         {
             return Collections.emptyList();
         }
 
-        List<RegistrationEntry> selecting = new ArrayList<RegistrationEntry>();
+        List<IndexedRegistration> selecting = new ArrayList<IndexedRegistration>( candidates.size() );
 
-        for ( RegistrationEntry registration : registrations )
+        for ( IndexedRegistration registration : candidates )
         {
-            NotificationCriteria criteria = registration.getCriteria();
-
-            Dn base = criteria.getBase();
+            NotificationCriteria criteria = registration.getRegistration().getCriteria();
 
-            SearchScope scope = criteria.getScope();
-            
-            boolean inscope = false;
-            
-            // fix for DIRSERVER-1502
-            if ( ( scope == OBJECT ) && name.equals( base ) )
-            {
-                inscope = true;
-            }
-            else if ( ( scope == ONELEVEL ) && name.getParent().equals( base ) )
-            {
-                inscope = true;
-            }
-            else if ( ( scope == SUBTREE ) && ( name.isDescendantOf( base ) || name.equals( base ) ) )
-            {
-                inscope = true;
-            } 
-            
-            if ( inscope && evaluator.evaluate( criteria.getFilter(), base, entry ) )
+            if ( evaluator.evaluate( criteria.getFilter(), criteria.getBase(), entry ) )
             {
                 selecting.add( registration );
             }
@@ -436,4 +382,90 @@ public class EventInterceptor extends BaseInterceptor
 
         return selecting;
     }
+
+
+    /**
+     * @return The maximum number of events waiting to be delivered to an asynchronous listener
+     */
+    public int getEventQueueCapacity()
+    {
+        return eventQueueCapacity;
+    }
+
+
+    /**
+     * Sets the maximum number of events waiting to be delivered to an asynchronous listener.
+     * Must be called before the interceptor is initialized.
+     *
+     * @param eventQueueCapacity The maximum number of pending events per listener
+     */
+    public void setEventQueueCapacity( int eventQueueCapacity )
+    {
+        this.eventQueueCapacity = Math.max( 1, eventQueueCapacity );
+    }
+
+
+    /**
+     * @return What is done when an asynchronous listener's queue is full
+     */
+    public EventQueueOverflowPolicy getOverflowPolicy()
+    {
+        return overflowPolicy;
+    }
+
+
+    /**
+     * Sets what is done when an asynchronous listener's queue is full : either the
+     * operation waits, at most for the overflow timeout, or the event is discarded.
+     * Must be called before the interceptor is initialized.
+     *
+     * @param overflowPolicy The overflow policy
+     */
+    public void setOverflowPolicy( EventQueueOverflowPolicy overflowPolicy )
+    {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+
+    /**
+     * @return The number of threads delivering the events to the asynchronous listeners
+     */
+    public int getNbNotificationThreads()
+    {
+        return nbNotificationThreads;
+    }
+
+
+    /**
+     * Sets the number of threads delivering the events to the asynchronous listeners.
+     * Must be called before the interceptor is initialized.
+     *
+     * @param nbNotificationThreads The number of threads
+     */
+    public void setNbNotificationThreads( int nbNotificationThreads )
+    {
+        this.nbNotificationThreads = Math.max( 1, nbNotificationThreads );
+    }
+
+
+    /**
+     * @return The maximum time, in milliseconds, an operation waits for room in a listener's queue
+     */
+    public long getOverflowTimeout()
+    {
+        return overflowTimeout;
+    }
+
+
+    /**
+     * Sets the maximum time an operation waits for room in an asynchronous listener's queue,
+     * with the {@link EventQueueOverflowPolicy#BLOCK} policy. The event is discarded once
+     * this time is elapsed. Must be called before the interceptor is initialized.
+     *
+     * @param overflowTimeout The maximum wait time, in milliseconds
+     */
+    public void setOverflowTimeout( long overflowTimeout )
+    {
+        this.overflowTimeout = Math.max( 0L, overflowTimeout );
+    }
 }
@@ -0,0 +1,186 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.directory.server.core.api.event.DirectoryListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The bounded queue of events waiting to be delivered to an asynchronous listener.
+ * The events are delivered in the order they have been generated, by one thread of
+ * the shared executor at a time. When the queue is full, the {@link EventQueueOverflowPolicy}
+ * tells if the operation has to wait, for a bounded time, or if the event is dropped.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class ListenerEventQueue implements Runnable
+{
+    /** A logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( ListenerEventQueue.class );
+
+    /** The maximum number of events delivered before the thread is given back to the executor */
+    private static final int MAX_EVENTS_PER_RUN = 64;
+
+    /** The listener */
+    private final DirectoryListener listener;
+
+    /** The pending events */
+    private final BlockingQueue<Runnable> events;
+
+    /** The executor delivering the events */
+    private final Executor executor;
+
+    /** What to do when the queue is full */
+    private final EventQueueOverflowPolicy overflowPolicy;
+
+    /** The maximum time, in milliseconds, an operation waits for room in the queue */
+    private final long overflowTimeout;
+
+    /** Tells if a delivery task has been submitted to the executor */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+
+    /**
+     * Creates a new instance of ListenerEventQueue.
+     *
+     * @param listener The listener the events are delivered to
+     * @param executor The executor delivering the events
+     * @param capacity The maximum number of pending events
+     * @param overflowPolicy What to do when the queue is full
+     * @param overflowTimeout The maximum time, in milliseconds, an operation waits for room in the queue
+     */
+    ListenerEventQueue( DirectoryListener listener, Executor executor, int capacity,
+        EventQueueOverflowPolicy overflowPolicy, long overflowTimeout )
+    {
+        this.listener = listener;
+        this.executor = executor;
+        this.overflowPolicy = overflowPolicy;
+        this.overflowTimeout = overflowTimeout;
+        events = new LinkedBlockingQueue<Runnable>( capacity );
+    }
+
+
+    /**
+     * Queues an event for delivery.
+     *
+     * @param event The task calling the listener
+     */
+    void submit( Runnable event )
+    {
+        if ( !events.offer( event ) )
+        {
+            if ( overflowPolicy == EventQueueOverflowPolicy.DISCARD )
+            {
+                LOG.warn( "The event queue of the listener {} is full, discarding the event", listener );
+
+                return;
+            }
+
+            try
+            {
+                // Make sure the queue is being drained before waiting
+                schedule();
+
+                if ( !events.offer( event, overflowTimeout, TimeUnit.MILLISECONDS ) )
+                {
+                    LOG.warn( "The event queue of the listener {} is still full after {}ms, discarding the event",
+                        listener, overflowTimeout );
+
+                    return;
+                }
+            }
+            catch ( InterruptedException ie )
+            {
+                LOG.warn( "Interrupted while waiting to notify the listener {}, the event is discarded", listener );
+                Thread.currentThread().interrupt();
+
+                return;
+            }
+        }
+
+        schedule();
+    }
+
+
+    private void schedule()
+    {
+        if ( scheduled.compareAndSet( false, true ) )
+        {
+            executor.execute( this );
+        }
+    }
+
+
+    /**
+     * Delivers the pending events.
+     */
+    public void run()
+    {
+        try
+        {
+            for ( int i = 0; i < MAX_EVENTS_PER_RUN; i++ )
+            {
+                Runnable event = events.poll();
+
+                if ( event == null )
+                {
+                    break;
+                }
+
+                try
+                {
+                    event.run();
+                }
+                catch ( Exception e )
+                {
+                    LOG.error( "The listener {} failed to process an event", listener, e );
+                }
+            }
+        }
+        finally
+        {
+            scheduled.set( false );
+
+            // Some events may have been queued since the last poll
+            if ( !events.isEmpty() )
+            {
+                schedule();
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of events waiting to be delivered
+     */
+    int size()
+    {
+        return events.size();
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.filter.AndNode;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.normalizers.NameComponentNormalizer;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+
+
+/**
+ * An index of the registered listeners, used to quickly find the listeners which may be
+ * interested in a change. The registrations are stored by base Dn, so that only the bases
+ * which are the entry's Dn or one of its ancestors are looked at. Within a base, when
+ * the filter requires an attribute to have a given value, like in (uid=jdoe) or
+ * (&amp;(objectClass=person)(uid=jdoe)), the registration is also indexed by this value.
+ * <br>
+ * The returned registrations are only candidates : their filter still has to be evaluated.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class RegistrationIndex
+{
+    /**
+     * A registration, with the queue used to deliver the events to an asynchronous listener,
+     * and the indexed assertion if any.
+     */
+    static class IndexedRegistration
+    {
+        /** The registration */
+        private final RegistrationEntry registration;
+
+        /** The queue of events, null for a synchronous listener */
+        private final ListenerEventQueue queue;
+
+        /** The attribute which value is indexed, if any */
+        private AttributeType indexedAttributeType;
+
+        /** The indexed normalized value */
+        private String indexedValue;
+
+
+        IndexedRegistration( RegistrationEntry registration, ListenerEventQueue queue )
+        {
+            this.registration = registration;
+            this.queue = queue;
+        }
+
+
+        RegistrationEntry getRegistration()
+        {
+            return registration;
+        }
+
+
+        ListenerEventQueue getQueue()
+        {
+            return queue;
+        }
+    }
+
+    /** The registrations associated with a base */
+    private static class Bucket
+    {
+        /** The registrations which can't be indexed on a value */
+        private final List<IndexedRegistration> unindexed = new CopyOnWriteArrayList<IndexedRegistration>();
+
+        /** The registrations indexed by attribute and normalized value */
+        private final Map<AttributeType, Map<String, List<IndexedRegistration>>> indexed =
+            new ConcurrentHashMap<AttributeType, Map<String, List<IndexedRegistration>>>();
+
+
+        private boolean isEmpty()
+        {
+            return unindexed.isEmpty() && indexed.isEmpty();
+        }
+    }
+
+    /** The buckets, per normalized base Dn */
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    /** The normalizer used to compute the indexed values */
+    private final NameComponentNormalizer ncn;
+
+
+    /**
+     * Creates a new instance of RegistrationIndex.
+     *
+     * @param ncn The normalizer used to compute the indexed values
+     */
+    RegistrationIndex( NameComponentNormalizer ncn )
+    {
+        this.ncn = ncn;
+    }
+
+
+    /**
+     * Adds a registration in the index. Its criteria must have been normalized.
+     *
+     * @param indexedRegistration The registration to add
+     */
+    synchronized void add( IndexedRegistration indexedRegistration )
+    {
+        NotificationCriteria criteria = indexedRegistration.getRegistration().getCriteria();
+        String base = criteria.getBase().getNormName();
+        Bucket bucket = buckets.get( base );
+
+        if ( bucket == null )
+        {
+            bucket = new Bucket();
+            buckets.put( base, bucket );
+        }
+
+        EqualityNode<?> assertion = findIndexableAssertion( criteria.getFilter() );
+        String value = null;
+
+        if ( assertion != null )
+        {
+            value = normalize( assertion.getAttributeType(), assertion.getValue() );
+        }
+
+        if ( value == null )
+        {
+            bucket.unindexed.add( indexedRegistration );
+
+            return;
+        }
+
+        indexedRegistration.indexedAttributeType = assertion.getAttributeType();
+        indexedRegistration.indexedValue = value;
+
+        Map<String, List<IndexedRegistration>> values = bucket.indexed.get( assertion.getAttributeType() );
+
+        if ( values == null )
+        {
+            values = new ConcurrentHashMap<String, List<IndexedRegistration>>();
+            bucket.indexed.put( assertion.getAttributeType(), values );
+        }
+
+        List<IndexedRegistration> registrations = values.get( value );
+
+        if ( registrations == null )
+        {
+            registrations = new CopyOnWriteArrayList<IndexedRegistration>();
+            values.put( value, registrations );
+        }
+
+        registrations.add( indexedRegistration );
+    }
+
+
+    /**
+     * Removes a registration from the index.
+     *
+     * @param indexedRegistration The registration to remove
+     */
+    synchronized void remove( IndexedRegistration indexedRegistration )
+    {
+        String base = indexedRegistration.getRegistration().getCriteria().getBase().getNormName();
+        Bucket bucket = buckets.get( base );
+
+        if ( bucket == null )
+        {
+            return;
+        }
+
+        if ( indexedRegistration.indexedValue == null )
+        {
+            bucket.unindexed.remove( indexedRegistration );
+        }
+        else
+        {
+            Map<String, List<IndexedRegistration>> values = bucket.indexed.get(
+                indexedRegistration.indexedAttributeType );
+
+            if ( values != null )
+            {
+                List<IndexedRegistration> registrations = values.get( indexedRegistration.indexedValue );
+
+                if ( registrations != null )
+                {
+                    registrations.remove( indexedRegistration );
+
+                    if ( registrations.isEmpty() )
+                    {
+                        values.remove( indexedRegistration.indexedValue );
+                    }
+                }
+
+                if ( values.isEmpty() )
+                {
+                    bucket.indexed.remove( indexedRegistration.indexedAttributeType );
+                }
+            }
+        }
+
+        if ( bucket.isEmpty() )
+        {
+            buckets.remove( base );
+        }
+    }
+
+
+    /**
+     * Gets the registrations which scope contains the given Dn, and which filter may
+     * select the given entry.
+     *
+     * @param dn The entry's Dn
+     * @param entry The entry
+     * @return The candidate registrations
+     */
+    List<IndexedRegistration> getCandidates( Dn dn, Entry entry )
+    {
+        if ( buckets.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+
+        List<IndexedRegistration> candidates = new ArrayList<IndexedRegistration>();
+        Dn current = dn;
+        int depth = 0;
+
+        // Check the entry's Dn, and all its ancestors
+        while ( true )
+        {
+            Bucket bucket = buckets.get( current.getNormName() );
+
+            if ( bucket != null )
+            {
+                for ( IndexedRegistration registration : bucket.unindexed )
+                {
+                    if ( isInScope( registration, depth ) )
+                    {
+                        candidates.add( registration );
+                    }
+                }
+
+                for ( Map.Entry<AttributeType, Map<String, List<IndexedRegistration>>> element : bucket.indexed
+                    .entrySet() )
+                {
+                    addIndexedCandidates( candidates, entry.get( element.getKey() ), element.getValue(), depth );
+                }
+            }
+
+            if ( current.isEmpty() )
+            {
+                break;
+            }
+
+            current = current.getParent();
+            depth++;
+        }
+
+        return candidates;
+    }
+
+
+    private void addIndexedCandidates( List<IndexedRegistration> candidates, Attribute attribute,
+        Map<String, List<IndexedRegistration>> values, int depth )
+    {
+        if ( attribute == null )
+        {
+            return;
+        }
+
+        for ( Value<?> value : attribute )
+        {
+            String normValue = normalize( attribute.getAttributeType(), value );
+
+            if ( normValue == null )
+            {
+                continue;
+            }
+
+            List<IndexedRegistration> registrations = values.get( normValue );
+
+            if ( registrations == null )
+            {
+                continue;
+            }
+
+            for ( IndexedRegistration registration : registrations )
+            {
+                // The same registration can be selected by two values of the attribute
+                if ( isInScope( registration, depth ) && !candidates.contains( registration ) )
+                {
+                    candidates.add( registration );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Tells if an entry located at the given depth below the registration's base
+     * is in the registration's scope.
+     */
+    private static boolean isInScope( IndexedRegistration registration, int depth )
+    {
+        SearchScope scope = registration.getRegistration().getCriteria().getScope();
+
+        switch ( scope )
+        {
+            case OBJECT:
+                return depth == 0;
+
+            case ONELEVEL:
+                return depth == 1;
+
+            default:
+                return true;
+        }
+    }
+
+
+    /**
+     * Finds an equality assertion which must be satisfied for the filter to select
+     * an entry. An assertion on another attribute than objectClass is preferred, as
+     * it's more selective.
+     */
+    private static EqualityNode<?> findIndexableAssertion( ExprNode filter )
+    {
+        if ( filter instanceof EqualityNode<?> )
+        {
+            return isIndexable( ( EqualityNode<?> ) filter ) ? ( EqualityNode<?> ) filter : null;
+        }
+
+        if ( !( filter instanceof AndNode ) )
+        {
+            return null;
+        }
+
+        EqualityNode<?> objectClassAssertion = null;
+
+        for ( ExprNode child : ( ( AndNode ) filter ).getChildren() )
+        {
+            if ( ( child instanceof EqualityNode<?> ) && isIndexable( ( EqualityNode<?> ) child ) )
+            {
+                EqualityNode<?> assertion = ( EqualityNode<?> ) child;
+
+                if ( !assertion.getAttributeType().getOid().equals( SchemaConstants.OBJECT_CLASS_AT_OID ) )
+                {
+                    return assertion;
+                }
+
+                if ( objectClassAssertion == null )
+                {
+                    objectClassAssertion = assertion;
+                }
+            }
+        }
+
+        return objectClassAssertion;
+    }
+
+
+    private static boolean isIndexable( EqualityNode<?> assertion )
+    {
+        AttributeType attributeType = assertion.getAttributeType();
+
+        return ( attributeType != null ) && ( attributeType.getSyntax() != null )
+            && attributeType.getSyntax().isHumanReadable() && ( assertion.getValue() != null );
+    }
+
+
+    /**
+     * Normalizes a value using the attribute's equality matching rule. The same
+     * normalization is applied to the filters and the entries values.
+     *
+     * @return The normalized value, or null if it can't be normalized
+     */
+    private String normalize( AttributeType attributeType, Value<?> value )
+    {
+        if ( ( value == null ) || !value.isHumanReadable() )
+        {
+            return null;
+        }
+
+        try
+        {
+            Object normalized = ncn.normalizeByName( attributeType.getOid(), value.getString() );
+
+            return normalized == null ? null : normalized.toString();
+        }
+        catch ( LdapException le )
+        {
+            return null;
+        }
+    }
+}
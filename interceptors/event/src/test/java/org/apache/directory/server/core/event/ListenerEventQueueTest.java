@@ -0,0 +1,255 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the delivery of the events by the ListenerEventQueue, and what happens when
+ * the queue is full.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ListenerEventQueueTest
+{
+    /** The capacity of the tested queues */
+    private static final int CAPACITY = 2;
+
+    /** The tasks submitted to the executor, which are only run on demand */
+    private List<Runnable> tasks;
+
+    /** An executor keeping the tasks until the test runs them */
+    private Executor executor;
+
+    /** The delivered events */
+    private List<Integer> delivered;
+
+
+    @Before
+    public void init()
+    {
+        tasks = new ArrayList<Runnable>();
+        delivered = new ArrayList<Integer>();
+
+        executor = new Executor()
+        {
+            public synchronized void execute( Runnable command )
+            {
+                tasks.add( command );
+            }
+        };
+    }
+
+
+    private ListenerEventQueue createQueue( EventQueueOverflowPolicy overflowPolicy, long overflowTimeout )
+    {
+        return new ListenerEventQueue( new DirectoryListenerAdapter()
+        {
+        }, executor, CAPACITY, overflowPolicy, overflowTimeout );
+    }
+
+
+    private Runnable event( final int number )
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                delivered.add( number );
+            }
+        };
+    }
+
+
+    @Test
+    public void testDeliveryInOrder()
+    {
+        ListenerEventQueue queue = createQueue( EventQueueOverflowPolicy.DISCARD, 0L );
+
+        queue.submit( event( 1 ) );
+        queue.submit( event( 2 ) );
+
+        // Only one delivery task is scheduled at a time
+        assertEquals( 1, tasks.size() );
+        assertEquals( 2, queue.size() );
+
+        tasks.remove( 0 ).run();
+
+        assertEquals( 0, queue.size() );
+        assertEquals( 2, delivered.size() );
+        assertEquals( Integer.valueOf( 1 ), delivered.get( 0 ) );
+        assertEquals( Integer.valueOf( 2 ), delivered.get( 1 ) );
+        assertTrue( tasks.isEmpty() );
+
+        // A new event schedules a new delivery
+        queue.submit( event( 3 ) );
+
+        assertEquals( 1, tasks.size() );
+    }
+
+
+    @Test
+    public void testFailingEventDoesNotStopTheDelivery()
+    {
+        ListenerEventQueue queue = createQueue( EventQueueOverflowPolicy.DISCARD, 0L );
+
+        queue.submit( new Runnable()
+        {
+            public void run()
+            {
+                throw new IllegalStateException( "failing listener" );
+            }
+        } );
+        queue.submit( event( 2 ) );
+
+        tasks.remove( 0 ).run();
+
+        assertEquals( 1, delivered.size() );
+        assertEquals( Integer.valueOf( 2 ), delivered.get( 0 ) );
+    }
+
+
+    @Test
+    public void testOverflowDiscard()
+    {
+        ListenerEventQueue queue = createQueue( EventQueueOverflowPolicy.DISCARD, 0L );
+
+        for ( int i = 1; i <= CAPACITY + 1; i++ )
+        {
+            queue.submit( event( i ) );
+        }
+
+        assertEquals( CAPACITY, queue.size() );
+
+        tasks.remove( 0 ).run();
+
+        // The last event has been dropped
+        assertEquals( CAPACITY, delivered.size() );
+        assertEquals( Integer.valueOf( CAPACITY ), delivered.get( CAPACITY - 1 ) );
+    }
+
+
+    @Test
+    public void testOverflowBlockIsBounded()
+    {
+        ListenerEventQueue queue = createQueue( EventQueueOverflowPolicy.BLOCK, 100L );
+
+        for ( int i = 1; i <= CAPACITY; i++ )
+        {
+            queue.submit( event( i ) );
+        }
+
+        // Nobody drains the queue : the operation waits for the timeout, then the event is dropped
+        long start = System.currentTimeMillis();
+        queue.submit( event( CAPACITY + 1 ) );
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue( elapsed >= 90L );
+        assertTrue( elapsed < 10000L );
+        assertEquals( CAPACITY, queue.size() );
+
+        tasks.remove( 0 ).run();
+
+        assertEquals( CAPACITY, delivered.size() );
+    }
+
+
+    @Test
+    public void testOverflowBlockWaitsForRoom() throws Exception
+    {
+        final ListenerEventQueue queue = createQueue( EventQueueOverflowPolicy.BLOCK, 10000L );
+
+        for ( int i = 1; i <= CAPACITY; i++ )
+        {
+            queue.submit( event( i ) );
+        }
+
+        final Runnable delivery = tasks.remove( 0 );
+
+        // Drain the queue while the operation waits
+        Thread drainer = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep( 100L );
+                }
+                catch ( InterruptedException ie )
+                {
+                    return;
+                }
+
+                delivery.run();
+            }
+        };
+
+        drainer.start();
+        queue.submit( event( CAPACITY + 1 ) );
+        drainer.join();
+
+        // The waiting event has been queued, and a new delivery has been scheduled for it
+        while ( !tasks.isEmpty() )
+        {
+            tasks.remove( 0 ).run();
+        }
+
+        assertEquals( CAPACITY + 1, delivered.size() );
+        assertEquals( Integer.valueOf( CAPACITY + 1 ), delivered.get( CAPACITY ) );
+    }
+
+
+    @Test
+    public void testOverflowBlockInterrupted()
+    {
+        ListenerEventQueue queue = createQueue( EventQueueOverflowPolicy.BLOCK, 10000L );
+
+        for ( int i = 1; i <= CAPACITY; i++ )
+        {
+            queue.submit( event( i ) );
+        }
+
+        Thread.currentThread().interrupt();
+
+        try
+        {
+            queue.submit( event( CAPACITY + 1 ) );
+
+            // The event is dropped, and the interrupt status is kept
+            assertTrue( Thread.currentThread().isInterrupted() );
+            assertEquals( CAPACITY, queue.size() );
+        }
+        finally
+        {
+            Thread.interrupted();
+        }
+    }
+}
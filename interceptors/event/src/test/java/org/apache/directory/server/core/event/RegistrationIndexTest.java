@@ -0,0 +1,276 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.event;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.apache.directory.api.ldap.model.schema.normalizers.NameComponentNormalizer;
+import org.apache.directory.api.ldap.schemaloader.JarLdifSchemaLoader;
+import org.apache.directory.api.ldap.schemamanager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.core.api.event.RegistrationEntry;
+import org.apache.directory.server.core.api.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.core.event.RegistrationIndex.IndexedRegistration;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the lookup of the candidate registrations in the RegistrationIndex.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class RegistrationIndexTest
+{
+    /** The schemaManager */
+    private static SchemaManager schemaManager;
+
+    /** The normalizer used by the index */
+    private static NameComponentNormalizer ncn;
+
+    /** The visitor normalizing the filters, as the event service does */
+    private static FilterNormalizingVisitor normVisitor;
+
+    /** The tested index */
+    private RegistrationIndex index;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        schemaManager = new DefaultSchemaManager( new JarLdifSchemaLoader() );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        ncn = new ConcreteNameComponentNormalizer( schemaManager );
+        normVisitor = new FilterNormalizingVisitor( ncn, schemaManager );
+    }
+
+
+    @Before
+    public void createIndex()
+    {
+        index = new RegistrationIndex( ncn );
+    }
+
+
+    private IndexedRegistration register( String base, SearchScope scope, String filter ) throws Exception
+    {
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setBase( new Dn( schemaManager, base ) );
+        criteria.setScope( scope );
+        criteria.setFilter( ( ExprNode ) FilterParser.parse( schemaManager, filter ).accept( normVisitor ) );
+
+        IndexedRegistration registration = new IndexedRegistration( new RegistrationEntry(
+            new DirectoryListenerAdapter()
+            {
+            }, criteria ), null );
+        index.add( registration );
+
+        return registration;
+    }
+
+
+    private List<IndexedRegistration> getCandidates( String dn, String uid ) throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: inetOrgPerson",
+            "cn: " + uid,
+            "sn: " + uid,
+            "uid: " + uid );
+
+        return index.getCandidates( entry.getDn(), entry );
+    }
+
+
+    @Test
+    public void testEmptyIndex() throws Exception
+    {
+        assertTrue( getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testLookupByBase() throws Exception
+    {
+        IndexedRegistration people = register( "ou=people,ou=system", SearchScope.SUBTREE, "(objectClass=*)" );
+        IndexedRegistration groups = register( "ou=groups,ou=system", SearchScope.SUBTREE, "(objectClass=*)" );
+        IndexedRegistration system = register( "ou=system", SearchScope.SUBTREE, "(objectClass=*)" );
+        IndexedRegistration root = register( "", SearchScope.SUBTREE, "(objectClass=*)" );
+
+        List<IndexedRegistration> candidates = getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" );
+
+        assertEquals( 3, candidates.size() );
+        assertTrue( candidates.contains( people ) );
+        assertTrue( candidates.contains( system ) );
+        assertTrue( candidates.contains( root ) );
+        assertFalse( candidates.contains( groups ) );
+
+        // The base is normalized
+        IndexedRegistration upCase = register( "OU=People,OU=System", SearchScope.SUBTREE, "(objectClass=*)" );
+
+        assertTrue( getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" ).contains( upCase ) );
+    }
+
+
+    @Test
+    public void testLookupByScope() throws Exception
+    {
+        IndexedRegistration object = register( "ou=people,ou=system", SearchScope.OBJECT, "(objectClass=*)" );
+        IndexedRegistration oneLevel = register( "ou=people,ou=system", SearchScope.ONELEVEL, "(objectClass=*)" );
+        IndexedRegistration subtree = register( "ou=people,ou=system", SearchScope.SUBTREE, "(objectClass=*)" );
+
+        // The base itself
+        List<IndexedRegistration> candidates = getCandidates( "ou=people,ou=system", "people" );
+
+        assertEquals( 2, candidates.size() );
+        assertTrue( candidates.contains( object ) );
+        assertTrue( candidates.contains( subtree ) );
+
+        // A child of the base
+        candidates = getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" );
+
+        assertEquals( 2, candidates.size() );
+        assertTrue( candidates.contains( oneLevel ) );
+        assertTrue( candidates.contains( subtree ) );
+
+        // A grand child of the base
+        candidates = getCandidates( "uid=jdoe,ou=staff,ou=people,ou=system", "jdoe" );
+
+        assertEquals( 1, candidates.size() );
+        assertTrue( candidates.contains( subtree ) );
+
+        // Outside of the base
+        assertTrue( getCandidates( "ou=system", "system" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testLookupByIndexedValue() throws Exception
+    {
+        IndexedRegistration jdoe = register( "ou=system", SearchScope.SUBTREE, "(uid=JDoe)" );
+        IndexedRegistration jsmith = register( "ou=system", SearchScope.SUBTREE,
+            "(&(objectClass=person)(uid=jsmith))" );
+        IndexedRegistration persons = register( "ou=system", SearchScope.SUBTREE, "(objectClass=person)" );
+
+        // The values are compared once normalized
+        List<IndexedRegistration> candidates = getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" );
+
+        assertEquals( 2, candidates.size() );
+        assertTrue( candidates.contains( jdoe ) );
+        assertTrue( candidates.contains( persons ) );
+
+        candidates = getCandidates( "uid=jsmith,ou=people,ou=system", "JSMITH" );
+
+        assertEquals( 2, candidates.size() );
+        assertTrue( candidates.contains( jsmith ) );
+        assertTrue( candidates.contains( persons ) );
+
+        candidates = getCandidates( "uid=other,ou=people,ou=system", "other" );
+
+        assertEquals( 1, candidates.size() );
+        assertTrue( candidates.contains( persons ) );
+
+        // An indexed value outside of the scope is not a candidate
+        IndexedRegistration object = register( "ou=people,ou=system", SearchScope.OBJECT, "(uid=jdoe)" );
+
+        assertFalse( getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" ).contains( object ) );
+    }
+
+
+    @Test
+    public void testUnindexedFilters() throws Exception
+    {
+        IndexedRegistration presence = register( "ou=system", SearchScope.SUBTREE, "(uid=*)" );
+        IndexedRegistration or = register( "ou=system", SearchScope.SUBTREE, "(|(uid=jsmith)(uid=jbrown))" );
+        IndexedRegistration not = register( "ou=system", SearchScope.SUBTREE, "(!(uid=jdoe))" );
+        IndexedRegistration substring = register( "ou=system", SearchScope.SUBTREE, "(cn=j*)" );
+
+        // Those filters can't be indexed : they are candidates whatever the entry's values,
+        // the filter being evaluated later
+        List<IndexedRegistration> candidates = getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" );
+
+        assertEquals( 4, candidates.size() );
+        assertTrue( candidates.contains( presence ) );
+        assertTrue( candidates.contains( or ) );
+        assertTrue( candidates.contains( not ) );
+        assertTrue( candidates.contains( substring ) );
+
+        // But the scope is still checked
+        assertTrue( getCandidates( "ou=groups,dc=example,dc=com", "groups" ).isEmpty() );
+    }
+
+
+    @Test
+    public void testDeregistration() throws Exception
+    {
+        IndexedRegistration indexed = register( "ou=system", SearchScope.SUBTREE, "(uid=jdoe)" );
+        IndexedRegistration indexedToo = register( "ou=system", SearchScope.SUBTREE, "(uid=jdoe)" );
+        IndexedRegistration unindexed = register( "ou=system", SearchScope.SUBTREE, "(uid=*)" );
+
+        assertEquals( 3, getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" ).size() );
+
+        index.remove( indexed );
+
+        List<IndexedRegistration> candidates = getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" );
+
+        assertEquals( 2, candidates.size() );
+        assertFalse( candidates.contains( indexed ) );
+        assertTrue( candidates.contains( indexedToo ) );
+
+        index.remove( unindexed );
+
+        candidates = getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" );
+
+        assertEquals( 1, candidates.size() );
+        assertTrue( candidates.contains( indexedToo ) );
+
+        // Removing twice is harmless
+        index.remove( unindexed );
+        index.remove( indexedToo );
+
+        assertTrue( getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" ).isEmpty() );
+
+        // The index can be reused once emptied
+        IndexedRegistration again = register( "ou=system", SearchScope.SUBTREE, "(uid=jdoe)" );
+
+        assertTrue( getCandidates( "uid=jdoe,ou=people,ou=system", "jdoe" ).contains( again ) );
+    }
+}
@@ -0,0 +1,854 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.memberof;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.directory.api.ldap.model.constants.MetaSchemaConstants;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.StringValue;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.EqualityNode;
+import org.apache.directory.api.ldap.model.filter.OrNode;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.api.partition.Partition;
+import org.apache.directory.server.core.api.partition.PartitionNexus;
+import org.apache.directory.server.xdbm.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An interceptor which maintains the memberOf operational attribute : each entry listed in
+ * the member or uniqueMember attribute of a static group gets the Dn of this group in its
+ * memberOf attribute. Finding the groups of a user is then a single attribute read, and a
+ * (memberOf=group) search can use an index instead of reading the groups.
+ * <br/>
+ * The attribute is updated incrementally : only the entries whose membership is changed by
+ * a group addition, modification, deletion or rename are updated. When the nested mode is
+ * enabled, the groups a user is a member of through other groups are also listed.
+ * <br/>
+ * The groups are searched in the naming contexts only, the schema and configuration
+ * partitions are skipped. When an entry is added, only the partitions having an index on
+ * both member and uniqueMember are searched for the groups already listing it : without
+ * these indexes, each addition would read all the entries of the partition.
+ * <br/>
+ * Without nested groups, the members added to or removed from a group get the group Dn
+ * added to or removed from their memberOf attribute, with no search : each member costs a
+ * lookup and a modification. In nested mode, a change in a group may change the groups of
+ * the groups, so the memberOf attribute of each impacted entry is recomputed, which costs
+ * a search per naming context and per level of nesting. These updates are done
+ * synchronously, before the operation returns. Each update is sent to the event
+ * interceptor, so that the replication and the persistent searches see it.
+ * <br/>
+ * The members of a group may be stored in another partition than the group, and are
+ * updated under the lock held by the operation on the group. This interceptor can't be
+ * used when the OperationManager locks each partition separately, as this lock would
+ * not protect the members partitions.
+ * <br/>
+ * The memberOf attribute type is added to the 'other' schema on the first start if it
+ * does not exist. As the partitions are initialized before the interceptors, it can be
+ * indexed, like any other attribute, once it has been added to the schema.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MemberOfInterceptor extends BaseInterceptor
+{
+    /** A {@link Logger} for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( MemberOfInterceptor.class );
+
+    /** The name of the memberOf attribute */
+    public static final String MEMBER_OF_AT = "memberOf";
+
+    /** The OID of the memberOf attribute, the one used by the other servers */
+    public static final String MEMBER_OF_AT_OID = "1.2.840.113556.1.2.102";
+
+    /** The Dn of the memberOf attribute type in the schema partition */
+    private static final String MEMBER_OF_SCHEMA_DN = "m-oid=" + MEMBER_OF_AT_OID
+        + ",ou=attributeTypes,cn=other,ou=schema";
+
+    /** The memberOf AttributeType */
+    private AttributeType memberOfAT;
+
+    /** The member AttributeType */
+    private AttributeType memberAT;
+
+    /** Tells if the groups of the groups are also listed */
+    private boolean nested;
+
+    /** The normalized suffixes of the partitions which can't contain any group */
+    private String schemaSuffix;
+    private String configSuffix;
+
+
+    /**
+     * Creates a new instance of MemberOfInterceptor.
+     */
+    public MemberOfInterceptor()
+    {
+        super( "memberOfInterceptor" );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init( DirectoryService directoryService ) throws LdapException
+    {
+        super.init( directoryService );
+
+        memberAT = schemaManager.lookupAttributeTypeRegistry( SchemaConstants.MEMBER_AT );
+        schemaSuffix = dnFactory.create( SchemaConstants.OU_SCHEMA ).getNormName();
+        configSuffix = dnFactory.create( ServerDNConstants.CONFIG_DN ).getNormName();
+        memberOfAT = installMemberOfAttributeType();
+
+        ReadWriteLock globalLock = directoryService.getOperationManager().getRWLock();
+
+        for ( Partition partition : getGroupPartitions() )
+        {
+            // The members are updated under the lock of the group partition only
+            if ( directoryService.getOperationManager().getRWLock( partition.getSuffixDn() ) != globalLock )
+            {
+                throw new LdapOtherException( "The memberOf interceptor can't be used when the partitions "
+                    + "are locked separately" );
+            }
+
+            if ( !hasMemberIndexes( partition ) )
+            {
+                LOG.warn( "The partition {} has no index on member and uniqueMember : the entries added to the "
+                    + "server won't get the groups of this partition which already list them",
+                    partition.getSuffixDn() );
+            }
+        }
+    }
+
+
+    /**
+     * @return true if the groups a user is a member of through other groups are listed
+     */
+    public boolean isNested()
+    {
+        return nested;
+    }
+
+
+    /**
+     * @param nested true to also list the groups a user is a member of through other groups
+     */
+    public void setNested( boolean nested )
+    {
+        this.nested = nested;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void add( AddOperationContext addContext ) throws LdapException
+    {
+        if ( addContext.isReplEvent() || ( memberOfAT == null ) )
+        {
+            next( addContext );
+            return;
+        }
+
+        Entry entry = addContext.getEntry();
+
+        // The entry may already be listed in some groups. Only the indexed partitions are searched
+        Map<String, Dn> groups = findGroups( addContext.getDn(), true );
+
+        if ( !groups.isEmpty() )
+        {
+            entry.put( memberOfAT, getNames( groups ) );
+        }
+
+        next( addContext );
+
+        if ( isGroup( entry ) )
+        {
+            updateMembers( getMembers( entry ), null, addContext.getDn() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void delete( DeleteOperationContext deleteContext ) throws LdapException
+    {
+        Entry entry = deleteContext.getEntry();
+
+        next( deleteContext );
+
+        if ( deleteContext.isReplEvent() || ( entry == null ) || !isGroup( entry ) )
+        {
+            return;
+        }
+
+        updateMembers( getMembers( entry ), deleteContext.getDn(), null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void modify( ModifyOperationContext modifyContext ) throws LdapException
+    {
+        if ( modifyContext.isReplEvent() || !modifiesMembers( modifyContext.getModItems() ) )
+        {
+            next( modifyContext );
+            return;
+        }
+
+        Entry entry = modifyContext.getEntry();
+
+        next( modifyContext );
+
+        Set<Dn> oldMembers = new HashSet<Dn>();
+
+        if ( entry != null )
+        {
+            oldMembers.addAll( getMembers( entry ) );
+        }
+
+        Set<Dn> newMembers = new HashSet<Dn>( getMembers( modifyContext.getAlteredEntry() ) );
+
+        // Only the members which have been added or removed are impacted
+        List<Dn> removed = new ArrayList<Dn>();
+        List<Dn> added = new ArrayList<Dn>();
+
+        for ( Dn member : oldMembers )
+        {
+            if ( !newMembers.contains( member ) )
+            {
+                removed.add( member );
+            }
+        }
+
+        for ( Dn member : newMembers )
+        {
+            if ( !oldMembers.contains( member ) )
+            {
+                added.add( member );
+            }
+        }
+
+        updateMembers( removed, modifyContext.getDn(), null );
+        updateMembers( added, null, modifyContext.getDn() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void move( MoveOperationContext moveContext ) throws LdapException
+    {
+        Entry entry = moveContext.getOriginalEntry();
+
+        next( moveContext );
+
+        if ( !moveContext.isReplEvent() )
+        {
+            renamed( moveContext.getDn(), entry, moveContext.getNewDn() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void moveAndRename( MoveAndRenameOperationContext moveAndRenameContext ) throws LdapException
+    {
+        Entry entry = moveAndRenameContext.getOriginalEntry();
+
+        next( moveAndRenameContext );
+
+        if ( !moveAndRenameContext.isReplEvent() )
+        {
+            renamed( moveAndRenameContext.getDn(), entry, moveAndRenameContext.getNewDn() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void rename( RenameOperationContext renameContext ) throws LdapException
+    {
+        Entry entry = renameContext.getEntry();
+
+        next( renameContext );
+
+        if ( !renameContext.isReplEvent() )
+        {
+            renamed( renameContext.getDn(), entry, renameContext.getNewDn() );
+        }
+    }
+
+
+    /**
+     * Updates the memberOf attributes after an entry has been renamed or moved : the renamed
+     * entry is not a member of the groups listing its old Dn anymore, and if it's a group,
+     * its members have to reference its new Dn.
+     */
+    private void renamed( Dn oldDn, Entry entry, Dn newDn ) throws LdapException
+    {
+        if ( memberOfAT == null )
+        {
+            return;
+        }
+
+        List<Dn> impacted = new ArrayList<Dn>();
+        impacted.add( newDn );
+
+        if ( ( entry != null ) && isGroup( entry ) )
+        {
+            if ( nested )
+            {
+                impacted.addAll( getMembers( entry ) );
+            }
+            else
+            {
+                updateMembers( getMembers( entry ), oldDn, newDn );
+            }
+        }
+
+        updateMemberOf( impacted );
+    }
+
+
+    /**
+     * Updates the memberOf attribute of the members of a group which has been added, deleted,
+     * modified or renamed. Without nested groups, the old group Dn is removed from their
+     * memberOf attribute and the new one is added, their other groups being left untouched.
+     * In nested mode, their memberOf attribute is recomputed.
+     *
+     * @param members The impacted members
+     * @param oldGroup The Dn to remove from the memberOf attributes, or null
+     * @param newGroup The Dn to add to the memberOf attributes, or null
+     * @throws LdapException If the entries can't be updated
+     */
+    private void updateMembers( Collection<Dn> members, Dn oldGroup, Dn newGroup ) throws LdapException
+    {
+        if ( ( memberOfAT == null ) || members.isEmpty() )
+        {
+            return;
+        }
+
+        if ( nested )
+        {
+            updateMemberOf( members );
+            return;
+        }
+
+        Set<String> done = new HashSet<String>();
+
+        for ( Dn member : members )
+        {
+            String name = member.getNormName();
+
+            // An entry is not a member of itself
+            if ( ( ( oldGroup != null ) && name.equals( oldGroup.getNormName() ) )
+                || ( ( newGroup != null ) && name.equals( newGroup.getNormName() ) ) || !done.add( name ) )
+            {
+                continue;
+            }
+
+            Entry entry = lookup( member );
+
+            if ( entry == null )
+            {
+                continue;
+            }
+
+            Map<String, Dn> groups = getMemberOf( entry );
+            Set<String> current = new HashSet<String>( groups.keySet() );
+
+            if ( oldGroup != null )
+            {
+                groups.remove( oldGroup.getNormName() );
+            }
+
+            if ( newGroup != null )
+            {
+                groups.put( newGroup.getNormName(), newGroup );
+            }
+
+            writeMemberOf( entry, current, groups );
+        }
+    }
+
+
+    /**
+     * Recomputes the memberOf attribute of some entries, and writes it when it has changed.
+     * In nested mode, the members of a group whose memberOf attribute has changed are also
+     * updated.
+     *
+     * @param dns The Dns of the entries to update
+     * @throws LdapException If the groups can't be read or the entries can't be updated
+     */
+    private void updateMemberOf( Collection<Dn> dns ) throws LdapException
+    {
+        if ( memberOfAT == null )
+        {
+            return;
+        }
+
+        Set<String> done = new HashSet<String>();
+        LinkedList<Dn> pending = new LinkedList<Dn>( dns );
+
+        while ( !pending.isEmpty() )
+        {
+            Dn dn = pending.removeFirst();
+
+            if ( !done.add( dn.getNormName() ) )
+            {
+                continue;
+            }
+
+            Entry entry = lookup( dn );
+
+            if ( entry == null )
+            {
+                // A member which does not exist, or which is not in any partition
+                continue;
+            }
+
+            boolean changed = writeMemberOf( entry, getMemberOf( entry ).keySet(), findGroups( dn, false ) );
+
+            if ( changed && nested && isGroup( entry ) )
+            {
+                pending.addAll( getMembers( entry ) );
+            }
+        }
+    }
+
+
+    /**
+     * Reads the memberOf attribute of an entry.
+     *
+     * @return The groups listed in the attribute, by normalized Dn
+     */
+    private Map<String, Dn> getMemberOf( Entry entry ) throws LdapException
+    {
+        Map<String, Dn> groups = new LinkedHashMap<String, Dn>();
+        Attribute memberOf = entry.get( memberOfAT );
+
+        if ( memberOf != null )
+        {
+            for ( Value<?> value : memberOf )
+            {
+                Dn group = dnFactory.create( value.getString() );
+                groups.put( group.getNormName(), group );
+            }
+        }
+
+        return groups;
+    }
+
+
+    /**
+     * Replaces the memberOf attribute of an entry, if its content is different.
+     *
+     * @param entry The entry, with all its attributes as it's also given to the event interceptor
+     * @param current The normalized Dns of the groups currently listed in the entry
+     * @param groups The groups to list, by normalized Dn
+     * @return true if the entry has been modified
+     */
+    private boolean writeMemberOf( Entry entry, Set<String> current, Map<String, Dn> groups )
+        throws LdapException
+    {
+        if ( current.equals( groups.keySet() ) )
+        {
+            return false;
+        }
+
+        LOG.debug( "Updating the memberOf attribute of {} : {}", entry.getDn(), groups.values() );
+
+        Attribute newMemberOf = new DefaultAttribute( memberOfAT );
+
+        for ( String name : getNames( groups ) )
+        {
+            newMemberOf.add( name );
+        }
+
+        List<Modification> mods = new ArrayList<Modification>();
+        mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, newMemberOf ) );
+        mods.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, ENTRY_CSN_AT, directoryService
+            .getCSN().toString() ) );
+
+        ModifyOperationContext modifyContext = new ModifyOperationContext( directoryService.getAdminSession() );
+        modifyContext.setDn( entry.getDn() );
+        modifyContext.setEntry( entry );
+        modifyContext.setModItems( mods );
+        modifyContext.setPushToEvtInterceptor( true );
+
+        directoryService.getPartitionNexus().modify( modifyContext );
+
+        return true;
+    }
+
+
+    /**
+     * Finds the groups an entry is a member of. In nested mode, the groups of these groups
+     * are also returned.
+     *
+     * @param dn The entry Dn
+     * @param indexedOnly true to only search the partitions having the member and uniqueMember indexes
+     * @return The groups, by normalized Dn
+     * @throws LdapException If the groups can't be searched
+     */
+    private Map<String, Dn> findGroups( Dn dn, boolean indexedOnly ) throws LdapException
+    {
+        Map<String, Dn> groups = new LinkedHashMap<String, Dn>();
+        LinkedList<Dn> pending = new LinkedList<Dn>();
+        pending.add( dn );
+
+        while ( !pending.isEmpty() )
+        {
+            for ( Dn group : searchGroups( pending.removeFirst(), indexedOnly ) )
+            {
+                // Cycles in nested groups are stopped here
+                if ( !groups.containsKey( group.getNormName() ) )
+                {
+                    groups.put( group.getNormName(), group );
+
+                    if ( nested )
+                    {
+                        pending.add( group );
+                    }
+                }
+            }
+        }
+
+        // An entry is not a member of itself
+        groups.remove( dn.getNormName() );
+
+        return groups;
+    }
+
+
+    /**
+     * Searches the naming contexts for the groups listing a Dn in their member or uniqueMember
+     * attribute. The search uses the member and uniqueMember indexes when they exist.
+     *
+     * @param member The member Dn
+     * @param indexedOnly true to skip the partitions which don't have the member and uniqueMember indexes
+     */
+    private List<Dn> searchGroups( Dn member, boolean indexedOnly ) throws LdapException
+    {
+        List<Dn> groups = new ArrayList<Dn>();
+
+        for ( Partition partition : getGroupPartitions() )
+        {
+            if ( indexedOnly && !hasMemberIndexes( partition ) )
+            {
+                continue;
+            }
+
+            searchGroups( member, partition.getSuffixDn(), groups );
+        }
+
+        return groups;
+    }
+
+
+    /**
+     * Searches one partition for the groups listing a Dn.
+     */
+    private void searchGroups( Dn member, Dn suffixDn, List<Dn> groups ) throws LdapException
+    {
+        OrNode filter = new OrNode();
+        filter.addNode( new EqualityNode<String>( memberAT, new StringValue( memberAT, member.getName() ) ) );
+        filter.addNode( new EqualityNode<String>( UNIQUE_MEMBER_AT,
+            new StringValue( UNIQUE_MEMBER_AT, member.getName() ) ) );
+
+        CoreSession adminSession = directoryService.getAdminSession();
+        SearchOperationContext searchContext = new SearchOperationContext( adminSession, suffixDn,
+            SearchScope.SUBTREE, filter, SchemaConstants.NO_ATTRIBUTE );
+        searchContext.setAliasDerefMode( AliasDerefMode.NEVER_DEREF_ALIASES );
+
+        EntryFilteringCursor cursor = directoryService.getPartitionNexus().search( searchContext );
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                groups.add( cursor.get().getDn() );
+            }
+        }
+        catch ( Exception e )
+        {
+            LOG.error( "Exception while searching the groups of {} : {}", member, e.getMessage() );
+            throw new LdapOperationException( e.getMessage(), e );
+        }
+        finally
+        {
+            try
+            {
+                cursor.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.warn( "Failed to close the group search cursor", e );
+            }
+        }
+    }
+
+
+    /**
+     * @return The partitions which may contain some groups : all of them but the schema
+     * and the configuration partitions
+     */
+    private List<Partition> getGroupPartitions()
+    {
+        List<Partition> partitions = new ArrayList<Partition>();
+
+        for ( Partition partition : directoryService.getPartitions() )
+        {
+            Dn suffixDn = partition.getSuffixDn();
+
+            if ( ( suffixDn == null ) || suffixDn.isEmpty() )
+            {
+                continue;
+            }
+
+            String suffix = suffixDn.getNormName();
+
+            if ( suffix.equals( schemaSuffix ) || suffix.equals( configSuffix ) )
+            {
+                continue;
+            }
+
+            partitions.add( partition );
+        }
+
+        return partitions;
+    }
+
+
+    /**
+     * Tells if a partition has an index on both member and uniqueMember.
+     */
+    private boolean hasMemberIndexes( Partition partition )
+    {
+        if ( !( partition instanceof Store ) )
+        {
+            return false;
+        }
+
+        Store store = ( Store ) partition;
+
+        try
+        {
+            return store.hasIndexOn( memberAT ) && store.hasIndexOn( UNIQUE_MEMBER_AT );
+        }
+        catch ( Exception e )
+        {
+            return false;
+        }
+    }
+
+
+    /**
+     * Reads an entry with all its user and operational attributes : the entry is used as the
+     * original entry of the memberOf modification, against which the event listeners filters
+     * are evaluated.
+     *
+     * @return The entry, or null if it does not exist
+     */
+    private Entry lookup( Dn dn ) throws LdapException
+    {
+        PartitionNexus nexus = directoryService.getPartitionNexus();
+        LookupOperationContext lookupContext = new LookupOperationContext( directoryService.getAdminSession(), dn,
+            SchemaConstants.ALL_ATTRIBUTES_ARRAY );
+
+        try
+        {
+            return nexus.lookup( lookupContext );
+        }
+        catch ( LdapNoSuchObjectException lnsoe )
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * Tells if an entry is a static group, ie if it has a member or uniqueMember attribute.
+     */
+    private boolean isGroup( Entry entry )
+    {
+        return entry.containsAttribute( memberAT ) || entry.containsAttribute( UNIQUE_MEMBER_AT );
+    }
+
+
+    /**
+     * Tells if some modifications change the member or uniqueMember attribute.
+     */
+    private boolean modifiesMembers( List<Modification> mods )
+    {
+        if ( memberOfAT == null )
+        {
+            return false;
+        }
+
+        for ( Modification mod : mods )
+        {
+            AttributeType attributeType = mod.getAttribute().getAttributeType();
+
+            if ( memberAT.equals( attributeType ) || UNIQUE_MEMBER_AT.equals( attributeType ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Gets the members of a group, from its member and uniqueMember attributes.
+     */
+    private List<Dn> getMembers( Entry entry )
+    {
+        List<Dn> members = new ArrayList<Dn>();
+
+        addMembers( members, entry.get( memberAT ) );
+        addMembers( members, entry.get( UNIQUE_MEMBER_AT ) );
+
+        return members;
+    }
+
+
+    private void addMembers( List<Dn> members, Attribute attribute )
+    {
+        if ( attribute == null )
+        {
+            return;
+        }
+
+        for ( Value<?> value : attribute )
+        {
+            try
+            {
+                members.add( dnFactory.create( value.getString() ) );
+            }
+            catch ( LdapException le )
+            {
+                LOG.warn( "Malformed member Dn {}, its memberOf attribute won't be updated", value.getString() );
+            }
+        }
+    }
+
+
+    private String[] getNames( Map<String, Dn> groups )
+    {
+        String[] names = new String[groups.size()];
+        int pos = 0;
+
+        for ( Dn group : groups.values() )
+        {
+            names[pos++] = group.getName();
+        }
+
+        return names;
+    }
+
+
+    /**
+     * Adds the memberOf attribute type to the schema partition, if it's not already known.
+     *
+     * @return The memberOf AttributeType
+     * @throws LdapException If the attribute type can't be added
+     */
+    private AttributeType installMemberOfAttributeType() throws LdapException
+    {
+        AttributeType attributeType = schemaManager.getAttributeType( MEMBER_OF_AT );
+
+        if ( attributeType != null )
+        {
+            return attributeType;
+        }
+
+        LOG.info( "Adding the {} attribute type to the schema", MEMBER_OF_AT );
+
+        Dn dn = dnFactory.create( MEMBER_OF_SCHEMA_DN );
+        Entry entry = new DefaultEntry( schemaManager, dn );
+        entry.add( SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, MetaSchemaConstants.META_TOP_OC,
+            MetaSchemaConstants.META_ATTRIBUTE_TYPE_OC );
+        entry.add( MetaSchemaConstants.M_OID_AT, MEMBER_OF_AT_OID );
+        entry.add( "m-name", MEMBER_OF_AT );
+        entry.add( MetaSchemaConstants.M_DESCRIPTION_AT, "The groups this entry is a member of" );
+        entry.add( "m-equality", "distinguishedNameMatch" );
+        entry.add( "m-syntax", "1.3.6.1.4.1.1466.115.121.1.12" );
+        entry.add( "m-usage", "DSA_OPERATION" );
+        entry.add( "m-noUserModification", "TRUE" );
+        entry.add( SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString() );
+        entry.add( SchemaConstants.ENTRY_CSN_AT, directoryService.getCSN().toString() );
+
+        AddOperationContext addContext = new AddOperationContext( directoryService.getAdminSession() );
+        addContext.setDn( dn );
+        addContext.setEntry( new ClonedServerEntry( entry ) );
+
+        directoryService.getPartitionNexus().add( addContext );
+
+        return schemaManager.lookupAttributeTypeRegistry( MEMBER_OF_AT );
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+
+import jdbm.helper.Serializer;
+
+import org.apache.directory.server.xdbm.CompactId;
+
+
+/**
+ * A {@link Serializer} for compact entry IDs : the ID is stored as a 8 bytes long.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompactIdSerializer implements Serializer
+{
+    private static final long serialVersionUID = 1L;
+    public static final CompactIdSerializer INSTANCE = new CompactIdSerializer();
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] serialize( Object o ) throws IOException
+    {
+        try
+        {
+            return LongSerializer.INSTANCE.serialize( CompactId.toValue( ( String ) o ) );
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            throw new IOException( iae.getMessage() );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object deserialize( byte[] bytes ) throws IOException
+    {
+        return CompactId.toId( ( Long ) LongSerializer.INSTANCE.deserialize( bytes ) );
+    }
+}
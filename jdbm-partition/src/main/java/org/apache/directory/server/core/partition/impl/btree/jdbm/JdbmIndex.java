@@ -28,6 +28,7 @@ import java.net.URI;
 import jdbm.RecordManager;
 import jdbm.helper.ByteArraySerializer;
 import jdbm.helper.MRU;
+import jdbm.helper.Serializer;
 import jdbm.recman.BaseRecordManager;
 import jdbm.recman.CacheRecordManager;
 import jdbm.recman.TransactionManager;
@@ -72,6 +73,9 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
     /**  the key used for the reverse btree name */
     public static final String REVERSE_BTREE = "_reverse";
 
+    /** the extension of the file storing the index statistics */
+    public static final String STATS_FILE_EXTENSION = ".stats";
+
     /**
      * the forward btree where the btree key is the value of the indexed attribute and
      * the value of the btree is the entry id of the entry containing an attribute with
@@ -169,6 +173,7 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
         try
         {
             initTables( schemaManager );
+            initStatistics( forward.getKeyComparator() );
         }
         catch ( IOException e )
         {
@@ -176,6 +181,12 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
             close();
             throw e;
         }
+        catch ( Exception e )
+        {
+            // clean up
+            close();
+            throw new IOException( e.getMessage(), e );
+        }
 
         // finally write a text file in the format <OID>-<attribute-name>.txt
         FileWriter fw = new FileWriter( new File( path + "-" + attributeType.getName() + ".txt" ) );
@@ -187,6 +198,30 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected File getStatisticsFile()
+    {
+        return new File( wkDirPath, attributeType.getOid() + STATS_FILE_EXTENSION );
+    }
+
+
+    /**
+     * @return The serializer to use for the entry IDs stored in this index
+     */
+    protected Serializer getIdSerializer()
+    {
+        if ( compactIds )
+        {
+            return CompactIdSerializer.INSTANCE;
+        }
+
+        return UuidSerializer.INSTANCE;
+    }
+
+
     /**
      * Initializes the forward and reverse tables used by this Index.
      * 
@@ -219,13 +254,13 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
         {
             forward = new JdbmTable<K, String>( schemaManager, attributeType.getOid() + FORWARD_BTREE, numDupLimit,
                 recMan,
-                comp, UuidComparator.INSTANCE, StringSerializer.INSTANCE, UuidSerializer.INSTANCE );
+                comp, getIdComparator(), StringSerializer.INSTANCE, getIdSerializer() );
         }
         else
         {
             forward = new JdbmTable<K, String>( schemaManager, attributeType.getOid() + FORWARD_BTREE, numDupLimit,
                 recMan,
-                comp, UuidComparator.INSTANCE, new ByteArraySerializer(), UuidSerializer.INSTANCE );
+                comp, getIdComparator(), new ByteArraySerializer(), getIdSerializer() );
         }
 
         /*
@@ -239,13 +274,13 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
             if ( attributeType.isSingleValued() )
             {
                 reverse = new JdbmTable<String, K>( schemaManager, attributeType.getOid() + REVERSE_BTREE, recMan,
-                    UuidComparator.INSTANCE, UuidSerializer.INSTANCE, null );
+                    getIdComparator(), getIdSerializer(), null );
             }
             else
             {
                 reverse = new JdbmTable<String, K>( schemaManager, attributeType.getOid() + REVERSE_BTREE, numDupLimit,
                     recMan,
-                    UuidComparator.INSTANCE, comp, UuidSerializer.INSTANCE, null );
+                    getIdComparator(), comp, getIdSerializer(), null );
             }
         }
     }
@@ -380,12 +415,19 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
     public synchronized void add( K attrVal, String id ) throws Exception
     {
         // The pair to be added must exists
+        long before = forward.count();
         forward.put( attrVal, id );
 
         if ( withReverse )
         {
             reverse.put( id, attrVal );
         }
+
+        // Only count the pair if it was not already present
+        if ( ( statistics != null ) && ( forward.count() > before ) )
+        {
+            statistics.add( attrVal );
+        }
     }
 
 
@@ -403,6 +445,11 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
             {
                 reverse.remove( id, attrVal );
             }
+
+            if ( statistics != null )
+            {
+                statistics.drop( attrVal );
+            }
         }
     }
 
@@ -423,7 +470,13 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
                 while ( values.next() )
                 {
                     // Remove the Key -> entryId from the index
-                    forward.remove( values.get().getValue(), entryId );
+                    K key = values.get().getValue();
+                    forward.remove( key, entryId );
+
+                    if ( statistics != null )
+                    {
+                        statistics.drop( key );
+                    }
                 }
 
                 values.close();
@@ -433,6 +486,11 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
                 K key = reverse.get( entryId );
 
                 forward.remove( key );
+
+                if ( statistics != null )
+                {
+                    statistics.drop( key );
+                }
             }
 
             // Remove the id -> key from the reverse index
@@ -571,6 +629,8 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
 
         commit( recMan );
         recMan.close();
+
+        saveStatistics();
     }
 
 
@@ -582,6 +642,8 @@ public class JdbmIndex<K> extends AbstractIndex<K, String>
         // Commit
         recMan.commit();
 
+        syncStatistics();
+
         // And flush the journal
         if ( ( commitNumber.get() % 4000 ) == 0 )
         {
@@ -20,21 +20,34 @@
 package org.apache.directory.server.core.partition.impl.btree.jdbm;
 
 
+import java.io.IOException;
 import java.util.UUID;
 
 import jdbm.RecordManager;
+import jdbm.helper.ByteArraySerializer;
 import jdbm.helper.Serializer;
 import jdbm.helper.StringComparator;
 
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
 import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
+import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.AttributeTypeDictionary;
+import org.apache.directory.server.xdbm.CompactIdComparator;
+import org.apache.directory.server.xdbm.EntryProjection;
 import org.apache.directory.server.xdbm.MasterTable;
 
 
 /**
- * The master table used to store the Attributes of entries.
+ * The master table used to store the Attributes of entries. The BTree stores the
+ * serialized entries, which are decoded by the table when they are read, so that
+ * they can be partially decoded.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -54,8 +67,26 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
             }
         };
 
+    /** The admin table key storing the format of the entry IDs */
+    private static final String ID_FORMAT_KEY = "__idFormat__";
+
+    /** The UUID format for entry IDs */
+    private static final String UUID_ID_FORMAT = "uuid";
+
+    /** The compact format for entry IDs */
+    private static final String COMPACT_ID_FORMAT = "compact";
+
+    /** The prefix of the admin table keys storing the AttributeType dictionary */
+    private static final String ATTRIBUTE_TYPE_KEY_PREFIX = "__attributeType__";
+
     protected final JdbmTable<String, String> adminTbl;
 
+    /** The dictionary used to encode the entries AttributeTypes, null if not used */
+    private final AttributeTypeDictionary dictionary;
+
+    /** The serializer used to encode the entries, null if the BTree serializes them */
+    private final EntrySerializer entrySerializer;
+
 
     /**
      * Creates the master table using JDBM B+Trees for the backing store.
@@ -66,8 +97,35 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
      */
     public JdbmMasterTable( RecordManager recMan, SchemaManager schemaManager ) throws Exception
     {
-        super( schemaManager, DBF, recMan, UuidComparator.INSTANCE, UuidSerializer.INSTANCE,
-            new EntrySerializer( schemaManager ) );
+        this( recMan, schemaManager, false );
+    }
+
+
+    /**
+     * Creates the master table using JDBM B+Trees for the backing store.
+     *
+     * @param recMan the JDBM record manager
+     * @param schemaManager the schema manager
+     * @param compactIds true if the entries are identified by compact IDs instead of UUIDs
+     * @throws Exception if there is an error opening the Db file, or if the ID format
+     * does not match the one used when the table was created
+     */
+    public JdbmMasterTable( RecordManager recMan, SchemaManager schemaManager, boolean compactIds )
+        throws Exception
+    {
+        this( recMan, schemaManager, compactIds, new EntrySerializer( schemaManager, new AttributeTypeDictionary() ) );
+    }
+
+
+    private JdbmMasterTable( RecordManager recMan, SchemaManager schemaManager, boolean compactIds,
+        EntrySerializer entrySerializer ) throws Exception
+    {
+        super( schemaManager, DBF, recMan,
+            compactIds ? CompactIdComparator.INSTANCE : UuidComparator.INSTANCE,
+            compactIds ? CompactIdSerializer.INSTANCE : UuidSerializer.INSTANCE,
+            new ByteArraySerializer() );
+        this.entrySerializer = entrySerializer;
+        this.dictionary = entrySerializer.getDictionary();
         adminTbl = new JdbmTable<String, String>( schemaManager, "admin", recMan, STRING_COMPARATOR,
             StringSerializer.INSTANCE, StringSerializer.INSTANCE );
         String seqValue = adminTbl.get( SEQPROP_KEY );
@@ -77,6 +135,38 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
             adminTbl.put( SEQPROP_KEY, "0" );
         }
 
+        // Check that the IDs format is the one used when the table was created
+        String idFormat = compactIds ? COMPACT_ID_FORMAT : UUID_ID_FORMAT;
+        String storedIdFormat = adminTbl.get( ID_FORMAT_KEY );
+
+        if ( storedIdFormat == null )
+        {
+            if ( compactIds && ( count() > 0 ) )
+            {
+                throw new IllegalStateException( "Cannot use compact IDs on a partition created with UUIDs" );
+            }
+
+            adminTbl.put( ID_FORMAT_KEY, idFormat );
+        }
+        else if ( !storedIdFormat.equals( idFormat ) )
+        {
+            throw new IllegalStateException( "The partition has been created with the '" + storedIdFormat
+                + "' ID format, it cannot be opened with the '" + idFormat + "' ID format" );
+        }
+
+        // Load the AttributeType dictionary
+        for ( int ordinal = 0;; ordinal++ )
+        {
+            String oid = adminTbl.get( ATTRIBUTE_TYPE_KEY_PREFIX + ordinal );
+
+            if ( oid == null )
+            {
+                break;
+            }
+
+            dictionary.load( ordinal, oid );
+        }
+
         UuidComparator.INSTANCE.setSchemaManager( schemaManager );
         STRING_COMPARATOR.setSchemaManager( schemaManager );
     }
@@ -86,6 +176,8 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
         throws Exception
     {
         super( schemaManager, DBF, recMan, UuidComparator.INSTANCE, UuidSerializer.INSTANCE, serializer );
+        dictionary = null;
+        entrySerializer = null;
         adminTbl = new JdbmTable<String, String>( schemaManager, dbName, recMan, STRING_COMPARATOR,
             StringSerializer.INSTANCE, StringSerializer.INSTANCE );
         String seqValue = adminTbl.get( SEQPROP_KEY );
@@ -97,6 +189,98 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
     }
 
 
+    /**
+     * {@inheritDoc}
+     * The AttributeTypes not yet known by the dictionary are stored in the admin table
+     * before the entry.
+     */
+    @Override
+    public synchronized void put( String id, Entry entry ) throws Exception
+    {
+        if ( entrySerializer == null )
+        {
+            super.put( id, entry );
+
+            return;
+        }
+
+        if ( ( entry == null ) || ( id == null ) )
+        {
+            throw new IllegalArgumentException( I18n.err( I18n.ERR_594 ) );
+        }
+
+        synchronized ( dictionary )
+        {
+            for ( Attribute attribute : entry )
+            {
+                String oid = attribute.getAttributeType().getOid();
+
+                if ( dictionary.getOrdinal( oid ) < 0 )
+                {
+                    int ordinal = dictionary.register( oid );
+                    adminTbl.put( ATTRIBUTE_TYPE_KEY_PREFIX + ordinal, oid );
+                }
+            }
+        }
+
+        putRaw( id, entrySerializer.serialize( entry ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Entry get( String id ) throws LdapException
+    {
+        return get( id, null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Entry get( String id, EntryProjection projection ) throws LdapException
+    {
+        if ( entrySerializer == null )
+        {
+            return super.get( id );
+        }
+
+        // The BTree contains the serialized entry
+        Object serialized = super.get( id );
+
+        if ( serialized == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return entrySerializer.deserialize( ( byte[] ) serialized, projection );
+        }
+        catch ( IOException ioe )
+        {
+            throw new LdapOtherException( ioe.getMessage(), ioe );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Cursor<Tuple<String, Entry>> cursor() throws LdapException
+    {
+        if ( entrySerializer == null )
+        {
+            return super.cursor();
+        }
+
+        return new MasterTableCursor( this, entrySerializer );
+    }
+
+
     /**
      * Get's the next value from this SequenceBDb.  This has the side-effect of
      * changing the current sequence values permanently in memory and on disk.
@@ -113,6 +297,31 @@ public class JdbmMasterTable extends JdbmTable<String, Entry> implements MasterT
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public long getReservedCompactId() throws Exception
+    {
+        String value = adminTbl.get( COMPACT_SEQPROP_KEY );
+
+        if ( value == null )
+        {
+            return -1L;
+        }
+
+        return Long.parseLong( value );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setReservedCompactId( long value ) throws Exception
+    {
+        adminTbl.put( COMPACT_SEQPROP_KEY, Long.toString( value ) );
+    }
+
+
     /**
      * {@inheritDoc}
      */
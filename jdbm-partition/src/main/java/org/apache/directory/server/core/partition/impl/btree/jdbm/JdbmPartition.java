@@ -27,6 +27,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import jdbm.RecordManager;
@@ -54,13 +55,9 @@ import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.DnFactory;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
-import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.LookupOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
-import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
-import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
-import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.i18n.I18n;
@@ -203,7 +200,7 @@ public class JdbmPartition extends AbstractBTreePartition
             recMan = new CacheRecordManager( base, new MRU( cacheSize ) );
 
             // Create the master table (the table containing all the entries)
-            master = new JdbmMasterTable( recMan, schemaManager );
+            master = new JdbmMasterTable( recMan, schemaManager, compactIds );
 
             if ( indexToBuild.size() > 0 )
             {
@@ -468,6 +465,7 @@ public class JdbmPartition extends AbstractBTreePartition
             jdbmIndex.setWkDirPath( index.getWkDirPath() );
         }
 
+        jdbmIndex.setCompactIds( compactIds );
         jdbmIndex.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() ) );
 
         return jdbmIndex;
@@ -564,12 +562,18 @@ public class JdbmPartition extends AbstractBTreePartition
 
         try
         {
+            // The deleted entries are removed from the cache by the delete operation itself
             if ( opCtx instanceof ModifyOperationContext )
             {
                 // replace the entry
                 ModifyOperationContext modCtx = ( ModifyOperationContext ) opCtx;
                 Entry entry = modCtx.getAlteredEntry();
-                String id = entry.get( SchemaConstants.ENTRY_UUID_AT ).getString();
+                String id = getStoredEntryId( entry );
+
+                if ( id == null )
+                {
+                    return;
+                }
 
                 if ( entry instanceof ClonedServerEntry )
                 {
@@ -578,19 +582,6 @@ public class JdbmPartition extends AbstractBTreePartition
 
                 entryCache.replace( new Element( id, entry ) );
             }
-            else if ( ( opCtx instanceof MoveOperationContext ) ||
-                ( opCtx instanceof MoveAndRenameOperationContext ) ||
-                ( opCtx instanceof RenameOperationContext ) )
-            {
-                // clear the cache it is not worth updating all the children
-                entryCache.removeAll();
-            }
-            else if ( opCtx instanceof DeleteOperationContext )
-            {
-                // delete the entry
-                DeleteOperationContext delCtx = ( DeleteOperationContext ) opCtx;
-                entryCache.remove( delCtx.getEntry().get( SchemaConstants.ENTRY_UUID_AT ).getString() );
-            }
         }
         catch ( LdapException e )
         {
@@ -599,6 +590,31 @@ public class JdbmPartition extends AbstractBTreePartition
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void removeFromCache( Set<String> ids )
+    {
+        if ( entryCache == null )
+        {
+            return;
+        }
+
+        if ( ids == null )
+        {
+            entryCache.removeAll();
+        }
+        else
+        {
+            for ( String id : ids )
+            {
+                entryCache.remove( id );
+            }
+        }
+    }
+
+
     @Override
     public Entry lookupCache( String id )
     {
@@ -136,8 +136,8 @@ public class JdbmRdnIndex extends JdbmIndex<ParentIdAndRdn>
         ParentIdAndRdnSerializer parentIdAndSerializer = new ParentIdAndRdnSerializer( schemaManager );
 
         forward = new JdbmTable<ParentIdAndRdn, String>( schemaManager, attributeType.getOid() + FORWARD_BTREE,
-            recMan, comp, parentIdAndSerializer, UuidSerializer.INSTANCE );
+            recMan, comp, parentIdAndSerializer, getIdSerializer() );
         reverse = new JdbmTable<String, ParentIdAndRdn>( schemaManager, attributeType.getOid() + REVERSE_BTREE,
-            recMan, UuidComparator.INSTANCE, UuidSerializer.INSTANCE, parentIdAndSerializer );
+            recMan, getIdComparator(), getIdSerializer(), parentIdAndSerializer );
     }
 }
@@ -594,19 +594,7 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
 
             if ( !allowsDuplicates )
             {
-                replaced = ( V ) bt.insert( key, value, true );
-
-                if ( null == replaced )
-                {
-                    count++;
-                }
-
-                if ( LOG.isDebugEnabled() )
-                {
-                    LOG.debug( "<--- Add ONE {} = {}", name, key );
-                }
-
-                commit( recMan );
+                putRaw( key, value );
 
                 return;
             }
@@ -788,6 +776,33 @@ public class JdbmTable<K, V> extends AbstractTable<K, V>
     }
 
 
+    /**
+     * Stores a value in a table without duplicates, as it will be handed to the BTree
+     * value serializer. This is used by tables which serialize their values themselves.
+     *
+     * @param key the key
+     * @param value the value, with the type expected by the value serializer
+     * @throws Exception if the value can't be stored
+     */
+    @SuppressWarnings("unchecked")
+    protected synchronized void putRaw( K key, Object value ) throws Exception
+    {
+        V replaced = ( V ) bt.insert( key, ( V ) value, true );
+
+        if ( null == replaced )
+        {
+            count++;
+        }
+
+        if ( LOG.isDebugEnabled() )
+        {
+            LOG.debug( "<--- Add ONE {} = {}", name, key );
+        }
+
+        commit( recMan );
+    }
+
+
     /**
      * @see Table#remove(Object)
      */
@@ -0,0 +1,74 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import java.io.IOException;
+
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Entry;
+
+
+/**
+ * Cursor over the Tuples of the master table, decoding the serialized entries
+ * stored in the BTree.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class MasterTableCursor extends NoDupsCursor<String, Entry>
+{
+    /** The serializer used to decode the entries */
+    private final EntrySerializer entrySerializer;
+
+
+    /**
+     * Creates a Cursor over the tuples of the master table.
+     *
+     * @param table the master table
+     * @param entrySerializer the serializer used to decode the entries
+     */
+    MasterTableCursor( JdbmMasterTable table, EntrySerializer entrySerializer )
+    {
+        super( table );
+        this.entrySerializer = entrySerializer;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public Tuple<String, Entry> get() throws CursorException
+    {
+        Tuple<String, Entry> tuple = super.get();
+
+        // The BTree contains the serialized entry
+        Object serialized = tuple.getValue();
+
+        try
+        {
+            return new Tuple<String, Entry>( tuple.getKey(), ( Entry ) entrySerializer.deserialize( ( byte[] ) serialized ) );
+        }
+        catch ( IOException ioe )
+        {
+            throw new CursorException( ioe );
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree.jdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schemaextractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schemaextractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schemaloader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schemamanager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.CacheService;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.shared.DefaultDnFactory;
+import org.apache.directory.server.xdbm.CompactId;
+import org.apache.directory.server.xdbm.StoreUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the compact entry IDs of the JdbmPartition.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class JdbmCompactIdTest
+{
+    private File wkdir;
+    private JdbmPartition store;
+
+    private static SchemaManager schemaManager;
+    private static DnFactory dnFactory;
+    private static CacheService cacheService;
+    private static Dn SUFFIX_DN;
+    private static Dn SALES_DN;
+
+
+    @BeforeClass
+    public static void setup() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = JdbmCompactIdTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        schemaManager = new DefaultSchemaManager( new LdifSchemaLoader( schemaRepository ) );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        cacheService = new CacheService();
+        cacheService.initialize( null );
+        dnFactory = new DefaultDnFactory( schemaManager, cacheService.getCache( "dnCache" ) );
+
+        SUFFIX_DN = new Dn( schemaManager, "o=Good Times Co." );
+        SALES_DN = new Dn( schemaManager, "ou=Sales,o=Good Times Co." );
+    }
+
+
+    @Before
+    public void createWorkDir() throws Exception
+    {
+        wkdir = File.createTempFile( getClass().getSimpleName(), "db" );
+        wkdir.delete();
+        wkdir = new File( wkdir.getParentFile(), getClass().getSimpleName() );
+        FileUtils.deleteDirectory( wkdir );
+    }
+
+
+    @After
+    public void destroyStore() throws Exception
+    {
+        if ( store != null )
+        {
+            store.destroy();
+        }
+
+        store = null;
+
+        FileUtils.deleteDirectory( wkdir );
+    }
+
+
+    private JdbmPartition openStore( boolean compactIds ) throws Exception
+    {
+        JdbmPartition partition = new JdbmPartition( schemaManager, dnFactory );
+        partition.setId( "example" );
+        partition.setCacheSize( 10 );
+        partition.setPartitionPath( wkdir.toURI() );
+        partition.setSyncOnWrite( false );
+        partition.setCompactIds( compactIds );
+        partition.setSuffixDn( SUFFIX_DN );
+        partition.setCacheService( cacheService );
+        partition.initialize();
+
+        return partition;
+    }
+
+
+    private Dn addPerson( String cn, long uuidIndex ) throws Exception
+    {
+        Dn dn = new Dn( schemaManager, "cn=" + cn + ",ou=Sales,o=Good Times Co." );
+        Entry entry = new DefaultEntry( schemaManager, dn,
+            "objectClass: top",
+            "objectClass: person",
+            "cn", cn,
+            "sn", cn,
+            SchemaConstants.ENTRY_CSN_AT, new CsnFactory( 0 ).newInstance().toString(),
+            SchemaConstants.ENTRY_UUID_AT, Strings.getUUID( uuidIndex ).toString() );
+
+        store.add( new AddOperationContext( null, entry ) );
+
+        return dn;
+    }
+
+
+    @Test
+    public void testCompactIdsAllocation() throws Exception
+    {
+        store = openStore( true );
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        String suffixId = store.getEntryId( SUFFIX_DN );
+        String salesId = store.getEntryId( SALES_DN );
+
+        assertEquals( CompactId.LENGTH, suffixId.length() );
+        assertEquals( CompactId.FIRST_VALUE, CompactId.toValue( suffixId ) );
+        assertEquals( CompactId.FIRST_VALUE + 1, CompactId.toValue( salesId ) );
+        assertEquals( suffixId, store.getParentId( salesId ) );
+
+        // The entryUUID is not the ID anymore, but is still stored
+        Entry sales = store.fetch( salesId, SALES_DN );
+        assertEquals( Strings.getUUID( 2L ).toString(), sales.get( SchemaConstants.ENTRY_UUID_AT ).getString() );
+
+        // The IDs keep increasing
+        Dn dn = addPerson( "Compact Id", 100L );
+        assertTrue( CompactId.compare( store.getEntryId( dn ), salesId ) > 0 );
+    }
+
+
+    @Test
+    public void testCompactIdsRoundTrip() throws Exception
+    {
+        store = openStore( true );
+        StoreUtils.loadExampleData( store, schemaManager );
+
+        Dn lastDn = addPerson( "Last Added", 100L );
+        String lastId = store.getEntryId( lastDn );
+
+        // Delete the entry with the greatest ID, it must not stay in the cache
+        store.delete( new DeleteOperationContext( null, lastDn ) );
+        assertNull( store.getEntryId( lastDn ) );
+        assertNull( store.lookupCache( lastId ) );
+
+        // Reopen the partition : the entries are found with their IDs
+        store.destroy();
+        store = openStore( true );
+
+        String salesId = store.getEntryId( SALES_DN );
+        assertEquals( CompactId.FIRST_VALUE + 1, CompactId.toValue( salesId ) );
+        assertNotNull( store.fetch( salesId, SALES_DN ) );
+
+        // and the ID of the deleted entry is not given again
+        Dn newDn = addPerson( "Added After Restart", 101L );
+        assertTrue( CompactId.compare( store.getEntryId( newDn ), lastId ) > 0 );
+    }
+
+
+    @Test
+    public void testIdFormatCannotChange() throws Exception
+    {
+        store = openStore( true );
+        StoreUtils.loadExampleData( store, schemaManager );
+        store.destroy();
+        store = null;
+
+        try
+        {
+            store = openStore( false );
+            fail( "A partition created with compact IDs must not be opened with UUIDs" );
+        }
+        catch ( Exception e )
+        {
+            // Expected
+            store = null;
+        }
+    }
+}
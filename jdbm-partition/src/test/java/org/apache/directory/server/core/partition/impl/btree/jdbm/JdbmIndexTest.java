@@ -325,6 +325,31 @@ public class JdbmIndexTest
     }
 
 
+    @Test
+    public void testStatisticsCount() throws Exception
+    {
+        initIndex();
+        assertEquals( 0, idx.getStatistics().getCount() );
+
+        idx.add( "foo", Strings.getUUID( 1234L ) );
+        idx.add( "foo", Strings.getUUID( 333L ) );
+        assertEquals( 2, idx.getStatistics().getCount() );
+
+        // Adding an existing pair does not change the index nor the statistics
+        idx.add( "foo", Strings.getUUID( 1234L ) );
+        assertEquals( 2, idx.count() );
+        assertEquals( 2, idx.getStatistics().getCount() );
+
+        // Neither does removing a missing pair
+        idx.drop( "bar", Strings.getUUID( 1234L ) );
+        assertEquals( 2, idx.getStatistics().getCount() );
+
+        idx.drop( "foo", Strings.getUUID( 1234L ) );
+        assertEquals( 1, idx.count() );
+        assertEquals( 1, idx.getStatistics().getCount() );
+    }
+
+
     @Test
     public void testGreaterThanCount() throws Exception
     {
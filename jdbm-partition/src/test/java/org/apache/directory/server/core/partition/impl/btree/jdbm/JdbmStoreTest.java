@@ -640,6 +640,33 @@ public class JdbmStoreTest
     }
 
 
+    @Test
+    public void testRenameKeepsUnrelatedEntriesInCache() throws Exception
+    {
+        Dn salesDn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        Dn engineeringDn = new Dn( schemaManager, "cn=Jack Daniels,ou=Engineering,o=Good Times Co." );
+        String salesId = store.getEntryId( salesDn );
+        String engineeringId = store.getEntryId( engineeringDn );
+
+        // Load both entries into the cache
+        store.lookup( new LookupOperationContext( session, salesDn ) );
+        store.lookup( new LookupOperationContext( session, engineeringDn ) );
+        assertNotNull( store.lookupCache( salesId ) );
+        assertNotNull( store.lookupCache( engineeringId ) );
+
+        store.rename( new Dn( schemaManager, "ou=Sales,o=Good Times Co." ), new Rdn( "ou=Marketing" ), false, null );
+
+        // Only the renamed subtree has been evicted
+        assertNull( store.lookupCache( salesId ) );
+        assertNotNull( store.lookupCache( engineeringId ) );
+
+        Dn movedDn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Marketing,o=Good Times Co." );
+        Entry moved = store.lookup( new LookupOperationContext( session, movedDn ) );
+        assertNotNull( moved );
+        assertEquals( movedDn, moved.getDn() );
+    }
+
+
     @Test
     public void testMove() throws Exception
     {
@@ -21,9 +21,13 @@ package org.apache.directory.server.core.partition.impl.btree.jdbm;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,6 +46,8 @@ import org.apache.directory.api.ldap.schemaloader.LdifSchemaLoader;
 import org.apache.directory.api.ldap.schemamanager.impl.DefaultSchemaManager;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.xdbm.AttributeTypeDictionary;
+import org.apache.directory.server.xdbm.EntryProjection;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -287,4 +293,135 @@ public class ServerEntrySerializerTest
 
         assertEquals( entry, result );
     }
+
+
+    /**
+     * Serializes an entry the way it was done before the compact format was introduced
+     */
+    private static byte[] serializeLegacy( Entry entry ) throws Exception
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream( baos );
+
+        if ( entry.getDn().isEmpty() )
+        {
+            out.writeByte( 0 );
+        }
+        else
+        {
+            out.writeByte( 1 );
+            entry.getDn().getRdn().writeExternal( out );
+        }
+
+        out.writeInt( entry.getAttributes().size() );
+
+        for ( Attribute attribute : entry.getAttributes() )
+        {
+            out.writeUTF( attribute.getAttributeType().getOid() );
+            attribute.writeExternal( out );
+        }
+
+        out.flush();
+
+        return baos.toByteArray();
+    }
+
+
+    /**
+     * Checks that two entries have the same attributes : only the Rdn is stored, so the
+     * entries can't be compared when their Dn has more than one Rdn
+     */
+    private static void assertSameAttributes( Entry expected, Entry actual )
+    {
+        assertEquals( expected.size(), actual.size() );
+
+        for ( Attribute attribute : expected )
+        {
+            assertEquals( attribute, actual.get( attribute.getAttributeType() ) );
+        }
+    }
+
+
+    @Test
+    public void testDeserializeLegacyServerEntry() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager,
+            "cn=test,ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: test",
+            "SN: Test",
+            "userPassword", Strings.getBytesUtf8( "password" ) );
+
+        EntrySerializer ses = new EntrySerializer( schemaManager );
+
+        byte[] legacyData = serializeLegacy( entry );
+        Entry result = ( Entry ) ses.deserialize( legacyData );
+
+        assertEquals( entry.getDn().getRdn(), result.getDn().getRdn() );
+        assertSameAttributes( entry, result );
+
+        // Once written back, the entry uses the compact format
+        byte[] data = ses.serialize( result );
+
+        assertTrue( data.length < legacyData.length );
+        assertEquals( result, ses.deserialize( data ) );
+    }
+
+
+    @Test
+    public void testSharedDictionary() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager,
+            "",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: test",
+            "sn: Test" );
+
+        AttributeTypeDictionary dictionary = new AttributeTypeDictionary();
+        byte[] data = new EntrySerializer( schemaManager, dictionary ).serialize( entry );
+
+        assertEquals( 3, dictionary.size() );
+
+        // Another serializer using the same dictionary can read the entry
+        Entry result = ( Entry ) new EntrySerializer( schemaManager, dictionary ).deserialize( data );
+
+        assertEquals( entry, result );
+    }
+
+
+    @Test
+    public void testDeserializeWithProjection() throws Exception
+    {
+        Entry entry = new DefaultEntry( schemaManager,
+            "cn=test,ou=system",
+            "objectClass: top",
+            "objectClass: person",
+            "cn: test",
+            "sn: Test",
+            "description: a description",
+            "userPassword", Strings.getBytesUtf8( "password" ) );
+
+        EntrySerializer ses = new EntrySerializer( schemaManager );
+        byte[] data = ses.serialize( entry );
+
+        EntryProjection projection = new EntryProjection();
+        projection.add( schemaManager.getAttributeType( SchemaConstants.OBJECT_CLASS_AT ) );
+        projection.add( schemaManager.getAttributeType( "name" ) );
+
+        Entry result = ses.deserialize( data, projection );
+
+        assertEquals( entry.getDn().getRdn(), result.getDn().getRdn() );
+        assertEquals( entry.get( SchemaConstants.OBJECT_CLASS_AT ), result.get( SchemaConstants.OBJECT_CLASS_AT ) );
+
+        // cn and sn are subtypes of name
+        assertEquals( entry.get( SchemaConstants.CN_AT ), result.get( SchemaConstants.CN_AT ) );
+        assertEquals( entry.get( SchemaConstants.SN_AT ), result.get( SchemaConstants.SN_AT ) );
+        assertFalse( result.containsAttribute( "description" ) );
+        assertFalse( result.containsAttribute( SchemaConstants.USER_PASSWORD_AT ) );
+
+        // Without projection, the entry is fully decoded
+        assertSameAttributes( entry, ses.deserialize( data, null ) );
+    }
 }
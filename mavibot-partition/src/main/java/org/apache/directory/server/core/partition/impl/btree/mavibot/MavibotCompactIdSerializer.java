@@ -0,0 +1,155 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.server.core.partition.impl.btree.mavibot;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+import org.apache.directory.mavibot.btree.serializer.AbstractElementSerializer;
+import org.apache.directory.mavibot.btree.serializer.BufferHandler;
+import org.apache.directory.server.xdbm.CompactId;
+import org.apache.directory.server.xdbm.CompactIdComparator;
+
+
+/**
+ * Serialize and deserialize a compact entry ID as a 8 bytes long.
+ * </br></br>
+ * <b>This class must *not* be used outside of the server.</b>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class MavibotCompactIdSerializer extends AbstractElementSerializer<String>
+{
+    /** The serialVersionUID */
+    private static final long serialVersionUID = 1L;
+
+    /** A static instance of a MavibotCompactIdSerializer */
+    public static final MavibotCompactIdSerializer INSTANCE = new MavibotCompactIdSerializer();
+
+
+    /**
+     * Creates a new instance of MavibotCompactIdSerializer.
+     */
+    public MavibotCompactIdSerializer()
+    {
+        super( CompactIdComparator.INSTANCE );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] serialize( String id )
+    {
+        long value = CompactId.toValue( id );
+        byte[] bytes = new byte[8];
+
+        for ( int i = 7; i >= 0; i-- )
+        {
+            bytes[i] = ( byte ) value;
+            value >>>= 8;
+        }
+
+        return bytes;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public String deserialize( BufferHandler bufferHandler ) throws IOException
+    {
+        return fromBytes( bufferHandler.getBuffer() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String deserialize( ByteBuffer buffer ) throws IOException
+    {
+        return CompactId.toId( buffer.getLong() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compare( String id1, String id2 )
+    {
+        return CompactId.compare( id1, id2 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<String> getComparator()
+    {
+        return CompactIdComparator.INSTANCE;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String fromBytes( byte[] buffer ) throws IOException
+    {
+        return fromBytes( buffer, 0 );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String fromBytes( byte[] buffer, int pos ) throws IOException
+    {
+        if ( buffer.length < pos + 8 )
+        {
+            throw new IOException( "Not enough bytes to read a compact ID" );
+        }
+
+        long value = 0L;
+
+        for ( int i = 0; i < 8; i++ )
+        {
+            value = ( value << 8 ) | ( buffer[pos + i] & 0xFFL );
+        }
+
+        return CompactId.toId( value );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Class<?> getType()
+    {
+        return String.class;
+    }
+}
@@ -29,7 +29,6 @@ import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.MatchingRule;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
-import org.apache.directory.mavibot.btree.serializer.StringSerializer;
 import org.apache.directory.server.i18n.I18n;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -106,10 +105,10 @@ public class MavibotDnIndex extends MavibotIndex<Dn>
 
         String forwardTableName = attributeType.getOid() + FORWARD_BTREE;
         forward = new MavibotTable<Dn, String>( recordMan, schemaManager, forwardTableName, dnSerializer,
-            StringSerializer.INSTANCE, true );
+            getIdSerializer(), true );
 
         String reverseTableName = attributeType.getOid() + REVERSE_BTREE;
-        reverse = new MavibotTable<String, Dn>( recordMan, schemaManager, reverseTableName, StringSerializer.INSTANCE,
+        reverse = new MavibotTable<String, Dn>( recordMan, schemaManager, reverseTableName, getIdSerializer(),
             dnSerializer, !attributeType.isSingleValued() );
 
         String path = new File( this.wkDirPath, attributeType.getOid() ).getAbsolutePath();
@@ -66,6 +66,9 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
     /**  the key used for the reverse btree name */
     public static final String REVERSE_BTREE = "_reverse";
 
+    /** the extension of the file storing the index statistics */
+    public static final String STATS_FILE_EXTENSION = ".stats";
+
     /**
      * the forward btree where the btree key is the value of the indexed attribute and
      * the value of the btree is the entry id of the entry containing an attribute with
@@ -133,6 +136,7 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
         try
         {
             initTables( schemaManager );
+            initStatistics( forward.getKeyComparator() );
         }
         catch ( IOException e )
         {
@@ -140,6 +144,12 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
             close();
             throw e;
         }
+        catch ( Exception e )
+        {
+            // clean up
+            close();
+            throw new IOException( e.getMessage(), e );
+        }
 
         initialized = true;
     }
@@ -192,7 +202,7 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
 
         String forwardTableName = attributeType.getOid() + FORWARD_BTREE;
         forward = new MavibotTable<K, String>( recordMan, schemaManager, forwardTableName, forwardKeySerializer,
-            StringSerializer.INSTANCE, forwardDups, AbstractBTreePartition.DEFAULT_CACHE_SIZE );
+            getIdSerializer(), forwardDups, AbstractBTreePartition.DEFAULT_CACHE_SIZE );
 
         /*
          * Now the reverse map stores the primary key into the master table as
@@ -203,7 +213,7 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
         if ( withReverse )
         {
             String reverseTableName = attributeType.getOid() + REVERSE_BTREE;
-            reverse = new MavibotTable<String, K>( recordMan, schemaManager, reverseTableName, StringSerializer.INSTANCE,
+            reverse = new MavibotTable<String, K>( recordMan, schemaManager, reverseTableName, getIdSerializer(),
                 forwardKeySerializer, !attributeType.isSingleValued() );
         }
 
@@ -216,6 +226,30 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected File getStatisticsFile()
+    {
+        return new File( wkDirPath, attributeType.getOid() + STATS_FILE_EXTENSION );
+    }
+
+
+    /**
+     * @return The serializer to use for the entry IDs, depending on the IDs format
+     */
+    protected ElementSerializer<String> getIdSerializer()
+    {
+        if ( compactIds )
+        {
+            return MavibotCompactIdSerializer.INSTANCE;
+        }
+
+        return StringSerializer.INSTANCE;
+    }
+
+
     /**
      * Sets the RecordManager
      *
@@ -332,12 +366,19 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
     public synchronized void add( K attrVal, String id ) throws Exception
     {
         // The pair to be removed must exists
+        long before = forward.count();
         forward.put( attrVal, id );
 
         if ( withReverse )
         {
             reverse.put( id, attrVal );
         }
+
+        // Only count the pair if it was not already present
+        if ( ( statistics != null ) && ( forward.count() > before ) )
+        {
+            statistics.add( attrVal );
+        }
     }
 
 
@@ -355,6 +396,11 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
             {
                 reverse.remove( id, attrVal );
             }
+
+            if ( statistics != null )
+            {
+                statistics.drop( attrVal );
+            }
         }
     }
 
@@ -375,7 +421,13 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
                 while ( values.next() )
                 {
                     // Remove the Key -> entryId from the index
-                    forward.remove( values.get().getValue(), entryId );
+                    K key = values.get().getValue();
+                    forward.remove( key, entryId );
+
+                    if ( statistics != null )
+                    {
+                        statistics.drop( key );
+                    }
                 }
 
                 values.close();
@@ -385,6 +437,11 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
                 K key = reverse.get( entryId );
 
                 forward.remove( key );
+
+                if ( statistics != null )
+                {
+                    statistics.drop( key );
+                }
             }
 
             // Remove the id -> key from the reverse index
@@ -527,6 +584,8 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
         {
             throw new IOException( e );
         }
+
+        saveStatistics();
     }
 
 
@@ -540,6 +599,8 @@ public class MavibotIndex<K> extends AbstractIndex<K, String>
         {
             reverse.getBTree().flush();
         }
+
+        syncStatistics();
     }
 
 
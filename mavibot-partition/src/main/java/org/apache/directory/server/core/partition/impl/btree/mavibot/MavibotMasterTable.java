@@ -23,10 +23,15 @@ package org.apache.directory.server.core.partition.impl.btree.mavibot;
 import java.io.IOException;
 import java.util.UUID;
 
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.mavibot.btree.RecordManager;
 import org.apache.directory.mavibot.btree.serializer.StringSerializer;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.xdbm.AttributeTypeDictionary;
+import org.apache.directory.server.xdbm.EntryProjection;
 import org.apache.directory.server.xdbm.MasterTable;
 
 
@@ -37,16 +42,143 @@ import org.apache.directory.server.xdbm.MasterTable;
  */
 public class MavibotMasterTable extends MavibotTable<String, Entry> implements MasterTable
 {
+    /** The suffix of the name of the BTree storing the AttributeType dictionary */
+    private static final String ATTRIBUTE_TYPES_SUFFIX = "_attributeTypes";
+
+    /** The suffix of the name of the BTree storing the table properties */
+    private static final String ADMIN_SUFFIX = "_admin";
+
+    /** The admin table key storing the format of the entry IDs */
+    private static final String ID_FORMAT_KEY = "__idFormat__";
+
+    /** The UUID format for entry IDs */
+    private static final String UUID_ID_FORMAT = "uuid";
+
+    /** The compact format for entry IDs */
+    private static final String COMPACT_ID_FORMAT = "compact";
+
+    /** The dictionary used to encode the entries AttributeTypes */
+    private final AttributeTypeDictionary dictionary;
+
+    /** The table storing the AttributeType dictionary, the ordinal being the key */
+    private final MavibotTable<String, String> dictionaryTable;
+
+    /** The table storing the ID format and the compact IDs sequence */
+    private final MavibotTable<String, String> adminTable;
+
+
     public MavibotMasterTable( RecordManager recordMan, SchemaManager schemaManager, String name, int cacheSize )
         throws IOException
     {
-        super( recordMan, schemaManager, name, StringSerializer.INSTANCE, new MavibotEntrySerializer(), false, cacheSize );
+        this( recordMan, schemaManager, name, cacheSize, false );
+    }
+
+
+    public MavibotMasterTable( RecordManager recordMan, SchemaManager schemaManager, String name, int cacheSize,
+        boolean compactIds ) throws IOException
+    {
+        this( recordMan, schemaManager, name, cacheSize, compactIds, new AttributeTypeDictionary() );
     }
 
+
     public MavibotMasterTable( RecordManager recordMan, SchemaManager schemaManager, String name )
         throws IOException
     {
-        super( recordMan, schemaManager, name, StringSerializer.INSTANCE, new MavibotEntrySerializer(), false );
+        this( recordMan, schemaManager, name, AbstractBTreePartition.DEFAULT_CACHE_SIZE );
+    }
+
+
+    private MavibotMasterTable( RecordManager recordMan, SchemaManager schemaManager, String name, int cacheSize,
+        boolean compactIds, AttributeTypeDictionary dictionary ) throws IOException
+    {
+        super( recordMan, schemaManager, name,
+            compactIds ? MavibotCompactIdSerializer.INSTANCE : StringSerializer.INSTANCE,
+            new MavibotEntrySerializer( dictionary ), false, cacheSize );
+        this.dictionary = dictionary;
+        dictionaryTable = new MavibotTable<String, String>( recordMan, schemaManager, name + ATTRIBUTE_TYPES_SUFFIX,
+            StringSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+
+        adminTable = new MavibotTable<String, String>( recordMan, schemaManager, name + ADMIN_SUFFIX,
+            StringSerializer.INSTANCE, StringSerializer.INSTANCE, false );
+
+        try
+        {
+            // Check that the IDs format is the one used when the table was created
+            String idFormat = compactIds ? COMPACT_ID_FORMAT : UUID_ID_FORMAT;
+            String storedIdFormat = adminTable.get( ID_FORMAT_KEY );
+
+            if ( storedIdFormat == null )
+            {
+                if ( compactIds && ( count() > 0 ) )
+                {
+                    throw new IllegalStateException( "Cannot use compact IDs on a partition created with UUIDs" );
+                }
+
+                adminTable.put( ID_FORMAT_KEY, idFormat );
+            }
+            else if ( !storedIdFormat.equals( idFormat ) )
+            {
+                throw new IllegalStateException( "The partition has been created with the '" + storedIdFormat
+                    + "' ID format, it cannot be opened with the '" + idFormat + "' ID format" );
+            }
+
+            // Load the AttributeType dictionary
+            for ( int ordinal = 0;; ordinal++ )
+            {
+                String oid = dictionaryTable.get( Integer.toString( ordinal ) );
+
+                if ( oid == null )
+                {
+                    break;
+                }
+
+                dictionary.load( ordinal, oid );
+            }
+        }
+        catch ( IllegalStateException ise )
+        {
+            throw ise;
+        }
+        catch ( Exception e )
+        {
+            throw new IOException( e.getMessage(), e );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * The AttributeTypes not yet known by the dictionary are stored before the entry.
+     */
+    @Override
+    public void put( String id, Entry entry ) throws Exception
+    {
+        synchronized ( dictionary )
+        {
+            for ( Attribute attribute : entry )
+            {
+                String oid = attribute.getAttributeType().getOid();
+
+                if ( dictionary.getOrdinal( oid ) < 0 )
+                {
+                    int ordinal = dictionary.register( oid );
+                    dictionaryTable.put( Integer.toString( ordinal ), oid );
+                }
+            }
+        }
+
+        super.put( id, entry );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * The Mavibot BTree deserializes the values itself, the full entry is returned.
+     */
+    @Override
+    public Entry get( String id, EntryProjection projection ) throws LdapException
+    {
+        return get( id );
     }
 
 
@@ -57,6 +189,31 @@ public class MavibotMasterTable extends MavibotTable<String, Entry> implements M
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public long getReservedCompactId() throws Exception
+    {
+        String value = adminTable.get( COMPACT_SEQPROP_KEY );
+
+        if ( value == null )
+        {
+            return -1L;
+        }
+
+        return Long.parseLong( value );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setReservedCompactId( long value ) throws Exception
+    {
+        adminTable.put( COMPACT_SEQPROP_KEY, Long.toString( value ) );
+    }
+
+
     @Override
     public void close() throws Exception
     {
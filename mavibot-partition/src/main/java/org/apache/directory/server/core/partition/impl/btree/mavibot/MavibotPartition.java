@@ -33,7 +33,6 @@ import java.util.Set;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
 
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.entry.Attribute;
@@ -47,12 +46,8 @@ import org.apache.directory.mavibot.btree.RecordManager;
 import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.DnFactory;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
-import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
-import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
-import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
 import org.apache.directory.server.core.api.interceptor.context.OperationContext;
-import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
 import org.apache.directory.server.i18n.I18n;
@@ -160,7 +155,7 @@ public class MavibotPartition extends AbstractBTreePartition
             // First, check if the file storing the data exists
 
             // Create the master table (the table containing all the entries)
-            master = new MavibotMasterTable( recordMan, schemaManager, "master", cacheSize );
+            master = new MavibotMasterTable( recordMan, schemaManager, "master", cacheSize, compactIds );
 
             // get all index db files first
             File[] allIndexDbFiles = partitionDir.listFiles( DB_FILTER );
@@ -257,6 +252,7 @@ public class MavibotPartition extends AbstractBTreePartition
         }
 
         mavibotIndex.setRecordManager( recordMan );
+        mavibotIndex.setCompactIds( compactIds );
 
         mavibotIndex.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() ) );
 
@@ -442,6 +438,31 @@ public class MavibotPartition extends AbstractBTreePartition
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void removeFromCache( Set<String> ids )
+    {
+        if ( entryCache == null )
+        {
+            return;
+        }
+
+        if ( ids == null )
+        {
+            entryCache.removeAll();
+        }
+        else
+        {
+            for ( String id : ids )
+            {
+                entryCache.remove( id );
+            }
+        }
+    }
+
+
     public Entry lookupCache( String id )
     {
         if ( entryCache == null )
@@ -487,12 +508,18 @@ public class MavibotPartition extends AbstractBTreePartition
 
         try
         {
+            // The deleted entries are removed from the cache by the delete operation itself
             if ( opCtx instanceof ModifyOperationContext )
             {
                 // replace the entry
                 ModifyOperationContext modCtx = ( ModifyOperationContext ) opCtx;
                 Entry entry = modCtx.getAlteredEntry();
-                String id = entry.get( SchemaConstants.ENTRY_UUID_AT ).getString();
+                String id = getStoredEntryId( entry );
+
+                if ( id == null )
+                {
+                    return;
+                }
 
                 if ( entry instanceof ClonedServerEntry )
                 {
@@ -501,19 +528,6 @@ public class MavibotPartition extends AbstractBTreePartition
 
                 entryCache.replace( new Element( id, entry ) );
             }
-            else if ( ( opCtx instanceof MoveOperationContext ) ||
-                ( opCtx instanceof MoveAndRenameOperationContext ) ||
-                ( opCtx instanceof RenameOperationContext ) )
-            {
-                // clear the cache it is not worth updating all the children
-                entryCache.removeAll();
-            }
-            else if ( opCtx instanceof DeleteOperationContext )
-            {
-                // delete the entry
-                DeleteOperationContext delCtx = ( DeleteOperationContext ) opCtx;
-                entryCache.remove( delCtx.getEntry().get( SchemaConstants.ENTRY_UUID_AT ).getString() );
-            }
         }
         catch ( LdapException e )
         {
@@ -133,6 +133,16 @@ class LdapProtocolHandler extends DemuxingIoHandler
         // Abandon all the requests
         ldapSession.abandonAllOutstandingRequests();
 
+        // Release the PagedSearch contexts, even if no request was pending
+        try
+        {
+            ldapSession.closeAllPagedSearches();
+        }
+        catch ( Exception e )
+        {
+            LOG.warn( "Failed to close the PagedSearch cursors for LdapSession." );
+        }
+
         if ( !ldapSession.getIoSession().isClosing() || ldapSession.getIoSession().isConnected() )
         {
             try
@@ -152,6 +162,14 @@ class LdapProtocolHandler extends DemuxingIoHandler
      */
     public void messageSent( IoSession session, Object message ) throws Exception
     {
+        // Resume the searches waiting for the write queue to be drained
+        LdapSession ldapSession = ldapServer.getLdapSessionManager().getLdapSession( session );
+
+        if ( ldapSession != null )
+        {
+            ldapSession.messageSent();
+        }
+
         // Do nothing : we have to ignore this message, otherwise we get an exception,
         // thanks to the way MINA 2 works ...
         if ( message instanceof IoBuffer )
@@ -0,0 +1,253 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.message.AbandonRequest;
+import org.apache.directory.api.ldap.model.message.BindRequest;
+import org.apache.directory.api.ldap.model.message.CompareRequest;
+import org.apache.directory.api.ldap.model.message.UnbindRequest;
+import org.apache.mina.core.session.IoEvent;
+
+
+/**
+ * The executor running the LDAP requests received by the server. The requests are
+ * dispatched on two lanes, each one having its own pool of threads :
+ * <ul>
+ * <li>the fast lane, for the short operations : Bind, Compare, Abandon and Unbind</li>
+ * <li>the default lane, for all the other operations</li>
+ * </ul>
+ * This way, long running searches or updates can't prevent other clients from binding.
+ * Each lane exposes the number of waiting and running requests. If the fast lane has
+ * no thread, all the requests are run on the default lane.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapRequestExecutor implements Executor
+{
+    /** The lanes */
+    public enum Lane
+    {
+        /** The lane for the short operations */
+        FAST,
+
+        /** The lane for all the other operations */
+        DEFAULT
+    }
+
+    /** The fast lane pool, null if there is no fast lane */
+    private final ThreadPoolExecutor fastLane;
+
+    /** The default lane pool */
+    private final ThreadPoolExecutor defaultLane;
+
+    /** The highest number of requests waiting on each lane */
+    private final AtomicInteger[] maxQueueSizes = new AtomicInteger[]
+        { new AtomicInteger(), new AtomicInteger() };
+
+
+    /**
+     * Creates a new instance of LdapRequestExecutor.
+     *
+     * @param name The name used for the threads
+     * @param fastLaneNbThreads The number of threads running the short operations. If 0, there is no fast lane
+     * @param defaultLaneNbThreads The number of threads running all the other operations
+     */
+    public LdapRequestExecutor( String name, int fastLaneNbThreads, int defaultLaneNbThreads )
+    {
+        if ( fastLaneNbThreads > 0 )
+        {
+            fastLane = createPool( name + "-fast", fastLaneNbThreads );
+        }
+        else
+        {
+            fastLane = null;
+        }
+
+        defaultLane = createPool( name, Math.max( 1, defaultLaneNbThreads ) );
+    }
+
+
+    private static ThreadPoolExecutor createPool( final String name, int nbThreads )
+    {
+        return new ThreadPoolExecutor( nbThreads, nbThreads, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+
+                public Thread newThread( Runnable runnable )
+                {
+                    return new Thread( runnable, name + "-" + count.incrementAndGet() );
+                }
+            } );
+    }
+
+
+    /**
+     * Selects the lane a task has to be run on. The MINA events carrying one of the
+     * short operations go to the fast lane, all the other tasks to the default lane.
+     *
+     * @param task The task to run
+     * @return The lane to use
+     */
+    static Lane getLane( Runnable task )
+    {
+        if ( task instanceof IoEvent )
+        {
+            Object message = ( ( IoEvent ) task ).getParameter();
+
+            if ( ( message instanceof BindRequest ) || ( message instanceof CompareRequest )
+                || ( message instanceof AbandonRequest ) || ( message instanceof UnbindRequest ) )
+            {
+                return Lane.FAST;
+            }
+        }
+
+        return Lane.DEFAULT;
+    }
+
+
+    private ThreadPoolExecutor getPool( Lane lane )
+    {
+        if ( ( lane == Lane.FAST ) && ( fastLane != null ) )
+        {
+            return fastLane;
+        }
+
+        return defaultLane;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void execute( Runnable task )
+    {
+        Lane lane = getLane( task );
+
+        if ( fastLane == null )
+        {
+            lane = Lane.DEFAULT;
+        }
+
+        ThreadPoolExecutor pool = getPool( lane );
+        pool.execute( task );
+
+        // Keep the high water mark of the queue
+        int queueSize = pool.getQueue().size();
+        AtomicInteger maxQueueSize = maxQueueSizes[lane.ordinal()];
+        int max = maxQueueSize.get();
+
+        while ( ( queueSize > max ) && !maxQueueSize.compareAndSet( max, queueSize ) )
+        {
+            max = maxQueueSize.get();
+        }
+    }
+
+
+    /**
+     * @param lane The lane
+     * @return The number of requests waiting for a thread on the given lane
+     */
+    public int getQueueSize( Lane lane )
+    {
+        return getPool( lane ).getQueue().size();
+    }
+
+
+    /**
+     * @param lane The lane
+     * @return The highest number of requests which have been waiting for a thread on the given lane
+     */
+    public int getMaxQueueSize( Lane lane )
+    {
+        return maxQueueSizes[lane.ordinal()].get();
+    }
+
+
+    /**
+     * @param lane The lane
+     * @return The number of requests currently running on the given lane
+     */
+    public int getActiveCount( Lane lane )
+    {
+        return getPool( lane ).getActiveCount();
+    }
+
+
+    /**
+     * @param lane The lane
+     * @return The number of requests processed on the given lane
+     */
+    public long getCompletedCount( Lane lane )
+    {
+        return getPool( lane ).getCompletedTaskCount();
+    }
+
+
+    /**
+     * Stops the threads of all the lanes. The running requests are not interrupted.
+     */
+    public void shutdown()
+    {
+        if ( fastLane != null )
+        {
+            fastLane.shutdown();
+        }
+
+        defaultLane.shutdown();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "LdapRequestExecutor[" );
+
+        for ( Lane lane : Lane.values() )
+        {
+            if ( ( lane == Lane.FAST ) && ( fastLane == null ) )
+            {
+                continue;
+            }
+
+            sb.append( lane ).append( ":{queued:" ).append( getQueueSize( lane ) );
+            sb.append( ", maxQueued:" ).append( getMaxQueueSize( lane ) );
+            sb.append( ", active:" ).append( getActiveCount( lane ) );
+            sb.append( ", completed:" ).append( getCompletedCount( lane ) ).append( "} " );
+        }
+
+        sb.append( "]" );
+
+        return sb.toString();
+    }
+}
@@ -27,6 +27,7 @@ import java.security.Provider;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -69,6 +70,8 @@ import org.apache.directory.server.core.security.CoreKeyStoreSpi;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.handlers.LdapRequestHandler;
 import org.apache.directory.server.ldap.handlers.LdapResponseHandler;
+import org.apache.directory.server.ldap.handlers.controls.PagedSearchContextManager;
+import org.apache.directory.server.ldap.handlers.controls.VirtualListViewRequestValue;
 import org.apache.directory.server.ldap.handlers.extended.StartTlsHandler;
 import org.apache.directory.server.ldap.handlers.request.AbandonRequestHandler;
 import org.apache.directory.server.ldap.handlers.request.AddRequestHandler;
@@ -110,7 +113,6 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFactory;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.filter.executor.ExecutorFilter;
-import org.apache.mina.filter.executor.UnorderedThreadPoolExecutor;
 import org.apache.mina.handler.demux.MessageHandler;
 import org.apache.mina.transport.socket.AbstractSocketSessionConfig;
 import org.apache.mina.transport.socket.SocketAcceptor;
@@ -150,6 +152,15 @@ public class LdapServer extends DirectoryBackedService
     /** The default maximum time limit. */
     private static final int MAX_TIME_LIMIT_DEFAULT = 10000;
 
+    /** The default maximum number of bytes waiting to be sent to a client before a search is suspended (4MB) */
+    private static final long MAX_SCHEDULED_WRITE_BYTES_DEFAULT = 4L * 1024L * 1024L;
+
+    /** The default maximum time a search waits for a client to read its responses (2 minutes) */
+    private static final long MAX_WRITE_QUEUE_WAIT_DEFAULT = 2L * 60L * 1000L;
+
+    /** The default number of threads dedicated to the short operations, per transport */
+    private static final int NB_FAST_LANE_THREADS_DEFAULT = 2;
+
     /** The default service pid. */
     private static final String SERVICE_PID_DEFAULT = "org.apache.directory.server.ldap";
 
@@ -177,6 +188,18 @@ public class LdapServer extends DirectoryBackedService
     /** The maximum size for an incoming PDU */
     private int maxPDUSize = Integer.MAX_VALUE;
 
+    /**
+     * The maximum number of bytes waiting to be sent to a client before a search is suspended.
+     * @see {@link LdapServer#MAX_SCHEDULED_WRITE_BYTES_DEFAULT }
+     */
+    private long maxScheduledWriteBytes = MAX_SCHEDULED_WRITE_BYTES_DEFAULT;
+
+    /**
+     * The maximum time, in milliseconds, a search waits for a client to read its responses.
+     * @see {@link LdapServer#MAX_WRITE_QUEUE_WAIT_DEFAULT }
+     */
+    private long maxWriteQueueWait = MAX_WRITE_QUEUE_WAIT_DEFAULT;
+
     /** If LDAPS is activated : the external Keystore file, if defined */
     private String keystoreFile;
 
@@ -248,6 +271,15 @@ public class LdapServer extends DirectoryBackedService
 
     private List<IoFilterChainBuilder> chainBuilders = new ArrayList<IoFilterChainBuilder>();
 
+    /** The manager bounding the resources used by the PagedSearch contexts */
+    private PagedSearchContextManager pagedSearchContextManager = new PagedSearchContextManager();
+
+    /** The executors running the requests, one per transport */
+    private List<LdapRequestExecutor> requestExecutors = new ArrayList<LdapRequestExecutor>();
+
+    /** The number of threads dedicated to the Bind, Compare, Abandon and Unbind requests, per transport */
+    private int nbFastLaneThreads = NB_FAST_LANE_THREADS_DEFAULT;
+
     /** The handler responsible for the replication */
     private ReplicationRequestHandler replicationReqHandler;
 
@@ -517,9 +549,14 @@ public class LdapServer extends DirectoryBackedService
 
             // Now inject an ExecutorFilter for the write operations
             // We use the same number of thread than the number of IoProcessor
-            // (NOTE : this has to be double checked)
+            // (NOTE : this has to be double checked), plus a few threads dedicated
+            // to the short operations, so that they don't wait behind long searches
+            LdapRequestExecutor requestExecutor = new LdapRequestExecutor( "LdapRequest-" + transport.getPort(),
+                nbFastLaneThreads, transport.getNbThreads() );
+            requestExecutors.add( requestExecutor );
+
             ( ( DefaultIoFilterChainBuilder ) chain ).addLast( "executor", new ExecutorFilter(
-                new UnorderedThreadPoolExecutor( transport.getNbThreads() ), IoEventType.MESSAGE_RECEIVED ) );
+                requestExecutor, IoEventType.MESSAGE_RECEIVED ) );
 
             /*
             // Trace all the incoming and outgoing message to the console
@@ -632,6 +669,13 @@ public class LdapServer extends DirectoryBackedService
                 }
             }
 
+            for ( LdapRequestExecutor requestExecutor : requestExecutors )
+            {
+                requestExecutor.shutdown();
+            }
+
+            requestExecutors.clear();
+
             stopConsumers();
         }
         catch ( Exception e )
@@ -938,6 +982,121 @@ public class LdapServer extends DirectoryBackedService
     }
 
 
+    /**
+     * Sets the maximum number of bytes which can be waiting to be sent to a client. Above
+     * this threshold, a search stops reading entries until the client has read half of the
+     * pending responses. A value of 0 disables this flow control.
+     *
+     * @param maxScheduledWriteBytes the maximum number of bytes waiting to be sent
+     */
+    public void setMaxScheduledWriteBytes( long maxScheduledWriteBytes )
+    {
+        this.maxScheduledWriteBytes = maxScheduledWriteBytes;
+    }
+
+
+    /**
+     * Returns the maximum number of bytes which can be waiting to be sent to a client
+     * before a search is suspended.
+     *
+     * @return The maximum number of bytes waiting to be sent
+     */
+    public long getMaxScheduledWriteBytes()
+    {
+        return maxScheduledWriteBytes;
+    }
+
+
+    /**
+     * Sets the maximum time a suspended search waits for the client to read any of its pending
+     * responses. When this time is reached without a single byte being sent, the client is
+     * considered stuck and its session is closed. A value of 0 makes the search wait as long
+     * as the session is open.
+     *
+     * @param maxWriteQueueWait the maximum wait time, in milliseconds
+     */
+    public void setMaxWriteQueueWait( long maxWriteQueueWait )
+    {
+        this.maxWriteQueueWait = maxWriteQueueWait;
+    }
+
+
+    /**
+     * Returns the maximum time a suspended search waits for the client to read its pending
+     * responses.
+     *
+     * @return The maximum wait time, in milliseconds
+     */
+    public long getMaxWriteQueueWait()
+    {
+        return maxWriteQueueWait;
+    }
+
+
+    /**
+     * Sets the number of threads dedicated to the Bind, Compare, Abandon and Unbind
+     * requests on each transport. Those requests are then not delayed by the long running
+     * operations. With 0, all the requests share the same threads.
+     *
+     * @param nbFastLaneThreads the number of threads dedicated to the short operations
+     */
+    public void setNbFastLaneThreads( int nbFastLaneThreads )
+    {
+        this.nbFastLaneThreads = nbFastLaneThreads;
+    }
+
+
+    /**
+     * @return the number of threads dedicated to the short operations on each transport
+     */
+    public int getNbFastLaneThreads()
+    {
+        return nbFastLaneThreads;
+    }
+
+
+    /**
+     * @return the manager bounding the number and the idle time of the PagedSearch contexts
+     */
+    public PagedSearchContextManager getPagedSearchContextManager()
+    {
+        return pagedSearchContextManager;
+    }
+
+
+    /**
+     * Sets the delay after which the cursor of an unused PagedSearch context is closed.
+     * Resuming such a search costs a new search, skipping all the entries already returned.
+     *
+     * @param cursorIdleTime The delay, in milliseconds
+     */
+    public void setPagedSearchCursorIdleTime( long cursorIdleTime )
+    {
+        pagedSearchContextManager.setCursorIdleTime( cursorIdleTime );
+    }
+
+
+    /**
+     * @return The delay, in milliseconds, after which the cursor of an unused PagedSearch context is closed
+     */
+    public long getPagedSearchCursorIdleTime()
+    {
+        return pagedSearchContextManager.getCursorIdleTime();
+    }
+
+
+    /**
+     * Returns the executors running the requests, one per transport. They give access
+     * to the number of waiting and running requests on each lane.
+     *
+     * @return The request executors
+     */
+    public List<LdapRequestExecutor> getRequestExecutors()
+    {
+        return Collections.unmodifiableList( requestExecutors );
+    }
+
+
     /**
      * Sets the maximum time limit in milliseconds to conduct a search.
      *
@@ -1117,6 +1276,9 @@ public class LdapServer extends DirectoryBackedService
         {
             supportedControls.add( itr.next() );
         }
+
+        // The VirtualListView control has no codec, it's handled by the SearchRequestHandler
+        supportedControls.add( VirtualListViewRequestValue.OID );
     }
 
 
@@ -23,11 +23,13 @@ package org.apache.directory.server.ldap;
 import java.net.SocketAddress;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapTimeLimitExceededException;
 import org.apache.directory.api.ldap.model.message.AbandonableRequest;
 import org.apache.directory.api.ldap.model.message.BindStatus;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
@@ -36,6 +38,7 @@ import org.apache.directory.server.core.api.LdapPrincipal;
 import org.apache.directory.server.core.api.SearchRequestContainer;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
+import org.apache.directory.server.ldap.handlers.controls.VirtualListViewContext;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +61,12 @@ public class LdapSession
     /** The list of requests we can abandon */
     private static final AbandonableRequest[] EMPTY_ABANDONABLES = new AbandonableRequest[0];
 
+    /** The maximum number of VirtualListView contexts kept per session */
+    private static final int MAX_VIRTUAL_LIST_VIEW_CONTEXTS = 8;
+
+    /** The delay after which a suspended writer checks the write queue again, in case a notification is missed */
+    private static final long WRITE_QUEUE_CHECK_DELAY = 1000L;
+
     /** A lock to protect the abandonableRequests against concurrent access */
     private final String outstandingLock;
 
@@ -93,6 +102,15 @@ public class LdapSession
     /** A map containing all the paged search context */
     private Map<Integer, PagedSearchContext> pagedSearchContexts;
 
+    /** A map containing the most recently used VirtualListView contexts */
+    private Map<Integer, VirtualListViewContext> virtualListViewContexts;
+
+    /** The lock used to suspend the writers while the client does not read its responses */
+    private final Object writeQueueLock = new Object();
+
+    /** The number of writers waiting for the write queue to be drained */
+    private volatile int writeQueueWaiters;
+
 
     /**
      * Creates a new instance of LdapSession associated with the underlying
@@ -109,6 +127,18 @@ public class LdapSession
         bindStatus = BindStatus.ANONYMOUS;
         saslProperties = new HashMap<String, Object>();
         pagedSearchContexts = new ConcurrentHashMap<Integer, PagedSearchContext>();
+        virtualListViewContexts = Collections.synchronizedMap(
+            new LinkedHashMap<Integer, VirtualListViewContext>( 16, 0.75f, true )
+            {
+                private static final long serialVersionUID = 1L;
+
+
+                @Override
+                protected boolean removeEldestEntry( Map.Entry<Integer, VirtualListViewContext> eldest )
+                {
+                    return size() > MAX_VIRTUAL_LIST_VIEW_CONTEXTS;
+                }
+            } );
     }
 
 
@@ -481,8 +511,18 @@ public class LdapSession
     {
         PagedSearchContext oldContext = pagedSearchContexts.put( context.getCookieValue(), context );
 
+        if ( ldapServer != null )
+        {
+            ldapServer.getPagedSearchContextManager().add( this, context );
+        }
+
         if ( oldContext != null )
         {
+            if ( ldapServer != null )
+            {
+                ldapServer.getPagedSearchContextManager().remove( oldContext );
+            }
+
             // ??? Very unlikely to happen ...
             Cursor<Entry> cursor = oldContext.getCursor();
 
@@ -509,7 +549,14 @@ public class LdapSession
      */
     public PagedSearchContext removePagedSearchContext( int contextId )
     {
-        return pagedSearchContexts.remove( contextId );
+        PagedSearchContext context = pagedSearchContexts.remove( contextId );
+
+        if ( ( context != null ) && ( ldapServer != null ) )
+        {
+            ldapServer.getPagedSearchContextManager().remove( context );
+        }
+
+        return context;
     }
 
 
@@ -522,7 +569,12 @@ public class LdapSession
     {
         for ( int contextId : pagedSearchContexts.keySet() )
         {
-            PagedSearchContext context = pagedSearchContexts.get( contextId );
+            PagedSearchContext context = removePagedSearchContext( contextId );
+
+            if ( context == null )
+            {
+                continue;
+            }
 
             Cursor<Entry> cursor = context.getCursor();
 
@@ -546,6 +598,158 @@ public class LdapSession
     }
 
 
+    /**
+     * Add a new VirtualListView context into the stored contexts. Only the most
+     * recently used contexts are kept, the older ones are silently dropped.
+     *
+     * @param context The context to add
+     */
+    public void addVirtualListViewContext( VirtualListViewContext context )
+    {
+        virtualListViewContexts.put( context.getContextIdValue(), context );
+    }
+
+
+    /**
+     * Get the VirtualListView context associated with an ID
+     * 
+     * @param contextId The id for the context we want to get
+     * @return The associated context, if any
+     */
+    public VirtualListViewContext getVirtualListViewContext( int contextId )
+    {
+        return virtualListViewContexts.get( contextId );
+    }
+
+
+    /**
+     * Remove a VirtualListView context from the stored contexts.
+     *
+     * @param contextId The context ID to remove
+     * @return The removed context if any found
+     */
+    public VirtualListViewContext removeVirtualListViewContext( int contextId )
+    {
+        return virtualListViewContexts.remove( contextId );
+    }
+
+
+    /**
+     * Suspends the current thread while the number of bytes waiting to be written to the
+     * client exceeds the given threshold. The thread is resumed when half of those bytes have
+     * been sent, when the request is abandoned or when the session is closed. This is used to
+     * stream large search results without buffering them in memory when the client reads them
+     * slowly.
+     * <br/>
+     * A client which doesn't read anything during the given maximum wait time is considered
+     * stuck : its session is closed, so that the pending responses are released. The wait
+     * restarts each time some bytes have been sent, so a slow client is not mistaken for
+     * a stuck one.
+     * <br/>
+     * The request's own time limit is a different matter : once the given deadline is reached,
+     * the request fails with a timeLimitExceeded error, and the session is kept open.
+     *
+     * @param maxScheduledWriteBytes The maximum number of bytes which can be waiting. If 0 or
+     * negative, the thread is never suspended
+     * @param maxWait The maximum time to wait without any byte being sent, in milliseconds. If 0
+     * or negative, the wait is not bounded
+     * @param deadline The time at which the request's time limit is exceeded, in milliseconds
+     * since the epoch. If 0 or negative, the request has no time limit
+     * @param request The request the responses are sent for
+     * @return true if the next response can be written, false if the request has been abandoned
+     * or the session is closed
+     * @throws InterruptedException If the thread is interrupted while waiting
+     * @throws LdapTimeLimitExceededException If the deadline is reached while waiting
+     */
+    public boolean waitForWriteQueue( long maxScheduledWriteBytes, long maxWait, long deadline,
+        AbandonableRequest request ) throws InterruptedException, LdapTimeLimitExceededException
+    {
+        if ( ( maxScheduledWriteBytes <= 0 ) || ( ioSession.getScheduledWriteBytes() <= maxScheduledWriteBytes ) )
+        {
+            return true;
+        }
+
+        if ( IS_DEBUG )
+        {
+            LOG.debug( "Suspending the writes on {}, {} bytes are waiting to be sent", this,
+                ioSession.getScheduledWriteBytes() );
+        }
+
+        long resumeThreshold = maxScheduledWriteBytes / 2;
+        long scheduledWriteBytes = ioSession.getScheduledWriteBytes();
+        long stuckDeadline = ( maxWait > 0 ) ? System.currentTimeMillis() + maxWait : Long.MAX_VALUE;
+        long timeLimitDeadline = ( deadline > 0 ) ? deadline : Long.MAX_VALUE;
+
+        synchronized ( writeQueueLock )
+        {
+            writeQueueWaiters++;
+
+            try
+            {
+                while ( ioSession.getScheduledWriteBytes() > resumeThreshold )
+                {
+                    if ( request.isAbandoned() || !ioSession.isConnected() || ioSession.isClosing() )
+                    {
+                        return false;
+                    }
+
+                    long now = System.currentTimeMillis();
+                    long currentWriteBytes = ioSession.getScheduledWriteBytes();
+
+                    if ( ( currentWriteBytes < scheduledWriteBytes ) && ( maxWait > 0 ) )
+                    {
+                        // The client is reading : it's slow, not stuck
+                        stuckDeadline = now + maxWait;
+                    }
+
+                    scheduledWriteBytes = currentWriteBytes;
+
+                    if ( now >= timeLimitDeadline )
+                    {
+                        LOG.debug( "The time limit of the request has been exceeded while waiting for {}", this );
+
+                        throw new LdapTimeLimitExceededException();
+                    }
+
+                    if ( now >= stuckDeadline )
+                    {
+                        LOG.warn( "The client of {} has not read its responses for {}ms, closing the session",
+                            this, maxWait );
+                        ioSession.close( true );
+
+                        return false;
+                    }
+
+                    writeQueueLock.wait( Math.min( WRITE_QUEUE_CHECK_DELAY,
+                        Math.min( stuckDeadline, timeLimitDeadline ) - now ) );
+                }
+            }
+            finally
+            {
+                writeQueueWaiters--;
+            }
+        }
+
+        return !request.isAbandoned();
+    }
+
+
+    /**
+     * Called when a message has been sent to the client : resumes the writers suspended
+     * in {@link #waitForWriteQueue(long, long, long, AbandonableRequest)}, if any.
+     */
+    public void messageSent()
+    {
+        if ( writeQueueWaiters > 0 )
+        {
+            synchronized ( writeQueueLock )
+            {
+                writeQueueLock.notifyAll();
+            }
+        }
+    }
+
+
     /**
      * The principal and remote address associated with this session.
      * @see Object#toString()
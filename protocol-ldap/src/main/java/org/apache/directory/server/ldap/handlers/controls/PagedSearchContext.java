@@ -33,7 +33,10 @@ import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -45,6 +48,9 @@ import org.apache.directory.server.ldap.LdapSession;
  */
 public class PagedSearchContext
 {
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PagedSearchContext.class );
+
     /** The previous search request */
     private SearchRequest previousSearchRequest;
 
@@ -60,6 +66,12 @@ public class PagedSearchContext
     /** The associated cursor for the current search request */
     private Cursor<Entry> cursor;
 
+    /** The last time this context has been used */
+    private volatile long lastAccessTime;
+
+    /** Tells if a request is currently reading the cursor */
+    private volatile boolean inUse;
+
 
     /**
      * Creates a new instance of this class, storing the SearchRequest into it.
@@ -75,6 +87,7 @@ public class PagedSearchContext
         cookieValue = new AtomicInteger( searchRequest.getMessageId() << 16 );
 
         cookie = BerValue.getBytes( cookieValue.get() );
+        lastAccessTime = System.currentTimeMillis();
     }
 
 
@@ -309,6 +322,62 @@ public class PagedSearchContext
     }
 
 
+    /**
+     * @return The last time this context has been used
+     */
+    public long getLastAccessTime()
+    {
+        return lastAccessTime;
+    }
+
+
+    /**
+     * Tells if a request is currently reading the cursor
+     *
+     * @return true if the context is being used
+     */
+    public boolean isInUse()
+    {
+        return inUse;
+    }
+
+
+    /**
+     * Marks the context as being used or not, and updates its last access time.
+     *
+     * @param inUse true if a request is going to read the cursor, false when it is done
+     */
+    public void setInUse( boolean inUse )
+    {
+        this.inUse = inUse;
+        lastAccessTime = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Closes the cursor, keeping only the current position. The search will be
+     * done again and the already returned entries skipped when the next page is
+     * requested.
+     */
+    public void passivate()
+    {
+        Cursor<Entry> currentCursor = cursor;
+        cursor = null;
+
+        if ( currentCursor != null )
+        {
+            try
+            {
+                currentCursor.close();
+            }
+            catch ( Exception e )
+            {
+                LOG.error( I18n.err( I18n.ERR_172, e.getLocalizedMessage() ) );
+            }
+        }
+    }
+
+
     /**
      * @see Object#toString()
      */
@@ -0,0 +1,326 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.controls;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.server.ldap.LdapSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Keeps track of all the PagedSearch contexts opened on the server, in order to bound
+ * the resources they use :
+ * <ul>
+ * <li>the cursor of a context which has not been used for a while is closed. Only the
+ * position in the search is kept, the search is done again when the next page is requested.
+ * All the entries already returned are then read again and skipped, so resuming a search costs
+ * as much as reading all the previous pages : the delay should be longer than the time a client
+ * usually takes between two pages</li>
+ * <li>a context which has not been used for a longer time is removed, its cookie becomes invalid</li>
+ * <li>the number of contexts per session and on the whole server is limited. When a new context
+ * exceeds one of those limits, the least recently used context is removed</li>
+ * </ul>
+ * The contexts are still stored in their {@link LdapSession}, this manager only keeps
+ * them in the order they have been used.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PagedSearchContextManager
+{
+    /** The logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( PagedSearchContextManager.class );
+
+    /** The default maximum number of contexts on the server */
+    public static final int DEFAULT_MAX_CONTEXTS = 1000;
+
+    /** The default maximum number of contexts per session */
+    public static final int DEFAULT_MAX_CONTEXTS_PER_SESSION = 16;
+
+    /** The default delay after which an unused context's cursor is closed (1 minute) */
+    public static final long DEFAULT_CURSOR_IDLE_TIME = 60000L;
+
+    /** The default delay after which an unused context is removed (5 minutes) */
+    public static final long DEFAULT_CONTEXT_IDLE_TIME = 300000L;
+
+    /** The maximum number of contexts on the server */
+    private int maxContexts = DEFAULT_MAX_CONTEXTS;
+
+    /** The maximum number of contexts per session */
+    private int maxContextsPerSession = DEFAULT_MAX_CONTEXTS_PER_SESSION;
+
+    /** The delay after which an unused context's cursor is closed */
+    private long cursorIdleTime = DEFAULT_CURSOR_IDLE_TIME;
+
+    /** The delay after which an unused context is removed */
+    private long contextIdleTime = DEFAULT_CONTEXT_IDLE_TIME;
+
+    /** All the contexts and their session, the least recently used first */
+    private final LinkedHashMap<PagedSearchContext, LdapSession> contexts =
+        new LinkedHashMap<PagedSearchContext, LdapSession>( 16, 0.75f, true );
+
+    /** The number of contexts per session */
+    private final Map<LdapSession, Integer> sessionCounts = new HashMap<LdapSession, Integer>();
+
+
+    /**
+     * Registers a new context. Idle contexts are passivated or removed, and if the new context
+     * exceeds the limits, the least recently used contexts are removed from their session.
+     *
+     * @param session The session the context belongs to
+     * @param context The new context
+     */
+    public void add( LdapSession session, PagedSearchContext context )
+    {
+        List<PagedSearchContext> evicted = new ArrayList<PagedSearchContext>();
+        List<LdapSession> evictedSessions = new ArrayList<LdapSession>();
+
+        synchronized ( this )
+        {
+            long now = System.currentTimeMillis();
+
+            for ( Map.Entry<PagedSearchContext, LdapSession> element : contexts.entrySet() )
+            {
+                PagedSearchContext candidate = element.getKey();
+
+                if ( candidate.isInUse() )
+                {
+                    continue;
+                }
+
+                long idleTime = now - candidate.getLastAccessTime();
+
+                if ( idleTime < cursorIdleTime )
+                {
+                    // The following contexts have been used more recently
+                    break;
+                }
+
+                if ( idleTime >= contextIdleTime )
+                {
+                    evicted.add( candidate );
+                    evictedSessions.add( element.getValue() );
+                }
+                else
+                {
+                    candidate.passivate();
+                }
+            }
+
+            int sessionCount = getCount( session );
+            int size = contexts.size() - evicted.size();
+
+            for ( Map.Entry<PagedSearchContext, LdapSession> element : contexts.entrySet() )
+            {
+                boolean sessionFull = sessionCount >= maxContextsPerSession;
+
+                if ( !sessionFull && ( size < maxContexts ) )
+                {
+                    break;
+                }
+
+                PagedSearchContext candidate = element.getKey();
+
+                if ( candidate.isInUse() || evicted.contains( candidate ) )
+                {
+                    continue;
+                }
+
+                if ( element.getValue() == session )
+                {
+                    sessionCount--;
+                }
+                else if ( sessionFull && ( size < maxContexts ) )
+                {
+                    // Only the session's own contexts have to be removed
+                    continue;
+                }
+
+                evicted.add( candidate );
+                evictedSessions.add( element.getValue() );
+                size--;
+            }
+
+            for ( PagedSearchContext candidate : evicted )
+            {
+                remove( candidate );
+            }
+
+            contexts.put( context, session );
+            sessionCounts.put( session, getCount( session ) + 1 );
+        }
+
+        // Now, remove the evicted contexts from their session, and close their cursor
+        for ( int i = 0; i < evicted.size(); i++ )
+        {
+            PagedSearchContext candidate = evicted.get( i );
+
+            LOG.debug( "Removing the PagedSearch context {}", candidate );
+            evictedSessions.get( i ).removePagedSearchContext( candidate.getCookieValue() );
+            candidate.passivate();
+        }
+    }
+
+
+    /**
+     * Marks a context as being used by a request. Its cursor won't be closed until
+     * {@link #release(PagedSearchContext)} is called.
+     *
+     * @param context The context to use
+     */
+    public synchronized void acquire( PagedSearchContext context )
+    {
+        // Move the context at the end of the list
+        contexts.get( context );
+        context.setInUse( true );
+    }
+
+
+    /**
+     * Marks a context as not being used anymore.
+     *
+     * @param context The used context
+     */
+    public synchronized void release( PagedSearchContext context )
+    {
+        contexts.get( context );
+        context.setInUse( false );
+    }
+
+
+    /**
+     * Removes a context from the manager.
+     *
+     * @param context The context to remove
+     */
+    public synchronized void remove( PagedSearchContext context )
+    {
+        LdapSession session = contexts.remove( context );
+
+        if ( session != null )
+        {
+            int count = getCount( session ) - 1;
+
+            if ( count <= 0 )
+            {
+                sessionCounts.remove( session );
+            }
+            else
+            {
+                sessionCounts.put( session, count );
+            }
+        }
+    }
+
+
+    private int getCount( LdapSession session )
+    {
+        Integer count = sessionCounts.get( session );
+
+        return count == null ? 0 : count;
+    }
+
+
+    /**
+     * @return The number of contexts currently stored on the server
+     */
+    public synchronized int size()
+    {
+        return contexts.size();
+    }
+
+
+    /**
+     * @return The maximum number of contexts on the server
+     */
+    public int getMaxContexts()
+    {
+        return maxContexts;
+    }
+
+
+    /**
+     * @param maxContexts The maximum number of contexts on the server
+     */
+    public void setMaxContexts( int maxContexts )
+    {
+        this.maxContexts = Math.max( 1, maxContexts );
+    }
+
+
+    /**
+     * @return The maximum number of contexts per session
+     */
+    public int getMaxContextsPerSession()
+    {
+        return maxContextsPerSession;
+    }
+
+
+    /**
+     * @param maxContextsPerSession The maximum number of contexts per session
+     */
+    public void setMaxContextsPerSession( int maxContextsPerSession )
+    {
+        this.maxContextsPerSession = Math.max( 1, maxContextsPerSession );
+    }
+
+
+    /**
+     * @return The delay, in milliseconds, after which an unused context's cursor is closed
+     */
+    public long getCursorIdleTime()
+    {
+        return cursorIdleTime;
+    }
+
+
+    /**
+     * @param cursorIdleTime The delay, in milliseconds, after which an unused context's cursor is closed
+     */
+    public void setCursorIdleTime( long cursorIdleTime )
+    {
+        this.cursorIdleTime = cursorIdleTime;
+    }
+
+
+    /**
+     * @return The delay, in milliseconds, after which an unused context is removed
+     */
+    public long getContextIdleTime()
+    {
+        return contextIdleTime;
+    }
+
+
+    /**
+     * @param contextIdleTime The delay, in milliseconds, after which an unused context is removed
+     */
+    public void setContextIdleTime( long contextIdleTime )
+    {
+        this.contextIdleTime = contextIdleTime;
+    }
+}
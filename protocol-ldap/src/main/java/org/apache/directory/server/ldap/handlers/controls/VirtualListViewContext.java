@@ -0,0 +1,349 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.controls;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.asn1.ber.tlv.BerValue;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.LdapComparator;
+import org.apache.directory.api.ldap.model.schema.MatchingRule;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+import org.apache.directory.server.core.api.CoreSession;
+
+
+/**
+ * The structure which stores the result list of a search done with the VirtualListView
+ * control. The sorted search is done once, and only the Dn of the returned entries are
+ * kept in the context : the client can then move into the list by offset in constant time,
+ * or by value with a binary search, and only the entries of the requested window are read
+ * again.
+ * <p>
+ * The context is associated to a contextID, stored into the session, which the client
+ * sends back with its next VirtualListView requests on the same search.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class VirtualListViewContext
+{
+    /** The seed used to create the context IDs */
+    private static final AtomicInteger CONTEXT_ID_SEED = new AtomicInteger( 0 );
+
+    /** The context ID */
+    private int contextIdValue;
+
+    /** The search request this context has been built for */
+    private SearchRequest searchRequest;
+
+    /** The sort keys the list has been sorted with */
+    private List<SortKey> sortKeys;
+
+    /** The Dn of the sorted entries */
+    private List<Dn> dns = new ArrayList<Dn>();
+
+    /** The first sort key attribute type */
+    private AttributeType sortAttributeType;
+
+    /** The comparator used for the first sort key */
+    private LdapComparator<Object> comparator;
+
+    /** Tells if the first sort key is in reverse order */
+    private boolean reverse;
+
+    /** Tells if the first sort key attribute is human readable */
+    private boolean hr;
+
+
+    /**
+     * Creates a new instance of VirtualListViewContext.
+     *
+     * @param searchRequest The search request
+     * @param sortKeys The sort keys associated with the request
+     * @param schemaManager The schema manager
+     * @throws LdapException If the first sort key attribute or matching rule is unknown
+     */
+    @SuppressWarnings("unchecked")
+    public VirtualListViewContext( SearchRequest searchRequest, List<SortKey> sortKeys, SchemaManager schemaManager )
+        throws LdapException
+    {
+        this.searchRequest = searchRequest;
+        this.sortKeys = sortKeys;
+        contextIdValue = CONTEXT_ID_SEED.incrementAndGet();
+
+        SortKey sortKey = sortKeys.get( 0 );
+        sortAttributeType = schemaManager.lookupAttributeTypeRegistry( sortKey.getAttributeTypeDesc() );
+        reverse = sortKey.isReverseOrder();
+        hr = sortAttributeType.getSyntax().isHumanReadable();
+
+        String mrule = sortKey.getMatchingRuleId();
+
+        if ( mrule == null )
+        {
+            MatchingRule mr = sortAttributeType.getOrdering();
+
+            if ( mr == null )
+            {
+                mr = sortAttributeType.getEquality();
+            }
+
+            mrule = mr.getOid();
+        }
+
+        comparator = ( LdapComparator<Object> ) schemaManager.lookupComparatorRegistry( mrule );
+        comparator.setSchemaManager( schemaManager );
+    }
+
+
+    /**
+     * @return The context ID value
+     */
+    public int getContextIdValue()
+    {
+        return contextIdValue;
+    }
+
+
+    /**
+     * @return The context ID, as sent to the client
+     */
+    public byte[] getContextId()
+    {
+        return BerValue.getBytes( contextIdValue );
+    }
+
+
+    /**
+     * Converts a context ID sent by the client to the value used to store the context
+     *
+     * @param contextId The context ID
+     * @return The context ID value, or 0 if it can't be one of ours
+     */
+    public static int getContextIdValue( byte[] contextId )
+    {
+        if ( ( contextId.length == 0 ) || ( contextId.length > 4 ) )
+        {
+            return 0;
+        }
+
+        // The first byte carries the sign
+        int value = contextId[0];
+
+        for ( int i = 1; i < contextId.length; i++ )
+        {
+            value = ( value << 8 ) | ( contextId[i] & 0xFF );
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Adds the Dn of the next entry in the sorted list
+     *
+     * @param dn The entry Dn
+     */
+    public void add( Dn dn )
+    {
+        dns.add( dn );
+    }
+
+
+    /**
+     * @return The number of entries in the list
+     */
+    public int size()
+    {
+        return dns.size();
+    }
+
+
+    /**
+     * Gets the Dn of the entry at a given position
+     *
+     * @param position The position, starting at 1
+     * @return The entry Dn
+     */
+    public Dn get( int position )
+    {
+        return dns.get( position - 1 );
+    }
+
+
+    /**
+     * Finds the position of the first entry which sort key value is greater than or equal
+     * to the given assertion value, with respect to the ordering of the first sort key.
+     * Only the entries visited by the binary search are read.
+     *
+     * @param assertionValue The assertion value
+     * @param session The session used to read the entries
+     * @return The position of the first matching entry, starting at 1, or size() + 1 if
+     * there is none
+     * @throws LdapException If an entry can't be read
+     */
+    public int findPosition( byte[] assertionValue, CoreSession session ) throws LdapException
+    {
+        Object assertion = ( hr ? Strings.utf8ToString( assertionValue ) : assertionValue );
+        int low = 0;
+        int high = dns.size();
+
+        while ( low < high )
+        {
+            int middle = ( low + high ) >>> 1;
+
+            if ( isAtOrAfter( middle, assertion, session ) )
+            {
+                high = middle;
+            }
+            else
+            {
+                low = middle + 1;
+            }
+        }
+
+        return low + 1;
+    }
+
+
+    /**
+     * Tells if the entry at the given index sorts at or after the assertion value.
+     * As per RFC 2891, the entries without the attribute come last.
+     */
+    private boolean isAtOrAfter( int index, Object assertion, CoreSession session ) throws LdapException
+    {
+        Object value = null;
+        Entry entry = session.lookup( dns.get( index ), sortAttributeType.getName() );
+
+        if ( entry != null )
+        {
+            Attribute attribute = entry.get( sortAttributeType );
+
+            if ( attribute != null )
+            {
+                value = getLeastValue( attribute );
+            }
+        }
+
+        if ( value == null )
+        {
+            return !reverse;
+        }
+
+        int c = comparator.compare( value, assertion );
+
+        return reverse ? c <= 0 : c >= 0;
+    }
+
+
+    /**
+     * Picks the least value of an attribute, as the sort does
+     */
+    private Object getLeastValue( Attribute attribute )
+    {
+        Object least = null;
+
+        for ( Value<?> v : attribute )
+        {
+            Object value = ( hr ? v.getString() : v.getBytes() );
+
+            if ( ( least == null ) || ( comparator.compare( value, least ) < 0 ) )
+            {
+                least = value;
+            }
+        }
+
+        return least;
+    }
+
+
+    /**
+     * Compares two strings, either of them may be null
+     */
+    private static boolean sameString( String s1, String s2 )
+    {
+        return ( s1 == null ) ? ( s2 == null ) : s1.equals( s2 );
+    }
+
+
+    /**
+     * Compare the search request this context has been built for and a new one, and
+     * return true if the same list of entries is selected. We compare the base, scope,
+     * alias dereferencing mode, filter and sort keys.
+     *
+     * @param request The new SearchRequest
+     * @param sortKeys The sort keys of the new request
+     * @param schemaManager The schema manager
+     * @return true if both requests select the same list
+     */
+    public boolean hasSameRequest( SearchRequest request, List<SortKey> sortKeys, SchemaManager schemaManager )
+    {
+        if ( ( request.getScope() != searchRequest.getScope() )
+            || ( request.getDerefAliases() != searchRequest.getDerefAliases() ) )
+        {
+            return false;
+        }
+
+        if ( sortKeys.size() != this.sortKeys.size() )
+        {
+            return false;
+        }
+
+        for ( int i = 0; i < sortKeys.size(); i++ )
+        {
+            SortKey sortKey = sortKeys.get( i );
+            SortKey previousSortKey = this.sortKeys.get( i );
+
+            if ( !sameString( sortKey.getAttributeTypeDesc(), previousSortKey.getAttributeTypeDesc() )
+                || !sameString( sortKey.getMatchingRuleId(), previousSortKey.getMatchingRuleId() )
+                || ( sortKey.isReverseOrder() != previousSortKey.isReverseOrder() ) )
+            {
+                return false;
+            }
+        }
+
+        // The filter is not normalized, we assume the client sends it the same way
+        if ( !request.getFilter().toString().equals( searchRequest.getFilter().toString() ) )
+        {
+            return false;
+        }
+
+        try
+        {
+            request.getBase().apply( schemaManager );
+            searchRequest.getBase().apply( schemaManager );
+
+            return request.getBase().equals( searchRequest.getBase() );
+        }
+        catch ( LdapException le )
+        {
+            return false;
+        }
+    }
+}
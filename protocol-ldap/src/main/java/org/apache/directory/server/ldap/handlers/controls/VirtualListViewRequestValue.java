@@ -0,0 +1,351 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.controls;
+
+
+import org.apache.directory.api.asn1.DecoderException;
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * The decoded value of a VirtualListView request control, as described in
+ * draft-ietf-ldapext-ldapv3-vlv-09 :
+ * 
+ * <pre>
+ * VirtualListViewRequest ::= SEQUENCE {
+ *     beforeCount    INTEGER (0..maxInt),
+ *     afterCount     INTEGER (0..maxInt),
+ *     target       CHOICE {
+ *                    byOffset        [0] SEQUENCE {
+ *                         offset          INTEGER (1 .. maxInt),
+ *                         contentCount    INTEGER (0 .. maxInt) },
+ *                    greaterThanOrEqual [1] AssertionValue },
+ *     contextID     OCTET STRING OPTIONAL }
+ * </pre>
+ * 
+ * The LDAP API we depend on does not provide a codec for this control, so it
+ * is received as an opaque control and its value is decoded here.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class VirtualListViewRequestValue
+{
+    /** The VirtualListView request control OID */
+    public static final String OID = "2.16.840.1.113730.3.4.9";
+
+    /** The tags used in the control value */
+    private static final int SEQUENCE_TAG = 0x30;
+    private static final int INTEGER_TAG = 0x02;
+    private static final int OCTET_STRING_TAG = 0x04;
+    private static final int BY_OFFSET_TAG = 0xA0;
+    private static final int GREATER_THAN_OR_EQUAL_TAG = 0x81;
+
+    /** The number of entries to return before the target */
+    private int beforeCount;
+
+    /** The number of entries to return after the target */
+    private int afterCount;
+
+    /** The target offset, when the target is selected by offset */
+    private int offset;
+
+    /** The client estimate of the content count, when the target is selected by offset */
+    private int contentCount;
+
+    /** The assertion value, when the target is selected by value */
+    private byte[] assertionValue;
+
+    /** The optional context ID sent back by the server on a previous request */
+    private byte[] contextId;
+
+    /** The encoded value */
+    private byte[] value;
+
+    /** The position in the encoded value while decoding */
+    private int pos;
+
+
+    /**
+     * Creates a new instance of VirtualListViewRequestValue
+     */
+    private VirtualListViewRequestValue( byte[] value )
+    {
+        this.value = value;
+    }
+
+
+    /**
+     * Decodes the value of a VirtualListView request control.
+     *
+     * @param value The control value
+     * @return The decoded value
+     * @throws DecoderException If the value is not a valid VirtualListViewRequest
+     */
+    public static VirtualListViewRequestValue decode( byte[] value ) throws DecoderException
+    {
+        if ( ( value == null ) || ( value.length == 0 ) )
+        {
+            throw new DecoderException( "The VirtualListView request control must have a value" );
+        }
+
+        VirtualListViewRequestValue request = new VirtualListViewRequestValue( value );
+
+        int end = request.readHeader( SEQUENCE_TAG );
+
+        if ( end != value.length )
+        {
+            throw new DecoderException( "Unexpected trailing bytes in the VirtualListView request control" );
+        }
+
+        request.beforeCount = request.readInteger();
+        request.afterCount = request.readInteger();
+
+        if ( request.pos >= end )
+        {
+            throw new DecoderException( "The VirtualListView request control has no target" );
+        }
+
+        switch ( value[request.pos] & 0xFF )
+        {
+            case BY_OFFSET_TAG:
+                int targetEnd = request.readHeader( BY_OFFSET_TAG );
+                request.offset = request.readInteger();
+                request.contentCount = request.readInteger();
+
+                if ( request.pos != targetEnd )
+                {
+                    throw new DecoderException( "Invalid byOffset target in the VirtualListView request control" );
+                }
+
+                break;
+
+            case GREATER_THAN_OR_EQUAL_TAG:
+                request.assertionValue = request.readOctetString( GREATER_THAN_OR_EQUAL_TAG );
+                break;
+
+            default:
+                throw new DecoderException( "Unknown target in the VirtualListView request control : "
+                    + Strings.dumpBytes( new byte[]
+                    { value[request.pos] } ) );
+        }
+
+        if ( request.pos < end )
+        {
+            request.contextId = request.readOctetString( OCTET_STRING_TAG );
+        }
+
+        if ( request.pos != end )
+        {
+            throw new DecoderException( "Unexpected trailing bytes in the VirtualListView request control" );
+        }
+
+        if ( ( request.beforeCount < 0 ) || ( request.afterCount < 0 ) || ( request.offset < 0 )
+            || ( request.contentCount < 0 ) )
+        {
+            throw new DecoderException( "Negative counts are not allowed in the VirtualListView request control" );
+        }
+
+        request.value = null;
+
+        return request;
+    }
+
+
+    /**
+     * Reads a tag and a length, and returns the position of the end of the element
+     */
+    private int readHeader( int expectedTag ) throws DecoderException
+    {
+        if ( pos >= value.length )
+        {
+            throw new DecoderException( "Truncated VirtualListView request control" );
+        }
+
+        int tag = value[pos++] & 0xFF;
+
+        if ( tag != expectedTag )
+        {
+            throw new DecoderException( "Unexpected tag " + Strings.dumpBytes( new byte[]
+                { ( byte ) tag } )
+                + " in the VirtualListView request control" );
+        }
+
+        if ( pos >= value.length )
+        {
+            throw new DecoderException( "Truncated VirtualListView request control" );
+        }
+
+        int length = value[pos++] & 0xFF;
+
+        if ( length > 0x7F )
+        {
+            int nbBytes = length & 0x7F;
+
+            if ( ( nbBytes == 0 ) || ( nbBytes > 4 ) || ( pos + nbBytes > value.length ) )
+            {
+                throw new DecoderException( "Invalid length in the VirtualListView request control" );
+            }
+
+            length = 0;
+
+            for ( int i = 0; i < nbBytes; i++ )
+            {
+                length = ( length << 8 ) | ( value[pos++] & 0xFF );
+            }
+        }
+
+        if ( ( length < 0 ) || ( pos + length > value.length ) )
+        {
+            throw new DecoderException( "Invalid length in the VirtualListView request control" );
+        }
+
+        return pos + length;
+    }
+
+
+    /**
+     * Reads an INTEGER which must fit into an int
+     */
+    private int readInteger() throws DecoderException
+    {
+        int end = readHeader( INTEGER_TAG );
+
+        if ( ( end == pos ) || ( end - pos > 4 ) )
+        {
+            throw new DecoderException( "Invalid INTEGER in the VirtualListView request control" );
+        }
+
+        // The first byte carries the sign
+        int result = value[pos++];
+
+        while ( pos < end )
+        {
+            result = ( result << 8 ) | ( value[pos++] & 0xFF );
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Reads an OCTET STRING with the given tag
+     */
+    private byte[] readOctetString( int expectedTag ) throws DecoderException
+    {
+        int end = readHeader( expectedTag );
+        byte[] bytes = new byte[end - pos];
+        System.arraycopy( value, pos, bytes, 0, bytes.length );
+        pos = end;
+
+        return bytes;
+    }
+
+
+    /**
+     * @return The number of entries to return before the target
+     */
+    public int getBeforeCount()
+    {
+        return beforeCount;
+    }
+
+
+    /**
+     * @return The number of entries to return after the target
+     */
+    public int getAfterCount()
+    {
+        return afterCount;
+    }
+
+
+    /**
+     * @return true if the target is selected by offset, false if it's selected by value
+     */
+    public boolean isByOffset()
+    {
+        return assertionValue == null;
+    }
+
+
+    /**
+     * @return The target offset, starting at 1
+     */
+    public int getOffset()
+    {
+        return offset;
+    }
+
+
+    /**
+     * @return The client estimate of the content count, 0 if the client has none
+     */
+    public int getContentCount()
+    {
+        return contentCount;
+    }
+
+
+    /**
+     * @return The assertion value used to select the target
+     */
+    public byte[] getAssertionValue()
+    {
+        return assertionValue;
+    }
+
+
+    /**
+     * @return The context ID, or null if the client did not provide one
+     */
+    public byte[] getContextId()
+    {
+        return contextId;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "VirtualListViewRequest : beforeCount=" ).append( beforeCount );
+        sb.append( ", afterCount=" ).append( afterCount );
+
+        if ( isByOffset() )
+        {
+            sb.append( ", offset=" ).append( offset );
+            sb.append( ", contentCount=" ).append( contentCount );
+        }
+        else
+        {
+            sb.append( ", greaterThanOrEqual=" ).append( Strings.dumpBytes( assertionValue ) );
+        }
+
+        if ( contextId != null )
+        {
+            sb.append( ", contextID=" ).append( Strings.dumpBytes( contextId ) );
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.controls;
+
+
+import java.nio.ByteBuffer;
+
+import org.apache.directory.api.asn1.EncoderException;
+import org.apache.directory.api.asn1.ber.tlv.BerValue;
+import org.apache.directory.api.asn1.ber.tlv.TLV;
+import org.apache.directory.api.asn1.ber.tlv.UniversalTag;
+
+
+/**
+ * The value of a VirtualListView response control, as described in
+ * draft-ietf-ldapext-ldapv3-vlv-09 :
+ * 
+ * <pre>
+ * VirtualListViewResponse ::= SEQUENCE {
+ *     targetPosition    INTEGER (0 .. maxInt),
+ *     contentCount      INTEGER (0 .. maxInt),
+ *     virtualListViewResult ENUMERATED { ... },
+ *     contextID     OCTET STRING OPTIONAL }
+ * </pre>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class VirtualListViewResponseValue
+{
+    /** The VirtualListView response control OID */
+    public static final String OID = "2.16.840.1.113730.3.4.10";
+
+    /** The virtualListViewResult values */
+    public static final int SUCCESS = 0;
+    public static final int OPERATIONS_ERROR = 1;
+    public static final int UNWILLING_TO_PERFORM = 53;
+    public static final int INSUFFICIENT_ACCESS_RIGHTS = 50;
+    public static final int ADMIN_LIMIT_EXCEEDED = 11;
+    public static final int INAPPROPRIATE_MATCHING = 18;
+    public static final int SORT_CONTROL_MISSING = 60;
+    public static final int OFFSET_RANGE_ERROR = 61;
+    public static final int OTHER = 80;
+
+    /** The position of the target entry in the list, starting at 1 */
+    private int targetPosition;
+
+    /** The server estimate of the list size */
+    private int contentCount;
+
+    /** The result of the VirtualListView operation */
+    private int result = SUCCESS;
+
+    /** The context ID the client should send back on the next request */
+    private byte[] contextId;
+
+
+    /**
+     * Encodes the control value.
+     *
+     * @return The encoded value
+     * @throws EncoderException If the value can't be encoded
+     */
+    public byte[] encode() throws EncoderException
+    {
+        int targetPositionLength = BerValue.getNbBytes( targetPosition );
+        int contentCountLength = BerValue.getNbBytes( contentCount );
+        int resultLength = BerValue.getNbBytes( result );
+
+        int sequenceLength = 1 + TLV.getNbBytes( targetPositionLength ) + targetPositionLength
+            + 1 + TLV.getNbBytes( contentCountLength ) + contentCountLength
+            + 1 + TLV.getNbBytes( resultLength ) + resultLength;
+
+        if ( contextId != null )
+        {
+            sequenceLength += 1 + TLV.getNbBytes( contextId.length ) + contextId.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate( 1 + TLV.getNbBytes( sequenceLength ) + sequenceLength );
+
+        buffer.put( UniversalTag.SEQUENCE.getValue() );
+        buffer.put( TLV.getBytes( sequenceLength ) );
+
+        BerValue.encode( buffer, targetPosition );
+        BerValue.encode( buffer, contentCount );
+
+        // The result is an ENUMERATED
+        buffer.put( UniversalTag.ENUMERATED.getValue() );
+        buffer.put( TLV.getBytes( resultLength ) );
+        buffer.put( BerValue.getBytes( result ) );
+
+        if ( contextId != null )
+        {
+            BerValue.encode( buffer, contextId );
+        }
+
+        return buffer.array();
+    }
+
+
+    /**
+     * @return The position of the target entry in the list
+     */
+    public int getTargetPosition()
+    {
+        return targetPosition;
+    }
+
+
+    /**
+     * @param targetPosition The position of the target entry in the list
+     */
+    public void setTargetPosition( int targetPosition )
+    {
+        this.targetPosition = targetPosition;
+    }
+
+
+    /**
+     * @return The server estimate of the list size
+     */
+    public int getContentCount()
+    {
+        return contentCount;
+    }
+
+
+    /**
+     * @param contentCount The server estimate of the list size
+     */
+    public void setContentCount( int contentCount )
+    {
+        this.contentCount = contentCount;
+    }
+
+
+    /**
+     * @return The result of the VirtualListView operation
+     */
+    public int getResult()
+    {
+        return result;
+    }
+
+
+    /**
+     * @param result The result of the VirtualListView operation
+     */
+    public void setResult( int result )
+    {
+        this.result = result;
+    }
+
+
+    /**
+     * @return The context ID
+     */
+    public byte[] getContextId()
+    {
+        return contextId;
+    }
+
+
+    /**
+     * @param contextId The context ID
+     */
+    public void setContextId( byte[] contextId )
+    {
+        this.contextId = contextId;
+    }
+}
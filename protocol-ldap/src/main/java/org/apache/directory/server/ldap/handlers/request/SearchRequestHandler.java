@@ -29,6 +29,10 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.directory.api.asn1.DecoderException;
+import org.apache.directory.api.asn1.EncoderException;
+import org.apache.directory.api.ldap.codec.BasicControlDecorator;
+import org.apache.directory.api.ldap.codec.api.CodecControl;
 import org.apache.directory.api.ldap.codec.controls.search.pagedSearch.PagedResultsDecorator;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncInfoValue.SyncRequestValue;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
@@ -60,10 +64,16 @@ import org.apache.directory.api.ldap.model.message.SearchResultReference;
 import org.apache.directory.api.ldap.model.message.SearchResultReferenceImpl;
 import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.controls.ManageDsaIT;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
 import org.apache.directory.api.ldap.model.message.controls.PagedResults;
 import org.apache.directory.api.ldap.model.message.controls.PersistentSearch;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
+import org.apache.directory.api.ldap.model.message.controls.SortResponse;
+import org.apache.directory.api.ldap.model.message.controls.SortResponseControlImpl;
+import org.apache.directory.api.ldap.model.message.controls.SortResultCode;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.url.LdapUrl;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -80,6 +90,10 @@ import org.apache.directory.server.ldap.handlers.PersistentSearchListener;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.handlers.controls.PagedSearchContext;
+import org.apache.directory.server.ldap.handlers.controls.PagedSearchContextManager;
+import org.apache.directory.server.ldap.handlers.controls.VirtualListViewContext;
+import org.apache.directory.server.ldap.handlers.controls.VirtualListViewRequestValue;
+import org.apache.directory.server.ldap.handlers.controls.VirtualListViewResponseValue;
 import org.apache.directory.server.ldap.replication.provider.ReplicationRequestHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -309,11 +323,52 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
      */
     private void setTimeLimitsOnCursor( SearchRequest req, LdapSession session,
         final Cursor<Entry> cursor )
+    {
+        long timeLimit = getTimeLimit( req, session );
+
+        if ( timeLimit != NO_TIME_LIMIT )
+        {
+            cursor.setClosureMonitor( new SearchTimeLimitingMonitor( timeLimit, TimeUnit.SECONDS ) );
+        }
+    }
+
+
+    /**
+     * Computes the time at which the search must be stopped, from the server maximum time
+     * limit and the requested time limit. This is used to bound the time spent waiting for
+     * the client to read the entries, the cursor enforcing the same limit when reading them.
+     *
+     * @param req the {@link SearchRequest} issued
+     * @param session the {@link LdapSession} on which search was requested
+     * @return the deadline, in milliseconds since the epoch, or 0 if the search is not limited
+     */
+    private long getDeadline( SearchRequest req, LdapSession session )
+    {
+        long timeLimit = getTimeLimit( req, session );
+
+        if ( timeLimit == NO_TIME_LIMIT )
+        {
+            return 0L;
+        }
+
+        return System.currentTimeMillis() + timeLimit * 1000L;
+    }
+
+
+    /**
+     * Computes the time limit of a search, in seconds, from the server maximum time limit
+     * and the requested time limit.
+     *
+     * @param req the {@link SearchRequest} issued
+     * @param session the {@link LdapSession} on which search was requested
+     * @return the time limit, or NO_TIME_LIMIT if the search is not limited
+     */
+    private long getTimeLimit( SearchRequest req, LdapSession session )
     {
         // Don't bother setting time limits for administrators
         if ( session.getCoreSession().isAnAdministrator() && req.getTimeLimit() == NO_TIME_LIMIT )
         {
-            return;
+            return NO_TIME_LIMIT;
         }
 
         /*
@@ -323,7 +378,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
          */
         if ( ldapServer.getMaxTimeLimit() == NO_TIME_LIMIT && req.getTimeLimit() == NO_TIME_LIMIT )
         {
-            return;
+            return NO_TIME_LIMIT;
         }
 
         /*
@@ -333,19 +388,19 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
          */
         if ( req.getTimeLimit() == 0 )
         {
-            cursor.setClosureMonitor( new SearchTimeLimitingMonitor( ldapServer.getMaxTimeLimit(), TimeUnit.SECONDS ) );
-            return;
+            return ldapServer.getMaxTimeLimit();
         }
 
         /*
          * If the non-administrative user specifies a time limit equal to or
-         * less than the maximum limit configured in the server then we
-         * constrain search by the amount specified in the request
+         * less than the maximum limit configured in the server, or if the
+         * server has no maximum, then we constrain search by the amount
+         * specified in the request
          */
-        if ( ldapServer.getMaxTimeLimit() >= req.getTimeLimit() )
+        if ( ( ldapServer.getMaxTimeLimit() == NO_TIME_LIMIT )
+            || ( ldapServer.getMaxTimeLimit() >= req.getTimeLimit() ) )
         {
-            cursor.setClosureMonitor( new SearchTimeLimitingMonitor( req.getTimeLimit(), TimeUnit.SECONDS ) );
-            return;
+            return req.getTimeLimit();
         }
 
         /*
@@ -353,7 +408,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
          * than what the server's configured maximum limit allows so we limit
          * the search to the configured limit
          */
-        cursor.setClosureMonitor( new SearchTimeLimitingMonitor( ldapServer.getMaxTimeLimit(), TimeUnit.SECONDS ) );
+        return ldapServer.getMaxTimeLimit();
     }
 
 
@@ -391,6 +446,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
         Cursor<Entry> cursor, long sizeLimit ) throws Exception
     {
         long count = 0;
+        long deadline = getDeadline( req, session );
 
         while ( ( count < sizeLimit ) && cursor.next() )
         {
@@ -421,7 +477,11 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             }
 
             Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
+
+            if ( !writeEntry( session, req, entry, deadline ) )
+            {
+                break;
+            }
 
             if ( IS_DEBUG )
             {
@@ -457,6 +517,7 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     {
         req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
         setTimeLimitsOnCursor( req, session, cursor );
+        long deadline = getDeadline( req, session );
 
         if ( IS_DEBUG )
         {
@@ -476,7 +537,12 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             }
 
             Entry entry = cursor.get();
-            session.getIoSession().write( generateResponse( session, req, entry ) );
+
+            if ( !writeEntry( session, req, entry, deadline ) )
+            {
+                break;
+            }
+
             count++;
             pageCount++;
         }
@@ -612,6 +678,38 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
+    /**
+     * Creates a new cursor for a PagedSearch context which cursor has been closed, and
+     * moves it after the entries already returned. The search cursors don't expose a key
+     * a new search could be positioned on, so the returned entries are read again and
+     * skipped : the cost is proportional to the position in the search. This is why the
+     * cursors are only closed after a long idle time (see
+     * {@link org.apache.directory.server.ldap.LdapServer#setPagedSearchCursorIdleTime(long)}).
+     */
+    private Cursor<Entry> resumePagedSearch( LdapSession session, SearchRequest req, PagedSearchContext pagedContext )
+        throws Exception
+    {
+        Cursor<Entry> cursor = session.getCoreSession().search( req );
+        cursor.beforeFirst();
+
+        int position = pagedContext.getCurrentPosition();
+
+        if ( IS_DEBUG )
+        {
+            LOG.debug( "Resuming the PagedSearch {} at position {}", pagedContext, position );
+        }
+
+        for ( int i = 0; ( i < position ) && cursor.next(); i++ )
+        {
+            // Skip the already returned entries
+        }
+
+        pagedContext.setCursor( cursor );
+
+        return cursor;
+    }
+
+
     /**
      * Handle a Paged Search request.
      */
@@ -729,9 +827,8 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
 
             if ( pagedContext.hasSameRequest( req, session ) )
             {
-                // Case 3 : continue the search
-                cursor = pagedContext.getCursor();
-
+                // Case 3 : continue the search. The cursor may have been closed
+                // if the context was idle, it will be resumed below
                 // get the cookie
                 cookie = pagedContext.getCookie();
                 pagedResultsControl = new PagedResultsDecorator( ldapServer.getDirectoryService()
@@ -752,7 +849,9 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
                     cursor.close();
                 }
 
-                // Now create a new context and stores it into the session
+                // Now create a new context and stores it into the session. The
+                // cursor will be created when the context is resumed
+                removeContext( session, pagedContext );
                 pagedContext = new PagedSearchContext( req );
 
                 session.addPagedSearchContext( pagedContext );
@@ -771,8 +870,18 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
          * Iterate through all search results building and sending back responses
          * for each search result returned.
          */
+        PagedSearchContextManager contextManager = ldapServer.getPagedSearchContextManager();
+        contextManager.acquire( pagedContext );
+
         try
         {
+            cursor = pagedContext.getCursor();
+
+            if ( cursor == null )
+            {
+                cursor = resumePagedSearch( session, req, pagedContext );
+            }
+
             readPagedResults( session, req, ldapResult, cursor, sizeLimit, pagedLimit, pagedContext,
                 pagedResultsControl );
         }
@@ -790,6 +899,10 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
                 }
             }
         }
+        finally
+        {
+            contextManager.release( pagedContext );
+        }
 
         return ( SearchResultDone ) req.getResultResponse();
     }
@@ -819,6 +932,14 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
             return doPagedSearch( session, req, ( PagedResultsDecorator ) control );
         }
 
+        // Check if we are using the VirtualListView Control
+        control = req.getControls().get( VirtualListViewRequestValue.OID );
+
+        if ( control != null )
+        {
+            return doVirtualListViewSearch( session, req, ( Control ) control );
+        }
+
         // A normal search
         // Check that we have a cursor or not.
         // No cursor : do a search.
@@ -877,6 +998,325 @@ public class SearchRequestHandler extends LdapRequestHandler<SearchRequest>
     }
 
 
+    /**
+     * Handles a search request with the VirtualListView control. The sorted list of
+     * entries is computed once and kept in a context stored in the session, so that
+     * the following requests only have to position themselves in the list, either by
+     * offset, or with a binary search on the first sort key for a greaterThanOrEqual
+     * target. Only the entries of the requested window are read and sent back.
+     */
+    private SearchResultDone doVirtualListViewSearch( LdapSession session, SearchRequest req, Control control )
+        throws Exception
+    {
+        LdapResult ldapResult = req.getResultResponse().getLdapResult();
+        VirtualListViewResponseValue vlvResponse = new VirtualListViewResponseValue();
+        VirtualListViewRequestValue vlvRequest = null;
+
+        try
+        {
+            byte[] value = null;
+
+            if ( control instanceof CodecControl<?> )
+            {
+                value = ( ( CodecControl<?> ) control ).getValue();
+            }
+
+            vlvRequest = VirtualListViewRequestValue.decode( value );
+        }
+        catch ( DecoderException de )
+        {
+            ldapResult.setResultCode( ResultCodeEnum.PROTOCOL_ERROR );
+            ldapResult.setDiagnosticMessage( de.getMessage() );
+
+            return ( SearchResultDone ) req.getResultResponse();
+        }
+
+        if ( IS_DEBUG )
+        {
+            LOG.debug( "Handling a VirtualListView search : {}", vlvRequest );
+        }
+
+        SortRequest sortControl = ( SortRequest ) req.getControls().get( SortRequest.OID );
+
+        if ( sortControl == null )
+        {
+            vlvResponse.setResult( VirtualListViewResponseValue.SORT_CONTROL_MISSING );
+            ldapResult.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+            ldapResult.setDiagnosticMessage( "The VirtualListView control requires a server side sort control" );
+
+            return addVirtualListViewResponse( req, vlvResponse );
+        }
+
+        SchemaManager schemaManager = session.getCoreSession().getDirectoryService().getSchemaManager();
+        VirtualListViewContext context = null;
+
+        // Reuse the list computed by a previous request, if the client sends back its context ID
+        if ( vlvRequest.getContextId() != null )
+        {
+            context = session.getVirtualListViewContext(
+                VirtualListViewContext.getContextIdValue( vlvRequest.getContextId() ) );
+
+            if ( ( context != null ) && !context.hasSameRequest( req, sortControl.getSortKeys(), schemaManager ) )
+            {
+                session.removeVirtualListViewContext( context.getContextIdValue() );
+                context = null;
+            }
+        }
+
+        if ( context == null )
+        {
+            context = new VirtualListViewContext( req, sortControl.getSortKeys(), schemaManager );
+
+            if ( !readVirtualListViewContext( session, req, context, vlvResponse ) )
+            {
+                return addVirtualListViewResponse( req, vlvResponse );
+            }
+
+            session.addVirtualListViewContext( context );
+        }
+        else
+        {
+            // The search is not done again, but the client expects the sort response
+            SortResponse sortResponse = new SortResponseControlImpl();
+            sortResponse.setSortResult( SortResultCode.SUCCESS );
+            req.getResultResponse().addControl( sortResponse );
+        }
+
+        // Compute the target position, starting at 1
+        int contentCount = context.size();
+        int target;
+
+        if ( vlvRequest.isByOffset() )
+        {
+            int offset = vlvRequest.getOffset();
+            int clientCount = vlvRequest.getContentCount();
+
+            if ( offset == 0 )
+            {
+                vlvResponse.setResult( VirtualListViewResponseValue.OFFSET_RANGE_ERROR );
+                ldapResult.setResultCode( ResultCodeEnum.OTHER );
+                ldapResult.setDiagnosticMessage( "The VirtualListView offset must be greater than 0" );
+
+                return addVirtualListViewResponse( req, vlvResponse );
+            }
+
+            if ( ( clientCount == 0 ) || ( offset == 1 ) )
+            {
+                target = offset;
+            }
+            else if ( offset >= clientCount )
+            {
+                // The last entry, or after it
+                target = ( offset == clientCount ) ? contentCount : contentCount + 1;
+            }
+            else
+            {
+                // Scale the client offset to the actual list size
+                target = ( int ) Math.round( ( double ) offset * contentCount / clientCount );
+            }
+
+            target = Math.max( 1, Math.min( target, contentCount + 1 ) );
+        }
+        else
+        {
+            target = context.findPosition( vlvRequest.getAssertionValue(), session.getCoreSession() );
+        }
+
+        int first = Math.max( 1, target - vlvRequest.getBeforeCount() );
+        int last = ( int ) Math.min( contentCount, ( long ) target + vlvRequest.getAfterCount() );
+        long sizeLimit = req.getSizeLimit() == 0L ? Long.MAX_VALUE : req.getSizeLimit();
+        String[] attributes = req.getAttributes().toArray( new String[req.getAttributes().size()] );
+        long count = 0;
+        long deadline = getDeadline( req, session );
+
+        for ( int position = first; position <= last; position++ )
+        {
+            if ( count >= sizeLimit )
+            {
+                ldapResult.setResultCode( ResultCodeEnum.SIZE_LIMIT_EXCEEDED );
+                break;
+            }
+
+            if ( req.isAbandoned() || session.getIoSession().isClosing() )
+            {
+                break;
+            }
+
+            Entry entry = null;
+
+            try
+            {
+                entry = session.getCoreSession().lookup( context.get( position ), attributes );
+            }
+            catch ( LdapException le )
+            {
+                // The entry has been removed or can't be read anymore since the list was built
+                LOG.debug( "Cannot read the entry {} : {}", context.get( position ), le.getMessage() );
+            }
+
+            if ( entry == null )
+            {
+                continue;
+            }
+
+            if ( !( entry instanceof ClonedServerEntry ) )
+            {
+                entry = new ClonedServerEntry( entry );
+            }
+
+            if ( !writeEntry( session, req, entry, deadline ) )
+            {
+                break;
+            }
+
+            count++;
+        }
+
+        if ( ldapResult.getResultCode() == null )
+        {
+            ldapResult.setResultCode( ResultCodeEnum.SUCCESS );
+        }
+
+        vlvResponse.setTargetPosition( target );
+        vlvResponse.setContentCount( contentCount );
+        vlvResponse.setContextId( context.getContextId() );
+
+        return addVirtualListViewResponse( req, vlvResponse );
+    }
+
+
+    /**
+     * Does the sorted search and stores the Dn of the returned entries in the
+     * VirtualListView context.
+     *
+     * @return false if the list can't be built, the response being updated accordingly
+     */
+    private boolean readVirtualListViewContext( LdapSession session, SearchRequest req,
+        VirtualListViewContext context, VirtualListViewResponseValue vlvResponse ) throws Exception
+    {
+        LdapResult ldapResult = req.getResultResponse().getLdapResult();
+        Cursor<Entry> cursor = session.getCoreSession().search( req );
+
+        // register the request in the session
+        session.registerSearchRequest( req, cursor );
+
+        try
+        {
+            SortResponse sortResponse = ( SortResponse ) req.getResultResponse().getControls().get(
+                SortResponse.OID );
+
+            if ( ( ldapResult.getResultCode() != null )
+                || ( ( sortResponse != null ) && ( sortResponse.getSortResult() != SortResultCode.SUCCESS ) ) )
+            {
+                // The entries can't be sorted : the list can't be built
+                vlvResponse.setResult( VirtualListViewResponseValue.UNWILLING_TO_PERFORM );
+
+                if ( ldapResult.getResultCode() == null )
+                {
+                    ldapResult.setResultCode( ResultCodeEnum.UNWILLING_TO_PERFORM );
+                    ldapResult.setDiagnosticMessage( "The entries can't be sorted for the VirtualListView control" );
+                }
+
+                return false;
+            }
+
+            // The list can't be bigger than what the server would return for a simple search
+            long listLimit = Integer.MAX_VALUE;
+
+            if ( !session.getCoreSession().isAnAdministrator() && ( ldapServer.getMaxSizeLimit() != NO_SIZE_LIMIT ) )
+            {
+                listLimit = ldapServer.getMaxSizeLimit();
+            }
+
+            req.addAbandonListener( new SearchAbandonListener( ldapServer, cursor ) );
+            setTimeLimitsOnCursor( req, session, cursor );
+
+            cursor.beforeFirst();
+
+            while ( cursor.next() )
+            {
+                if ( req.isAbandoned() )
+                {
+                    cursor.close( new OperationAbandonedException() );
+
+                    return false;
+                }
+
+                if ( context.size() >= listLimit )
+                {
+                    vlvResponse.setResult( VirtualListViewResponseValue.ADMIN_LIMIT_EXCEEDED );
+                    ldapResult.setResultCode( ResultCodeEnum.ADMIN_LIMIT_EXCEEDED );
+
+                    return false;
+                }
+
+                context.add( cursor.get().getDn() );
+            }
+
+            return true;
+        }
+        finally
+        {
+            if ( ( cursor != null ) && !cursor.isClosed() )
+            {
+                try
+                {
+                    cursor.close();
+                }
+                catch ( Exception e )
+                {
+                    LOG.error( I18n.err( I18n.ERR_168 ), e );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Adds the VirtualListView response control to the SearchResultDone
+     */
+    private SearchResultDone addVirtualListViewResponse( SearchRequest req, VirtualListViewResponseValue vlvResponse )
+        throws EncoderException
+    {
+        BasicControlDecorator<OpaqueControl> control = new BasicControlDecorator<OpaqueControl>(
+            ldapServer.getDirectoryService().getLdapCodecService(),
+            new OpaqueControl( VirtualListViewResponseValue.OID ) );
+        control.setValue( vlvResponse.encode() );
+        req.getResultResponse().addControl( control );
+
+        return ( SearchResultDone ) req.getResultResponse();
+    }
+
+
+    /**
+     * Writes the response for an entry to the client. If too many responses are already
+     * waiting to be sent, we wait for the client to read them before producing a new one.
+     * The wait is bounded by the server's maximum write queue wait, and by the search time
+     * limit.
+     *
+     * @param session the LDAP session
+     * @param req the search request
+     * @param entry the entry to send
+     * @param deadline the time at which the search time limit is exceeded, or 0
+     * @return false if the entry has not been sent, the request being abandoned or the session closed
+     * @throws Exception if there are problems in generating the response, or if the time limit
+     * is exceeded while waiting for the client
+     */
+    private boolean writeEntry( LdapSession session, SearchRequest req, Entry entry, long deadline )
+        throws Exception
+    {
+        if ( !session.waitForWriteQueue( ldapServer.getMaxScheduledWriteBytes(), ldapServer.getMaxWriteQueueWait(),
+            deadline, req ) )
+        {
+            return false;
+        }
+
+        session.getIoSession().write( generateResponse( session, req, entry ) );
+
+        return true;
+    }
+
+
     /**
      * Generates a response for an entry retrieved from the server core based
      * on the nature of the request with respect to referral handling.  This
@@ -21,10 +21,14 @@
 package org.apache.directory.server.ldap.replication;
 
 
+import java.util.List;
+
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.server.core.api.entry.ClonedServerEntry;
 
 
@@ -41,14 +45,39 @@ public class ReplicaEventMessage
     /** The entry */
     private Entry entry;
 
+    /** The entry's Dn before a MODDN operation, null for the other operations */
+    private Dn previousDn;
+
+    /** The ID of the replica the change has been received from, -1 for a local change */
+    private int originRid = -1;
+
+    /** The modifications applied on the entry by a MODIFY operation, null for the other operations */
+    private List<Modification> modifications;
+
     /**
      * Create a new ReplicaEvent instance for a Add/Delete+Modify operation
      * @param changeType The change type
      * @param entry The entry
      */
     public ReplicaEventMessage( ChangeType changeType, Entry entry )
+    {
+        this( changeType, entry, null, -1 );
+    }
+
+
+    /**
+     * Create a new ReplicaEvent instance, keeping the information needed to decide
+     * later which consumers the change has to be sent to
+     * @param changeType The change type
+     * @param entry The entry
+     * @param previousDn The entry's Dn before a MODDN operation, or null
+     * @param originRid The ID of the replica the change has been received from, or -1
+     */
+    public ReplicaEventMessage( ChangeType changeType, Entry entry, Dn previousDn, int originRid )
     {
         this.changeType = changeType;
+        this.previousDn = previousDn;
+        this.originRid = originRid;
         
         if ( entry instanceof ClonedServerEntry )
         {
@@ -79,6 +108,43 @@ public class ReplicaEventMessage
     }
 
 
+    /**
+     * @return The entry's Dn before a MODDN operation, null for the other operations
+     */
+    public Dn getPreviousDn()
+    {
+        return previousDn;
+    }
+
+
+    /**
+     * @return The ID of the replica the change has been received from, -1 for a local change
+     */
+    public int getOriginRid()
+    {
+        return originRid;
+    }
+
+
+    /**
+     * @return The modifications applied on the entry by a MODIFY operation, null for the other operations
+     */
+    public List<Modification> getModifications()
+    {
+        return modifications;
+    }
+
+
+    /**
+     * Stores the modifications applied on the entry by a MODIFY operation
+     * @param modifications The modifications
+     */
+    public void setModifications( List<Modification> modifications )
+    {
+        this.modifications = modifications;
+    }
+
+
     /**
      * checks if the event's CSN is older than the given CSN
      *
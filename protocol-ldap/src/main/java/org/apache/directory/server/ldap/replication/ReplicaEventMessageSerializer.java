@@ -22,15 +22,20 @@ package org.apache.directory.server.ldap.replication;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import jdbm.helper.Serializer;
 
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
@@ -44,7 +49,14 @@ import org.apache.directory.api.ldap.model.schema.SchemaManager;
  * <li>byte : EventType</li>
  * <li>byte[] : the serialized DN</li>
  * <li>byte[] : the serialized entry</li>
+ * <li>int : the ID of the replica the change comes from</li>
+ * <li>boolean : true if the previous DN of a MODDN operation follows</li>
+ * <li>byte[] : the serialized previous DN, if any</li>
+ * <li>int : the number of modifications of a MODIFY operation, -1 if there are none</li>
+ * <li>byte[] : the serialized modifications</li>
  * </ul>
+ * The fields following the entry are optional when reading, so that messages written by older
+ * versions can still be deserialized.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -90,6 +102,39 @@ public class ReplicaEventMessageSerializer implements Serializer
         // The entry
         entry.writeExternal( out );
 
+        // The origin replica ID
+        out.writeInt( replicaEventMessage.getOriginRid() );
+
+        // The previous DN, if any
+        Dn previousDn = replicaEventMessage.getPreviousDn();
+
+        if ( previousDn != null )
+        {
+            out.writeBoolean( true );
+            previousDn.writeExternal( out );
+        }
+        else
+        {
+            out.writeBoolean( false );
+        }
+
+        // The modifications, if any
+        List<Modification> modifications = replicaEventMessage.getModifications();
+
+        if ( modifications != null )
+        {
+            out.writeInt( modifications.size() );
+
+            for ( Modification modification : modifications )
+            {
+                modification.writeExternal( out );
+            }
+        }
+        else
+        {
+            out.writeInt( -1 );
+        }
+
         out.flush();
 
         return baos.toByteArray();
@@ -124,8 +169,45 @@ public class ReplicaEventMessageSerializer implements Serializer
             entry.readExternal( in );
             entry.setDn( entryDn );
 
+            int originRid = -1;
+            Dn previousDn = null;
+            List<Modification> modifications = null;
+
+            try
+            {
+                // The origin replica ID
+                originRid = in.readInt();
+
+                // The previous DN
+                if ( in.readBoolean() )
+                {
+                    previousDn = new Dn( schemaManager );
+                    previousDn.readExternal( in );
+                }
+
+                // The modifications
+                int nbModifications = in.readInt();
+
+                if ( nbModifications >= 0 )
+                {
+                    modifications = new ArrayList<Modification>( nbModifications );
+
+                    for ( int i = 0; i < nbModifications; i++ )
+                    {
+                        Modification modification = new DefaultModification();
+                        modification.readExternal( in );
+                        modifications.add( toSchemaAware( modification ) );
+                    }
+                }
+            }
+            catch ( EOFException eofe )
+            {
+                // A message stored by an older version, without the trailing fields
+            }
+
             // And create a ReplicaEventMessage
-            replicaEventMessage = new ReplicaEventMessage( changeType, entry );
+            replicaEventMessage = new ReplicaEventMessage( changeType, entry, previousDn, originRid );
+            replicaEventMessage.setModifications( modifications );
         }
         catch ( ClassNotFoundException cnfe )
         {
@@ -134,4 +216,20 @@ public class ReplicaEventMessageSerializer implements Serializer
 
         return replicaEventMessage;
     }
+
+
+    /**
+     * Applies the schema on a deserialized modification
+     */
+    private Modification toSchemaAware( Modification modification ) throws IOException
+    {
+        try
+        {
+            return new DefaultModification( schemaManager, modification );
+        }
+        catch ( Exception e )
+        {
+            throw new IOException( e.getMessage() );
+        }
+    }
 }
@@ -0,0 +1,234 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.directory.api.ldap.codec.BasicControlDecorator;
+import org.apache.directory.api.ldap.codec.api.CodecControl;
+import org.apache.directory.api.ldap.codec.api.LdapApiService;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.ldif.ChangeType;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.ldif.LdifUtils;
+import org.apache.directory.api.ldap.model.message.Control;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.controls.OpaqueControl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * A syncrepl extension used to replicate the modifications applied on an entry instead of
+ * the whole modified entry, which is very costly for entries with big multi-valued attributes.
+ * <br/>
+ * A consumer supporting it adds this control, with no value, to its syncrepl search request.
+ * The provider then sends the MODIFY events as an entry only containing the entryUUID and the
+ * entryCSN, along with this control, the value of which is the LDIF of the modifications :
+ * <pre>
+ * dn: &lt;entry dn&gt;
+ * changetype: modify
+ * replace: member
+ * ...
+ * </pre>
+ * The providers not knowing this control ignore it, as it is not critical, and keep on sending
+ * the whole entries.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class SyncModificationsValue
+{
+    /** The control's OID */
+    public static final String OID = "1.3.6.1.4.1.18060.0.0.9";
+
+
+    private SyncModificationsValue()
+    {
+    }
+
+
+    /**
+     * Creates the control a consumer adds to its request to get the modifications
+     *
+     * @param codec The LDAP codec service
+     * @return The request control
+     */
+    public static Control createRequestControl( LdapApiService codec )
+    {
+        return new BasicControlDecorator<OpaqueControl>( codec, new OpaqueControl( OID ) );
+    }
+
+
+    /**
+     * Tells if the consumer has asked for the modifications instead of the modified entries
+     *
+     * @param req The syncrepl search request
+     * @return true if the consumer supports the modifications
+     */
+    public static boolean isRequested( SearchRequest req )
+    {
+        return ( req != null ) && req.getControls().containsKey( OID );
+    }
+
+
+    /**
+     * Creates the control carrying the modifications of an entry
+     *
+     * @param codec The LDAP codec service
+     * @param dn The modified entry's Dn
+     * @param modifications The modifications
+     * @return The response control
+     * @throws LdapException If the modifications can't be encoded
+     */
+    public static Control createResponseControl( LdapApiService codec, Dn dn, List<Modification> modifications )
+        throws LdapException
+    {
+        LdifEntry ldif = new LdifEntry();
+        ldif.setChangeType( ChangeType.Modify );
+        ldif.setDn( dn );
+
+        for ( Modification modification : modifications )
+        {
+            ldif.addModification( modification );
+        }
+
+        BasicControlDecorator<OpaqueControl> control = new BasicControlDecorator<OpaqueControl>( codec,
+            new OpaqueControl( OID ) );
+        control.setValue( Strings.getBytesUtf8( LdifUtils.convertToLdif( ldif ) ) );
+
+        return control;
+    }
+
+
+    /**
+     * Reads the modifications carried by the control
+     *
+     * @param schemaManager The SchemaManager
+     * @param control The received control
+     * @return The schema aware modifications
+     * @throws LdapException If the control's value is not a valid LDIF modification
+     */
+    public static List<Modification> getModifications( SchemaManager schemaManager, Control control )
+        throws LdapException
+    {
+        byte[] value = null;
+
+        if ( control instanceof CodecControl<?> )
+        {
+            value = ( ( CodecControl<?> ) control ).getValue();
+        }
+
+        if ( value == null )
+        {
+            throw new LdapException( "The " + OID + " control has no value" );
+        }
+
+        LdifReader reader = new LdifReader();
+        List<LdifEntry> entries = null;
+
+        try
+        {
+            entries = reader.parseLdif( Strings.utf8ToString( value ) );
+        }
+        finally
+        {
+            try
+            {
+                reader.close();
+            }
+            catch ( IOException ioe )
+            {
+                // nothing to do
+            }
+        }
+
+        if ( ( entries == null ) || ( entries.size() != 1 ) || !entries.get( 0 ).isChangeModify() )
+        {
+            throw new LdapException( "The " + OID + " control does not contain a modification" );
+        }
+
+        List<Modification> modifications = new ArrayList<Modification>();
+
+        for ( Modification modification : entries.get( 0 ).getModifications() )
+        {
+            modifications.add( new DefaultModification( schemaManager, modification ) );
+        }
+
+        return modifications;
+    }
+
+
+    /**
+     * Makes sure the modifications update the entryCSN, so that the consumer can compare it
+     * with its own changes
+     *
+     * @param modifications The modifications done on the entry
+     * @param modifiedEntry The modified entry
+     * @return The modifications to replicate
+     */
+    public static List<Modification> withEntryCsn( List<Modification> modifications, Entry modifiedEntry )
+    {
+        Attribute csn = modifiedEntry.get( SchemaConstants.ENTRY_CSN_AT );
+
+        for ( Modification modification : modifications )
+        {
+            if ( csn.getAttributeType().equals( modification.getAttribute().getAttributeType() ) )
+            {
+                return modifications;
+            }
+        }
+
+        List<Modification> result = new ArrayList<Modification>( modifications );
+        result.add( new DefaultModification( ModificationOperation.REPLACE_ATTRIBUTE, csn ) );
+
+        return result;
+    }
+
+
+    /**
+     * Creates the entry sent along with the modifications : only its Dn, entryUUID and entryCSN
+     * are needed by the consumer
+     *
+     * @param schemaManager The SchemaManager
+     * @param modifiedEntry The modified entry
+     * @return The entry to send
+     * @throws LdapException If the entry can't be created
+     */
+    public static Entry createEntry( SchemaManager schemaManager, Entry modifiedEntry ) throws LdapException
+    {
+        Entry entry = new DefaultEntry( schemaManager, modifiedEntry.getDn() );
+        entry.add( modifiedEntry.get( SchemaConstants.ENTRY_UUID_AT ) );
+        entry.add( modifiedEntry.get( SchemaConstants.ENTRY_CSN_AT ) );
+
+        return entry;
+    }
+}
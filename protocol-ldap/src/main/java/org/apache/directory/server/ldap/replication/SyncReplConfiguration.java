@@ -131,6 +131,9 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     /** flag to indicate if this node is part of a MMR setup, default value is true */
     private boolean mmrMode = true;
 
+    /** the number of workers applying the entries during an initial refresh, default value is 1 (no parallelism) */
+    private int initialRefreshWorkers = 1;
+
 
     /**
      * Creates a new instance of SyncreplConfiguration
@@ -572,6 +575,30 @@ public class SyncReplConfiguration implements ReplicationConsumerConfig
     }
 
 
+    /**
+     * @return the number of workers applying the entries received during an initial refresh
+     */
+    public int getInitialRefreshWorkers()
+    {
+        return initialRefreshWorkers;
+    }
+
+
+    /**
+     * Sets the number of workers applying the entries received during an initial refresh.
+     * The received entries are then converted concurrently, and while the next responses
+     * are read, a parent always being added before its children. The adds themselves remain
+     * serialized by the OperationManager lock. A value of 1 applies the entries one after
+     * the other, in the thread reading the responses.
+     *
+     * @param initialRefreshWorkers The number of workers
+     */
+    public void setInitialRefreshWorkers( int initialRefreshWorkers )
+    {
+        this.initialRefreshWorkers = Math.max( 1, initialRefreshWorkers );
+    }
+
+
     public String toString()
     {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,207 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.UUID;
+
+
+/**
+ * A compact set of UUIDs, used to store the entryUUIDs sent by the provider during a
+ * refreshPresent phase. The UUIDs are stored as pairs of longs in an open addressing
+ * table, so that a set of 500 000 UUIDs only uses around 16MB, with no object created
+ * per UUID.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class EntryUuidSet
+{
+    /** The table, each UUID using two consecutive slots : the most significant bits, then the least ones */
+    private long[] table;
+
+    /** Tells if the all zero UUID, which can't be stored in the table, is present */
+    private boolean hasZero;
+
+    /** The number of UUIDs stored in the table */
+    private int size;
+
+    /** The mask used to compute the position of a UUID in the table */
+    private int mask;
+
+
+    /**
+     * Creates a set able to store the given number of UUIDs without being resized
+     *
+     * @param expectedSize The expected number of UUIDs
+     */
+    EntryUuidSet( int expectedSize )
+    {
+        int capacity = 16;
+
+        // keep the load factor under 0.5
+        while ( capacity < expectedSize * 2 )
+        {
+            capacity <<= 1;
+        }
+
+        table = new long[capacity * 2];
+        mask = capacity - 1;
+    }
+
+
+    /**
+     * Adds a UUID to the set
+     *
+     * @param uuid The UUID to add
+     */
+    void add( UUID uuid )
+    {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        if ( ( msb == 0L ) && ( lsb == 0L ) )
+        {
+            hasZero = true;
+
+            return;
+        }
+
+        if ( ( size + 1 ) * 2 > ( mask + 1 ) )
+        {
+            resize();
+        }
+
+        if ( insert( table, mask, msb, lsb ) )
+        {
+            size++;
+        }
+    }
+
+
+    /**
+     * Tells if the set contains a UUID
+     *
+     * @param uuid The UUID to look for
+     * @return true if the UUID is present in the set
+     */
+    boolean contains( UUID uuid )
+    {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        if ( ( msb == 0L ) && ( lsb == 0L ) )
+        {
+            return hasZero;
+        }
+
+        int pos = hash( msb, lsb ) & mask;
+
+        while ( true )
+        {
+            long slotMsb = table[pos * 2];
+            long slotLsb = table[pos * 2 + 1];
+
+            if ( ( slotMsb == 0L ) && ( slotLsb == 0L ) )
+            {
+                return false;
+            }
+
+            if ( ( slotMsb == msb ) && ( slotLsb == lsb ) )
+            {
+                return true;
+            }
+
+            pos = ( pos + 1 ) & mask;
+        }
+    }
+
+
+    /**
+     * @return The number of UUIDs in the set
+     */
+    int size()
+    {
+        return hasZero ? size + 1 : size;
+    }
+
+
+    /**
+     * Stores a UUID in the given table, returns false if it was already present
+     */
+    private static boolean insert( long[] table, int mask, long msb, long lsb )
+    {
+        int pos = hash( msb, lsb ) & mask;
+
+        while ( true )
+        {
+            long slotMsb = table[pos * 2];
+            long slotLsb = table[pos * 2 + 1];
+
+            if ( ( slotMsb == 0L ) && ( slotLsb == 0L ) )
+            {
+                table[pos * 2] = msb;
+                table[pos * 2 + 1] = lsb;
+
+                return true;
+            }
+
+            if ( ( slotMsb == msb ) && ( slotLsb == lsb ) )
+            {
+                return false;
+            }
+
+            pos = ( pos + 1 ) & mask;
+        }
+    }
+
+
+    /**
+     * Doubles the table's capacity
+     */
+    private void resize()
+    {
+        int newMask = ( mask << 1 ) | 1;
+        long[] newTable = new long[( newMask + 1 ) * 2];
+
+        for ( int i = 0; i < table.length; i += 2 )
+        {
+            if ( ( table[i] != 0L ) || ( table[i + 1] != 0L ) )
+            {
+                insert( newTable, newMask, table[i], table[i + 1] );
+            }
+        }
+
+        table = newTable;
+        mask = newMask;
+    }
+
+
+    /**
+     * Mixes the bits of the UUID, the random UUIDs being already well distributed
+     */
+    private static int hash( long msb, long lsb )
+    {
+        long h = msb ^ lsb;
+        h ^= ( h >>> 32 );
+        h *= 0x9E3779B97F4A7C15L;
+
+        return ( int ) ( h >>> 32 );
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+
+/**
+ * Applies the entries received during an initial refresh with a pool of workers.
+ * The provider sends the entries sorted by Dn, parents first : an entry is handed
+ * to a worker as soon as it is read, and the worker only waits for the entry's parent,
+ * if it is still being added, so that a child is never added before its parent.
+ * <br>
+ * The adds themselves are not concurrent : each one holds the OperationManager write
+ * lock, the global one or the partition one, during the whole interceptor chain. What
+ * the workers do in parallel is the work done before that lock is taken, mainly the
+ * conversion of the received entries into schema aware entries, and they free the
+ * thread reading the provider's responses from the adds. Using more than a couple of
+ * workers hence brings nothing.
+ * <br>
+ * The number of entries read but not yet applied is bounded, so that a fast provider
+ * does not fill the consumer's memory.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+abstract class ParallelRefreshApplier
+{
+    /** The number of pending entries allowed per worker */
+    private static final int PENDING_ENTRIES_PER_WORKER = 64;
+
+    /** The workers */
+    private final ExecutorService executor;
+
+    /** The permits limiting the number of pending entries */
+    private final Semaphore permits;
+
+    /** The maximum number of pending entries */
+    private final int maxPending;
+
+    /** The latches of the entries being added, used by their children to wait for them */
+    private final ConcurrentMap<Dn, CountDownLatch> pendingAdds = new ConcurrentHashMap<Dn, CountDownLatch>();
+
+
+    /**
+     * Creates a new instance of ParallelRefreshApplier
+     *
+     * @param nbWorkers The number of workers
+     * @param name The name used for the workers threads
+     */
+    ParallelRefreshApplier( int nbWorkers, final String name )
+    {
+        maxPending = nbWorkers * PENDING_ENTRIES_PER_WORKER;
+        permits = new Semaphore( maxPending );
+        executor = Executors.newFixedThreadPool( nbWorkers, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, name + "-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+
+                return thread;
+            }
+        } );
+    }
+
+
+    /**
+     * Applies an entry. Called by the workers.
+     *
+     * @param entry The received entry
+     */
+    protected abstract void apply( SearchResultEntry entry );
+
+
+    /**
+     * Hands an entry to the workers. The entry will be applied once its parent,
+     * if it has been submitted before, has been applied. This method blocks when
+     * too many entries are pending.
+     *
+     * @param dn The normalized Dn of the entry
+     * @param entry The entry to apply
+     * @throws InterruptedException If the thread is interrupted while waiting for a free slot
+     */
+    void submit( final Dn dn, final SearchResultEntry entry ) throws InterruptedException
+    {
+        final CountDownLatch parentAdded = pendingAdds.get( dn.getParent() );
+        final CountDownLatch added = new CountDownLatch( 1 );
+
+        permits.acquire();
+        pendingAdds.put( dn, added );
+
+        // The tasks are started in submission order, so a task only waits for a task
+        // which is already running : the workers can't all be blocked
+        executor.execute( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    if ( parentAdded != null )
+                    {
+                        parentAdded.await();
+                    }
+
+                    apply( entry );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    pendingAdds.remove( dn, added );
+                    added.countDown();
+                    permits.release();
+                }
+            }
+        } );
+    }
+
+
+    /**
+     * Waits until all the submitted entries have been applied.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    void await() throws InterruptedException
+    {
+        permits.acquire( maxPending );
+        permits.release( maxPending );
+    }
+
+
+    /**
+     * Waits for the submitted entries to be applied, and stops the workers.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    void shutdown() throws InterruptedException
+    {
+        try
+        {
+            await();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -22,9 +22,12 @@ package org.apache.directory.server.ldap.replication.consumer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import org.apache.commons.collections.map.LRUMap;
 import org.apache.directory.api.ldap.codec.controls.manageDsaIT.ManageDsaITDecorator;
@@ -50,13 +53,12 @@ import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
-import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
-import org.apache.directory.api.ldap.model.filter.NotNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.IntermediateResponse;
 import org.apache.directory.api.ldap.model.message.Response;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
@@ -91,6 +93,7 @@ import org.apache.directory.server.core.api.interceptor.context.MoveOperationCon
 import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
 import org.apache.directory.server.ldap.replication.ReplicationConsumerConfig;
+import org.apache.directory.server.ldap.replication.SyncModificationsValue;
 import org.apache.directory.server.ldap.replication.SyncReplConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -294,6 +297,10 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 new ManageDsaITImpl() ) );
         }
 
+        // ask the provider to send the modifications instead of the whole modified entries
+        searchRequest.addControl( SyncModificationsValue.createRequestControl(
+            directoryService.getLdapCodecService() ) );
+
         if ( CONSUMER_LOG.isDebugEnabled() )
         {
             MDC.put( "Replica", Integer.toString( config.getReplicaId() ) );
@@ -413,7 +420,17 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
                     case MODIFY:
                         CONSUMER_LOG.debug( "modifying entry with dn {}", remoteEntry.getDn().getName() );
-                        modify( remoteEntry, rid );
+                        Control modificationsControl = syncResult.getControl( SyncModificationsValue.OID );
+
+                        if ( modificationsControl != null )
+                        {
+                            modify( remoteEntry, SyncModificationsValue.getModifications( schemaManager,
+                                modificationsControl ), rid );
+                        }
+                        else
+                        {
+                            modify( remoteEntry, rid );
+                        }
 
                         break;
 
@@ -767,28 +784,78 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
 
         CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
 
-        // Now, process the responses. We loop until we have a connection termination or
-        // a SearchResultDone (RefreshOnly mode)
-        while ( !( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected )
+        // Without a cookie, the provider sends the whole content : the added entries
+        // can be handed to workers, as long as a parent is added before its children.
+        // The adds are still serialized by the OperationManager lock
+        ParallelRefreshApplier refreshApplier = null;
+
+        if ( ( syncCookie == null ) && ( config.getInitialRefreshWorkers() > 1 ) )
         {
-            if ( resp instanceof SearchResultEntry )
+            CONSUMER_LOG.debug( "Applying the initial refresh with {} workers", config.getInitialRefreshWorkers() );
+
+            refreshApplier = new ParallelRefreshApplier( config.getInitialRefreshWorkers(),
+                "InitialRefresh-" + config.getReplicaId() )
             {
-                SearchResultEntry result = ( SearchResultEntry ) resp;
+                protected void apply( SearchResultEntry entry )
+                {
+                    handleSearchResultEntry( entry );
+                }
+            };
+        }
 
-                handleSearchResultEntry( result );
-            }
-            else if ( resp instanceof SearchResultReference )
+        try
+        {
+            // Now, process the responses. We loop until we have a connection termination or
+            // a SearchResultDone (RefreshOnly mode)
+            while ( !( resp instanceof SearchResultDone ) && !sf.isCancelled() && !disconnected )
             {
-                handleSearchReference( ( SearchResultReference ) resp );
+                if ( resp instanceof SearchResultEntry )
+                {
+                    SearchResultEntry result = ( SearchResultEntry ) resp;
+
+                    if ( ( refreshApplier != null ) && isInitialAdd( result ) )
+                    {
+                        refreshApplier.submit( result.getObjectName().apply( schemaManager ), result );
+                    }
+                    else
+                    {
+                        if ( refreshApplier != null )
+                        {
+                            // Any other message must see all the previous entries applied
+                            refreshApplier.await();
+                        }
+
+                        handleSearchResultEntry( result );
+                    }
+                }
+                else
+                {
+                    if ( refreshApplier != null )
+                    {
+                        refreshApplier.await();
+                    }
+
+                    if ( resp instanceof SearchResultReference )
+                    {
+                        handleSearchReference( ( SearchResultReference ) resp );
+                    }
+                    else if ( resp instanceof IntermediateResponse )
+                    {
+                        handleSyncInfo( ( IntermediateResponse ) resp );
+                    }
+                }
+
+                // Next entry
+                resp = sf.get();
+                CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
             }
-            else if ( resp instanceof IntermediateResponse )
+        }
+        finally
+        {
+            if ( refreshApplier != null )
             {
-                handleSyncInfo( ( IntermediateResponse ) resp );
+                refreshApplier.shutdown();
             }
-
-            // Next entry
-            resp = sf.get();
-            CONSUMER_LOG.debug( "Response from {} : {}", config.getProducer(), resp );
         }
 
         if ( sf.isCancelled() )
@@ -863,6 +930,19 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Tells if an entry received from the provider is a plain addition, which does not
+     * carry a cookie and hence can be applied concurrently with the other additions.
+     */
+    private boolean isInitialAdd( SearchResultEntry result )
+    {
+        SyncStateValue syncStateCtrl = ( SyncStateValue ) result.getControl( SyncStateValue.OID );
+
+        return ( syncStateCtrl != null ) && ( syncStateCtrl.getSyncStateType() == SyncStateTypeEnum.ADD )
+            && ( syncStateCtrl.getCookie() == null );
+    }
+
+
     /**
      * Disconnect from the producer
      */
@@ -1216,6 +1296,120 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     }
 
 
+    /**
+     * Applies the modifications sent by the provider, instead of comparing the whole
+     * remote entry with the local one.
+     *
+     * Unlike a whole entry, a list of modifications can't be applied twice : the entryCSN
+     * is always checked, whatever the MMR mode, and the modifications already applied
+     * are discarded. The modifications on the user attributes the consumer does not
+     * replicate are skipped too. If the modifications can't be applied, the whole entry
+     * is read from the provider and applied instead.
+     */
+    private void modify( Entry remoteEntry, List<Modification> modifications, int rid ) throws Exception
+    {
+        LookupOperationContext lookupCtx = new LookupOperationContext( session, remoteEntry.getDn(),
+            new String[]
+                { SchemaConstants.ENTRY_CSN_AT } );
+
+        lookupCtx.setSyncreplLookup( true );
+
+        Entry localEntry = session.getDirectoryService().getOperationManager().lookup( lookupCtx );
+
+        Csn localCsn = new Csn( localEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+        Csn remoteCsn = new Csn( remoteEntry.get( SchemaConstants.ENTRY_CSN_AT ).getString() );
+
+        if ( localCsn.compareTo( remoteCsn ) >= 0 )
+        {
+            // just discard the received modifications, they are old
+            CONSUMER_LOG.debug( "local modification is latest, discarding the modification of dn {}",
+                remoteEntry.getDn() );
+            return;
+        }
+
+        String[] attributes = config.getAttributes();
+        List<Modification> serverModifications = new ArrayList<Modification>( modifications.size() );
+
+        for ( Modification mod : modifications )
+        {
+            if ( isReplicated( mod.getAttribute().getAttributeType(), attributes ) )
+            {
+                serverModifications.add( mod );
+            }
+        }
+
+        ModifyOperationContext modifyContext = new ModifyOperationContext( session, remoteEntry.getDn(),
+            serverModifications );
+        modifyContext.setReplEvent( true );
+        modifyContext.setRid( rid );
+
+        OperationManager operationManager = directoryService.getOperationManager();
+
+        try
+        {
+            operationManager.modify( modifyContext );
+        }
+        catch ( LdapException le )
+        {
+            CONSUMER_LOG.warn( "Cannot apply the modifications of dn {}, fetching the whole entry : {}",
+                remoteEntry.getDn(), le.getMessage() );
+
+            Entry fullEntry = connection.lookup( remoteEntry.getDn(),
+                computeAttributes( attributes, SchemaConstants.ALL_OPERATIONAL_ATTRIBUTES ) );
+
+            if ( fullEntry == null )
+            {
+                // The entry has been deleted on the provider since, the deletion will follow
+                CONSUMER_LOG.debug( "the entry {} does not exist anymore on the provider", remoteEntry.getDn() );
+                return;
+            }
+
+            modify( new DefaultEntry( schemaManager, fullEntry ), rid );
+        }
+    }
+
+
+    /**
+     * Tells if the modifications of an attribute are applied : the attributes the consumer
+     * never replicates are ignored, and the user attributes must have been requested,
+     * either explicitly or with '*'. The operational attributes are kept, as the whole
+     * entry would carry them.
+     */
+    private boolean isReplicated( AttributeType attributeType, String[] attributes )
+    {
+        for ( String ignoredAt : MOD_IGNORE_AT )
+        {
+            if ( attributeType.equals( schemaManager.getAttributeType( ignoredAt ) ) )
+            {
+                return false;
+            }
+        }
+
+        if ( attributeType.isOperational() )
+        {
+            return true;
+        }
+
+        for ( String attribute : attributes )
+        {
+            if ( SchemaConstants.ALL_USER_ATTRIBUTES.equals( attribute ) )
+            {
+                return true;
+            }
+
+            AttributeType requested = schemaManager.getAttributeType( attribute );
+
+            if ( ( requested != null )
+                && ( attributeType.equals( requested ) || attributeType.isDescendantOf( requested ) ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
     /**
      * Create a new list combining a list and a newly added attribute
      */
@@ -1256,7 +1450,8 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
      * deletes the entries having the UUID given in the list
      *
      * @param uuidList the list of UUIDs
-     * @param replicaId TODO
+     * @param isRefreshPresent true if the list contains the UUIDs of the entries to keep
+     * @param replicaId the ID of the provider's replica
      * @throws Exception in case of any problems while deleting the entries
      */
     private void deleteEntries( List<byte[]> uuidList, boolean isRefreshPresent, int replicaId ) throws Exception
@@ -1266,13 +1461,12 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
             return;
         }
 
-        // if it is refreshPresent list then send all the UUIDs for
-        // filtering, otherwise breaking the list will cause the
-        // other present entries to be deleted from DIT
+        // if it is refreshPresent list then all the entries which are
+        // not in the list have to be deleted
         if ( isRefreshPresent )
         {
             CONSUMER_LOG.debug( "refresh present syncinfo list has {} UUIDs", uuidList.size() );
-            processDelete( uuidList, isRefreshPresent, replicaId );
+            processRefreshPresent( uuidList, replicaId );
             return;
         }
 
@@ -1285,7 +1479,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         for ( ; i < count; i++ )
         {
             startIndex = i * NODE_LIMIT;
-            processDelete( uuidList.subList( startIndex, startIndex + NODE_LIMIT ), isRefreshPresent, replicaId );
+            processDelete( uuidList.subList( startIndex, startIndex + NODE_LIMIT ), replicaId );
         }
 
         if ( ( uuidList.size() % NODE_LIMIT ) != 0 )
@@ -1296,7 +1490,7 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 startIndex = i * NODE_LIMIT;
             }
 
-            processDelete( uuidList.subList( startIndex, uuidList.size() ), isRefreshPresent, replicaId );
+            processDelete( uuidList.subList( startIndex, uuidList.size() ), replicaId );
         }
     }
 
@@ -1304,36 +1498,24 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
     /**
      * do not call this method directly, instead call deleteEntries()
      *
-     * @param limitedUuidList a list of UUIDs whose size is less than or equal to #NODE_LIMIT (node limit applies only for refreshDeletes list)
-     * @param isRefreshPresent a flag indicating the type of entries present in the UUID list
-     * @param replicaId TODO
+     * @param limitedUuidList a list of UUIDs whose size is less than or equal to #NODE_LIMIT
+     * @param replicaId the ID of the provider's replica
      */
-    private void processDelete( List<byte[]> limitedUuidList, boolean isRefreshPresent, int replicaId )
-        throws Exception
+    private void processDelete( List<byte[]> limitedUuidList, int replicaId ) throws Exception
     {
         ExprNode filter = null;
         int size = limitedUuidList.size();
+
         if ( size == 1 )
         {
             String uuid = Strings.uuidToString( limitedUuidList.get( 0 ) );
-            
+
             filter = new EqualityNode<String>( SchemaConstants.ENTRY_UUID_AT,
                 new org.apache.directory.api.ldap.model.entry.StringValue( uuid ) );
-            if ( isRefreshPresent )
-            {
-                filter = new NotNode( filter );
-            }
         }
         else
         {
-            if ( isRefreshPresent )
-            {
-                filter = new AndNode();
-            }
-            else
-            {
-                filter = new OrNode();
-            }
+            filter = new OrNode();
 
             for ( int i = 0; i < size; i++ )
             {
@@ -1341,22 +1523,14 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
                 ExprNode uuidEqNode = new EqualityNode<String>( SchemaConstants.ENTRY_UUID_AT,
                     new org.apache.directory.api.ldap.model.entry.StringValue( uuid ) );
 
-                if ( isRefreshPresent )
-                {
-                    uuidEqNode = new NotNode( uuidEqNode );
-                    ( ( AndNode ) filter ).addNode( uuidEqNode );
-                }
-                else
-                {
-                    ( ( OrNode ) filter ).addNode( uuidEqNode );
-                }
+                ( ( OrNode ) filter ).addNode( uuidEqNode );
             }
         }
 
         Dn dn = new Dn( schemaManager, config.getBaseDn() );
 
         CONSUMER_LOG.debug( "selecting entries to be deleted using filter {}", filter.toString() );
-        
+
         SearchRequest req = new SearchRequestImpl();
         req.setBase( dn );
         req.setFilter( filter );
@@ -1370,31 +1544,106 @@ public class ReplicationConsumerImpl implements ConnectionClosedEventListener, R
         ctrl.addSortKey( sk );
         req.addControl( ctrl );
 
-        OperationManager operationManager = directoryService.getOperationManager();
-
         Cursor<Entry> cursor = session.search( req );
         cursor.beforeFirst();
 
         while ( cursor.next() )
         {
             Entry entry = cursor.get();
-            
-            DeleteOperationContext ctx = new DeleteOperationContext( session );
-            ctx.setReplEvent( true );
-            ctx.setRid( replicaId );
 
-            // DO NOT generate replication event if this is being deleted as part of 
-            // e_sync_refresh_required
-            if( reload )
+            deleteEntry( entry.getDn(), replicaId );
+        }
+
+        cursor.close();
+    }
+
+
+    /**
+     * Deletes all the entries whose UUID is not in the refreshPresent list. The UUIDs are
+     * stored in a compact set, and the entryUUIDs of the local entries are read in a single
+     * pass, so that the cost is linear with the number of entries.
+     *
+     * @param presentUuidList the UUIDs of the entries present on the provider
+     * @param replicaId the ID of the provider's replica
+     */
+    private void processRefreshPresent( List<byte[]> presentUuidList, int replicaId ) throws Exception
+    {
+        EntryUuidSet presentUuids = new EntryUuidSet( presentUuidList.size() );
+
+        for ( byte[] uuid : presentUuidList )
+        {
+            presentUuids.add( UUID.fromString( Strings.uuidToString( uuid ) ) );
+        }
+
+        Dn baseDn = new Dn( schemaManager, config.getBaseDn() );
+
+        SearchRequest req = new SearchRequestImpl();
+        req.setBase( baseDn );
+        req.setFilter( ENTRY_UUID_PRESENCE_FILTER );
+        req.setScope( SearchScope.SUBTREE );
+        req.setDerefAliases( AliasDerefMode.NEVER_DEREF_ALIASES );
+        req.addAttributes( SchemaConstants.ENTRY_UUID_AT );
+
+        // only the entries to delete are kept in memory
+        List<Dn> toDelete = new ArrayList<Dn>();
+        Cursor<Entry> cursor = session.search( req );
+
+        try
+        {
+            cursor.beforeFirst();
+
+            while ( cursor.next() )
+            {
+                Entry entry = cursor.get();
+                String uuid = entry.get( ENTRY_UUID_AT ).getString();
+
+                if ( !presentUuids.contains( UUID.fromString( uuid ) ) )
+                {
+                    toDelete.add( entry.getDn() );
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        CONSUMER_LOG.debug( "{} entries are not present on the provider anymore, deleting them", toDelete.size() );
+
+        // delete the children before their parent
+        Collections.sort( toDelete, new Comparator<Dn>()
+        {
+            public int compare( Dn dn1, Dn dn2 )
             {
-                ctx.setGenerateNoReplEvt( true );
+                return dn2.size() - dn1.size();
             }
+        } );
 
-            ctx.setDn( entry.getDn() );
-            operationManager.delete( ctx );
+        for ( Dn dn : toDelete )
+        {
+            deleteEntry( dn, replicaId );
         }
+    }
 
-        cursor.close();
+
+    /**
+     * Deletes an entry which is not present on the provider anymore
+     */
+    private void deleteEntry( Dn dn, int replicaId ) throws Exception
+    {
+        DeleteOperationContext ctx = new DeleteOperationContext( session );
+        ctx.setReplEvent( true );
+        ctx.setRid( replicaId );
+
+        // DO NOT generate replication event if this is being deleted as part of 
+        // e_sync_refresh_required
+        if ( reload )
+        {
+            ctx.setGenerateNoReplEvt( true );
+        }
+
+        ctx.setDn( dn );
+        directoryService.getOperationManager().delete( ctx );
     }
 
 
@@ -95,16 +95,21 @@ public class ReplConsumerManager
     /** A map containing the last sent CSN for every connected consumer */
     private Map<Integer, Modification> modMap = new ConcurrentHashMap<Integer, Modification>();
 
+    /** The changelog shared by all the consumers */
+    private ReplicaChangeLog changeLog;
+
 
     /**
      * Create a new instance of the producer replication manager.
      * 
      * @param directoryService The directoryService instance
+     * @param changeLog The changelog shared by all the consumers
      * @throws Exception if we add an error while creating the configuration
      */
-    public ReplConsumerManager( DirectoryService directoryService ) throws Exception
+    public ReplConsumerManager( DirectoryService directoryService, ReplicaChangeLog changeLog ) throws Exception
     {
         this.directoryService = directoryService;
+        this.changeLog = changeLog;
         adminSession = directoryService.getAdminSession();
         schemaManager = directoryService.getSchemaManager();
         REPL_CONSUMER_DN = directoryService.getDnFactory().create( REPL_CONSUMER_DN_STR );
@@ -298,7 +303,7 @@ public class ReplConsumerManager
     private ReplicaEventLog convertEntryToReplica( Entry entry ) throws Exception
     {
         String id = entry.get( SchemaConstants.ADS_DS_REPLICA_ID ).getString();
-        ReplicaEventLog replica = new ReplicaEventLog( directoryService, Integer.parseInt( id ) );
+        ReplicaEventLog replica = new ReplicaEventLog( changeLog, Integer.parseInt( id ) );
 
         NotificationCriteria searchCriteria = new NotificationCriteria();
 
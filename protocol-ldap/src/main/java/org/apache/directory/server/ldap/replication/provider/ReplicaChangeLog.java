@@ -0,0 +1,626 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import jdbm.RecordManager;
+import jdbm.recman.BaseRecordManager;
+import jdbm.recman.TransactionManager;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.Csn;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.apache.directory.server.core.api.event.Evaluator;
+import org.apache.directory.server.core.api.event.ExpressionEvaluator;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
+import org.apache.directory.server.core.partition.impl.btree.jdbm.StringSerializer;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * The changelog shared by all the consumers registered on a producer. Each modification
+ * is stored only once, keyed by its entryCSN, whatever the number of consumers. The
+ * consumers read it through a {@link ReplicaJournalCursor}, starting after the last CSN
+ * they have received, and the messages they are not interested in are filtered out
+ * while reading.
+ * <br/>
+ * Only the changes made below the search base of at least one consumer are stored : when
+ * no consumer is registered, nothing is written. The entries are removed by the
+ * {@link ReplicaEventLogJanitor} once all the consumers have received them.
+ * <br/>
+ * By default, each message is synced to disk before {@link #log(ReplicaEventMessage)} returns.
+ * In group commit mode, the messages are queued and written by a dedicated thread, with a
+ * single sync for a batch of messages : a batch is written when it reaches the maximum batch
+ * size, or when its first message has been waiting for the maximum latency. The pending
+ * messages are always written before the changelog is read.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaChangeLog
+{
+    /** A logger for the replication provider */
+    private static final Logger PROVIDER_LOG = LoggerFactory.getLogger( Loggers.PROVIDER_LOG.getName() );
+
+    /** The name of the file containing the changelog */
+    public static final String REPLICA_CHANGE_LOG_NAME = "REPL_CHANGE_LOG";
+
+    /** The Journal of modifications */
+    private JdbmTable<String, ReplicaEventMessage> journal;
+
+    /** the underlying file  */
+    private File journalFile;
+
+    /** The record manager*/
+    private RecordManager recman;
+
+    /** The SchemaManager */
+    private SchemaManager schemaManager;
+
+    /** The evaluator used to check the messages against the consumers' filters */
+    private Evaluator evaluator;
+
+    /** The messages waiting to be written, in group commit mode */
+    private BlockingQueue<ReplicaEventMessage> pendingMessages;
+
+    /** The maximum number of messages written with a single sync, in group commit mode */
+    private int maxBatchSize;
+
+    /** The maximum time, in milliseconds, a message waits before being written, in group commit mode */
+    private long maxLatency;
+
+    /** The thread writing the messages, in group commit mode */
+    private volatile Thread writer;
+
+    /** A lock used to wake up the writer thread */
+    private final Object writerLock = new Object();
+
+    /** Tells if the writer thread is waiting for a message, protected by the writerLock */
+    private boolean writerIdle;
+
+    /** Tells the writer thread to stop */
+    private volatile boolean stopped;
+
+    /** The search bases of the registered consumers, once per consumer */
+    private final List<Dn> consumerBases = new CopyOnWriteArrayList<Dn>();
+
+
+    /**
+     * Creates the changelog, or opens it if it already exists
+     * 
+     * @param directoryService The DirectoryService instance
+     */
+    public ReplicaChangeLog( DirectoryService directoryService ) throws IOException
+    {
+        this( directoryService.getSchemaManager(), directoryService.getInstanceLayout().getReplDirectory() );
+    }
+
+
+    /**
+     * Creates the changelog in the given directory, or opens it if it already exists
+     * 
+     * @param schemaManager The SchemaManager
+     * @param replDir The directory containing the replication files
+     */
+    public ReplicaChangeLog( SchemaManager schemaManager, File replDir ) throws IOException
+    {
+        PROVIDER_LOG.debug( "Opening the replication changelog" );
+        this.schemaManager = schemaManager;
+        evaluator = new ExpressionEvaluator( schemaManager );
+
+        journalFile = new File( replDir, REPLICA_CHANGE_LOG_NAME );
+        recman = new BaseRecordManager( journalFile.getAbsolutePath() );
+        journal = createJournal( recman, journalFile.getName() );
+    }
+
+
+    /**
+     * Creates a JdbmTable storing ReplicaEventMessages ordered by CSN
+     */
+    private JdbmTable<String, ReplicaEventMessage> createJournal( RecordManager recordManager, String name )
+        throws IOException
+    {
+        TransactionManager transactionManager = ( ( BaseRecordManager ) recordManager ).getTransactionManager();
+        transactionManager.setMaximumTransactionsInLog( 200 );
+
+        SerializableComparator<String> comparator = new SerializableComparator<String>(
+            SchemaConstants.CSN_ORDERING_MATCH_MR_OID );
+        comparator.setSchemaManager( schemaManager );
+
+        return new JdbmTable<String, ReplicaEventMessage>( schemaManager, name, recordManager, comparator,
+            StringSerializer.INSTANCE, new ReplicaEventMessageSerializer( schemaManager ) );
+    }
+
+
+    /**
+     * Registers the search base of a consumer : the changes made below it are now stored.
+     *
+     * @param base The consumer search base
+     * @throws LdapInvalidDnException If the base can't be normalized
+     */
+    public void addConsumerBase( Dn base ) throws LdapInvalidDnException
+    {
+        consumerBases.add( new Dn( schemaManager, base.getName() ) );
+    }
+
+
+    /**
+     * Unregisters the search base of a consumer. The base stays registered as long as
+     * another consumer uses it.
+     *
+     * @param base The consumer search base
+     * @throws LdapInvalidDnException If the base can't be normalized
+     */
+    public void removeConsumerBase( Dn base ) throws LdapInvalidDnException
+    {
+        consumerBases.remove( new Dn( schemaManager, base.getName() ) );
+    }
+
+
+    /**
+     * Tells if a change made on an entry has to be stored, ie if the entry is below the
+     * search base of a consumer.
+     *
+     * @param dn The entry Dn
+     * @return true if at least one consumer may need the change
+     */
+    public boolean isReplicated( Dn dn )
+    {
+        for ( Dn base : consumerBases )
+        {
+            if ( dn.isDescendantOf( base ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Switches the changelog to the group commit mode, starting the writer thread.
+     *
+     * @param maxBatchSize The maximum number of messages written with a single sync
+     * @param maxLatency The maximum time, in milliseconds, a message waits before being written
+     */
+    public synchronized void startGroupCommit( int maxBatchSize, long maxLatency )
+    {
+        if ( writer != null )
+        {
+            return;
+        }
+
+        this.maxBatchSize = Math.max( 1, maxBatchSize );
+        this.maxLatency = Math.max( 1L, maxLatency );
+
+        // the queue is bounded, so that the writes are slowed down if the disk can't keep up
+        pendingMessages = new LinkedBlockingQueue<ReplicaEventMessage>( this.maxBatchSize * 4 );
+
+        writer = new Thread( createWriterTask(), "ReplicaChangeLogWriter" );
+        writer.setDaemon( true );
+        writer.start();
+
+        PROVIDER_LOG.info( "replication changelog group commit started, max batch size {}, max latency {}ms",
+            this.maxBatchSize, this.maxLatency );
+    }
+
+
+    /**
+     * Create the task writing the pending messages in group commit mode
+     */
+    private Runnable createWriterTask()
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                while ( !stopped )
+                {
+                    try
+                    {
+                        synchronized ( writerLock )
+                        {
+                            // The queue is checked with the lock held, and log() notifies an idle
+                            // writer with the same lock held, so a wakeup can't be missed. The wait
+                            // is bounded anyway.
+                            writerIdle = true;
+
+                            try
+                            {
+                                while ( pendingMessages.isEmpty() && !stopped )
+                                {
+                                    writerLock.wait( maxLatency );
+                                }
+                            }
+                            finally
+                            {
+                                writerIdle = false;
+                            }
+
+                            // give the batch a chance to fill up
+                            if ( ( pendingMessages.size() < maxBatchSize ) && !stopped )
+                            {
+                                writerLock.wait( maxLatency );
+                            }
+                        }
+
+                        flushPendingMessages();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        PROVIDER_LOG.warn( "the replication changelog writer thread was interrupted", e );
+                    }
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Stores the given message in the changelog
+     *
+     * @param message The message to store
+     */
+    public void log( ReplicaEventMessage message )
+    {
+        PROVIDER_LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
+            message.getChangeType() );
+
+        if ( writer != null )
+        {
+            try
+            {
+                pendingMessages.put( message );
+            }
+            catch ( InterruptedException e )
+            {
+                // Don't lose the message : write it directly, and keep the interrupted status
+                PROVIDER_LOG.warn( "Interrupted while queuing the entry for the replication changelog, "
+                    + "writing it directly", e );
+                Thread.currentThread().interrupt();
+                writeAndSync( message );
+
+                return;
+            }
+
+            // wake up the writer when it waits for a message or when the batch is full
+            synchronized ( writerLock )
+            {
+                if ( writerIdle || ( pendingMessages.size() >= maxBatchSize ) )
+                {
+                    writerLock.notifyAll();
+                }
+            }
+
+            return;
+        }
+
+        writeAndSync( message );
+    }
+
+
+    /**
+     * Writes a message into the journal, and syncs it
+     */
+    private synchronized void writeAndSync( ReplicaEventMessage message )
+    {
+        try
+        {
+            write( message );
+            journal.sync();
+        }
+        catch ( Exception e )
+        {
+            PROVIDER_LOG.error( "Failed to insert the entry into the replication changelog", e );
+        }
+    }
+
+
+    /**
+     * @return true if some messages are waiting to be written, in group commit mode
+     */
+    boolean hasPendingMessages()
+    {
+        return ( pendingMessages != null ) && !pendingMessages.isEmpty();
+    }
+
+
+    /**
+     * Writes the pending messages of the group commit mode, with a single sync
+     */
+    private synchronized void flushPendingMessages()
+    {
+        if ( ( pendingMessages == null ) || pendingMessages.isEmpty() || ( journal == null ) )
+        {
+            return;
+        }
+
+        List<ReplicaEventMessage> batch = new ArrayList<ReplicaEventMessage>( maxBatchSize );
+
+        while ( pendingMessages.drainTo( batch, maxBatchSize ) > 0 )
+        {
+            for ( ReplicaEventMessage message : batch )
+            {
+                try
+                {
+                    write( message );
+                }
+                catch ( Exception e )
+                {
+                    PROVIDER_LOG.error( "Failed to insert the entry into the replication changelog", e );
+                }
+            }
+
+            try
+            {
+                journal.sync();
+            }
+            catch ( IOException e )
+            {
+                PROVIDER_LOG.error( "Failed to sync the replication changelog", e );
+            }
+
+            PROVIDER_LOG.debug( "wrote a batch of {} messages into the replication changelog", batch.size() );
+            batch.clear();
+        }
+    }
+
+
+    /**
+     * Writes a message into the journal, without syncing it
+     */
+    private void write( ReplicaEventMessage message ) throws Exception
+    {
+        String entryCsn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+        journal.put( entryCsn, message );
+    }
+
+
+    /**
+     * Reads a batch of messages, in CSN order. The lock is only held while reading the
+     * batch, so that the changes are not blocked while a consumer is being updated.
+     *
+     * @param afterCsn The CSN to start after, or null to start from the beginning
+     * @param max The maximum number of messages to read
+     * @return The messages, an empty list if there is nothing more to read
+     * @throws Exception If the changelog can't be read
+     */
+    synchronized List<ReplicaEventMessage> read( String afterCsn, int max ) throws Exception
+    {
+        flushPendingMessages();
+
+        List<ReplicaEventMessage> messages = new ArrayList<ReplicaEventMessage>();
+        Cursor<Tuple<String, ReplicaEventMessage>> cursor = journal.cursor();
+
+        try
+        {
+            if ( afterCsn != null )
+            {
+                cursor.after( new Tuple<String, ReplicaEventMessage>( afterCsn, null ) );
+            }
+
+            while ( ( messages.size() < max ) && cursor.next() )
+            {
+                messages.add( cursor.get().getValue() );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return messages;
+    }
+
+
+    /**
+     * Removes the messages older than the given CSN and written before the given time.
+     *
+     * @param beforeCsn The CSN of the oldest message some consumer still needs, or null
+     * when no consumer needs any message
+     * @param maxTimestamp The time after which the messages are kept
+     * @return The number of removed messages
+     * @throws Exception If the changelog can't be purged
+     */
+    public synchronized long purge( String beforeCsn, long maxTimestamp ) throws Exception
+    {
+        List<String> csns = new ArrayList<String>();
+        Cursor<Tuple<String, ReplicaEventMessage>> cursor = journal.cursor();
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                String csn = cursor.get().getKey();
+
+                // stop as soon as we reach a message some consumer may still need
+                if ( ( ( beforeCsn != null ) && ( csn.compareTo( beforeCsn ) >= 0 ) )
+                    || ( new Csn( csn ).getTimestamp() > maxTimestamp ) )
+                {
+                    break;
+                }
+
+                csns.add( csn );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        for ( String csn : csns )
+        {
+            journal.remove( csn );
+        }
+
+        if ( !csns.isEmpty() )
+        {
+            journal.sync();
+        }
+
+        return csns.size();
+    }
+
+
+    /**
+     * Copies the messages stored in a journal written by an older version, where each
+     * consumer had its own journal, into the changelog. The journal files are then deleted.
+     *
+     * @param oldJournalFile The old journal file, without the extension
+     * @throws Exception If the old journal can't be read
+     */
+    public synchronized void importJournal( File oldJournalFile ) throws Exception
+    {
+        RecordManager oldRecman = new BaseRecordManager( oldJournalFile.getAbsolutePath() );
+        JdbmTable<String, ReplicaEventMessage> oldJournal = createJournal( oldRecman, oldJournalFile.getName() );
+        Cursor<Tuple<String, ReplicaEventMessage>> cursor = oldJournal.cursor();
+        long count = 0;
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                Tuple<String, ReplicaEventMessage> tuple = cursor.get();
+
+                if ( !journal.has( tuple.getKey() ) )
+                {
+                    journal.put( tuple.getKey(), tuple.getValue() );
+                    count++;
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+            oldJournal.close();
+            oldRecman.close();
+        }
+
+        journal.sync();
+
+        new File( oldJournalFile.getPath() + ".db" ).delete();
+        new File( oldJournalFile.getPath() + ".lg" ).delete();
+
+        PROVIDER_LOG.info( "imported {} messages from the replication event log {}", count,
+            oldJournalFile.getName() );
+    }
+
+
+    /**
+     * @return The evaluator used to check the messages against the consumers' filters
+     */
+    Evaluator getEvaluator()
+    {
+        return evaluator;
+    }
+
+
+    /**
+     * @return the name of the changelog
+     */
+    public String getName()
+    {
+        return journal.getName();
+    }
+
+
+    /**
+     * @return the number of messages present in the changelog
+     */
+    public synchronized long count()
+    {
+        flushPendingMessages();
+
+        try
+        {
+            return journal.count();
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
+
+    /**
+     * Closes the changelog
+     * 
+     * @throws Exception If the close failed
+     */
+    public void close() throws Exception
+    {
+        PROVIDER_LOG.debug( "Closing the replication changelog" );
+
+        if ( writer != null )
+        {
+            stopped = true;
+
+            synchronized ( writerLock )
+            {
+                writerLock.notifyAll();
+            }
+
+            writer.join();
+        }
+
+        closeJournal();
+    }
+
+
+    /**
+     * Writes the pending messages, and closes the journal
+     */
+    private synchronized void closeJournal() throws Exception
+    {
+        flushPendingMessages();
+
+        if ( journal != null )
+        {
+            journal.close();
+        }
+
+        journal = null;
+
+        if ( recman != null )
+        {
+            recman.close();
+        }
+
+        recman = null;
+    }
+}
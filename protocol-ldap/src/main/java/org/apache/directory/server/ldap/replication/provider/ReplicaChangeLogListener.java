@@ -0,0 +1,213 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.api.event.DirectoryListenerAdapter;
+import org.apache.directory.server.core.api.interceptor.context.AbstractChangeOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.DeleteOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.ModifyOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveAndRenameOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.MoveOperationContext;
+import org.apache.directory.server.core.api.interceptor.context.RenameOperationContext;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.SyncModificationsValue;
+
+
+/**
+ * The listener writing all the replicable changes into the {@link ReplicaChangeLog}. It is
+ * registered once, whatever the number of consumers : the consumer specific criteria are
+ * applied when the changelog is read. The changes made outside of the search bases of the
+ * consumers are dropped here, so nothing is written as long as there is no consumer.
+ * 
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaChangeLogListener extends DirectoryListenerAdapter
+{
+    /** The shared changelog */
+    private final ReplicaChangeLog changeLog;
+
+    private static String replConsumerConfigDn = ServerDNConstants.REPL_CONSUMER_CONFIG_DN.toLowerCase();
+    private static String schemaDn = SchemaConstants.OU_SCHEMA.toLowerCase();
+    private static String replConsumerDn = ServerDNConstants.REPL_CONSUMER_DN_STR.toLowerCase();
+
+
+    /**
+     * Create a new instance of the changelog listener
+     * 
+     * @param changeLog The changelog to write into
+     */
+    public ReplicaChangeLogListener( ReplicaChangeLog changeLog )
+    {
+        this.changeLog = changeLog;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSynchronous()
+    {
+        // The change must be logged before the operation returns
+        return true;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryAdded( AddOperationContext addContext )
+    {
+        log( addContext, ChangeType.ADD, addContext.getEntry(), null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryDeleted( DeleteOperationContext deleteContext )
+    {
+        log( deleteContext, ChangeType.DELETE, deleteContext.getEntry(), null );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryModified( ModifyOperationContext modifyContext )
+    {
+        Entry alteredEntry = modifyContext.getAlteredEntry();
+        ReplicaEventMessage message = createMessage( modifyContext, ChangeType.MODIFY, alteredEntry, null );
+
+        if ( message != null )
+        {
+            // keep the modifications, so that they can be sent instead of the whole entry
+            message.setModifications( SyncModificationsValue.withEntryCsn( modifyContext.getModItems(),
+                alteredEntry ) );
+            changeLog.log( message );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryMoved( MoveOperationContext moveContext )
+    {
+        log( moveContext, ChangeType.MODDN, moveContext.getModifiedEntry(), moveContext.getDn() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryMovedAndRenamed( MoveAndRenameOperationContext moveAndRenameContext )
+    {
+        log( moveAndRenameContext, ChangeType.MODDN, moveAndRenameContext.getModifiedEntry(),
+            moveAndRenameContext.getDn() );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void entryRenamed( RenameOperationContext renameContext )
+    {
+        log( renameContext, ChangeType.MODDN, renameContext.getModifiedEntry(), renameContext.getDn() );
+    }
+
+
+    /**
+     * Stores the change into the changelog, unless it must not be replicated
+     */
+    private void log( AbstractChangeOperationContext ctx, ChangeType changeType, Entry entry, Dn previousDn )
+    {
+        ReplicaEventMessage message = createMessage( ctx, changeType, entry, previousDn );
+
+        if ( message != null )
+        {
+            changeLog.log( message );
+        }
+    }
+
+
+    /**
+     * Creates the message to store, or returns null if the change must not be replicated
+     */
+    private ReplicaEventMessage createMessage( AbstractChangeOperationContext ctx, ChangeType changeType,
+        Entry entry, Dn previousDn )
+    {
+        if ( ctx.isGenerateNoReplEvt() || isConfigEntry( entry ) )
+        {
+            return null;
+        }
+
+        // A moved entry may enter or leave the replicated area
+        if ( !changeLog.isReplicated( entry.getDn() )
+            && ( ( previousDn == null ) || !changeLog.isReplicated( previousDn ) ) )
+        {
+            return null;
+        }
+
+        int originRid = ctx.isReplEvent() ? ctx.getRid() : -1;
+
+        return new ReplicaEventMessage( changeType, entry, previousDn, originRid );
+    }
+
+
+    /**
+     * checks if the given entry belongs to the ou=config or ou=schema partition
+     * We don't replicate those two partitions
+     * @param entry the entry
+     * @return true if the entry belongs to ou=config partition, false otherwise
+     */
+    private boolean isConfigEntry( Entry entry )
+    {
+        String name = entry.getDn().getName().toLowerCase();
+
+        if ( name.endsWith( replConsumerConfigDn ) ||
+            name.endsWith( schemaDn ) ||
+            name.endsWith( replConsumerDn ) )
+        {
+            return true;
+        }
+
+        // do not replicate the changes made to transport config entries
+        if ( name.startsWith( "ads-transportid" ) && name.endsWith( ServerDNConstants.CONFIG_DN ) )
+        {
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -21,25 +21,11 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
-import java.io.IOException;
-
-import jdbm.RecordManager;
-import jdbm.recman.BaseRecordManager;
-import jdbm.recman.TransactionManager;
-
 import org.apache.directory.api.ldap.model.constants.Loggers;
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
 import org.apache.directory.api.ldap.model.name.Dn;
-import org.apache.directory.api.ldap.model.schema.SchemaManager;
-import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
-import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.event.EventType;
 import org.apache.directory.server.core.api.event.NotificationCriteria;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.StringSerializer;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessageSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,8 +41,8 @@ import org.slf4j.LoggerFactory;
  * <li>refreshNPersist : a flag indicating that the consumer is processing in Refresh and persist mode</li>
  * <li></li>
  * </ul>
- * A separate log is maintained for each syncrepl consumer.<br/>
- * We also associate a Queue with each structure, which will store the messages to send to the consumer.
+ * The modifications are stored once in the {@link ReplicaChangeLog} shared by all the consumers,
+ * each consumer reading it from its last sent CSN.
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -96,14 +82,8 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     private int purgeThresholdCount = DEFAULT_PURGE_THRESHOLD_COUNT;
 
     // fields that won't be serialized
-    /** The Journal of modifications */
-    private JdbmTable<String, ReplicaEventMessage> journal;
-
-    /** the underlying file  */
-    private File journalFile;
-
-    /** The record manager*/
-    private RecordManager recman;
+    /** The changelog shared by all the consumers */
+    private ReplicaChangeLog changeLog;
 
     /** A flag used to indicate that the consumer is not up to date */
     private volatile boolean dirty;
@@ -122,56 +102,16 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     /**
      * Creates a new instance of EventLog for a replica
      * 
-     * @param directoryService The DirectoryService instance
+     * @param changeLog The changelog shared by all the consumers
      * @param replicaId The replica ID
      */
-    public ReplicaEventLog( DirectoryService directoryService, int replicaId ) throws IOException
+    public ReplicaEventLog( ReplicaChangeLog changeLog, int replicaId )
     {
         PROVIDER_LOG.debug( "Creating the replication queue for replica {}", replicaId );
-        SchemaManager schemaManager = directoryService.getSchemaManager();
+        this.changeLog = changeLog;
         this.replicaId = replicaId;
         this.searchCriteria = new NotificationCriteria();
         this.searchCriteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
-
-        // Create the journal file, or open if already exists
-        File replDir = directoryService.getInstanceLayout().getReplDirectory();
-        journalFile = new File( replDir, REPLICA_EVENT_LOG_NAME_PREFIX + replicaId );
-        recman = new BaseRecordManager( journalFile.getAbsolutePath() );
-        TransactionManager transactionManager = ( ( BaseRecordManager ) recman ).getTransactionManager();
-        transactionManager.setMaximumTransactionsInLog( 200 );
-
-        SerializableComparator<String> comparator = new SerializableComparator<String>(
-            SchemaConstants.CSN_ORDERING_MATCH_MR_OID );
-        comparator.setSchemaManager( schemaManager );
-
-        journal = new JdbmTable<String, ReplicaEventMessage>( schemaManager, journalFile.getName(), recman, comparator,
-            StringSerializer.INSTANCE, new ReplicaEventMessageSerializer( schemaManager ) );
-    }
-
-
-    /**
-     * Stores the given message in the queue 
-     *
-     * @param message The message to store
-     */
-    public synchronized void log( ReplicaEventMessage message )
-    {
-        try
-        {
-            LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
-                message.getChangeType() );
-            PROVIDER_LOG.debug( "logging entry with Dn {} with the event {}", message.getEntry().getDn(),
-                message.getChangeType() );
-
-            String entryCsn = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-            journal.put( entryCsn, message );
-            journal.sync();
-        }
-        catch ( Exception e )
-        {
-            LOG.warn( "Failed to insert the entry into syncrepl log", e );
-            PROVIDER_LOG.error( "Failed to insert the entry into syncrepl log", e );
-        }
     }
 
 
@@ -205,20 +145,13 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
     {
         PROVIDER_LOG.debug( "Stopping the EventLog for replicaId {}", replicaId );
 
-        // Close the producer and session, DO NOT close connection 
-        if ( journal != null )
+        // The changelog is shared, it is closed by the SyncReplRequestHandler
+        if ( ( changeLog != null ) && ( searchCriteria.getBase() != null ) )
         {
-            journal.close();
+            changeLog.removeConsumerBase( searchCriteria.getBase() );
         }
 
-        journal = null;
-
-        if ( recman != null )
-        {
-            recman.close();
-        }
-
-        recman = null;
+        changeLog = null;
     }
 
 
@@ -301,11 +234,27 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
 
 
     /**
-     * Stores the search criteria
+     * Stores the search criteria. The changes made below the search base are stored in
+     * the changelog from now on.
+     * 
      * @param searchCriteria The search criteria
+     * @throws LdapInvalidDnException If the search base can't be normalized
      */
-    public void setSearchCriteria( NotificationCriteria searchCriteria )
+    public void setSearchCriteria( NotificationCriteria searchCriteria ) throws LdapInvalidDnException
     {
+        if ( changeLog != null )
+        {
+            if ( this.searchCriteria.getBase() != null )
+            {
+                changeLog.removeConsumerBase( this.searchCriteria.getBase() );
+            }
+
+            if ( searchCriteria.getBase() != null )
+            {
+                changeLog.addConsumerBase( searchCriteria.getBase() );
+            }
+        }
+
         this.searchCriteria = searchCriteria;
     }
 
@@ -438,7 +387,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public ReplicaJournalCursor getCursor( String consumerCsn ) throws Exception
     {
-        return new ReplicaJournalCursor( journal, consumerCsn );
+        return new ReplicaJournalCursor( changeLog, this, consumerCsn );
     }
 
 
@@ -447,23 +396,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
      */
     public String getName()
     {
-        return journal.getName();
-    }
-
-
-    /**
-     * @return the number of entries present in the replica log
-     */
-    public synchronized long count()
-    {
-        try
-        {
-            return journal.count();
-        }
-        catch ( IOException e )
-        {
-            throw new RuntimeException( e );
-        }
+        return REPLICA_EVENT_LOG_NAME_PREFIX + replicaId;
     }
 
 
@@ -519,7 +452,7 @@ public class ReplicaEventLog implements Comparable<ReplicaEventLog>
         return "ReplicaEventLog [hostName=" + hostName + ", searchFilter=" + searchFilter + ", lastSentCsn="
             + lastSentCsn + ", searchCriteria=" + searchCriteria + ", replicaId=" + replicaId
             + ", refreshNPersist=" + refreshNPersist + ", maxInactivePeriod=" + maxIdlePeriod
-            + ", purgeThresholdCount=" + purgeThresholdCount + ", journalFile=" + journalFile
+            + ", purgeThresholdCount=" + purgeThresholdCount
             + ", dirty=" + dirty + ", consumerEntryDn=" + consumerEntryDn + "]";
     }
 }
@@ -20,21 +20,19 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
-import java.io.File;
 import java.util.Map;
 
-import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.csn.Csn;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.util.DateUtils;
 import org.apache.directory.server.core.api.DirectoryService;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Deletes old entries from the replication event logs that are configured in refreshNPersist mode.
+ * Deletes the idle replication event logs, and the old entries from the replication changelog
+ * once they have been sent to all the consumers.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -46,6 +44,9 @@ public class ReplicaEventLogJanitor extends Thread
 
     private Map<Integer, ReplicaEventLog> replicaLogMap;
 
+    /** The changelog shared by all the consumers */
+    private ReplicaChangeLog changeLog;
+
     private volatile boolean stop = false;
 
     /** A lock used to wait */
@@ -58,12 +59,13 @@ public class ReplicaEventLogJanitor extends Thread
 
 
     public ReplicaEventLogJanitor( final DirectoryService directoryService,
-        final Map<Integer, ReplicaEventLog> replicaLogMap )
+        final Map<Integer, ReplicaEventLog> replicaLogMap, final ReplicaChangeLog changeLog )
     {
-        // if log is in refreshNpersist mode, has more entries than the log's threshold count then 
-        // all the entries before the last sent CSN and older than 2 hours will be purged
+        // if the changelog has more entries than the smallest threshold count of the logs then 
+        // all the entries before the oldest last sent CSN and older than 2 hours will be purged
         this.directoryService = directoryService;
         this.replicaLogMap = replicaLogMap;
+        this.changeLog = changeLog;
         setDaemon( true );
     }
 
@@ -73,6 +75,13 @@ public class ReplicaEventLogJanitor extends Thread
     {
         while ( !stop )
         {
+            long now = DateUtils.getDate( DateUtils.getGeneralizedTime() ).getTime();
+
+            // the oldest CSN still needed by a consumer
+            String oldestCsn = null;
+            boolean purge = true;
+            long thresholdCount = Long.MAX_VALUE;
+
             for ( ReplicaEventLog log : replicaLogMap.values() )
             {
                 synchronized ( log ) // lock the log and clean
@@ -83,12 +92,12 @@ public class ReplicaEventLogJanitor extends Thread
 
                         if ( lastSentCsn == null )
                         {
-                            LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup", log.getName() );
-                            return;
+                            LOG.debug( "last sent CSN is null for the replica {}, skipping cleanup",
+                                log.getName() );
+                            purge = false;
+                            continue;
                         }
 
-                        long now = DateUtils.getDate( DateUtils.getGeneralizedTime() ).getTime();
-
                         long maxIdleTime = log.getMaxIdlePeriod() * 1000L;
 
                         long lastUpdatedTime = new Csn( lastSentCsn ).getTimestamp();
@@ -120,52 +129,39 @@ public class ReplicaEventLogJanitor extends Thread
                             continue;
                         }
 
-                        long thresholdCount = log.getPurgeThresholdCount();
-
-                        if ( log.count() < thresholdCount )
+                        if ( ( oldestCsn == null ) || ( lastSentCsn.compareTo( oldestCsn ) < 0 ) )
                         {
-                            continue;
-                        }
-
-                        LOG.debug( "starting to purge the log entries that are older than {} milliseconds",
-                            thresholdTime );
-
-                        long deleteCount = 0;
-
-                        ReplicaJournalCursor cursor = log.getCursor( null ); // pass no CSN
-                        cursor.skipQualifyingWhileFetching();
-
-                        while ( cursor.next() )
-                        {
-                            ReplicaEventMessage message = cursor.get();
-                            String csnVal = message.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
-
-                            // skip if we reach the lastSentCsn or got past it
-                            if ( csnVal.compareTo( lastSentCsn ) >= 0 )
-                            {
-                                break;
-                            }
-
-                            Csn csn = new Csn( csnVal );
-
-                            if ( ( now - csn.getTimestamp() ) >= thresholdTime )
-                            {
-                                cursor.delete();
-                                deleteCount++;
-                            }
+                            oldestCsn = lastSentCsn;
                         }
 
-                        cursor.close();
-
-                        LOG.debug( "purged {} messages from the log {}", deleteCount, log.getName() );
+                        thresholdCount = Math.min( thresholdCount, log.getPurgeThresholdCount() );
                     }
                     catch ( Exception e )
                     {
-                        LOG.warn( "Failed to purge old entries from the log {}", log.getName(), e );
+                        LOG.warn( "Failed to check the log {} for cleanup", log.getName(), e );
+                        purge = false;
                     }
                 }
             }
 
+            // Without any consumer, the messages are only kept for the threshold time
+            if ( purge && ( ( oldestCsn == null ) || ( changeLog.count() >= thresholdCount ) ) )
+            {
+                LOG.debug( "starting to purge the changelog entries that are older than {} milliseconds",
+                    thresholdTime );
+
+                try
+                {
+                    long deleteCount = changeLog.purge( oldestCsn, now - thresholdTime );
+
+                    LOG.debug( "purged {} messages from the changelog {}", deleteCount, changeLog.getName() );
+                }
+                catch ( Exception e )
+                {
+                    LOG.warn( "Failed to purge old entries from the changelog {}", changeLog.getName(), e );
+                }
+            }
+
             try
             {
                 synchronized ( lock )
@@ -193,8 +189,6 @@ public class ReplicaEventLogJanitor extends Thread
         {
             replicaEventLog.stop();
 
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".db" ).delete();
-            new File( directoryService.getInstanceLayout().getReplDirectory(), name + ".lg" ).delete();
             LOG.info( "successfully removed replication event log {}", name );
         }
         catch ( Exception e )
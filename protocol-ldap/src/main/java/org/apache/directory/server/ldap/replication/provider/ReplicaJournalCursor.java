@@ -22,23 +22,33 @@ package org.apache.directory.server.ldap.replication.provider;
 
 
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 import org.apache.directory.api.ldap.model.constants.Loggers;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.AbstractCursor;
-import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
-import org.apache.directory.api.ldap.model.cursor.Tuple;
+import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.SearchScope;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmTable;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Define a cursor on top of a replication journal.
+ * Define a cursor on top of the replication changelog, returning the messages a given
+ * consumer has not received yet. The changelog being shared by all the consumers, the
+ * messages are checked against the consumer's search criteria while being read :
+ * <ul>
+ * <li>the changes received from the consumer itself are skipped (MMR)</li>
+ * <li>the changes on entries outside of the consumer's scope, or not matching its filter, are skipped</li>
+ * <li>an entry moved outside of the consumer's scope is sent as a deletion</li>
+ * </ul>
  *
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -53,37 +63,43 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
     /** Speedup for logs */
     private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
 
-    /** the underlying journal's cursor */
-    private Cursor<Tuple<String, ReplicaEventMessage>> tupleCursor;
+    /** The number of messages read from the changelog at once */
+    private static final int BATCH_SIZE = 100;
 
-    /** the event log journal */
-    private JdbmTable<String, ReplicaEventMessage> journal;
+    /** the shared changelog */
+    private ReplicaChangeLog changeLog;
 
-    /** the consumer's CSN based on which messages will be qualified for sending */
-    private String consumerCsn;
+    /** the consumer the messages are read for */
+    private ReplicaEventLog replica;
 
-    private ReplicaEventMessage qualifiedEvtMsg;
+    /** the CSN of the last message read from the changelog */
+    private String lastReadCsn;
+
+    /** the messages read from the changelog and not yet returned */
+    private List<ReplicaEventMessage> batch = new LinkedList<ReplicaEventMessage>();
 
-    /** used while cleaning up the log */
-    private boolean skipQualifying;
+    /** tells if the end of the changelog has been reached */
+    private boolean exhausted;
+
+    private ReplicaEventMessage qualifiedEvtMsg;
 
 
     /**
-     * Creates a cursor on top of the given journal
-     * @param journal the log journal
+     * Creates a cursor on top of the given changelog
+     * @param changeLog the shared changelog
+     * @param replica the consumer the messages are read for
      * @param consumerCsn the consumer's CSN taken from cookie
-     * @throws Exception 
      */
-    public ReplicaJournalCursor( JdbmTable<String, ReplicaEventMessage> journal, String consumerCsn ) throws Exception
+    public ReplicaJournalCursor( ReplicaChangeLog changeLog, ReplicaEventLog replica, String consumerCsn )
     {
         if ( IS_DEBUG )
         {
             LOG_CURSOR.debug( "Creating ReplicaJournalCursor {}", this );
         }
 
-        this.journal = journal;
-        this.tupleCursor = journal.cursor();
-        this.consumerCsn = consumerCsn;
+        this.changeLog = changeLog;
+        this.replica = replica;
+        this.lastReadCsn = consumerCsn;
     }
 
 
@@ -150,15 +166,32 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
 
 
     /**
-     * selects the current queue entry if qualified for sending to the consumer
+     * Checks the message against the consumer's search criteria.
      * 
-     * @throws Exception
+     * @return the message to send, which may be a deletion if the entry has been moved outside
+     * of the consumer's scope, or null if the message has not to be sent
      */
-    private boolean isQualified( String csn, ReplicaEventMessage evtMsg ) throws LdapException
+    private ReplicaEventMessage qualify( ReplicaEventMessage evtMsg ) throws LdapException
     {
         LOG.debug( "ReplicaEventMessage: {}", evtMsg );
 
-        if ( evtMsg.isEventOlderThan( consumerCsn ) )
+        Entry entry = evtMsg.getEntry();
+
+        // do not send back to a MMR peer the changes it has sent
+        if ( ( evtMsg.getOriginRid() != -1 ) && ( evtMsg.getOriginRid() == replica.getId() ) )
+        {
+            LOG.debug( "event for dn {} comes from the replica {}, not qualified for sending", entry.getDn(),
+                replica.getId() );
+
+            return null;
+        }
+
+        NotificationCriteria criteria = replica.getSearchCriteria();
+        Dn previousDn = evtMsg.getPreviousDn();
+        Dn name = ( previousDn != null ) ? previousDn : entry.getDn();
+
+        if ( !isInScope( name, criteria )
+            || !changeLog.getEvaluator().evaluate( criteria.getFilter(), criteria.getBase(), entry ) )
         {
             if ( LOG.isDebugEnabled() )
             {
@@ -171,13 +204,44 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
                     evt = changeType.name();
                 }
 
-                LOG.debug( "event {} for dn {} is not qualified for sending", evt, evtMsg.getEntry().getDn() );
+                LOG.debug( "event {} for dn {} is not qualified for sending", evt, name );
             }
 
-            return false;
+            return null;
+        }
+
+        if ( ( previousDn != null ) && !isInScope( entry.getDn(), criteria ) )
+        {
+            // the entry has been moved out of the consumer's scope : it has to be deleted there
+            Entry deletedEntry = entry.clone();
+            deletedEntry.setDn( previousDn );
+
+            return new ReplicaEventMessage( ChangeType.DELETE, deletedEntry );
         }
 
-        return true;
+        return evtMsg;
+    }
+
+
+    /**
+     * Tells if the given Dn is in the scope of the consumer's search
+     */
+    private boolean isInScope( Dn name, NotificationCriteria criteria )
+    {
+        Dn base = criteria.getBase();
+        SearchScope scope = criteria.getScope();
+
+        switch ( scope )
+        {
+            case OBJECT:
+                return name.equals( base );
+
+            case ONELEVEL:
+                return name.getParent().equals( base );
+
+            default:
+                return name.isDescendantOf( base ) || name.equals( base );
+        }
     }
 
 
@@ -195,30 +259,27 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
      */
     public boolean next() throws LdapException, CursorException
     {
-        while ( tupleCursor.next() )
+        while ( true )
         {
-            Tuple<String, ReplicaEventMessage> tuple = tupleCursor.get();
+            if ( batch.isEmpty() )
+            {
+                if ( exhausted )
+                {
+                    break;
+                }
 
-            String csn = tuple.getKey();
-            ReplicaEventMessage message = tuple.getValue();
+                readBatch();
 
-            if ( skipQualifying )
-            {
-                qualifiedEvtMsg = message;
-                return true;
+                continue;
             }
 
-            boolean qualified = isQualified( csn, message );
+            ReplicaEventMessage message = qualify( batch.remove( 0 ) );
 
-            if ( qualified )
+            if ( message != null )
             {
                 qualifiedEvtMsg = message;
                 return true;
             }
-            else
-            {
-                journal.remove( csn );
-            }
         }
 
         qualifiedEvtMsg = null;
@@ -227,6 +288,33 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
     }
 
 
+    /**
+     * Reads the next messages from the changelog
+     */
+    private void readBatch() throws LdapException, CursorException
+    {
+        try
+        {
+            batch = new LinkedList<ReplicaEventMessage>( changeLog.read( lastReadCsn, BATCH_SIZE ) );
+        }
+        catch ( Exception e )
+        {
+            throw new CursorException( e );
+        }
+
+        if ( batch.size() < BATCH_SIZE )
+        {
+            exhausted = true;
+        }
+
+        if ( !batch.isEmpty() )
+        {
+            ReplicaEventMessage last = batch.get( batch.size() - 1 );
+            lastReadCsn = last.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString();
+        }
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -247,7 +335,6 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
         super.close();
     }
 
@@ -263,41 +350,10 @@ public class ReplicaJournalCursor extends AbstractCursor<ReplicaEventMessage>
             LOG_CURSOR.debug( "Closing ReplicaJournalCursor {}", this );
         }
 
-        tupleCursor.close();
         super.close( cause );
     }
 
 
-    /**
-     * sets the flag to skip CSN based checking while traversing
-     * used for internal log cleanup ONLY 
-     */
-    protected void skipQualifyingWhileFetching()
-    {
-        skipQualifying = true;
-    }
-
-
-    /**
-     * delete the current message
-     * used for internal log cleanup ONLY
-     */
-    protected void delete()
-    {
-        try
-        {
-            if ( qualifiedEvtMsg != null )
-            {
-                journal.remove( qualifiedEvtMsg.getEntry().get( SchemaConstants.ENTRY_CSN_AT ).getString() );
-            }
-        }
-        catch ( Exception e )
-        {
-
-        }
-    }
-
-
     /**
      * {@inheritDoc}
      */
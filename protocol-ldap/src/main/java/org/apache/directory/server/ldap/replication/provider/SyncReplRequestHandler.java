@@ -66,6 +66,7 @@ import org.apache.directory.api.ldap.model.filter.GreaterEqNode;
 import org.apache.directory.api.ldap.model.filter.LessEqNode;
 import org.apache.directory.api.ldap.model.filter.OrNode;
 import org.apache.directory.api.ldap.model.filter.PresenceNode;
+import org.apache.directory.api.ldap.model.message.Control;
 import org.apache.directory.api.ldap.model.message.IntermediateResponse;
 import org.apache.directory.api.ldap.model.message.IntermediateResponseImpl;
 import org.apache.directory.api.ldap.model.message.LdapResult;
@@ -105,6 +106,7 @@ import org.apache.directory.server.ldap.LdapSession;
 import org.apache.directory.server.ldap.handlers.SearchAbandonListener;
 import org.apache.directory.server.ldap.handlers.SearchTimeLimitingMonitor;
 import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.SyncModificationsValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -147,6 +149,21 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
     private ReplicaEventLogJanitor logJanitor;
 
+    /** The changelog shared by all the consumers */
+    private ReplicaChangeLog changeLog;
+
+    /** The listener writing the changes into the changelog */
+    private ReplicaChangeLogListener changeLogListener;
+
+    /** The maximum number of changes written into the changelog with a single sync */
+    private int changeLogMaxBatchSize = DEFAULT_CHANGE_LOG_MAX_BATCH_SIZE;
+
+    /** The maximum time, in milliseconds, a change waits before being written. 0 disables the group commit */
+    private long changeLogMaxLatency = 0L;
+
+    /** The default maximum number of changes written into the changelog with a single sync */
+    public static final int DEFAULT_CHANGE_LOG_MAX_BATCH_SIZE = 500;
+
     private AttributeType REPL_LOG_MAX_IDLE_AT;
 
     private AttributeType REPL_LOG_PURGE_THRESHOLD_COUNT_AT;
@@ -203,14 +220,32 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 }
             }
 
+            // Open the changelog shared by all the consumers
+            changeLog = new ReplicaChangeLog( dirService );
+
+            if ( changeLogMaxLatency > 0 )
+            {
+                changeLog.startGroupCommit( changeLogMaxBatchSize, changeLogMaxLatency );
+            }
+
             // Create the replication manager
-            replicaUtil = new ReplConsumerManager( dirService );
+            replicaUtil = new ReplConsumerManager( dirService, changeLog );
 
             loadReplicaInfo();
 
-            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap );
+            logJanitor = new ReplicaEventLogJanitor( dirService, replicaLogMap, changeLog );
             logJanitor.start();
 
+            // The changes must be logged before they are pushed to the consumers, so this
+            // listener has to be registered first
+            changeLogListener = new ReplicaChangeLogListener( changeLog );
+            NotificationCriteria changeLogCriteria = new NotificationCriteria();
+            changeLogCriteria.setBase( new Dn( dirService.getSchemaManager() ) );
+            changeLogCriteria.setScope( SearchScope.SUBTREE );
+            changeLogCriteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+
+            dirService.getEventService().addListener( changeLogListener, changeLogCriteria );
+
             registerPersistentSearches();
 
             cledListener = new ConsumerLogEntryChangeListener();
@@ -256,6 +291,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         EventService evtSrv = dirService.getEventService();
 
         evtSrv.removeListener( cledListener );
+        evtSrv.removeListener( changeLogListener );
         //first set the 'stop' flag
         logJanitor.stopCleaning();
         //then interrupt the janitor
@@ -275,6 +311,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
             }
         }
 
+        try
+        {
+            changeLog.close();
+        }
+        catch ( Exception e )
+        {
+            PROVIDER_LOG.error( "Failed to close the changelog {}", changeLog.getName(), e );
+        }
+
         initialized = false;
     }
 
@@ -398,7 +443,8 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                         break;
                 }
 
-                sendSearchResultEntry( session, req, entry, syncStateType );
+                sendSearchResultEntry( session, req, entry, syncStateType,
+                    replicaEventMessage.getModifications() );
 
                 clientMsgLog.setLastSentCsn( lastSentCsn );
 
@@ -511,9 +557,6 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
         ExprNode modifiedFilter = modifyFilter( session, request );
 
-        Partition partition = dirService.getPartitionNexus().getPartition( request.getBase() );
-        String contextCsn = partition.getContextCsn();
-
         boolean refreshNPersist = isRefreshNPersist( request );
 
         // first register a ReplicaEventLog before starting the initial content refresh
@@ -521,6 +564,23 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         ReplicaEventLog replicaLog = createReplicaEventLog( hostName, originalFilter );
 
         replicaLog.setRefreshNPersist( refreshNPersist );
+
+        // compose notification criteria and add the listener to the event
+        // service using that notification criteria to determine which events
+        // are to be delivered to the persistent search issuing client. The changes
+        // below the base are stored in the changelog once the criteria is set, so
+        // it's done before the context CSN is read
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setAliasDerefMode( request.getDerefAliases() );
+        criteria.setBase( request.getBase() );
+        criteria.setScope( request.getScope() );
+        criteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
+
+        replicaLog.setSearchCriteria( criteria );
+
+        Partition partition = dirService.getPartitionNexus().getPartition( request.getBase() );
+        String contextCsn = partition.getContextCsn();
+
         StringValue contexCsnValue = new StringValue( contextCsn );
 
         // modify the filter to include the context Csn
@@ -537,17 +597,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         SyncReplSearchListener replicationListener = new SyncReplSearchListener( session, request, replicaLog, false );
         replicaLog.setPersistentListener( replicationListener );
 
-        // compose notification criteria and add the listener to the event
-        // service using that notification criteria to determine which events
-        // are to be delivered to the persistent search issuing client
-        NotificationCriteria criteria = new NotificationCriteria();
-        criteria.setAliasDerefMode( request.getDerefAliases() );
-        criteria.setBase( request.getBase() );
         criteria.setFilter( request.getFilter() );
-        criteria.setScope( request.getScope() );
-        criteria.setEventMask( EventType.ALL_EVENT_TYPES_MASK );
-
-        replicaLog.setSearchCriteria( criteria );
 
         dirService.getEventService().addListener( replicationListener, criteria );
 
@@ -719,6 +769,15 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
             Entry entry = cursor.get();
 
+            // Don't read the entries faster than the consumer is able to get them
+            if ( !session.waitForWriteQueue( ldapServer.getMaxScheduledWriteBytes(),
+                ldapServer.getMaxWriteQueueWait(), 0L, req ) )
+            {
+                PROVIDER_LOG.debug( "Request terminated for message {} while waiting for the consumer to read",
+                    req.getMessageId() );
+                break;
+            }
+
             sendSearchResultEntry( session, req, entry, SyncStateTypeEnum.ADD );
 
             String lastSentCsn = entry.get( CSN_AT ).getString();
@@ -750,8 +809,29 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
      */
     private void sendSearchResultEntry( LdapSession session, SearchRequest req, Entry entry,
         SyncStateTypeEnum syncStateType ) throws Exception
+    {
+        sendSearchResultEntry( session, req, entry, syncStateType, null );
+    }
+
+
+    /**
+     * Prepare and send a search result entry response, with the associated
+     * SyncState control. If the consumer supports it, a MODIFY is sent as the
+     * list of modifications instead of the whole entry.
+     */
+    private void sendSearchResultEntry( LdapSession session, SearchRequest req, Entry entry,
+        SyncStateTypeEnum syncStateType, List<Modification> modifications ) throws Exception
     {
         Attribute uuid = entry.get( SchemaConstants.ENTRY_UUID_AT );
+        Control modificationsControl = null;
+
+        if ( ( syncStateType == SyncStateTypeEnum.MODIFY ) && ( modifications != null )
+            && SyncModificationsValue.isRequested( req ) )
+        {
+            modificationsControl = SyncModificationsValue.createResponseControl(
+                dirService.getLdapCodecService(), entry.getDn(), modifications );
+            entry = SyncModificationsValue.createEntry( dirService.getSchemaManager(), entry );
+        }
 
         // Create the SyncState control
         SyncStateValue syncStateControl = new SyncStateValueDecorator(
@@ -769,6 +849,11 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
         Response resp = generateResponse( session, req, entry );
         resp.addControl( syncStateControl );
 
+        if ( modificationsControl != null )
+        {
+            resp.addControl( modificationsControl );
+        }
+
         PROVIDER_LOG.debug( "Sending the entry:\n {}", resp );
         session.getIoSession().write( resp );
     }
@@ -970,6 +1055,55 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
     }
 
 
+    /**
+     * @return The maximum number of changes written into the changelog with a single sync
+     */
+    public int getChangeLogMaxBatchSize()
+    {
+        return changeLogMaxBatchSize;
+    }
+
+
+    /**
+     * Sets the maximum number of changes written into the changelog with a single sync, when
+     * the group commit is enabled. Must be set before the handler is started.
+     * 
+     * @param changeLogMaxBatchSize The maximum batch size
+     */
+    public void setChangeLogMaxBatchSize( int changeLogMaxBatchSize )
+    {
+        if ( changeLogMaxBatchSize <= 0 )
+        {
+            changeLogMaxBatchSize = DEFAULT_CHANGE_LOG_MAX_BATCH_SIZE;
+        }
+
+        this.changeLogMaxBatchSize = changeLogMaxBatchSize;
+    }
+
+
+    /**
+     * @return The maximum time, in milliseconds, a change waits before being written into the changelog
+     */
+    public long getChangeLogMaxLatency()
+    {
+        return changeLogMaxLatency;
+    }
+
+
+    /**
+     * Sets the maximum time, in milliseconds, a change waits before being written into the changelog.
+     * A positive value enables the group commit : the changes are written by a dedicated thread, in
+     * batches synced at once, instead of being synced one by one by the thread doing the modification.
+     * Must be set before the handler is started.
+     * 
+     * @param changeLogMaxLatency The maximum latency, 0 to sync each change when it is done
+     */
+    public void setChangeLogMaxLatency( long changeLogMaxLatency )
+    {
+        this.changeLogMaxLatency = Math.max( 0L, changeLogMaxLatency );
+    }
+
+
     private EqualityNode<String> newIsReferralEqualityNode( LdapSession session ) throws Exception
     {
         EqualityNode<String> ocIsReferral = new EqualityNode<String>( SchemaConstants.OBJECT_CLASS_AT, new StringValue(
@@ -1036,12 +1170,25 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
                 PROVIDER_LOG.debug( "no replica logs found to initialize" );
             }
 
-            // remove unused logs
+            // the logs used to be stored in a journal per consumer : move the pending
+            // messages into the changelog, and remove the unused logs
             for ( File f : getAllReplJournalNames() )
             {
-                if ( !eventLogNames.contains( f.getName() ) )
+                String name = f.getName();
+
+                if ( name.endsWith( ".db" ) )
+                {
+                    name = name.substring( 0, name.length() - 3 );
+
+                    if ( eventLogNames.contains( name ) )
+                    {
+                        changeLog.importJournal( new File( f.getParentFile(), name ) );
+                        continue;
+                    }
+                }
+
+                if ( f.delete() )
                 {
-                    f.delete();
                     PROVIDER_LOG.info( "removed unused replication event log {}", f );
                 }
             }
@@ -1136,7 +1283,7 @@ public class SyncReplRequestHandler implements ReplicationRequestHandler
 
         PROVIDER_LOG.debug( "creating a new event log for the replica with id {}", replicaId );
 
-        ReplicaEventLog replicaLog = new ReplicaEventLog( dirService, replicaId );
+        ReplicaEventLog replicaLog = new ReplicaEventLog( changeLog, replicaId );
         replicaLog.setHostName( hostName );
         replicaLog.setSearchFilter( filter );
 
@@ -20,18 +20,20 @@
 package org.apache.directory.server.ldap.replication.provider;
 
 
+import java.util.List;
+
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateTypeEnum;
 import org.apache.directory.api.ldap.extras.controls.syncrepl.syncState.SyncStateValue;
 import org.apache.directory.api.ldap.extras.controls.syncrepl_impl.SyncStateValueDecorator;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
 import org.apache.directory.api.ldap.model.message.AbandonListener;
 import org.apache.directory.api.ldap.model.message.AbandonableRequest;
 import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchResultEntry;
 import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
-import org.apache.directory.api.ldap.model.message.controls.ChangeType;
 import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.api.DirectoryService;
@@ -48,7 +50,7 @@ import org.apache.directory.server.core.api.interceptor.context.RenameOperationC
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.ldap.LdapProtocolUtils;
 import org.apache.directory.server.ldap.LdapSession;
-import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.apache.directory.server.ldap.replication.SyncModificationsValue;
 import org.apache.mina.core.future.WriteFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,9 +58,11 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A listener associated with the replication system. It does send the modifications to the 
- * consumer, if it's connected, or store the data into a queue for a later transmission.
+ * consumer, if it's connected. 
  * 
- * Note: we always log the entry irrespective of the client's connection status for guaranteed delivery
+ * Note: the modifications are always stored once in the shared {@link ReplicaChangeLog} by the
+ * {@link ReplicaChangeLogListener}, irrespective of the client's connection status, for guaranteed
+ * delivery
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -187,7 +191,8 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     
     
     /**
-     * Send the result to the consumer. If the consumer has disconnected, we fail back to the queue.
+     * Send the result to the consumer. If the consumer has disconnected, it will get the modification
+     * from the changelog when it reconnects.
      */
     private void sendResult( SearchResultEntry searchResultEntry, Entry entry, EventType eventType, 
         SyncStateValue syncStateValue )
@@ -195,10 +200,16 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
         searchResultEntry.addControl( syncStateValue );
 
         LOG.debug( "sending event {} of entry {}", eventType, entry.getDn() );
-        WriteFuture future = session.getIoSession().write( searchResultEntry );
 
-        // Now, send the entry to the consumer
-        handleWriteFuture( future, entry, eventType );
+        // The consumer's log is locked while its pending modifications are sent from the
+        // changelog : wait for them to be sent first, to keep the modifications in order
+        synchronized ( consumerMsgLog )
+        {
+            WriteFuture future = session.getIoSession().write( searchResultEntry );
+
+            // Now, send the entry to the consumer
+            handleWriteFuture( future, entry, eventType );
+        }
     }
     
 
@@ -219,10 +230,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
         try
         {
-            //System.out.println( "ADD Listener : log " + entry.getDn() );
-            // we log it first
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.ADD, entry ) );
-
             // We send the added entry directly to the consumer if it's connected
             if ( pushInRealTime )
             {
@@ -271,9 +278,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
     {
         try
         {
-            //System.out.println( "DELETE Listener : log " + entry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.DELETE, entry ) );
-            
             if ( pushInRealTime )
             {
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
@@ -310,17 +314,29 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
 
         try
         {
-            //System.out.println( "MODIFY Listener : log " + alteredEntry.getDn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODIFY, alteredEntry ) );
-            
             if ( pushInRealTime )
             {
 
+                DirectoryService directoryService = session.getCoreSession().getDirectoryService();
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
                 resultEntry.setObjectName( modifyContext.getDn() );
-                resultEntry.setEntry( alteredEntry );
 
-                SyncStateValue syncModify = createControl( session.getCoreSession().getDirectoryService(), SyncStateTypeEnum.MODIFY, alteredEntry );
+                if ( SyncModificationsValue.isRequested( searchRequest ) )
+                {
+                    // only send the modifications, the consumer knows how to apply them
+                    List<Modification> modifications = SyncModificationsValue.withEntryCsn(
+                        modifyContext.getModItems(), alteredEntry );
+                    resultEntry.setEntry( SyncModificationsValue.createEntry( directoryService.getSchemaManager(),
+                        alteredEntry ) );
+                    resultEntry.addControl( SyncModificationsValue.createResponseControl(
+                        directoryService.getLdapCodecService(), alteredEntry.getDn(), modifications ) );
+                }
+                else
+                {
+                    resultEntry.setEntry( alteredEntry );
+                }
+
+                SyncStateValue syncModify = createControl( directoryService, SyncStateTypeEnum.MODIFY, alteredEntry );
 
                 sendResult( resultEntry, alteredEntry, EventType.MODIFY, syncModify );
             }
@@ -356,9 +372,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
                 return;
             }
 
-            //System.out.println( "MOVE Listener : log " + moveContext.getDn() + " moved to " + moveContext.getNewSuperior() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
             if ( pushInRealTime )
             {
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
@@ -402,10 +415,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
             }
 
 
-            //System.out.println( "MOVE AND RENAME Listener : log " + moveAndRenameContext.getDn() + 
-            //    " moved to " + moveAndRenameContext.getNewSuperiorDn() + " renamed to " + moveAndRenameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
             if ( pushInRealTime )
             {
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
@@ -443,9 +452,6 @@ public class SyncReplSearchListener implements DirectoryListener, AbandonListene
         try
         {
             // should always send the original entry cause the consumer perform the modDn operation there
-            //System.out.println( "RENAME Listener : log " + renameContext.getDn() + " renamed to " + renameContext.getNewRdn() );
-            consumerMsgLog.log( new ReplicaEventMessage( ChangeType.MODDN, entry ) );
-            
             if ( pushInRealTime )
             {
                 SearchResultEntry resultEntry = new SearchResultEntryImpl( searchRequest.getMessageId() );
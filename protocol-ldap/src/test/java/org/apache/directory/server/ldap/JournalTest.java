@@ -21,9 +21,12 @@ package org.apache.directory.server.ldap;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import jdbm.RecordManager;
 import jdbm.recman.BaseRecordManager;
@@ -35,8 +38,12 @@ import org.apache.directory.api.ldap.model.csn.CsnFactory;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Modification;
+import org.apache.directory.api.ldap.model.entry.ModificationOperation;
 import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
 import org.apache.directory.api.ldap.schemaextractor.SchemaLdifExtractor;
@@ -293,6 +300,85 @@ public class JournalTest
     }
 
 
+    /**
+     * test that the previous Dn and the origin replica of a MODDN message are stored
+     * along with the entry.
+     */
+    @Test
+    public void testJournalMoveMessage() throws Exception
+    {
+        Csn entryCsn = csnFactory.newInstance();
+
+        Entry entry = new DefaultEntry( schemaManager, "ou=moved,ou=system",
+            "ObjectClass: top",
+            "ObjectClass: organizationalUnit",
+            "ou", "moved",
+            "entryCsn", entryCsn.toString()
+            );
+
+        Dn previousDn = new Dn( schemaManager, "ou=test,ou=system" );
+
+        journal.put( entryCsn.toString(), new ReplicaEventMessage( ChangeType.MODDN, entry, previousDn, 3 ) );
+        journal.sync();
+
+        ReplicaEventMessage message = journal.get( entryCsn.toString() );
+
+        assertEquals( ChangeType.MODDN, message.getChangeType() );
+        assertEquals( "moved", message.getEntry().get( "ou" ).getString() );
+        assertEquals( previousDn, message.getPreviousDn() );
+        assertEquals( 3, message.getOriginRid() );
+
+        // a local ADD has no previous Dn and no origin replica
+        entryCsn = csnFactory.newInstance();
+        entry.put( "entryCsn", entryCsn.toString() );
+
+        journal.put( entryCsn.toString(), new ReplicaEventMessage( ChangeType.ADD, entry ) );
+        message = journal.get( entryCsn.toString() );
+
+        assertNull( message.getPreviousDn() );
+        assertEquals( -1, message.getOriginRid() );
+    }
+
+
+    /**
+     * test that the modifications of a MODIFY message are stored along with the entry.
+     */
+    @Test
+    public void testJournalModifyMessage() throws Exception
+    {
+        Csn entryCsn = csnFactory.newInstance();
+
+        Entry entry = new DefaultEntry( schemaManager, "cn=group,ou=system",
+            "ObjectClass: top",
+            "ObjectClass: groupOfNames",
+            "cn", "group",
+            "member", "uid=user1,ou=system",
+            "member", "uid=user2,ou=system",
+            "entryCsn", entryCsn.toString()
+            );
+
+        List<Modification> modifications = new ArrayList<Modification>();
+        modifications.add( new DefaultModification( ModificationOperation.ADD_ATTRIBUTE, "member",
+            "uid=user2,ou=system" ) );
+
+        ReplicaEventMessage replicaEventMessage = new ReplicaEventMessage( ChangeType.MODIFY, entry );
+        replicaEventMessage.setModifications( modifications );
+
+        journal.put( entryCsn.toString(), replicaEventMessage );
+        journal.sync();
+
+        ReplicaEventMessage message = journal.get( entryCsn.toString() );
+
+        assertEquals( ChangeType.MODIFY, message.getChangeType() );
+        assertEquals( 1, message.getModifications().size() );
+
+        Modification modification = message.getModifications().get( 0 );
+        assertEquals( ModificationOperation.ADD_ATTRIBUTE, modification.getOperation() );
+        assertEquals( "member", modification.getAttribute().getUpId() );
+        assertEquals( "uid=user2,ou=system", modification.getAttribute().getString() );
+    }
+
+
     /**
      * Test the performances for 100 000 writes, read and delete.
      * On my laptop, it takes : <br>
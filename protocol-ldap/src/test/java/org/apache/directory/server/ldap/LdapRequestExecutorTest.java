@@ -0,0 +1,116 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.api.ldap.model.message.BindRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.server.ldap.LdapRequestExecutor.Lane;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.junit.Test;
+
+
+/**
+ * Tests for the LdapRequestExecutor lanes.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class LdapRequestExecutorTest
+{
+    @Test
+    public void testGetLane()
+    {
+        DummySession session = new DummySession();
+
+        assertEquals( Lane.FAST, LdapRequestExecutor.getLane(
+            new IoEvent( IoEventType.MESSAGE_RECEIVED, session, new BindRequestImpl() ) ) );
+        assertEquals( Lane.DEFAULT, LdapRequestExecutor.getLane(
+            new IoEvent( IoEventType.MESSAGE_RECEIVED, session, new SearchRequestImpl() ) ) );
+        assertEquals( Lane.DEFAULT, LdapRequestExecutor.getLane( new Runnable()
+        {
+            public void run()
+            {
+            }
+        } ) );
+    }
+
+
+    @Test
+    public void testBindNotBlockedBySearch() throws Exception
+    {
+        LdapRequestExecutor executor = new LdapRequestExecutor( "test", 1, 1 );
+        DummySession session = new DummySession();
+        final CountDownLatch searchRunning = new CountDownLatch( 1 );
+        final CountDownLatch releaseSearch = new CountDownLatch( 1 );
+        final CountDownLatch bindDone = new CountDownLatch( 1 );
+
+        try
+        {
+            // A search holding the only thread of the default lane
+            executor.execute( new IoEvent( IoEventType.MESSAGE_RECEIVED, session, new SearchRequestImpl() )
+            {
+                public void fire()
+                {
+                    searchRunning.countDown();
+
+                    try
+                    {
+                        releaseSearch.await();
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            } );
+
+            assertTrue( searchRunning.await( 10, TimeUnit.SECONDS ) );
+
+            // A second search is queued
+            executor.execute( new IoEvent( IoEventType.MESSAGE_RECEIVED, session, new SearchRequestImpl() ) );
+            assertEquals( 1, executor.getQueueSize( Lane.DEFAULT ) );
+
+            // The bind still goes through
+            executor.execute( new IoEvent( IoEventType.MESSAGE_RECEIVED, session, new BindRequestImpl() )
+            {
+                public void fire()
+                {
+                    bindDone.countDown();
+                }
+            } );
+
+            assertTrue( bindDone.await( 10, TimeUnit.SECONDS ) );
+            assertEquals( 1, executor.getMaxQueueSize( Lane.DEFAULT ) );
+        }
+        finally
+        {
+            releaseSearch.countDown();
+            executor.shutdown();
+        }
+    }
+}
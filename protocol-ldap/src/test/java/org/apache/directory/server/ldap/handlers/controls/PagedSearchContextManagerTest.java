@@ -0,0 +1,143 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.controls;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.EmptyCursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.mina.core.session.DummySession;
+import org.junit.Test;
+
+
+/**
+ * Tests for the PagedSearchContextManager limits.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class PagedSearchContextManagerTest
+{
+    private static PagedSearchContext createContext( LdapSession session, int messageId ) throws Exception
+    {
+        SearchRequest request = new SearchRequestImpl();
+        request.setMessageId( messageId );
+        PagedSearchContext context = new PagedSearchContext( request );
+        context.setCursor( new EmptyCursor<Entry>() );
+        session.addPagedSearchContext( context );
+
+        return context;
+    }
+
+
+    @Test
+    public void testMaxContextsPerSession() throws Exception
+    {
+        PagedSearchContextManager manager = new PagedSearchContextManager();
+        manager.setMaxContextsPerSession( 2 );
+        LdapSession session = new LdapSession( new DummySession() );
+        LdapSession otherSession = new LdapSession( new DummySession() );
+
+        PagedSearchContext first = createContext( session, 1 );
+        manager.add( session, first );
+        PagedSearchContext other = createContext( otherSession, 2 );
+        manager.add( otherSession, other );
+        PagedSearchContext second = createContext( session, 3 );
+        manager.add( session, second );
+        PagedSearchContext third = createContext( session, 4 );
+        manager.add( session, third );
+
+        // The first context of the session has been removed, not the other session's one
+        assertEquals( 3, manager.size() );
+        assertNull( session.getPagedSearchContext( first.getCookieValue() ) );
+        assertNull( first.getCursor() );
+        assertNotNull( session.getPagedSearchContext( second.getCookieValue() ) );
+        assertNotNull( otherSession.getPagedSearchContext( other.getCookieValue() ) );
+    }
+
+
+    @Test
+    public void testMaxContexts() throws Exception
+    {
+        PagedSearchContextManager manager = new PagedSearchContextManager();
+        manager.setMaxContexts( 2 );
+        LdapSession session = new LdapSession( new DummySession() );
+
+        PagedSearchContext first = createContext( session, 1 );
+        manager.add( session, first );
+        PagedSearchContext second = createContext( session, 2 );
+        manager.add( session, second );
+
+        // Use the first context, it's now the most recently used one
+        manager.acquire( first );
+        manager.release( first );
+
+        PagedSearchContext third = createContext( session, 3 );
+        manager.add( session, third );
+
+        assertEquals( 2, manager.size() );
+        assertNotNull( session.getPagedSearchContext( first.getCookieValue() ) );
+        assertNull( session.getPagedSearchContext( second.getCookieValue() ) );
+    }
+
+
+    @Test
+    public void testIdleContexts() throws Exception
+    {
+        PagedSearchContextManager manager = new PagedSearchContextManager();
+        manager.setCursorIdleTime( 0L );
+        LdapSession session = new LdapSession( new DummySession() );
+
+        PagedSearchContext used = createContext( session, 1 );
+        manager.add( session, used );
+        manager.acquire( used );
+        Cursor<Entry> usedCursor = used.getCursor();
+
+        PagedSearchContext idle = createContext( session, 2 );
+        manager.add( session, idle );
+        Cursor<Entry> idleCursor = idle.getCursor();
+
+        // The idle context's cursor is closed, but the context is kept
+        manager.add( session, createContext( session, 3 ) );
+
+        assertNull( idle.getCursor() );
+        assertTrue( idleCursor.isClosed() );
+        assertNotNull( session.getPagedSearchContext( idle.getCookieValue() ) );
+
+        // The context being used is left untouched
+        assertNotNull( used.getCursor() );
+
+        // Now, remove the idle contexts
+        manager.release( used );
+        manager.setContextIdleTime( 0L );
+        manager.add( session, createContext( session, 4 ) );
+
+        assertNull( session.getPagedSearchContext( used.getCookieValue() ) );
+        assertTrue( usedCursor.isClosed() );
+        assertEquals( 1, manager.size() );
+    }
+}
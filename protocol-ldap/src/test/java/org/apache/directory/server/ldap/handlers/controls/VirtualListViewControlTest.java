@@ -0,0 +1,139 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.handlers.controls;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.api.asn1.DecoderException;
+import org.apache.directory.api.util.Strings;
+import org.junit.Test;
+
+
+/**
+ * Tests the encoding and decoding of the VirtualListView control values.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class VirtualListViewControlTest
+{
+    @Test
+    public void testDecodeRequestByOffset() throws Exception
+    {
+        byte[] value = new byte[]
+            {
+                0x30, 0x11,
+                0x02, 0x01, 0x01,
+                0x02, 0x01, 0x02,
+                ( byte ) 0xA0, 0x06,
+                0x02, 0x01, 0x05,
+                0x02, 0x01, 0x64,
+                0x04, 0x01, 0x01
+        };
+
+        VirtualListViewRequestValue request = VirtualListViewRequestValue.decode( value );
+
+        assertEquals( 1, request.getBeforeCount() );
+        assertEquals( 2, request.getAfterCount() );
+        assertTrue( request.isByOffset() );
+        assertEquals( 5, request.getOffset() );
+        assertEquals( 100, request.getContentCount() );
+        assertArrayEquals( new byte[]
+            { 0x01 }, request.getContextId() );
+        assertEquals( 1, VirtualListViewContext.getContextIdValue( request.getContextId() ) );
+    }
+
+
+    @Test
+    public void testDecodeRequestByValue() throws Exception
+    {
+        byte[] value = new byte[]
+            {
+                0x30, 0x09,
+                0x02, 0x01, 0x00,
+                0x02, 0x01, 0x03,
+                ( byte ) 0x81, 0x01, 'b'
+        };
+
+        VirtualListViewRequestValue request = VirtualListViewRequestValue.decode( value );
+
+        assertEquals( 0, request.getBeforeCount() );
+        assertEquals( 3, request.getAfterCount() );
+        assertFalse( request.isByOffset() );
+        assertEquals( "b", Strings.utf8ToString( request.getAssertionValue() ) );
+        assertNull( request.getContextId() );
+    }
+
+
+    @Test(expected = DecoderException.class)
+    public void testDecodeRequestWithoutTarget() throws Exception
+    {
+        byte[] value = new byte[]
+            {
+                0x30, 0x06,
+                0x02, 0x01, 0x00,
+                0x02, 0x01, 0x03
+        };
+
+        VirtualListViewRequestValue.decode( value );
+    }
+
+
+    @Test(expected = DecoderException.class)
+    public void testDecodeTruncatedRequest() throws Exception
+    {
+        byte[] value = new byte[]
+            {
+                0x30, 0x09,
+                0x02, 0x01, 0x00,
+                0x02, 0x01, 0x03,
+                ( byte ) 0x81, 0x05, 'b'
+        };
+
+        VirtualListViewRequestValue.decode( value );
+    }
+
+
+    @Test
+    public void testEncodeResponse() throws Exception
+    {
+        VirtualListViewResponseValue response = new VirtualListViewResponseValue();
+        response.setTargetPosition( 5 );
+        response.setContentCount( 100 );
+        response.setResult( VirtualListViewResponseValue.OFFSET_RANGE_ERROR );
+        response.setContextId( new byte[]
+            { 0x01 } );
+
+        byte[] expected = new byte[]
+            {
+                0x30, 0x0C,
+                0x02, 0x01, 0x05,
+                0x02, 0x01, 0x64,
+                0x0A, 0x01, 0x3D,
+                0x04, 0x01, 0x01
+        };
+
+        assertArrayEquals( expected, response.encode() );
+    }
+}
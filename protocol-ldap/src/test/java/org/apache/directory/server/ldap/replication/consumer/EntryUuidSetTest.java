@@ -0,0 +1,88 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for the EntryUuidSet used during the refreshPresent phase.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryUuidSetTest
+{
+    @Test
+    public void testAddAndContains()
+    {
+        // start small, to check that the set grows
+        EntryUuidSet set = new EntryUuidSet( 1 );
+        List<UUID> uuids = new ArrayList<UUID>();
+
+        for ( int i = 0; i < 10000; i++ )
+        {
+            UUID uuid = UUID.randomUUID();
+            uuids.add( uuid );
+            set.add( uuid );
+        }
+
+        assertEquals( 10000, set.size() );
+
+        for ( UUID uuid : uuids )
+        {
+            assertTrue( set.contains( uuid ) );
+        }
+
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertFalse( set.contains( UUID.randomUUID() ) );
+        }
+    }
+
+
+    @Test
+    public void testDuplicatesAndZero()
+    {
+        EntryUuidSet set = new EntryUuidSet( 10 );
+        UUID uuid = UUID.fromString( "f81d4fae-7dec-11d0-a765-00a0c91e6bf6" );
+        UUID zero = new UUID( 0L, 0L );
+
+        set.add( uuid );
+        set.add( UUID.fromString( "f81d4fae-7dec-11d0-a765-00a0c91e6bf6" ) );
+
+        assertEquals( 1, set.size() );
+        assertFalse( set.contains( zero ) );
+
+        set.add( zero );
+
+        assertEquals( 2, set.size() );
+        assertTrue( set.contains( zero ) );
+        assertTrue( set.contains( uuid ) );
+    }
+}
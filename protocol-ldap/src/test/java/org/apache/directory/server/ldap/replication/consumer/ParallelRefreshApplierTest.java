@@ -0,0 +1,108 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.consumer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.directory.api.ldap.model.message.SearchResultEntry;
+import org.apache.directory.api.ldap.model.message.SearchResultEntryImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.junit.Test;
+
+
+/**
+ * Tests for the ParallelRefreshApplier.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ParallelRefreshApplierTest
+{
+    @Test
+    public void testParentsAppliedBeforeChildren() throws Exception
+    {
+        final Map<Dn, Integer> appliedOrder = new ConcurrentHashMap<Dn, Integer>();
+        final AtomicInteger counter = new AtomicInteger();
+
+        ParallelRefreshApplier applier = new ParallelRefreshApplier( 4, "test" )
+        {
+            protected void apply( SearchResultEntry entry )
+            {
+                // slow down the parents, so that the children are queued behind them
+                if ( entry.getObjectName().size() < 4 )
+                {
+                    try
+                    {
+                        Thread.sleep( 5 );
+                    }
+                    catch ( InterruptedException ie )
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                appliedOrder.put( entry.getObjectName(), counter.incrementAndGet() );
+            }
+        };
+
+        // The entries are submitted sorted, parents first
+        List<Dn> dns = new ArrayList<Dn>();
+        dns.add( new Dn( "dc=example,dc=com" ) );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            Dn ou = new Dn( "ou=ou" + i + ",dc=example,dc=com" );
+            dns.add( ou );
+
+            for ( int j = 0; j < 20; j++ )
+            {
+                dns.add( new Dn( "cn=user" + j + ",ou=ou" + i + ",dc=example,dc=com" ) );
+            }
+        }
+
+        for ( Dn dn : dns )
+        {
+            SearchResultEntry entry = new SearchResultEntryImpl( 1 );
+            entry.setObjectName( dn );
+            applier.submit( dn, entry );
+        }
+
+        applier.shutdown();
+
+        assertEquals( dns.size(), appliedOrder.size() );
+
+        for ( Dn dn : dns )
+        {
+            Dn parent = dn.getParent();
+
+            if ( appliedOrder.containsKey( parent ) )
+            {
+                assertTrue( appliedOrder.get( parent ) < appliedOrder.get( dn ) );
+            }
+        }
+    }
+}
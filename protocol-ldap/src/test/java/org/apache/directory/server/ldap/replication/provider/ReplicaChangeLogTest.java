@@ -0,0 +1,441 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.ldap.replication.provider;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.ChangeType;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.api.ldap.schemaextractor.SchemaLdifExtractor;
+import org.apache.directory.api.ldap.schemaextractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.api.ldap.schemaloader.LdifSchemaLoader;
+import org.apache.directory.api.ldap.schemamanager.impl.DefaultSchemaManager;
+import org.apache.directory.api.util.exception.Exceptions;
+import org.apache.directory.server.core.api.event.NotificationCriteria;
+import org.apache.directory.server.ldap.replication.ReplicaEventMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+/**
+ * Tests the replication changelog shared by all the consumers, and the cursor
+ * reading it for a given consumer.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class ReplicaChangeLogTest
+{
+    /** The SchemaManager instance */
+    private static SchemaManager schemaManager;
+
+    /** The CsnFactory */
+    private static CsnFactory csnFactory;
+
+    /** The directory containing the changelog */
+    private File replDir;
+
+    /** The changelog */
+    private ReplicaChangeLog changeLog;
+
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        String workingDirectory = System.getProperty( "workingDirectory" );
+
+        if ( workingDirectory == null )
+        {
+            String path = ReplicaChangeLogTest.class.getResource( "" ).getPath();
+            int targetPos = path.indexOf( "target" );
+            workingDirectory = path.substring( 0, targetPos + 6 );
+        }
+
+        File schemaRepository = new File( workingDirectory, "schema" );
+        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor( new File( workingDirectory ) );
+        extractor.extractOrCopy( true );
+        schemaManager = new DefaultSchemaManager( new LdifSchemaLoader( schemaRepository ) );
+
+        if ( !schemaManager.loadAllEnabled() )
+        {
+            fail( "Schema load failed : " + Exceptions.printErrors( schemaManager.getErrors() ) );
+        }
+
+        csnFactory = new CsnFactory( 0 );
+    }
+
+
+    @Before
+    public void openChangeLog() throws Exception
+    {
+        replDir = File.createTempFile( getClass().getSimpleName(), "" );
+        replDir.delete();
+        replDir.mkdirs();
+
+        changeLog = new ReplicaChangeLog( schemaManager, replDir );
+    }
+
+
+    @After
+    public void closeChangeLog() throws Exception
+    {
+        if ( changeLog != null )
+        {
+            changeLog.close();
+        }
+
+        changeLog = null;
+
+        for ( File file : replDir.listFiles() )
+        {
+            file.delete();
+        }
+
+        replDir.delete();
+    }
+
+
+    /**
+     * Creates a new CSN, the messages being logged by several threads
+     */
+    private static synchronized String nextCsn()
+    {
+        return csnFactory.newInstance().toString();
+    }
+
+
+    /**
+     * Stores a message for a person, and returns its CSN
+     */
+    private String log( ChangeType changeType, String cn, String parent, Dn previousDn, int originRid )
+        throws Exception
+    {
+        String csn = nextCsn();
+
+        Entry entry = new DefaultEntry( schemaManager, "cn=" + cn + "," + parent,
+            "objectClass: top",
+            "objectClass: person",
+            "cn", cn,
+            "sn: test",
+            "entryCsn", csn );
+
+        changeLog.log( new ReplicaEventMessage( changeType, entry, previousDn, originRid ) );
+
+        return csn;
+    }
+
+
+    /**
+     * Creates a consumer replicating the persons of a subtree
+     */
+    private ReplicaEventLog createConsumer( int replicaId, String base ) throws Exception
+    {
+        ReplicaEventLog replica = new ReplicaEventLog( changeLog, replicaId );
+        NotificationCriteria criteria = replica.getSearchCriteria();
+        criteria.setBase( new Dn( schemaManager, base ) );
+        criteria.setScope( SearchScope.SUBTREE );
+        criteria.setFilter( FilterParser.parse( schemaManager, "(objectClass=person)" ) );
+
+        return replica;
+    }
+
+
+    /**
+     * Reads all the messages a consumer has not received after the given CSN
+     */
+    private List<ReplicaEventMessage> readAll( ReplicaEventLog replica, String csn ) throws Exception
+    {
+        List<ReplicaEventMessage> messages = new ArrayList<ReplicaEventMessage>();
+        ReplicaJournalCursor cursor = replica.getCursor( csn );
+
+        while ( cursor.next() )
+        {
+            messages.add( cursor.get() );
+        }
+
+        cursor.close();
+
+        return messages;
+    }
+
+
+    private String getCn( ReplicaEventMessage message ) throws Exception
+    {
+        return message.getEntry().get( "cn" ).getString();
+    }
+
+
+    @Test
+    public void testReadSharedLog() throws Exception
+    {
+        List<String> csns = new ArrayList<String>();
+
+        // More messages than what the cursor reads at once
+        for ( int i = 0; i < 250; i++ )
+        {
+            csns.add( log( ChangeType.ADD, "user" + i, "ou=system", null, -1 ) );
+        }
+
+        // The messages are stored once, whatever the number of consumers
+        assertEquals( 250, changeLog.count() );
+
+        ReplicaEventLog consumer1 = createConsumer( 1, "ou=system" );
+        ReplicaEventLog consumer2 = createConsumer( 2, "ou=system" );
+
+        // A new consumer reads everything, in order
+        List<ReplicaEventMessage> messages = readAll( consumer1, null );
+        assertEquals( 250, messages.size() );
+
+        for ( int i = 0; i < 250; i++ )
+        {
+            assertEquals( "user" + i, getCn( messages.get( i ) ) );
+        }
+
+        // Another consumer starts after the last CSN it has received
+        messages = readAll( consumer2, csns.get( 99 ) );
+        assertEquals( 150, messages.size() );
+        assertEquals( "user100", getCn( messages.get( 0 ) ) );
+        assertEquals( "user249", getCn( messages.get( 149 ) ) );
+
+        // Reading doesn't remove anything
+        assertEquals( 250, changeLog.count() );
+        assertTrue( readAll( consumer2, csns.get( 249 ) ).isEmpty() );
+    }
+
+
+    @Test
+    public void testPurgeUpToSlowestConsumer() throws Exception
+    {
+        List<String> csns = new ArrayList<String>();
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            csns.add( log( ChangeType.ADD, "user" + i, "ou=system", null, -1 ) );
+        }
+
+        ReplicaEventLog fast = createConsumer( 1, "ou=system" );
+        fast.setLastSentCsn( csns.get( 7 ) );
+
+        ReplicaEventLog slow = createConsumer( 2, "ou=system" );
+        slow.setLastSentCsn( csns.get( 3 ) );
+
+        // Nothing is purged while the messages are too recent
+        assertEquals( 0, changeLog.purge( slow.getLastSentCsn(), 0L ) );
+        assertEquals( 10, changeLog.count() );
+
+        // The janitor purges up to the last CSN received by the slowest consumer
+        String oldestCsn = fast.getLastSentCsn();
+
+        if ( slow.getLastSentCsn().compareTo( oldestCsn ) < 0 )
+        {
+            oldestCsn = slow.getLastSentCsn();
+        }
+
+        assertEquals( 3, changeLog.purge( oldestCsn, Long.MAX_VALUE ) );
+        assertEquals( 7, changeLog.count() );
+
+        // Both consumers still get all the messages they have not received
+        List<ReplicaEventMessage> messages = readAll( slow, slow.getLastSentCsn() );
+        assertEquals( 6, messages.size() );
+        assertEquals( "user4", getCn( messages.get( 0 ) ) );
+
+        messages = readAll( fast, fast.getLastSentCsn() );
+        assertEquals( 2, messages.size() );
+        assertEquals( "user8", getCn( messages.get( 0 ) ) );
+    }
+
+
+    @Test
+    public void testPerConsumerFiltering() throws Exception
+    {
+        ReplicaEventLog people = createConsumer( 1, "ou=people,ou=system" );
+        ReplicaEventLog groups = createConsumer( 2, "ou=groups,ou=system" );
+
+        log( ChangeType.ADD, "user1", "ou=people,ou=system", null, -1 );
+        log( ChangeType.ADD, "group1", "ou=groups,ou=system", null, -1 );
+
+        // A change received from the consumer 1 is not sent back to it
+        log( ChangeType.ADD, "user2", "ou=people,ou=system", null, 1 );
+        log( ChangeType.ADD, "group2", "ou=groups,ou=system", null, 1 );
+
+        // An entry not matching the filter
+        Entry ou = new DefaultEntry( schemaManager, "ou=staff,ou=people,ou=system",
+            "objectClass: top",
+            "objectClass: organizationalUnit",
+            "ou: staff",
+            "entryCsn", nextCsn() );
+        changeLog.log( new ReplicaEventMessage( ChangeType.ADD, ou ) );
+
+        // An entry moved out of the consumer 1 scope
+        log( ChangeType.MODDN, "user3", "ou=groups,ou=system",
+            new Dn( schemaManager, "cn=user3,ou=people,ou=system" ), -1 );
+
+        List<ReplicaEventMessage> messages = readAll( people, null );
+        assertEquals( 2, messages.size() );
+        assertEquals( "user1", getCn( messages.get( 0 ) ) );
+
+        ReplicaEventMessage moved = messages.get( 1 );
+        assertEquals( ChangeType.DELETE, moved.getChangeType() );
+        assertEquals( new Dn( schemaManager, "cn=user3,ou=people,ou=system" ), moved.getEntry().getDn() );
+
+        messages = readAll( groups, null );
+        assertEquals( 2, messages.size() );
+        assertEquals( "group1", getCn( messages.get( 0 ) ) );
+        assertEquals( "group2", getCn( messages.get( 1 ) ) );
+    }
+
+
+    @Test
+    public void testPurgeWithoutConsumer() throws Exception
+    {
+        for ( int i = 0; i < 10; i++ )
+        {
+            log( ChangeType.ADD, "user" + i, "ou=system", null, -1 );
+        }
+
+        // Without any consumer CSN, only the time threshold applies
+        assertEquals( 0, changeLog.purge( null, 0L ) );
+        assertEquals( 10, changeLog.count() );
+
+        assertEquals( 10, changeLog.purge( null, Long.MAX_VALUE ) );
+        assertEquals( 0, changeLog.count() );
+    }
+
+
+    @Test
+    public void testConsumerBases() throws Exception
+    {
+        Dn people = new Dn( schemaManager, "cn=user1,ou=people,ou=system" );
+        Dn groups = new Dn( schemaManager, "cn=group1,ou=groups,ou=system" );
+
+        // No consumer : nothing has to be stored
+        assertFalse( changeLog.isReplicated( people ) );
+
+        ReplicaEventLog consumer1 = new ReplicaEventLog( changeLog, 1 );
+        NotificationCriteria criteria = new NotificationCriteria();
+        criteria.setBase( new Dn( "OU=People,OU=System" ) );
+        criteria.setScope( SearchScope.SUBTREE );
+        consumer1.setSearchCriteria( criteria );
+
+        assertTrue( changeLog.isReplicated( people ) );
+        assertTrue( changeLog.isReplicated( new Dn( schemaManager, "ou=people,ou=system" ) ) );
+        assertFalse( changeLog.isReplicated( groups ) );
+
+        // A second consumer on the same base
+        ReplicaEventLog consumer2 = new ReplicaEventLog( changeLog, 2 );
+        criteria = new NotificationCriteria();
+        criteria.setBase( new Dn( schemaManager, "ou=people,ou=system" ) );
+        consumer2.setSearchCriteria( criteria );
+
+        // The base is kept as long as a consumer uses it
+        consumer1.stop();
+
+        assertTrue( changeLog.isReplicated( people ) );
+
+        consumer2.stop();
+
+        assertFalse( changeLog.isReplicated( people ) );
+    }
+
+
+    @Test
+    public void testGroupCommit() throws Exception
+    {
+        // A batch is never full here : the writer must be woken up by the first message of each batch
+        changeLog.startGroupCommit( 1000, 20L );
+
+        final int nbThreads = 8;
+        final int nbMessages = 50;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[nbThreads];
+
+        for ( int i = 0; i < nbThreads; i++ )
+        {
+            final int thread = i;
+
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( int j = 0; j < nbMessages; j++ )
+                        {
+                            log( ChangeType.ADD, "user" + thread + "-" + j, "ou=system", null, -1 );
+                        }
+                    }
+                    catch ( Throwable t )
+                    {
+                        failure.compareAndSet( null, t );
+                    }
+                }
+            };
+
+            threads[i].start();
+        }
+
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        assertEquals( null, failure.get() );
+
+        // The writer thread drains the queue by itself
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while ( changeLog.hasPendingMessages() && ( System.currentTimeMillis() < deadline ) )
+        {
+            Thread.sleep( 10L );
+        }
+
+        assertFalse( changeLog.hasPendingMessages() );
+        assertEquals( nbThreads * nbMessages, changeLog.count() );
+
+        // The messages are read in CSN order
+        List<ReplicaEventMessage> messages = readAll( createConsumer( 1, "ou=system" ), null );
+        assertEquals( nbThreads * nbMessages, messages.size() );
+
+        // The pending messages are written when the changelog is closed
+        String csn = log( ChangeType.ADD, "last", "ou=system", null, -1 );
+        changeLog.close();
+        changeLog = new ReplicaChangeLog( schemaManager, replDir );
+
+        messages = readAll( createConsumer( 1, "ou=system" ), null );
+        assertEquals( nbThreads * nbMessages + 1, messages.size() );
+        assertEquals( csn, messages.get( messages.size() - 1 ).getEntry().get( "entryCsn" ).getString() );
+    }
+}
@@ -419,4 +419,122 @@ public class SortedSearchIT extends AbstractLdapTestUnit
         }
     }
 
+
+    private List<String> searchSortedByOuAndSn() throws Exception
+    {
+        sk.setAttributeTypeDesc( "ou" );
+        ctrl.addSortKey( new SortKey( "sn" ) );
+
+        SearchCursor cursor = con.search( req );
+
+        List<String> actualOrder = new ArrayList<String>();
+
+        while ( cursor.next() )
+        {
+            SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+            actualOrder.add( se.getEntry().getDn().getName() );
+        }
+
+        SearchResultDone sd = cursor.getSearchResultDone();
+        cursor.close();
+
+        SortResponse resp = ( SortResponse ) sd.getControl( SortResponse.OID );
+        assertNotNull( resp );
+        assertEquals( SortResultCode.SUCCESS, resp.getSortResult() );
+
+        return actualOrder;
+    }
+
+
+    private List<String> getOuAndSnOrder()
+    {
+        List<String> expectedOrder = new ArrayList<String>();
+
+        // The entries having an ou first
+        expectedOrder.add( "ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "ou=grandchildren,ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "ou=parent,ou=system" );
+
+        // then the entries without ou, sorted on the second key
+        expectedOrder.add( "uid=person1,ou=parent,ou=system" );
+        expectedOrder.add( "uid=person2,ou=parent,ou=system" );
+        expectedOrder.add( "uid=person3,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user0,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user1,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user2,ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user3,ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user4,ou=grandchildren,ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user5,ou=grandchildren,ou=children,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user6,ou=parent,ou=system" );
+        expectedOrder.add( "uid=user7,ou=parent,ou=system" );
+
+        return expectedOrder;
+    }
+
+
+    @Test
+    public void testSortByMultipleKeys() throws Exception
+    {
+        assertEquals( getOuAndSnOrder(), searchSortedByOuAndSn() );
+    }
+
+
+    @Test
+    public void testSortInTemporaryFiles() throws Exception
+    {
+        int maxInMemory = getService().getMaxSortedEntriesInMemory();
+
+        try
+        {
+            // Sort by chunks of 3 entries, merged afterward
+            getService().setMaxSortedEntriesInMemory( 3 );
+
+            assertEquals( getOuAndSnOrder(), searchSortedByOuAndSn() );
+        }
+        finally
+        {
+            getService().setMaxSortedEntriesInMemory( maxInMemory );
+        }
+    }
+
+
+    @Test
+    public void testSortByIndexedAttribute() throws Exception
+    {
+        // ou is indexed : the entries are returned in the index order
+        sk.setAttributeTypeDesc( "ou" );
+
+        List<String> actualOrder = new ArrayList<String>();
+        SearchCursor cursor = con.search( req );
+
+        while ( cursor.next() )
+        {
+            SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+            actualOrder.add( se.getEntry().getDn().getName() );
+        }
+
+        cursor.close();
+
+        assertEquals( 14, actualOrder.size() );
+        assertEquals( "ou=children,ou=parent,ou=system", actualOrder.get( 0 ) );
+        assertEquals( "ou=grandchildren,ou=children,ou=parent,ou=system", actualOrder.get( 1 ) );
+        assertEquals( "ou=parent,ou=system", actualOrder.get( 2 ) );
+
+        actualOrder.clear();
+        sk.setReverseOrder( true );
+        cursor = con.search( req );
+
+        while ( cursor.next() )
+        {
+            SearchResultEntry se = ( SearchResultEntry ) cursor.get();
+            actualOrder.add( se.getEntry().getDn().getName() );
+        }
+
+        cursor.close();
+
+        assertEquals( 14, actualOrder.size() );
+        assertEquals( "ou=parent,ou=system", actualOrder.get( 11 ) );
+        assertEquals( "ou=grandchildren,ou=children,ou=parent,ou=system", actualOrder.get( 12 ) );
+        assertEquals( "ou=children,ou=parent,ou=system", actualOrder.get( 13 ) );
+    }
 }
@@ -29,6 +29,7 @@ import org.apache.directory.server.constants.ApacheSchemaConstants;
 import org.apache.directory.server.core.api.DnFactory;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.xdbm.CompactIdComparator;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
 import org.apache.directory.server.xdbm.impl.avl.AvlMasterTable;
@@ -104,7 +105,14 @@ public class AvlPartition extends AbstractBTreePartition
             }
 
             // Create the master table (the table containing all the entries)
-            master = new AvlMasterTable( id, UuidComparator.INSTANCE, null, false );
+            if ( compactIds )
+            {
+                master = new AvlMasterTable( id, CompactIdComparator.INSTANCE, null, false );
+            }
+            else
+            {
+                master = new AvlMasterTable( id, UuidComparator.INSTANCE, null, false );
+            }
 
             super.doInit();
         }
@@ -178,6 +186,7 @@ public class AvlPartition extends AbstractBTreePartition
             avlIndex = new AvlIndex( index.getAttributeId(), true );
         }
 
+        avlIndex.setCompactIds( compactIds );
         avlIndex.init( schemaManager, schemaManager.lookupAttributeTypeRegistry( index.getAttributeId() ) );
 
         return avlIndex;
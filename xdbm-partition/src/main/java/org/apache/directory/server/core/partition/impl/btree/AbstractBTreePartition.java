@@ -23,10 +23,14 @@ package org.apache.directory.server.core.partition.impl.btree;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
@@ -39,8 +43,10 @@ import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.store.LruPolicy;
 
+import org.apache.directory.api.ldap.model.constants.PasswordPolicySchemaConstants;
 import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.Tuple;
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.BinaryValue;
 import org.apache.directory.api.ldap.model.entry.Entry;
@@ -57,11 +63,18 @@ import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
 import org.apache.directory.api.ldap.model.exception.LdapOperationErrorException;
 import org.apache.directory.api.ldap.model.exception.LdapSchemaViolationException;
 import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.LeafNode;
 import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.SortKey;
+import org.apache.directory.api.ldap.model.message.controls.SortRequest;
 import org.apache.directory.api.ldap.model.name.Ava;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.AttributeTypeOptions;
 import org.apache.directory.api.ldap.model.schema.MatchingRule;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.api.util.Strings;
@@ -85,15 +98,20 @@ import org.apache.directory.server.core.api.interceptor.context.UnbindOperationC
 import org.apache.directory.server.core.api.partition.AbstractPartition;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.CompactId;
+import org.apache.directory.server.xdbm.EntryOrdinalMap;
+import org.apache.directory.server.xdbm.EntryProjection;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.IndexNotFoundException;
 import org.apache.directory.server.xdbm.MasterTable;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
+import org.apache.directory.server.xdbm.SingletonIndexCursor;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Optimizer;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
 import org.apache.directory.server.xdbm.search.SearchEngine;
+import org.apache.directory.server.xdbm.search.cursor.DescendantCursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -120,6 +138,34 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** The default cache size is set to 10 000 objects */
     public static final int DEFAULT_CACHE_SIZE = 10000;
 
+    /**
+     * The maximum ratio between the size of an index and the number of candidates for the
+     * index to be browsed to return the entries in the order of a sort control
+     */
+    private static final int SORT_INDEX_SCAN_RATIO = 10;
+
+    /**
+     * The attributes always decoded when a search only requests some attributes, as
+     * they are used by the interceptors processing the search results
+     */
+    private static final String[] PROJECTION_REQUIRED_ATTRIBUTES = new String[]
+        {
+            SchemaConstants.OBJECT_CLASS_AT,
+            SchemaConstants.ENTRY_UUID_AT,
+            SchemaConstants.ENTRY_CSN_AT,
+            SchemaConstants.REF_AT,
+            SchemaConstants.ALIASED_OBJECT_NAME_AT,
+            SchemaConstants.ADMINISTRATIVE_ROLE_AT,
+            SchemaConstants.SUBTREE_SPECIFICATION_AT,
+            SchemaConstants.SUBSCHEMA_SUBENTRY_AT,
+            SchemaConstants.ACCESS_CONTROL_SUBENTRIES_AT,
+            SchemaConstants.PRESCRIPTIVE_ACI_AT,
+            SchemaConstants.COLLECTIVE_ATTRIBUTE_SUBENTRIES_AT,
+            SchemaConstants.COLLECTIVE_EXCLUSIONS_AT,
+            SchemaConstants.TRIGGER_EXECUTION_SUBENTRIES_AT,
+            PasswordPolicySchemaConstants.PWD_POLICY_SUBENTRY_AT
+    };
+
     /** The Entry cache size for this partition */
     protected int cacheSize = DEFAULT_CACHE_SIZE;
 
@@ -132,6 +178,21 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     /** true if we sync disks on every write operation */
     protected AtomicBoolean isSyncOnWrite = new AtomicBoolean( true );
 
+    /** true if the entries are identified by compact IDs instead of their entryUUID */
+    protected boolean compactIds = false;
+
+    /** The number of compact IDs reserved at once in the master table */
+    private static final long COMPACT_ID_BLOCK_SIZE = 128L;
+
+    /** The last compact ID given to an entry, -1 if not yet read from the master table */
+    private long lastCompactId = -1L;
+
+    /** The greatest compact ID reserved in the master table */
+    private long reservedCompactId = -1L;
+
+    /** A lock protecting the compact ID sequence */
+    private final Object compactIdLock = new Object();
+
     /** The suffix UUID */
     private volatile String suffixId;
 
@@ -194,7 +255,13 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
     /** a cache to hold <entryUUID, Dn> pairs, this is used for speeding up the buildEntryDn() method */
     private Cache entryDnCache;
+
+    /** a cache to hold <normalized Dn, entry ID> pairs, this is used for speeding up the getEntryId() method */
+    private Cache entryIdCache;
     
+    /** The dense ordinals associated with the entry IDs, used to store search candidates in bitmaps */
+    private final EntryOrdinalMap ordinalMap = new EntryOrdinalMap();
+
     /** a semaphore to serialize the writes on context entry while updating contextCSN attribute */
     private Semaphore ctxCsnSemaphore = new Semaphore( 1 );
     
@@ -327,6 +394,37 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Tells if the entries are identified internally by compact IDs.
+     *
+     * @return true if the partition uses compact IDs
+     * @see CompactId
+     */
+    public boolean isCompactIds()
+    {
+        return compactIds;
+    }
+
+
+    /**
+     * Sets the way entries are identified internally. By default, the entryUUID is
+     * used. When set to true, the partition gives each added entry a long ID taken
+     * from a monotonically increasing sequence : the indexes and the master table are
+     * then a lot smaller, and comparing IDs is cheaper. The entryUUID is then stored
+     * in an ordinary user index.
+     * <br/>
+     * This mode has to be chosen when the partition is created, it can't be changed
+     * once some entries have been stored.
+     *
+     * @param compactIds true if the partition should use compact IDs
+     */
+    public void setCompactIds( boolean compactIds )
+    {
+        checkInitialized( "compactIds" );
+        this.compactIds = compactIds;
+    }
+
+
     /**
      * Sets up the system indices.
      */
@@ -500,6 +598,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         initialized = false;
 
         entryDnCache.removeAll();
+        entryIdCache.removeAll();
+        ordinalMap.clear();
         
         MultiException errors = new MultiException( I18n.err( I18n.ERR_577 ) );
 
@@ -554,6 +654,13 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      */
     protected void doInit() throws Exception
     {
+        // The lock is replaced by the OperationManager one by the first operation, but the
+        // partition can be read directly before that
+        if ( rwLock == null )
+        {
+            rwLock = new ReentrantReadWriteLock();
+        }
+
         // First, inject the indexed attributes if any
         if ( ( indexedAttributes != null ) && ( indexedAttributes.size() > 0 ) )
         {
@@ -563,13 +670,19 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
         }
 
+        // With compact IDs, the entryUUID is not the entry ID anymore : it has to be indexed
+        if ( compactIds && !userIndices.containsKey( SchemaConstants.ENTRY_UUID_AT_OID ) )
+        {
+            addIndex( createSystemIndex( SchemaConstants.ENTRY_UUID_AT_OID, partitionPath, NO_REVERSE ) );
+        }
+
         // Now, initialize the configured index
         setupSystemIndices();
         setupUserIndices();
 
         if ( cacheService != null )
         {
-            aliasCache = cacheService.getCache( "alias" );
+            aliasCache = cacheService.getCache( getIdCacheName( "alias" ) );
     
             int cacheSizeConfig = aliasCache.getCacheConfiguration().getMaxElementsInMemory();
     
@@ -578,7 +691,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 aliasCache.getCacheConfiguration().setMaxElementsInMemory( cacheSize );
             }
             
-            piarCache = cacheService.getCache( "piar" );
+            piarCache = cacheService.getCache( getIdCacheName( "piar" ) );
             
             cacheSizeConfig = piarCache.getCacheConfiguration().getMaxElementsInMemory();
     
@@ -587,13 +700,42 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 piarCache.getCacheConfiguration().setMaxElementsInMemory( cacheSize * 3 );
             }
             
-            entryDnCache = cacheService.getCache( "entryDn" );
+            entryDnCache = cacheService.getCache( getIdCacheName( "entryDn" ) );
             entryDnCache.setMemoryStoreEvictionPolicy( new LruPolicy() );
             entryDnCache.getCacheConfiguration().setMaxElementsInMemory( cacheSize );
+
+            // The ancestors of the looked up entries are also stored, so that siblings share them
+            entryIdCache = cacheService.getCache( "entryId" );
+            entryIdCache.setMemoryStoreEvictionPolicy( new LruPolicy() );
+            entryIdCache.getCacheConfiguration().setMaxElementsInMemory( cacheSize * 3 );
+
+            // Those caches are shared, and may still contain the mappings of a partition which
+            // has not been destroyed : they must not be used for the entries of this one
+            entryDnCache.removeAll();
+            entryIdCache.removeAll();
         }
     }
 
 
+    /**
+     * Gets the name of a cache keyed by entry IDs. The caches are shared by all the partitions,
+     * which is fine for the entryUUIDs, but two partitions may use the same compact IDs : they
+     * then get their own caches.
+     *
+     * @param name The shared cache name
+     * @return The name of the cache to use for this partition
+     */
+    private String getIdCacheName( String name )
+    {
+        if ( compactIds )
+        {
+            return name + "-" + getId();
+        }
+
+        return name;
+    }
+
+
     private void dumpAllRdnIdx() throws Exception
     {
         if ( LOG.isDebugEnabled() )
@@ -738,7 +880,11 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
             String id = null;
 
-            if ( entryUUID == null )
+            if ( compactIds )
+            {
+                id = getNextCompactId();
+            }
+            else if ( entryUUID == null )
             {
                 id = master.getNextId( entry );
             }
@@ -916,6 +1062,9 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             // We now defer the deletion to the implementing class
             Entry deletedEntry = delete( id );
 
+            // The ID is known here : with compact IDs, it can't be found from the
+            // deleted entry anymore
+            removeFromCache( Collections.singleton( id ) );
             updateCache( deleteContext );
             
             return deletedEntry;
@@ -978,6 +1127,83 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Gets the next compact ID. The IDs are reserved by blocks in the master table
+     * before being given, so that an ID is never given twice, even when the entry
+     * with the greatest ID has been deleted before a restart. The IDs which were
+     * reserved but not given before a restart are skipped.
+     *
+     * @return The next compact ID
+     * @throws Exception If the master table can't be read or updated
+     */
+    private String getNextCompactId() throws Exception
+    {
+        synchronized ( compactIdLock )
+        {
+            if ( lastCompactId < 0L )
+            {
+                // The greatest stored ID is also checked, for the partitions created
+                // before the reserved IDs were stored
+                lastCompactId = Math.max( CompactId.FIRST_VALUE - 1, master.getReservedCompactId() );
+                Cursor<Tuple<String, Entry>> cursor = master.cursor();
+
+                try
+                {
+                    cursor.afterLast();
+
+                    if ( cursor.previous() )
+                    {
+                        lastCompactId = Math.max( lastCompactId, CompactId.toValue( cursor.get().getKey() ) );
+                    }
+                }
+                finally
+                {
+                    cursor.close();
+                }
+
+                reservedCompactId = lastCompactId;
+            }
+
+            lastCompactId++;
+
+            if ( lastCompactId > reservedCompactId )
+            {
+                reservedCompactId = lastCompactId + COMPACT_ID_BLOCK_SIZE - 1;
+                master.setReservedCompactId( reservedCompactId );
+            }
+
+            return CompactId.toId( lastCompactId );
+        }
+    }
+
+
+    /**
+     * Gets the ID under which a stored entry is known in this partition : its
+     * entryUUID, or the compact ID associated with its DN if the partition uses
+     * compact IDs.
+     *
+     * @param entry The entry
+     * @return The entry ID, or null if it can't be found
+     * @throws LdapException If the ID can't be read
+     */
+    protected String getStoredEntryId( Entry entry ) throws LdapException
+    {
+        if ( compactIds )
+        {
+            return getEntryId( entry.getDn() );
+        }
+
+        Attribute entryUUID = entry.get( ENTRY_UUID_AT );
+
+        if ( entryUUID == null )
+        {
+            return null;
+        }
+
+        return entryUUID.getString();
+    }
+
+
     /**
      * Delete the entry associated with a given Id
      * @param id The id of the entry to delete
@@ -1071,6 +1297,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 }
             }
 
+            Dn entryDn = buildEntryDn( id );
+
             lockWrite();
 
             try
@@ -1080,6 +1308,18 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 dumpRdnIdx();
 
                 entryDnCache.remove( id );
+
+                // A deleted entry has no descendant : only its own ID has to be removed
+                if ( entryIdCache != null )
+                {
+                    entryIdCache.remove( entryDn.getNormName() );
+                }
+
+                if ( piarCache != null )
+                {
+                    piarCache.remove( id );
+                }
+                ordinalMap.release( id );
                 
                 Attribute csn = entry.get( ENTRY_CSN_AT );
                 // can be null while doing subentry deletion
@@ -1139,8 +1379,20 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             }
             
             PartitionSearchResult searchResult = searchEngine.computeResult( schemaManager, searchContext );
+            searchResult.setProjection( getProjection( searchContext ) );
 
-            Cursor<Entry> result = new EntryCursorAdaptor( this, searchResult );
+            Cursor<IndexEntry<String, String>> sortedCandidates = getSortedCandidates( searchContext, searchResult );
+            Cursor<Entry> result = null;
+
+            if ( sortedCandidates != null )
+            {
+                result = new EntryCursorAdaptor( this, searchResult, sortedCandidates );
+                searchContext.setSorted( true );
+            }
+            else
+            {
+                result = new EntryCursorAdaptor( this, searchResult );
+            }
 
             return new EntryFilteringCursorImpl( result, searchContext, schemaManager );
         }
@@ -1156,6 +1408,97 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Returns the candidates of a search in the order requested by the server side sort
+     * control, using the index of the sort attribute. This is done when there is a single
+     * sort key, when the index orders the values the way the requested matching rule does,
+     * and when the index is not much bigger than the number of candidates.
+     *
+     * @param searchContext The search operation context
+     * @param searchResult The search result
+     * @return A cursor on the sorted candidates, or null if the index can't be used
+     */
+    @SuppressWarnings("unchecked")
+    private Cursor<IndexEntry<String, String>> getSortedCandidates( SearchOperationContext searchContext,
+        PartitionSearchResult searchResult ) throws Exception
+    {
+        SortRequest sortRequest = searchContext.getSortRequest();
+
+        if ( ( sortRequest == null ) || ( sortRequest.getSortKeys().size() != 1 )
+            || ( searchContext.getScope() == SearchScope.OBJECT ) )
+        {
+            return null;
+        }
+
+        SortKey sortKey = sortRequest.getSortKeys().get( 0 );
+        AttributeType attributeType = schemaManager.getAttributeType( sortKey.getAttributeTypeDesc() );
+
+        if ( ( attributeType == null ) || !hasUserIndexOn( attributeType ) )
+        {
+            return null;
+        }
+
+        Index<Object, String> index = ( Index<Object, String> ) getUserIndex( attributeType );
+
+        // In the reverse order, an entry is sorted on its least value, which can't be found
+        // while browsing the index backward if it has many values
+        if ( sortKey.isReverseOrder() && ( !attributeType.isSingleValued() || !index.hasReverse() ) )
+        {
+            return null;
+        }
+
+        if ( !isIndexOrdering( attributeType, sortKey.getMatchingRuleId() ) )
+        {
+            return null;
+        }
+
+        Set<String> candidates = new LinkedHashSet<String>();
+        Cursor<IndexEntry<String, String>> resultSet = searchResult.getResultSet();
+
+        while ( resultSet.next() )
+        {
+            candidates.add( resultSet.get().getId() );
+        }
+
+        resultSet.beforeFirst();
+
+        if ( index.count() > candidates.size() * SORT_INDEX_SCAN_RATIO )
+        {
+            return null;
+        }
+
+        return new SortedIndexEntryCursor( index, sortKey.isReverseOrder(), candidates );
+    }
+
+
+    /**
+     * Tells if the index of an attribute, which uses the equality matching rule, orders
+     * the values like the matching rule used for a sort
+     */
+    private boolean isIndexOrdering( AttributeType attributeType, String sortMrOid ) throws LdapException
+    {
+        MatchingRule equality = attributeType.getEquality();
+
+        if ( equality == null )
+        {
+            return false;
+        }
+
+        String mrOid = sortMrOid;
+
+        if ( mrOid == null )
+        {
+            MatchingRule ordering = attributeType.getOrdering();
+            mrOid = ( ordering == null ) ? equality.getOid() : ordering.getOid();
+        }
+
+        Object sortComparator = schemaManager.lookupComparatorRegistry( mrOid );
+        Object indexComparator = schemaManager.lookupComparatorRegistry( equality.getOid() );
+
+        return sortComparator.getClass() == indexComparator.getClass();
+    }
+
+
     //---------------------------------------------------------------------------------------------
     // The Lookup operation
     //---------------------------------------------------------------------------------------------
@@ -1223,6 +1566,36 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Get back an entry knowing its UUID, only decoding the attributes selected by a
+     * projection if the entry is not in the cache.
+     *
+     * @param id The Entry UUID we want to get back
+     * @param projection The attributes to decode, or null for all the attributes
+     * @return The found Entry, or null if not found
+     * @throws Exception If the lookup failed for any reason (except a not found entry)
+     */
+    public Entry fetch( String id, EntryProjection projection ) throws LdapException
+    {
+        try
+        {
+            rwLock.readLock().lock();
+
+            Dn dn = buildEntryDn( id );
+
+            return fetch( id, dn, projection );
+        }
+        catch ( Exception e )
+        {
+            throw new LdapOperationErrorException( e.getMessage(), e );
+        }
+        finally
+        {
+            rwLock.readLock().unlock();
+        }
+    }
+
+
     /**
      * Get back an entry knowing its UUID
      *
@@ -1231,6 +1604,21 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
      * @throws Exception If the lookup failed for any reason (except a not found entry)
      */
     public Entry fetch( String id, Dn dn ) throws LdapException
+    {
+        return fetch( id, dn, null );
+    }
+
+
+    /**
+     * Get back an entry knowing its UUID. A partially decoded entry is not cached.
+     *
+     * @param id The Entry UUID we want to get back
+     * @param dn The entry's Dn
+     * @param projection The attributes to decode, or null for all the attributes
+     * @return The found Entry, or null if not found
+     * @throws Exception If the lookup failed for any reason (except a not found entry)
+     */
+    private Entry fetch( String id, Dn dn, EntryProjection projection ) throws LdapException
     {
         try
         {
@@ -1261,7 +1649,15 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
             try
             {
                 rwLock.readLock().lock();
-                entry = master.get( id );
+
+                if ( projection == null )
+                {
+                    entry = master.get( id );
+                }
+                else
+                {
+                    entry = master.get( id, projection );
+                }
             }
             finally
             {
@@ -1273,8 +1669,11 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 // We have to store the DN in this entry
                 entry.setDn( dn );
 
-                // always store original entry in the cache
-                addToCache( id, entry );
+                // always store original entry in the cache, unless it's partial
+                if ( projection == null )
+                {
+                    addToCache( id, entry );
+                }
 
                 entry = new ClonedServerEntry( entry );
 
@@ -1295,6 +1694,91 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Computes the attributes to decode for the entries returned by a search, when
+     * only some attributes are requested : the requested attributes, the attributes
+     * used in the filter and the attributes used by the interceptors. The entries are
+     * fully decoded when the access controls are enabled, as the ACI items may refer
+     * to any attribute.
+     *
+     * @param searchContext The search operation context
+     * @return The projection, or null if the entries must be fully decoded
+     */
+    private EntryProjection getProjection( SearchOperationContext searchContext )
+    {
+        if ( searchContext.isAllUserAttributes() || searchContext.isAllOperationalAttributes() )
+        {
+            return null;
+        }
+
+        if ( ( searchContext.getSession() != null )
+            && searchContext.getSession().getDirectoryService().isAccessControlEnabled() )
+        {
+            return null;
+        }
+
+        EntryProjection projection = new EntryProjection();
+
+        if ( searchContext.getReturningAttributes() != null )
+        {
+            for ( AttributeTypeOptions attributeTypeOptions : searchContext.getReturningAttributes() )
+            {
+                projection.add( attributeTypeOptions.getAttributeType() );
+            }
+        }
+
+        if ( !addFilterAttributes( projection, searchContext.getFilter() ) )
+        {
+            return null;
+        }
+
+        for ( String required : PROJECTION_REQUIRED_ATTRIBUTES )
+        {
+            AttributeType attributeType = schemaManager.getAttributeType( required );
+
+            if ( attributeType != null )
+            {
+                projection.add( attributeType );
+            }
+        }
+
+        return projection;
+    }
+
+
+    /**
+     * Adds the attributes used by a filter to a projection
+     *
+     * @return false if the filter uses an unknown attribute
+     */
+    private boolean addFilterAttributes( EntryProjection projection, ExprNode node )
+    {
+        if ( node instanceof BranchNode )
+        {
+            for ( ExprNode child : ( ( BranchNode ) node ).getChildren() )
+            {
+                if ( !addFilterAttributes( projection, child ) )
+                {
+                    return false;
+                }
+            }
+        }
+        else if ( node instanceof LeafNode )
+        {
+            AttributeType attributeType = ( ( LeafNode ) node ).getAttributeType();
+
+            if ( attributeType == null )
+            {
+                return false;
+            }
+
+            projection.add( attributeType );
+        }
+
+        return true;
+    }
+
+
     //---------------------------------------------------------------------------------------------
     // The Modify operation
     //---------------------------------------------------------------------------------------------
@@ -1893,7 +2377,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         // Remove the EntryDN
         modifiedEntry.removeAttributes( ENTRY_DN_AT );
 
-        entryDnCache.removeAll();
+        invalidateSubtree( entryId, oldDn );
         
         setContextCsn( modifiedEntry.get( ENTRY_CSN_AT ).getString() );
 
@@ -1998,7 +2482,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
         rename( oldId, newRdn, deleteOldRdn, modifiedEntry );
         moveAndRename( oldDn, oldId, newSuperiorDn, newRdn, modifiedEntry );
 
-        entryDnCache.removeAll();
+        invalidateSubtree( oldId, oldDn );
         
         if ( isSyncOnWrite.get() )
         {
@@ -2256,7 +2740,7 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
 
         rdnIdx.add( parentIdAndRdn, oldId );
 
-        entryDnCache.removeAll();
+        invalidateSubtree( oldId, dn );
         
         if ( isSyncOnWrite.get() )
         {
@@ -2464,23 +2948,74 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
                 return Partition.ROOT_ID;
             }
 
-            ParentIdAndRdn suffixKey = new ParentIdAndRdn( Partition.ROOT_ID, suffixDn.getRdns() );
+            // Only normalized Dns are cached, as the cache is invalidated using normalized names
+            boolean useCache = ( entryIdCache != null ) && dn.isSchemaAware();
 
             // Check into the Rdn index, starting with the partition Suffix
             try
             {
                 rwLock.readLock().lock();
-                String currentId = rdnIdx.forwardLookup( suffixKey );
 
-                for ( int i = dn.size() - suffixDn.size(); i > 0; i-- )
+                if ( useCache )
+                {
+                    Element el = entryIdCache.get( dn.getNormName() );
+
+                    if ( el != null )
+                    {
+                        return ( String ) el.getObjectValue();
+                    }
+                }
+
+                // The number of Rdns below the suffix, and the Dns of the ancestors at each level
+                int depth = dn.size() - suffixDn.size();
+                Dn[] ancestors = null;
+                String currentId = null;
+                int level = 0;
+
+                if ( useCache && ( depth > 1 ) )
                 {
-                    Rdn rdn = dn.getRdn( i - 1 );
+                    // Look for the closest ancestor which ID is already known, so
+                    // that siblings don't walk the Rdn index down to their parent
+                    ancestors = new Dn[depth];
+                    ancestors[depth - 1] = dn;
+                    Dn ancestor = dn;
+
+                    for ( int i = depth - 1; i > 0; i-- )
+                    {
+                        ancestor = ancestor.getParent();
+                        ancestors[i - 1] = ancestor;
+                        Element el = entryIdCache.get( ancestor.getNormName() );
+
+                        if ( el != null )
+                        {
+                            currentId = ( String ) el.getObjectValue();
+                            level = i;
+                            break;
+                        }
+                    }
+                }
+
+                if ( currentId == null )
+                {
+                    ParentIdAndRdn suffixKey = new ParentIdAndRdn( Partition.ROOT_ID, suffixDn.getRdns() );
+                    currentId = rdnIdx.forwardLookup( suffixKey );
+
+                    if ( useCache && ( depth == 0 ) && ( currentId != null ) )
+                    {
+                        entryIdCache.put( new Element( dn.getNormName(), currentId ) );
+                    }
+                }
+
+                for ( int i = level + 1; ( i <= depth ) && ( currentId != null ); i++ )
+                {
+                    Rdn rdn = dn.getRdn( depth - i );
                     ParentIdAndRdn currentRdn = new ParentIdAndRdn( currentId, rdn );
                     currentId = rdnIdx.forwardLookup( currentRdn );
 
-                    if ( currentId == null )
+                    if ( useCache && ( currentId != null ) )
                     {
-                        break;
+                        Dn levelDn = ( ancestors == null ) ? dn : ancestors[i - 1];
+                        entryIdCache.put( new Element( levelDn.getNormName(), currentId ) );
                     }
                 }
 
@@ -2498,6 +3033,133 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * Removes an entry which has been moved or renamed, and all its descendants, from the
+     * caches which depend on their Dn. The subtree is read from the Rdn index, unless it
+     * has more entries than the caches can hold, in which case they are simply cleared.
+     *
+     * @param id The ID of the moved or renamed entry
+     * @param oldDn The Dn of the entry before it was moved or renamed
+     * @throws Exception If the Rdn index can't be read
+     */
+    private void invalidateSubtree( String id, Dn oldDn ) throws Exception
+    {
+        if ( piarCache != null )
+        {
+            // Only the moved entry has a new parent or Rdn, its descendants keep theirs
+            piarCache.remove( id );
+        }
+
+        Set<String> ids = getSubtreeIds( id, entryDnCache.getCacheConfiguration().getMaxElementsInMemory() );
+
+        if ( ids == null )
+        {
+            entryDnCache.removeAll();
+        }
+        else
+        {
+            for ( String subtreeId : ids )
+            {
+                entryDnCache.remove( subtreeId );
+            }
+        }
+
+        if ( entryIdCache != null )
+        {
+            if ( ( ids == null ) || ( oldDn == null ) || !oldDn.isSchemaAware() )
+            {
+                entryIdCache.removeAll();
+            }
+            else
+            {
+                for ( String subtreeId : ids )
+                {
+                    entryIdCache.remove( getOldDn( subtreeId, id, oldDn ).getNormName() );
+                }
+            }
+        }
+
+        removeFromCache( ids );
+    }
+
+
+    /**
+     * Gets the IDs of an entry and of all its descendants, using the Rdn index.
+     *
+     * @param id The ID of the subtree root
+     * @param max The maximum number of IDs to read
+     * @return The IDs, or null if the subtree has more than max entries
+     * @throws Exception If the Rdn index can't be read
+     */
+    private Set<String> getSubtreeIds( String id, int max ) throws Exception
+    {
+        ParentIdAndRdn parentIdAndRdn = rdnIdx.reverseLookup( id );
+
+        if ( ( parentIdAndRdn == null ) || ( parentIdAndRdn.getNbDescendants() >= max ) )
+        {
+            return null;
+        }
+
+        Set<String> ids = new HashSet<String>();
+        ids.add( id );
+
+        IndexEntry<ParentIdAndRdn, String> startingPos = new IndexEntry<ParentIdAndRdn, String>();
+        startingPos.setKey( parentIdAndRdn );
+        startingPos.setId( id );
+
+        Cursor<IndexEntry<String, String>> cursor = new DescendantCursor( this, id, parentIdAndRdn.getParentId(),
+            new SingletonIndexCursor<ParentIdAndRdn>( startingPos ) );
+
+        try
+        {
+            while ( cursor.next() )
+            {
+                ids.add( cursor.get().getId() );
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        return ids;
+    }
+
+
+    /**
+     * Computes the Dn an entry had before one of its ancestors was moved or renamed. The
+     * Rdns below the moved entry have not changed, so they are read from the Rdn index and
+     * appended to the old Dn of the moved entry.
+     *
+     * @param id The ID of the entry
+     * @param movedId The ID of the moved or renamed entry
+     * @param oldDn The Dn of the moved or renamed entry before the operation
+     * @return The Dn of the entry before the operation
+     * @throws Exception If the Rdn index can't be read
+     */
+    private Dn getOldDn( String id, String movedId, Dn oldDn ) throws Exception
+    {
+        if ( id.equals( movedId ) )
+        {
+            return oldDn;
+        }
+
+        List<Rdn> rdns = new ArrayList<Rdn>();
+        String currentId = id;
+
+        while ( !currentId.equals( movedId ) )
+        {
+            ParentIdAndRdn parentIdAndRdn = rdnIdx.reverseLookup( currentId );
+            rdns.addAll( Arrays.asList( parentIdAndRdn.getRdns() ) );
+            currentId = parentIdAndRdn.getParentId();
+        }
+
+        rdns.addAll( oldDn.getRdns() );
+
+        return new Dn( schemaManager, rdns.toArray( new Rdn[rdns.size()] ) );
+    }
+
+
     /**
      * {@inheritDoc}
      */
@@ -3174,6 +3836,19 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     }
 
 
+    /**
+     * removes the entries of a moved or renamed subtree from the cache. The partition
+     * calls it itself, so the updateCache() method does not have to deal with
+     * the move and rename operations
+     *
+     * @param ids the IDs of the entries, or null if the whole cache must be cleared
+     */
+    protected void removeFromCache( Set<String> ids )
+    {
+        // partition implementations should override this if they want to use cache
+    }
+
+
     /**
      * looks up for the entry with the given ID in the cache
      *
@@ -3236,7 +3911,8 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         if ( operationContext.getSession() != null )
         {
-            rwLock = operationContext.getSession().getDirectoryService().getOperationManager().getRWLock();
+            rwLock = operationContext.getSession().getDirectoryService().getOperationManager()
+                .getRWLock( getSuffixDn() );
         }
         else
         {
@@ -3265,6 +3941,15 @@ public abstract class AbstractBTreePartition extends AbstractPartition implement
     {
         return aliasCache;
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public EntryOrdinalMap getOrdinalMap()
+    {
+        return ordinalMap;
+    }
     
     
     @Override
@@ -28,6 +28,7 @@ import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.server.xdbm.EntryProjection;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
@@ -51,16 +52,39 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
     private final Cursor<IndexEntry<String, String>> indexCursor;
     private final Evaluator<? extends ExprNode> evaluator;
 
+    /** The partition the entries are read from */
+    private final AbstractBTreePartition db;
+
+    /** The attributes to decode, null if the entries must be fully decoded */
+    private final EntryProjection projection;
+
 
     public EntryCursorAdaptor( AbstractBTreePartition db, PartitionSearchResult searchResult )
+    {
+        this( db, searchResult, searchResult.getResultSet() );
+    }
+
+
+    /**
+     * Creates an EntryCursorAdaptor returning the candidates of a search in the order
+     * of a given cursor
+     *
+     * @param db The partition
+     * @param searchResult The search result
+     * @param indexCursor The cursor on the candidates
+     */
+    public EntryCursorAdaptor( AbstractBTreePartition db, PartitionSearchResult searchResult,
+        Cursor<IndexEntry<String, String>> indexCursor )
     {
         if ( IS_DEBUG )
         {
             LOG_CURSOR.debug( "Creating EntryCursorAdaptor {}", this );
         }
 
-        indexCursor = searchResult.getResultSet();
+        this.indexCursor = indexCursor;
         evaluator = searchResult.getEvaluator();
+        projection = searchResult.getProjection();
+        this.db = db;
     }
 
 
@@ -164,6 +188,19 @@ public class EntryCursorAdaptor extends AbstractCursor<Entry>
 
         try
         {
+            if ( ( projection != null ) && ( indexEntry.getEntry() == null ) )
+            {
+                // Fetch the entry before the evaluator does, only decoding the needed attributes
+                Entry entry = db.fetch( indexEntry.getId(), projection );
+
+                if ( entry == null )
+                {
+                    return null;
+                }
+
+                indexEntry.setEntry( entry );
+            }
+
             if ( evaluator.evaluate( indexEntry ) )
             {
                 Entry entry = indexEntry.getEntry();
@@ -0,0 +1,428 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.core.partition.impl.btree;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.constants.Loggers;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.InvalidCursorPositionException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.xdbm.AbstractIndexCursor;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A Cursor returning the candidates of a search in the order of an attribute's index,
+ * used to honor a server side sort control without reading and sorting all the entries.
+ * The index is browsed, and each candidate is returned the first time its ID is found :
+ * for a multi-valued attribute, an entry is sorted on its least value. The candidates
+ * which don't have the attribute are returned last, or first for a reverse order, as
+ * required by RFC 2891.
+ * <p>
+ * A reverse order can only be used with a single valued attribute and an index having
+ * a reverse table. The index is browsed once, while the Cursor moves forward : the IDs
+ * already returned are kept in order, so that the Cursor can move backward, or forward
+ * again, without browsing the index.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+class SortedIndexEntryCursor extends AbstractIndexCursor<String>
+{
+    /** A dedicated log for cursors */
+    private static final Logger LOG_CURSOR = LoggerFactory.getLogger( Loggers.CURSOR_LOG.getName() );
+
+    /** Speedup for logs */
+    private static final boolean IS_DEBUG = LOG_CURSOR.isDebugEnabled();
+
+    /** The candidates which don't have the attribute are being returned */
+    private static final int MISSING_PHASE = 0;
+
+    /** The index is being browsed */
+    private static final int INDEX_PHASE = 1;
+
+    /** All the candidates have been returned */
+    private static final int DONE_PHASE = 2;
+
+    /** The index the candidates are sorted with */
+    private final Index<Object, String> index;
+
+    /** Tells if the candidates are returned in the reverse order */
+    private final boolean reverse;
+
+    /** The IDs of the candidates */
+    private final Set<String> candidates;
+
+    /** The IDs of the candidates not yet returned */
+    private Set<String> remaining;
+
+    /** The current phase */
+    private int phase;
+
+    /** The cursor on the index, during the index phase */
+    private Cursor<IndexEntry<Object, String>> indexCursor;
+
+    /** The iterator on the remaining candidates, during the missing phase */
+    private Iterator<String> missingIterator;
+
+    /** The IDs already returned, in order */
+    private final List<String> sorted = new ArrayList<String>();
+
+    /** The position of the current ID in the sorted IDs, -1 when before the first one */
+    private int position = -1;
+
+    /** The current index entry */
+    private IndexEntry<String, String> current;
+
+
+    /**
+     * Creates a new instance of SortedIndexEntryCursor
+     *
+     * @param index The index the candidates are sorted with
+     * @param reverse true if the candidates are returned in the reverse order
+     * @param candidates the IDs of the candidates
+     */
+    SortedIndexEntryCursor( Index<Object, String> index, boolean reverse, Set<String> candidates )
+    {
+        this.index = index;
+        this.reverse = reverse;
+        this.candidates = candidates;
+        init();
+
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Creating SortedIndexEntryCursor {}", this );
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    protected String getUnsupportedMessage()
+    {
+        return UNSUPPORTED_MSG;
+    }
+
+
+    private void init()
+    {
+        closeIndexCursor();
+        remaining = new LinkedHashSet<String>( candidates );
+        missingIterator = null;
+        current = null;
+        phase = reverse ? MISSING_PHASE : INDEX_PHASE;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void beforeFirst() throws LdapException, CursorException
+    {
+        checkNotClosed( "beforeFirst()" );
+
+        position = -1;
+        current = null;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void afterLast() throws LdapException, CursorException
+    {
+        checkNotClosed( "afterLast()" );
+
+        // Sort the remaining candidates
+        while ( sortNext() != null )
+        {
+            // Nothing to do
+        }
+
+        position = sorted.size();
+        current = null;
+        setAvailable( false );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean first() throws LdapException, CursorException
+    {
+        beforeFirst();
+
+        return next();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean last() throws LdapException, CursorException
+    {
+        afterLast();
+
+        return previous();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean previous() throws LdapException, CursorException
+    {
+        checkNotClosed( "previous()" );
+
+        if ( position <= 0 )
+        {
+            position = -1;
+            current = null;
+
+            return setAvailable( false );
+        }
+
+        position--;
+
+        return setCurrent( sorted.get( position ) );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean next() throws LdapException, CursorException
+    {
+        checkNotClosed( "next()" );
+
+        if ( position >= sorted.size() )
+        {
+            // Already after the last candidate
+            return false;
+        }
+
+        if ( position + 1 < sorted.size() )
+        {
+            position++;
+
+            return setCurrent( sorted.get( position ) );
+        }
+
+        String id = sortNext();
+        position = sorted.size() - ( ( id == null ) ? 0 : 1 );
+
+        if ( id == null )
+        {
+            current = null;
+
+            return setAvailable( false );
+        }
+
+        return setCurrent( id );
+    }
+
+
+    /**
+     * Gets the next candidate in the sort order, and adds it to the sorted IDs
+     *
+     * @return The candidate ID, or null if all the candidates have been returned
+     */
+    private String sortNext() throws LdapException, CursorException
+    {
+        try
+        {
+            while ( phase != DONE_PHASE )
+            {
+                if ( phase == MISSING_PHASE )
+                {
+                    if ( missingIterator == null )
+                    {
+                        missingIterator = remaining.iterator();
+                    }
+
+                    while ( missingIterator.hasNext() )
+                    {
+                        String id = missingIterator.next();
+
+                        // In forward order, the index has been browsed : these candidates lack the attribute
+                        if ( !reverse || !index.reverse( id ) )
+                        {
+                            missingIterator.remove();
+                            sorted.add( id );
+
+                            return id;
+                        }
+                    }
+
+                    missingIterator = null;
+                    phase = reverse ? INDEX_PHASE : DONE_PHASE;
+                }
+                else
+                {
+                    if ( indexCursor == null )
+                    {
+                        indexCursor = index.forwardCursor();
+
+                        if ( reverse )
+                        {
+                            indexCursor.afterLast();
+                        }
+                        else
+                        {
+                            indexCursor.beforeFirst();
+                        }
+                    }
+
+                    while ( reverse ? indexCursor.previous() : indexCursor.next() )
+                    {
+                        String id = indexCursor.get().getId();
+
+                        // Only return a candidate once, for its first value
+                        if ( remaining.remove( id ) )
+                        {
+                            sorted.add( id );
+
+                            return id;
+                        }
+                    }
+
+                    closeIndexCursor();
+                    phase = reverse ? DONE_PHASE : MISSING_PHASE;
+                }
+            }
+        }
+        catch ( LdapException le )
+        {
+            throw le;
+        }
+        catch ( CursorException ce )
+        {
+            throw ce;
+        }
+        catch ( Exception e )
+        {
+            throw new CursorException( e.getMessage(), e );
+        }
+
+        return null;
+    }
+
+
+    private boolean setCurrent( String id )
+    {
+        current = new IndexEntry<String, String>();
+        current.setId( id );
+
+        return setAvailable( true );
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public IndexEntry<String, String> get() throws CursorException
+    {
+        checkNotClosed( "get()" );
+
+        if ( current == null )
+        {
+            throw new InvalidCursorPositionException();
+        }
+
+        return current;
+    }
+
+
+    private void closeIndexCursor()
+    {
+        if ( indexCursor != null )
+        {
+            indexCursor.close();
+            indexCursor = null;
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close()
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing SortedIndexEntryCursor {}", this );
+        }
+
+        closeIndexCursor();
+        super.close();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close( Exception cause )
+    {
+        if ( IS_DEBUG )
+        {
+            LOG_CURSOR.debug( "Closing SortedIndexEntryCursor {}", this );
+        }
+
+        closeIndexCursor();
+        super.close( cause );
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString( String tabs )
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( tabs ).append( "SortedIndexEntryCursor (" );
+        sb.append( index.getAttribute().getName() );
+        sb.append( reverse ? ", reverse" : "" ).append( ") : " );
+        sb.append( candidates.size() ).append( " candidates\n" );
+
+        return sb.toString();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return toString( "" );
+    }
+}
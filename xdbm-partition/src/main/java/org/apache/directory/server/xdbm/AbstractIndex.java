@@ -20,9 +20,21 @@
 package org.apache.directory.server.xdbm;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
 import org.apache.directory.server.i18n.I18n;
 
 
@@ -52,6 +64,15 @@ public abstract class AbstractIndex<K, ID> implements Index<K, ID>
     /** A counter used to differ the commit on disk after N operations */
     protected AtomicInteger commitNumber;
 
+    /** Tells if the entry IDs are compact IDs instead of UUIDs */
+    protected boolean compactIds;
+
+    /** The statistics about the index content, if they are maintained */
+    protected IndexStatistics<K> statistics;
+
+    /** Tells if a thread is rebuilding the statistics */
+    private final AtomicBoolean rebuildingStatistics = new AtomicBoolean( false );
+
 
     /**
      * Creates a new instance of AbstractIndex.
@@ -142,6 +163,199 @@ public abstract class AbstractIndex<K, ID> implements Index<K, ID>
     }
 
 
+    /**
+     * @return <code>true</code> if the entry IDs stored in this index are compact IDs
+     * @see CompactId
+     */
+    public boolean isCompactIds()
+    {
+        return compactIds;
+    }
+
+
+    /**
+     * Tells the index that the entry IDs are compact IDs, so that it can use
+     * the more efficient comparator and serializer. This must be set before
+     * the index is initialized, and must not change during the index life. Setting
+     * the same value again is allowed, as the indexes of a restarted partition are
+     * initialized again.
+     *
+     * @param compactIds <code>true</code> if the entry IDs are compact IDs
+     */
+    public void setCompactIds( boolean compactIds )
+    {
+        if ( this.compactIds != compactIds )
+        {
+            protect( "compactIds" );
+            this.compactIds = compactIds;
+        }
+    }
+
+
+    /**
+     * @return The comparator to use for the entry IDs stored in this index
+     */
+    protected Comparator<String> getIdComparator()
+    {
+        if ( compactIds )
+        {
+            return CompactIdComparator.INSTANCE;
+        }
+
+        return UuidComparator.INSTANCE;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     *
+     * The statistics are rebuilt here, by the thread reading them, when the index has changed
+     * too much since they have been computed : this thread is then the only one paying for the
+     * index scan, as it's done under the lock held by the search. The other threads reading the
+     * statistics meanwhile get the stale ones.
+     */
+    public IndexStatistics<K> getStatistics()
+    {
+        if ( ( statistics != null ) && statistics.isStale() && rebuildingStatistics.compareAndSet( false, true ) )
+        {
+            try
+            {
+                rebuildStatistics();
+            }
+            catch ( Exception e )
+            {
+                // The statistics stay stale, the optimizer will probe the index instead
+            }
+            finally
+            {
+                rebuildingStatistics.set( false );
+            }
+        }
+
+        return statistics;
+    }
+
+
+    /**
+     * Creates the index statistics. They are read from the statistics file if it exists
+     * and is consistent with the index content, otherwise they will be computed by reading
+     * the whole index when they are first used.
+     *
+     * @param comparator The comparator used to order the keys in the index
+     * @throws Exception If the index can't be read
+     */
+    protected void initStatistics( Comparator<K> comparator ) throws Exception
+    {
+        statistics = new IndexStatistics<K>( comparator );
+        File statisticsFile = getStatisticsFile();
+
+        if ( ( statisticsFile != null ) && statisticsFile.exists() )
+        {
+            DataInputStream in = new DataInputStream( new BufferedInputStream(
+                new FileInputStream( statisticsFile ) ) );
+
+            try
+            {
+                statistics.read( in );
+
+                if ( statistics.getCount() == count() )
+                {
+                    return;
+                }
+            }
+            catch ( IOException ioe )
+            {
+                // The file is corrupted, we will rebuild the statistics
+            }
+            finally
+            {
+                in.close();
+            }
+
+            // Start from scratch : the statistics are stale until rebuilt
+            statistics = new IndexStatistics<K>( comparator );
+        }
+    }
+
+
+    /**
+     * Saves the statistics when the index is synced. Only the counters updated since the
+     * last rebuild and the current histogram are written : the index is never read here,
+     * the statistics being rebuilt when they are read (see {@link #getStatistics()}).
+     *
+     * @throws IOException If the statistics can't be saved
+     */
+    protected void syncStatistics() throws IOException
+    {
+        saveStatistics();
+    }
+
+
+    /**
+     * Recomputes the statistics by reading the whole index
+     *
+     * @throws Exception If the index can't be read
+     */
+    protected void rebuildStatistics() throws Exception
+    {
+        Cursor<IndexEntry<K, ID>> cursor = forwardCursor();
+
+        try
+        {
+            cursor.beforeFirst();
+            statistics.rebuild( cursor, count() );
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+
+    /**
+     * Writes the statistics in the statistics file, if any.
+     *
+     * @throws IOException If the file can't be written
+     */
+    protected void saveStatistics() throws IOException
+    {
+        File statisticsFile = getStatisticsFile();
+
+        if ( ( statistics == null ) || ( statisticsFile == null ) )
+        {
+            return;
+        }
+
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+            new FileOutputStream( statisticsFile ) ) );
+        boolean written = false;
+
+        try
+        {
+            written = statistics.write( out );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if ( !written )
+        {
+            // The keys can't be stored, the statistics will be rebuilt on startup
+            statisticsFile.delete();
+        }
+    }
+
+
+    /**
+     * @return The file the statistics are stored in, or null if they are kept in memory only
+     */
+    protected File getStatisticsFile()
+    {
+        return null;
+    }
+
+
     /**
      * Protects configuration properties from being set after initialization.
      *
@@ -0,0 +1,159 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * A per-partition dictionary associating each AttributeType OID stored in the master
+ * table with a small int ordinal, so that the entries don't have to store the OIDs.
+ * Ordinals are never reused : the dictionary is persisted by the master table, and
+ * an ordinal must designate the same AttributeType as long as an entry uses it.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class AttributeTypeDictionary
+{
+    /** The OID to ordinal map */
+    private final ConcurrentMap<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+
+    /** The ordinal to OID table */
+    private volatile String[] oids = new String[64];
+
+    /** The next ordinal */
+    private int nextOrdinal = 0;
+
+
+    /**
+     * Get the ordinal associated with an OID
+     *
+     * @param oid The AttributeType OID
+     * @return The ordinal, or -1 if the OID is not in the dictionary
+     */
+    public int getOrdinal( String oid )
+    {
+        Integer ordinal = ordinals.get( oid );
+
+        if ( ordinal == null )
+        {
+            return -1;
+        }
+
+        return ordinal;
+    }
+
+
+    /**
+     * Get the OID associated with an ordinal
+     *
+     * @param ordinal The ordinal
+     * @return The OID, or null if the ordinal is unknown
+     */
+    public String getOid( int ordinal )
+    {
+        String[] current = oids;
+
+        if ( ( ordinal < 0 ) || ( ordinal >= current.length ) )
+        {
+            return null;
+        }
+
+        return current[ordinal];
+    }
+
+
+    /**
+     * Get the ordinal associated with an OID, assigning a new one if needed.
+     *
+     * @param oid The AttributeType OID
+     * @return The OID ordinal
+     */
+    public int register( String oid )
+    {
+        Integer ordinal = ordinals.get( oid );
+
+        if ( ordinal != null )
+        {
+            return ordinal;
+        }
+
+        synchronized ( this )
+        {
+            // Check again, another thread may have registered it meanwhile
+            ordinal = ordinals.get( oid );
+
+            if ( ordinal != null )
+            {
+                return ordinal;
+            }
+
+            int newOrdinal = nextOrdinal;
+            load( newOrdinal, oid );
+
+            return newOrdinal;
+        }
+    }
+
+
+    /**
+     * Adds an ordinal read from the persisted dictionary.
+     *
+     * @param ordinal The ordinal
+     * @param oid The associated OID
+     */
+    public synchronized void load( int ordinal, String oid )
+    {
+        String[] current = oids;
+
+        if ( ordinal >= current.length )
+        {
+            current = Arrays.copyOf( current, Math.max( current.length * 2, ordinal + 1 ) );
+        }
+
+        // The table must be updated before the map, so that a reader
+        // who got the ordinal from the map will find the OID
+        current[ordinal] = oid;
+        oids = current;
+        ordinals.put( oid, ordinal );
+        nextOrdinal = Math.max( nextOrdinal, ordinal + 1 );
+    }
+
+
+    /**
+     * @return The number of ordinals in the dictionary
+     */
+    public int size()
+    {
+        return ordinals.size();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "AttributeTypeDictionary[" + ordinals.size() + " attributeTypes]";
+    }
+}
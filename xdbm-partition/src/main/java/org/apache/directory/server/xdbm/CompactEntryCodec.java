@@ -0,0 +1,445 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultAttribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.name.Rdn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.i18n.I18n;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Encodes and decodes the entries stored in the master table. The compact format
+ * does not use the Java serialization framing, and designates the AttributeTypes
+ * using the ordinals of a per-partition {@link AttributeTypeDictionary}. It is
+ * structured this way :
+ * <ul>
+ *   <li><b>[version]</b> : a byte, the format version, currently 1</li>
+ *   <li><b>[a byte]</b> : if the Dn is empty 0 will be written else 1</li>
+ *   <li><b>[Rdn]</b> : The entry's Rdn.</li>
+ *   <li><b>[numberAttr]</b> : the number of attributes, as a variable length int</li>
+ *   <li>For each Attribute :
+ *     <ul>
+ *       <li><b>[ordinal]</b> : The attribute's AttributeType ordinal, as a
+ *       variable length int</li>
+ *       <li><b>[length]</b> : The length of the serialized attribute, as a
+ *       variable length int, so that an attribute can be skipped</li>
+ *       <li><b>[Attribute]</b> The attribute, values being length prefixed</li>
+ *     </ul>
+ *   </li>
+ * </ul>
+ * Entries stored with the former format, an ObjectOutputStream, are still read, so
+ * that existing partitions are migrated as their entries get updated.
+ * <br/>
+ * An entry can be decoded partially, using an {@link EntryProjection} : the attributes
+ * which are not selected are skipped, without being materialized.
+ * </br></br>
+ * <b>This class must *not* be used outside of the server.</b>
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class CompactEntryCodec
+{
+    /** the logger for this class */
+    private static final Logger LOG = LoggerFactory.getLogger( CompactEntryCodec.class );
+
+    /** The current format version */
+    public static final byte VERSION = 1;
+
+    /** The first bytes of an ObjectOutputStream, used by the legacy format */
+    private static final byte LEGACY_MAGIC_0 = ( byte ) 0xAC;
+    private static final byte LEGACY_MAGIC_1 = ( byte ) 0xED;
+
+
+    private CompactEntryCodec()
+    {
+    }
+
+
+    /**
+     * Encodes an entry using the compact format.
+     *
+     * @param entry The entry to encode
+     * @param dictionary The AttributeType dictionary, new AttributeTypes are registered in it
+     * @return The encoded entry
+     * @throws IOException If the entry can't be encoded
+     */
+    public static byte[] encode( Entry entry, AttributeTypeDictionary dictionary ) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream( 256 );
+        EntryOutput out = new EntryOutput( baos );
+
+        out.writeByte( VERSION );
+
+        // First, the Dn
+        Dn dn = entry.getDn();
+
+        // Write the Rdn of the Dn
+        if ( dn.isEmpty() )
+        {
+            out.writeByte( 0 );
+        }
+        else
+        {
+            out.writeByte( 1 );
+            Rdn rdn = dn.getRdn();
+            rdn.writeExternal( out );
+        }
+
+        // Then the attributes.
+        writeVarInt( out, entry.getAttributes().size() );
+
+        ByteArrayOutputStream attributeBytes = new ByteArrayOutputStream( 128 );
+        EntryOutput attributeOut = new EntryOutput( attributeBytes );
+
+        for ( Attribute attribute : entry.getAttributes() )
+        {
+            AttributeType attributeType = attribute.getAttributeType();
+
+            attributeBytes.reset();
+            attribute.writeExternal( attributeOut );
+            attributeOut.flush();
+
+            writeVarInt( out, dictionary.register( attributeType.getOid() ) );
+            writeVarInt( out, attributeBytes.size() );
+            attributeBytes.writeTo( out );
+        }
+
+        out.flush();
+
+        return baos.toByteArray();
+    }
+
+
+    /**
+     * Tells if some serialized entry has been stored with the legacy format
+     *
+     * @param bytes The buffer containing the serialized entry
+     * @param pos The position of the entry in the buffer
+     * @param len The length of the serialized entry
+     * @return true if the entry is an ObjectOutputStream
+     */
+    public static boolean isLegacy( byte[] bytes, int pos, int len )
+    {
+        return ( len >= 2 ) && ( bytes[pos] == LEGACY_MAGIC_0 ) && ( bytes[pos + 1] == LEGACY_MAGIC_1 );
+    }
+
+
+    /**
+     * Decodes an entry stored using either the compact or the legacy format.
+     *
+     * @param schemaManager The SchemaManager
+     * @param dictionary The AttributeType dictionary
+     * @param bytes The buffer containing the serialized entry
+     * @param pos The position of the entry in the buffer
+     * @param len The length of the serialized entry
+     * @return The decoded entry
+     * @throws IOException If the entry can't be decoded
+     */
+    public static Entry decode( SchemaManager schemaManager, AttributeTypeDictionary dictionary, byte[] bytes,
+        int pos, int len ) throws IOException
+    {
+        return decode( schemaManager, dictionary, bytes, pos, len, null );
+    }
+
+
+    /**
+     * Decodes the attributes of an entry selected by a projection. Entries stored
+     * using the legacy format are fully decoded.
+     *
+     * @param schemaManager The SchemaManager
+     * @param dictionary The AttributeType dictionary
+     * @param bytes The buffer containing the serialized entry
+     * @param pos The position of the entry in the buffer
+     * @param len The length of the serialized entry
+     * @param projection The attributes to decode, or null to decode all of them
+     * @return The decoded entry
+     * @throws IOException If the entry can't be decoded
+     */
+    public static Entry decode( SchemaManager schemaManager, AttributeTypeDictionary dictionary, byte[] bytes,
+        int pos, int len, EntryProjection projection ) throws IOException
+    {
+        if ( isLegacy( bytes, pos, len ) )
+        {
+            return decodeLegacy( schemaManager, bytes, pos, len );
+        }
+
+        EntryInput in = new EntryInput( new ByteArrayInputStream( bytes, pos, len ) );
+
+        byte version = in.readByte();
+
+        if ( version != VERSION )
+        {
+            throw new IOException( "Unknown entry format version : " + version );
+        }
+
+        try
+        {
+            Entry entry = new DefaultEntry( schemaManager );
+
+            // Read the Dn, if any
+            readDn( schemaManager, entry, in );
+
+            // Read the number of attributes
+            int nbAttributes = readVarInt( in );
+
+            // Read the attributes
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                int ordinal = readVarInt( in );
+                String oid = dictionary.getOid( ordinal );
+
+                if ( oid == null )
+                {
+                    throw new IOException( "Unknown AttributeType ordinal : " + ordinal );
+                }
+
+                int length = readVarInt( in );
+
+                if ( ( projection == null ) || projection.accept( lookup( schemaManager, oid ) ) )
+                {
+                    readAttribute( schemaManager, entry, oid, in );
+                }
+                else
+                {
+                    in.skipBytes( length );
+                }
+            }
+
+            return entry;
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            LOG.error( I18n.err( I18n.ERR_134, cnfe.getLocalizedMessage() ) );
+            throw new IOException( cnfe.getLocalizedMessage() );
+        }
+    }
+
+
+    /**
+     * Decodes an entry stored using the legacy format.
+     */
+    private static Entry decodeLegacy( SchemaManager schemaManager, byte[] bytes, int pos, int len )
+        throws IOException
+    {
+        ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( bytes, pos, len ) );
+
+        try
+        {
+            Entry entry = new DefaultEntry( schemaManager );
+
+            // Read the Dn, if any
+            readDn( schemaManager, entry, in );
+
+            // Read the number of attributes
+            int nbAttributes = in.readInt();
+
+            // Read the attributes
+            for ( int i = 0; i < nbAttributes; i++ )
+            {
+                // Read the attribute's OID
+                String oid = in.readUTF();
+
+                readAttribute( schemaManager, entry, oid, in );
+            }
+
+            return entry;
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            LOG.error( I18n.err( I18n.ERR_134, cnfe.getLocalizedMessage() ) );
+            throw new IOException( cnfe.getLocalizedMessage() );
+        }
+    }
+
+
+    private static void readDn( SchemaManager schemaManager, Entry entry, ObjectInput in )
+        throws IOException, ClassNotFoundException
+    {
+        byte hasDn = in.readByte();
+
+        if ( hasDn == 1 )
+        {
+            Rdn rdn = new Rdn( schemaManager );
+            rdn.readExternal( in );
+
+            try
+            {
+                entry.setDn( new Dn( schemaManager, rdn ) );
+            }
+            catch ( LdapInvalidDnException lide )
+            {
+                IOException ioe = new IOException( lide.getMessage() );
+                ioe.initCause( lide );
+                throw ioe;
+            }
+        }
+        else
+        {
+            entry.setDn( Dn.EMPTY_DN );
+        }
+    }
+
+
+    private static AttributeType lookup( SchemaManager schemaManager, String oid ) throws ClassNotFoundException
+    {
+        try
+        {
+            return schemaManager.lookupAttributeTypeRegistry( oid );
+        }
+        catch ( LdapException ne )
+        {
+            // We weren't able to find the OID. The attribute will not be added
+            throw new ClassNotFoundException( ne.getMessage(), ne );
+        }
+    }
+
+
+    private static void readAttribute( SchemaManager schemaManager, Entry entry, String oid, ObjectInput in )
+        throws IOException, ClassNotFoundException
+    {
+        AttributeType attributeType = lookup( schemaManager, oid );
+
+        // Create the attribute we will read
+        Attribute attribute = new DefaultAttribute( attributeType );
+
+        // Read the attribute
+        attribute.readExternal( in );
+
+        try
+        {
+            entry.add( attribute );
+        }
+        catch ( LdapException ne )
+        {
+            throw new ClassNotFoundException( ne.getMessage(), ne );
+        }
+    }
+
+
+    /**
+     * Writes an int using 1 to 5 bytes, 7 bits at a time.
+     */
+    private static void writeVarInt( DataOutput out, int value ) throws IOException
+    {
+        while ( ( value & ~0x7F ) != 0 )
+        {
+            out.writeByte( ( value & 0x7F ) | 0x80 );
+            value >>>= 7;
+        }
+
+        out.writeByte( value );
+    }
+
+
+    /**
+     * Reads an int written by {@link #writeVarInt(DataOutput, int)}
+     */
+    private static int readVarInt( DataInput in ) throws IOException
+    {
+        int value = 0;
+
+        for ( int shift = 0; shift < 32; shift += 7 )
+        {
+            byte b = in.readByte();
+            value |= ( b & 0x7F ) << shift;
+
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+
+        throw new IOException( "Malformed variable length int" );
+    }
+
+
+    /**
+     * An ObjectOutput without the serialization stream framing. The Rdn and the
+     * attributes only write primitive data, objects, if any, are written as a
+     * length prefixed serialization stream.
+     */
+    private static class EntryOutput extends DataOutputStream implements ObjectOutput
+    {
+        EntryOutput( OutputStream out )
+        {
+            super( out );
+        }
+
+
+        public void writeObject( Object object ) throws IOException
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream( baos );
+            oos.writeObject( object );
+            oos.flush();
+
+            writeVarInt( this, baos.size() );
+            baos.writeTo( this );
+        }
+    }
+
+
+    /**
+     * The ObjectInput reading the data written by an {@link EntryOutput}
+     */
+    private static class EntryInput extends DataInputStream implements ObjectInput
+    {
+        EntryInput( InputStream in )
+        {
+            super( in );
+        }
+
+
+        public Object readObject() throws ClassNotFoundException, IOException
+        {
+            byte[] bytes = new byte[readVarInt( this )];
+            readFully( bytes );
+
+            ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( bytes ) );
+
+            return ois.readObject();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import org.apache.directory.server.core.api.partition.Partition;
+
+
+/**
+ * Helper methods for the compact entry IDs. When a partition is configured to use
+ * compact IDs, each entry is given a long value taken from a monotonically increasing
+ * sequence, instead of its entryUUID. The value is carried as a fixed length, 16
+ * chars hexadecimal String, so that the String and the numeric orders are the same,
+ * and is stored on disk as a 8 bytes long.
+ * <br/>
+ * The {@link Partition#ROOT_ID} and {@link Partition#DEFAULT_ID} IDs are mapped to
+ * the 0 and 1 values, the sequence starts at 2.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public final class CompactId
+{
+    /** The long value used for the ROOT_ID */
+    public static final long ROOT_VALUE = 0L;
+
+    /** The long value used for the DEFAULT_ID */
+    public static final long DEFAULT_VALUE = 1L;
+
+    /** The first value of the sequence */
+    public static final long FIRST_VALUE = 2L;
+
+    /** The number of chars in a compact ID */
+    public static final int LENGTH = 16;
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+
+    private CompactId()
+    {
+    }
+
+
+    /**
+     * Converts a long value to a compact ID
+     *
+     * @param value The value to convert
+     * @return The compact ID
+     */
+    public static String toId( long value )
+    {
+        if ( value == ROOT_VALUE )
+        {
+            return Partition.ROOT_ID;
+        }
+
+        if ( value == DEFAULT_VALUE )
+        {
+            return Partition.DEFAULT_ID;
+        }
+
+        char[] chars = new char[LENGTH];
+
+        for ( int i = LENGTH - 1; i >= 0; i-- )
+        {
+            chars[i] = HEX_CHARS[( int ) ( value & 0x0F )];
+            value >>>= 4;
+        }
+
+        return new String( chars );
+    }
+
+
+    /**
+     * Converts a compact ID to its long value.
+     *
+     * @param id The compact ID
+     * @return The long value
+     * @throws IllegalArgumentException If the ID is not a compact ID
+     */
+    public static long toValue( String id )
+    {
+        if ( id.length() != LENGTH )
+        {
+            if ( Partition.ROOT_ID.equals( id ) )
+            {
+                return ROOT_VALUE;
+            }
+
+            if ( Partition.DEFAULT_ID.equals( id ) )
+            {
+                return DEFAULT_VALUE;
+            }
+
+            throw new IllegalArgumentException( "Not a compact ID : " + id );
+        }
+
+        long value = 0L;
+
+        for ( int i = 0; i < LENGTH; i++ )
+        {
+            int digit = Character.digit( id.charAt( i ), 16 );
+
+            if ( digit < 0 )
+            {
+                throw new IllegalArgumentException( "Not a compact ID : " + id );
+            }
+
+            value = ( value << 4 ) | digit;
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Compares two compact IDs. As they all have the same length and use lower case
+     * hexadecimal digits, their String order is their numeric order, and they are
+     * compared without being parsed. The {@link Partition#ROOT_ID} and
+     * {@link Partition#DEFAULT_ID} IDs are also lower than any other compact ID in
+     * the String order, as their ninth char is a '-'.
+     *
+     * @param id1 The first ID
+     * @param id2 The second ID
+     * @return a negative value, 0, or a positive value if the first ID is lower, equal or greater
+     */
+    public static int compare( String id1, String id2 )
+    {
+        return id1.compareTo( id2 );
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.directory.server.xdbm;
+
+
+import org.apache.directory.api.ldap.model.schema.comparators.SerializableComparator;
+
+
+/**
+ * A serializable comparator for compact entry IDs. They are compared as Strings, so the
+ * comparator is associated with the jdbmStringMatch matching rule.
+ *
+ * @see CompactId#compare(String, String)
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompactIdComparator extends SerializableComparator<String>
+{
+    public static final CompactIdComparator INSTANCE = new CompactIdComparator();
+
+    /** The serial version UID */
+    private static final long serialVersionUID = 1L;
+
+    /** The jdbmStringMatch matching rule OID */
+    private static final String JDBM_STRING_MATCH_OID = "1.3.6.1.4.1.18060.0.4.1.1.3";
+
+
+    public CompactIdComparator()
+    {
+        super( JDBM_STRING_MATCH_OID );
+    }
+
+
+    public int compare( String id1, String id2 )
+    {
+        return CompactId.compare( id1, id2 );
+    }
+}
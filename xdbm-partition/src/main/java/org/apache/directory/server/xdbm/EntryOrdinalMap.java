@@ -0,0 +1,293 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * A per-partition dictionary associating each entry ID with a dense int ordinal,
+ * used by the search engine to store candidates in a compressed bitmap. Ordinals
+ * are assigned lazily, the first time an entry is seen by a search, and are
+ * released when the entry is deleted. The map is not persisted : it is empty when
+ * the partition is started, and only grows with the entries actually searched.
+ * <br/>
+ * A search must {@link #hold()} the map while it builds and reads its bitmap, and
+ * {@link #unhold()} it once the ordinals have been resolved back to IDs. While the
+ * map is held, released ordinals are not reused, so that an ordinal can't be
+ * resolved to another entry than the one it was assigned to. They become available
+ * again when the last search unholds the map.
+ * <br/>
+ * Each ordinal costs a map entry and a reference to the ID, around a hundred bytes.
+ * When the map holds more than a maximum number of ordinals and no search is using
+ * it, it is cleared, and the ordinals are assigned again by the next searches.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryOrdinalMap
+{
+    /** The default maximum number of ordinals kept when the map is not in use */
+    public static final int DEFAULT_MAX_ORDINALS = 1000000;
+
+    /** The ID to ordinal map */
+    private final ConcurrentMap<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+
+    /** The ordinal to ID table */
+    private volatile String[] ids = new String[1024];
+
+    /** The released ordinals, available for reuse */
+    private int[] freeOrdinals = new int[16];
+
+    /** The number of released ordinals */
+    private int nbFree = 0;
+
+    /** The ordinals released while the map was held, not yet available for reuse */
+    private int[] pendingOrdinals = new int[16];
+
+    /** The number of ordinals released while the map was held */
+    private int nbPending = 0;
+
+    /** The number of searches currently using the map */
+    private int nbHolders = 0;
+
+    /** The next never-used ordinal */
+    private int nextOrdinal = 0;
+
+    /** The number of ordinals above which the map is cleared when not in use */
+    private final int maxOrdinals;
+
+
+    /**
+     * Creates a new EntryOrdinalMap, cleared when it contains more than
+     * {@link #DEFAULT_MAX_ORDINALS} ordinals.
+     */
+    public EntryOrdinalMap()
+    {
+        this( DEFAULT_MAX_ORDINALS );
+    }
+
+
+    /**
+     * Creates a new EntryOrdinalMap
+     *
+     * @param maxOrdinals The number of ordinals above which the map is cleared when not in use
+     */
+    public EntryOrdinalMap( int maxOrdinals )
+    {
+        this.maxOrdinals = maxOrdinals;
+    }
+
+
+    /**
+     * Get the ordinal associated with an entry ID, assigning a new one if needed.
+     *
+     * @param id The entry ID
+     * @return The entry ordinal
+     */
+    public int getOrdinal( String id )
+    {
+        Integer ordinal = ordinals.get( id );
+
+        if ( ordinal != null )
+        {
+            return ordinal;
+        }
+
+        return assign( id );
+    }
+
+
+    /**
+     * Get the entry ID associated with an ordinal
+     *
+     * @param ordinal The ordinal
+     * @return The entry ID, or null if the ordinal is not in use
+     */
+    public String getId( int ordinal )
+    {
+        String[] current = ids;
+
+        if ( ( ordinal < 0 ) || ( ordinal >= current.length ) )
+        {
+            return null;
+        }
+
+        return current[ordinal];
+    }
+
+
+    /**
+     * Tells the map that a search is about to store ordinals in a bitmap. No
+     * ordinal will be reused until the matching {@link #unhold()} call.
+     */
+    public synchronized void hold()
+    {
+        nbHolders++;
+    }
+
+
+    /**
+     * Tells the map that a search has resolved the ordinals of its bitmap. When
+     * no search holds the map anymore, the ordinals released meanwhile can be
+     * reused, and the map is cleared if it has grown too large.
+     */
+    public synchronized void unhold()
+    {
+        if ( nbHolders == 0 )
+        {
+            return;
+        }
+
+        nbHolders--;
+
+        if ( nbHolders > 0 )
+        {
+            return;
+        }
+
+        if ( ordinals.size() > maxOrdinals )
+        {
+            clear();
+
+            return;
+        }
+
+        for ( int i = 0; i < nbPending; i++ )
+        {
+            freeOrdinals = push( freeOrdinals, nbFree++, pendingOrdinals[i] );
+        }
+
+        nbPending = 0;
+    }
+
+
+    /**
+     * Releases the ordinal associated with a deleted entry, if any.
+     *
+     * @param id The deleted entry ID
+     */
+    public synchronized void release( String id )
+    {
+        Integer ordinal = ordinals.remove( id );
+
+        if ( ordinal == null )
+        {
+            return;
+        }
+
+        ids[ordinal] = null;
+
+        if ( nbHolders > 0 )
+        {
+            pendingOrdinals = push( pendingOrdinals, nbPending++, ordinal );
+        }
+        else
+        {
+            freeOrdinals = push( freeOrdinals, nbFree++, ordinal );
+        }
+    }
+
+
+    /**
+     * Forget about all the ordinals
+     */
+    public synchronized void clear()
+    {
+        ordinals.clear();
+        ids = new String[1024];
+        nbFree = 0;
+        nbPending = 0;
+        nextOrdinal = 0;
+    }
+
+
+    /**
+     * @return The number of ordinals in use
+     */
+    public int size()
+    {
+        return ordinals.size();
+    }
+
+
+    private static int[] push( int[] array, int pos, int ordinal )
+    {
+        int[] result = array;
+
+        if ( pos == array.length )
+        {
+            result = Arrays.copyOf( array, pos * 2 );
+        }
+
+        result[pos] = ordinal;
+
+        return result;
+    }
+
+
+    private synchronized int assign( String id )
+    {
+        // Check again, another thread may have assigned it meanwhile
+        Integer existing = ordinals.get( id );
+
+        if ( existing != null )
+        {
+            return existing;
+        }
+
+        int ordinal;
+
+        if ( nbFree > 0 )
+        {
+            ordinal = freeOrdinals[--nbFree];
+        }
+        else
+        {
+            ordinal = nextOrdinal++;
+        }
+
+        String[] current = ids;
+
+        if ( ordinal >= current.length )
+        {
+            current = Arrays.copyOf( current, current.length * 2 );
+        }
+
+        // The table must be updated before the map, so that a reader
+        // who got the ordinal from the map will find the ID
+        current[ordinal] = id;
+        ids = current;
+        ordinals.put( id, ordinal );
+
+        return ordinal;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "EntryOrdinalMap[" + ordinals.size() + " ordinals, " + nbFree + " free, " + nbPending + " pending]";
+    }
+}
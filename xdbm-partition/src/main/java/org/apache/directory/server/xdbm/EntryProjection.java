@@ -0,0 +1,93 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+
+
+/**
+ * The set of attributes to decode when an entry is read from the master table. An
+ * attribute is selected if its AttributeType, or one of its superiors, has been
+ * added to the projection, so that requesting 'name' also selects 'cn'.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryProjection
+{
+    /** The OIDs of the selected AttributeTypes */
+    private final Set<String> oids = new HashSet<String>();
+
+
+    /**
+     * Adds an AttributeType to the projection
+     *
+     * @param attributeType The AttributeType to select
+     */
+    public void add( AttributeType attributeType )
+    {
+        oids.add( attributeType.getOid() );
+    }
+
+
+    /**
+     * Tells if an attribute is selected by the projection
+     *
+     * @param attributeType The attribute's AttributeType
+     * @return true if the attribute must be decoded
+     */
+    public boolean accept( AttributeType attributeType )
+    {
+        AttributeType current = attributeType;
+
+        while ( current != null )
+        {
+            if ( oids.contains( current.getOid() ) )
+            {
+                return true;
+            }
+
+            current = current.getSuperior();
+        }
+
+        return false;
+    }
+
+
+    /**
+     * @return The number of selected AttributeTypes
+     */
+    public int size()
+    {
+        return oids.size();
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        return "EntryProjection" + oids;
+    }
+}
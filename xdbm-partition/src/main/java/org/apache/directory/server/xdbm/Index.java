@@ -244,4 +244,13 @@ public interface Index<K, ID>
      * @return true if the index has a reverse table
      */
     boolean hasReverse();
+
+
+    /**
+     * Gets the statistics about the index content, used to estimate the number of
+     * candidates a filter will select.
+     *
+     * @return the index statistics, or null if they are not maintained for this index
+     */
+    IndexStatistics<K> getStatistics();
 }
@@ -0,0 +1,579 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.util.Strings;
+
+
+/**
+ * Statistics about the content of an index, used by the optimizer to estimate the
+ * number of candidates a filter will select without reading the index. We keep :
+ * <ul>
+ * <li>the number of &lt;key, ID&gt; tuples</li>
+ * <li>the number of distinct keys</li>
+ * <li>an equi-depth histogram of the keys : each bucket holds roughly the same number
+ * of tuples, and a key never spans two buckets, so a very frequent key has its own bucket</li>
+ * </ul>
+ * The counts are updated on each addition or removal, while the bucket bounds and the
+ * number of distinct keys are only recomputed when the index has changed too much
+ * since the last rebuild (see {@link #isStale()}).
+ * <br/>
+ * Only String and byte[] keys can be stored on disk.
+ *
+ * @param <K> The index key type
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatistics<K>
+{
+    /** The maximum number of buckets in the histogram */
+    public static final int MAX_BUCKETS = 64;
+
+    /** The minimum number of updates before the statistics are considered as stale */
+    public static final long MIN_REBUILD_UPDATES = 1000L;
+
+    /** The version of the serialized form */
+    private static final int VERSION = 1;
+
+    /** The serialized key types */
+    private static final byte STRING_KEY = 1;
+    private static final byte BYTES_KEY = 2;
+
+    /** The comparator used to order the keys in the index */
+    private final Comparator<K> comparator;
+
+    /** The number of tuples in the index */
+    private long count;
+
+    /** The number of distinct keys, at the last rebuild */
+    private long distinctCount;
+
+    /** The number of additions and removals since the last rebuild */
+    private long updates;
+
+    /** Tells if the histogram has been computed */
+    private boolean built;
+
+    /** The greatest key of each bucket */
+    private Object[] bounds = new Object[0];
+
+    /** The number of tuples in each bucket */
+    private long[] bucketCounts = new long[0];
+
+    /** The number of distinct keys in each bucket, at the last rebuild */
+    private long[] bucketDistincts = new long[0];
+
+
+    /**
+     * Creates a new instance of IndexStatistics.
+     *
+     * @param comparator The comparator used to order the keys in the index
+     */
+    public IndexStatistics( Comparator<K> comparator )
+    {
+        this.comparator = comparator;
+    }
+
+
+    /**
+     * Records the addition of a key in the index
+     *
+     * @param key The added key
+     */
+    public synchronized void add( K key )
+    {
+        if ( key == null )
+        {
+            return;
+        }
+
+        count++;
+        updates++;
+
+        if ( bounds.length > 0 )
+        {
+            bucketCounts[findBucket( key )]++;
+        }
+    }
+
+
+    /**
+     * Records the removal of a key from the index
+     *
+     * @param key The removed key
+     */
+    public synchronized void drop( K key )
+    {
+        if ( key == null )
+        {
+            return;
+        }
+
+        if ( count > 0 )
+        {
+            count--;
+        }
+
+        updates++;
+
+        if ( bounds.length > 0 )
+        {
+            int bucket = findBucket( key );
+
+            if ( bucketCounts[bucket] > 0 )
+            {
+                bucketCounts[bucket]--;
+            }
+        }
+    }
+
+
+    /**
+     * Recomputes the statistics from the index content.
+     *
+     * @param cursor A cursor on the index forward entries, positioned before the first entry
+     * @param expectedCount The expected number of tuples in the index
+     * @throws Exception If the cursor can't be read
+     */
+    public void rebuild( Cursor<? extends IndexEntry<K, ?>> cursor, long expectedCount ) throws Exception
+    {
+        long depth = Math.max( 1L, ( expectedCount + MAX_BUCKETS - 1 ) / MAX_BUCKETS );
+        List<Object> newBounds = new ArrayList<Object>();
+        List<long[]> newBuckets = new ArrayList<long[]>();
+
+        K previous = null;
+        K beforeRun = null;
+        long total = 0L;
+        long distinct = 0L;
+        long bucketCount = 0L;
+        long bucketDistinct = 0L;
+        long runLength = 0L;
+
+        while ( cursor.next() )
+        {
+            K key = cursor.get().getKey();
+
+            if ( key == null )
+            {
+                continue;
+            }
+
+            if ( ( previous == null ) || ( comparator.compare( previous, key ) != 0 ) )
+            {
+                // A new key : close the current bucket if it's full
+                if ( bucketCount >= depth )
+                {
+                    newBounds.add( previous );
+                    newBuckets.add( new long[]
+                        { bucketCount, bucketDistinct } );
+                    bucketCount = 0L;
+                    bucketDistinct = 0L;
+                }
+
+                bucketDistinct++;
+                distinct++;
+                beforeRun = previous;
+                runLength = 0L;
+            }
+
+            bucketCount++;
+            runLength++;
+            total++;
+            previous = key;
+
+            if ( ( runLength == depth ) && ( bucketCount > runLength ) )
+            {
+                // A frequent key : give it its own bucket, so that its count is not
+                // averaged with the other keys
+                newBounds.add( beforeRun );
+                newBuckets.add( new long[]
+                    { bucketCount - runLength, bucketDistinct - 1 } );
+                bucketCount = runLength;
+                bucketDistinct = 1L;
+            }
+        }
+
+        if ( bucketCount > 0 )
+        {
+            newBounds.add( previous );
+            newBuckets.add( new long[]
+                { bucketCount, bucketDistinct } );
+        }
+
+        int nbBuckets = newBounds.size();
+        long[] counts = new long[nbBuckets];
+        long[] distincts = new long[nbBuckets];
+
+        for ( int i = 0; i < nbBuckets; i++ )
+        {
+            counts[i] = newBuckets.get( i )[0];
+            distincts[i] = newBuckets.get( i )[1];
+        }
+
+        synchronized ( this )
+        {
+            bounds = newBounds.toArray();
+            bucketCounts = counts;
+            bucketDistincts = distincts;
+            count = total;
+            distinctCount = distinct;
+            updates = 0L;
+            built = true;
+        }
+    }
+
+
+    /**
+     * @return <code>true</code> if the statistics have not been computed, or if the index
+     * has been modified too much since they have been computed
+     */
+    public synchronized boolean isStale()
+    {
+        return !built || ( updates > Math.max( MIN_REBUILD_UPDATES, count / 4 ) );
+    }
+
+
+    /**
+     * @return <code>true</code> if the histogram can be used to estimate the number of candidates
+     */
+    public synchronized boolean isUsable()
+    {
+        return built && ( bounds.length > 0 );
+    }
+
+
+    /**
+     * @return The number of tuples in the index
+     */
+    public synchronized long getCount()
+    {
+        return count;
+    }
+
+
+    /**
+     * @return The number of distinct keys in the index, when the statistics were last rebuilt
+     */
+    public synchronized long getDistinctCount()
+    {
+        return distinctCount;
+    }
+
+
+    /**
+     * @return The number of buckets in the histogram
+     */
+    public synchronized int getNbBuckets()
+    {
+        return bounds.length;
+    }
+
+
+    /**
+     * Estimates the number of tuples having a given key
+     *
+     * @param key The key
+     * @return The estimated number of tuples
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized long estimateEquality( K key )
+    {
+        if ( bounds.length == 0 )
+        {
+            return 0L;
+        }
+
+        int bucket = findBucket( key );
+
+        if ( comparator.compare( key, ( K ) bounds[bucket] ) > 0 )
+        {
+            // The key is greater than all the keys known at the last rebuild :
+            // it can only have been added since
+            return Math.min( getAverageBucketDepth( bucket ), updates );
+        }
+
+        return getAverageBucketDepth( bucket );
+    }
+
+
+    /**
+     * Estimates the number of tuples having a key greater or equal to a given key
+     *
+     * @param key The key
+     * @return The estimated number of tuples
+     */
+    public synchronized long estimateGreaterOrEqual( K key )
+    {
+        return Math.max( 0L, getTotal() - getRank( key ) );
+    }
+
+
+    /**
+     * Estimates the number of tuples having a key lower or equal to a given key
+     *
+     * @param key The key
+     * @return The estimated number of tuples
+     */
+    public synchronized long estimateLessOrEqual( K key )
+    {
+        return Math.min( getTotal(), getRank( key ) + estimateEquality( key ) );
+    }
+
+
+    /**
+     * Estimates the number of tuples having a String key starting with a given prefix
+     *
+     * @param prefix The prefix
+     * @return The estimated number of tuples
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized long estimatePrefix( String prefix )
+    {
+        if ( bounds.length == 0 )
+        {
+            return 0L;
+        }
+
+        K low = ( K ) prefix;
+        K high = ( K ) ( prefix + Character.MAX_VALUE );
+        long estimate = getRank( high ) - getRank( low );
+
+        if ( estimate <= 0 )
+        {
+            // Both bounds are in the same bucket
+            return estimateEquality( low );
+        }
+
+        return estimate;
+    }
+
+
+    /**
+     * @return the number of tuples counted in the histogram
+     */
+    private long getTotal()
+    {
+        long total = 0L;
+
+        for ( long bucketCount : bucketCounts )
+        {
+            total += bucketCount;
+        }
+
+        return total;
+    }
+
+
+    /**
+     * @return The estimated number of tuples having a key strictly lower than the given key
+     */
+    @SuppressWarnings("unchecked")
+    private long getRank( K key )
+    {
+        int bucket = findBucket( key );
+        long rank = 0L;
+
+        for ( int i = 0; i < bucket; i++ )
+        {
+            rank += bucketCounts[i];
+        }
+
+        int cmp = comparator.compare( key, ( K ) bounds[bucket] );
+
+        if ( cmp == 0 )
+        {
+            // The key is the greatest of its bucket
+            return rank + bucketCounts[bucket] - getAverageBucketDepth( bucket );
+        }
+        else if ( cmp > 0 )
+        {
+            // The key is greater than all the known keys
+            return rank + bucketCounts[bucket];
+        }
+
+        // Assume the key is in the middle of its bucket
+        return rank + bucketCounts[bucket] / 2;
+    }
+
+
+    /**
+     * @return The average number of tuples per key in a bucket
+     */
+    private long getAverageBucketDepth( int bucket )
+    {
+        long distinct = Math.max( 1L, bucketDistincts[bucket] );
+
+        return ( bucketCounts[bucket] + distinct - 1 ) / distinct;
+    }
+
+
+    /**
+     * @return The first bucket which greatest key is greater or equal to the given key,
+     * or the last bucket if the key is greater than all the bounds
+     */
+    @SuppressWarnings("unchecked")
+    private int findBucket( K key )
+    {
+        int low = 0;
+        int high = bounds.length - 1;
+
+        while ( low < high )
+        {
+            int middle = ( low + high ) >>> 1;
+
+            if ( comparator.compare( ( K ) bounds[middle], key ) < 0 )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * Writes the statistics.
+     *
+     * @param out The output to write to
+     * @return <code>false</code> if the statistics can't be written because of their key type
+     * @throws IOException If the statistics can't be written
+     */
+    public synchronized boolean write( DataOutput out ) throws IOException
+    {
+        for ( Object bound : bounds )
+        {
+            if ( !( bound instanceof String ) && !( bound instanceof byte[] ) )
+            {
+                return false;
+            }
+        }
+
+        out.writeInt( VERSION );
+        out.writeLong( count );
+        out.writeLong( distinctCount );
+        out.writeLong( updates );
+        out.writeBoolean( built );
+        out.writeInt( bounds.length );
+
+        for ( int i = 0; i < bounds.length; i++ )
+        {
+            byte[] bytes;
+
+            if ( bounds[i] instanceof String )
+            {
+                out.writeByte( STRING_KEY );
+                bytes = Strings.getBytesUtf8( ( String ) bounds[i] );
+            }
+            else
+            {
+                out.writeByte( BYTES_KEY );
+                bytes = ( byte[] ) bounds[i];
+            }
+
+            out.writeInt( bytes.length );
+            out.write( bytes );
+            out.writeLong( bucketCounts[i] );
+            out.writeLong( bucketDistincts[i] );
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Reads the statistics written by {@link #write(DataOutput)}
+     *
+     * @param in The input to read from
+     * @throws IOException If the statistics can't be read
+     */
+    public synchronized void read( DataInput in ) throws IOException
+    {
+        int version = in.readInt();
+
+        if ( version != VERSION )
+        {
+            throw new IOException( "Unsupported index statistics version : " + version );
+        }
+
+        long newCount = in.readLong();
+        long newDistinctCount = in.readLong();
+        long newUpdates = in.readLong();
+        boolean newBuilt = in.readBoolean();
+        int nbBuckets = in.readInt();
+
+        Object[] newBounds = new Object[nbBuckets];
+        long[] counts = new long[nbBuckets];
+        long[] distincts = new long[nbBuckets];
+
+        for ( int i = 0; i < nbBuckets; i++ )
+        {
+            byte type = in.readByte();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully( bytes );
+
+            switch ( type )
+            {
+                case STRING_KEY:
+                    newBounds[i] = Strings.utf8ToString( bytes );
+                    break;
+
+                case BYTES_KEY:
+                    newBounds[i] = bytes;
+                    break;
+
+                default:
+                    throw new IOException( "Unknown index statistics key type : " + type );
+            }
+
+            counts[i] = in.readLong();
+            distincts[i] = in.readLong();
+        }
+
+        count = newCount;
+        distinctCount = newDistinctCount;
+        updates = newUpdates;
+        built = newBuilt;
+        bounds = newBounds;
+        bucketCounts = counts;
+        bucketDistincts = distincts;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public synchronized String toString()
+    {
+        return "IndexStatistics[count=" + count + ", distinct=" + distinctCount + ", buckets=" + bounds.length
+            + ", updates=" + updates + "]";
+    }
+}
@@ -21,6 +21,7 @@ package org.apache.directory.server.xdbm;
 
 
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
 
 
 /**
@@ -36,6 +37,9 @@ public interface MasterTable extends Table<String, Entry>
     /** the sequence key - stores last sequence value in the admin table */
     String SEQPROP_KEY = "__sequence__";
 
+    /** the compact IDs key - stores the greatest reserved compact ID in the admin table */
+    String COMPACT_SEQPROP_KEY = "__compactSequence__";
+
 
     /**
      * Gets the next value from the sequence of this MasterTable.  This has
@@ -46,4 +50,36 @@ public interface MasterTable extends Table<String, Entry>
      * @throws Exception on failure to update the id sequence
      */
     String getNextId( Entry entry ) throws Exception;
+
+
+    /**
+     * Gets the greatest compact ID value reserved by the partition. The IDs up to this
+     * value may have been given to some entries, and must never be given again.
+     *
+     * @return the greatest reserved value, or -1 if no compact ID has been reserved yet
+     * @throws Exception on failure to read the value
+     */
+    long getReservedCompactId() throws Exception;
+
+
+    /**
+     * Stores the greatest compact ID value reserved by the partition. It has to be stored
+     * before any ID up to this value is given to an entry.
+     *
+     * @param value the greatest reserved value
+     * @throws Exception on failure to store the value
+     */
+    void setReservedCompactId( long value ) throws Exception;
+
+
+    /**
+     * Gets an entry, only decoding the attributes selected by a projection. Tables
+     * which can't decode the entries partially return the full entry.
+     *
+     * @param id The entry ID
+     * @param projection The attributes to decode
+     * @return The entry, or null if it does not exist
+     * @throws LdapException If the entry can't be read
+     */
+    Entry get( String id, EntryProjection projection ) throws LdapException;
 }
\ No newline at end of file
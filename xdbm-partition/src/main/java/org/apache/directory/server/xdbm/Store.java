@@ -443,4 +443,10 @@ public interface Store
      * @return
      */
     Cache getAliasCache();
+
+
+    /**
+     * @return The dictionary associating entry IDs with the dense ordinals used by the search engine
+     */
+    EntryOrdinalMap getOrdinalMap();
 }
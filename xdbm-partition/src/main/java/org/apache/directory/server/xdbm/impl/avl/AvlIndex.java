@@ -31,7 +31,6 @@ import org.apache.directory.api.ldap.model.schema.LdapComparator;
 import org.apache.directory.api.ldap.model.schema.MatchingRule;
 import org.apache.directory.api.ldap.model.schema.Normalizer;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
-import org.apache.directory.api.ldap.model.schema.comparators.UuidComparator;
 import org.apache.directory.server.core.partition.impl.btree.IndexCursorAdaptor;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.AbstractIndex;
@@ -99,7 +98,7 @@ public class AvlIndex<K> extends AbstractIndex<K, String>
          * primary keys.  A value for an attribute can occur several times in
          * different entries so the forward map can have more than one value.
          */
-        forward = new AvlTable<K, String>( attributeType.getName(), comp, UuidComparator.INSTANCE, true );
+        forward = new AvlTable<K, String>( attributeType.getName(), comp, getIdComparator(), true );
 
         /*
          * Now the reverse map stores the primary key into the master table as
@@ -111,24 +110,33 @@ public class AvlIndex<K> extends AbstractIndex<K, String>
         {
             if ( attributeType.isSingleValued() )
             {
-                reverse = new AvlTable<String, K>( attributeType.getName(), UuidComparator.INSTANCE, comp, false );
+                reverse = new AvlTable<String, K>( attributeType.getName(), getIdComparator(), comp, false );
             }
             else
             {
-                reverse = new AvlTable<String, K>( attributeType.getName(), UuidComparator.INSTANCE, comp, true );
+                reverse = new AvlTable<String, K>( attributeType.getName(), getIdComparator(), comp, true );
             }
         }
+
+        initStatistics( comp );
     }
 
 
     public void add( K attrVal, String id ) throws Exception
     {
+        long before = forward.count();
         forward.put( attrVal, id );
 
         if ( withReverse )
         {
             reverse.put( id, attrVal );
         }
+
+        // Only count the pair if it was not already present
+        if ( ( statistics != null ) && ( forward.count() > before ) )
+        {
+            statistics.add( attrVal );
+        }
     }
 
 
@@ -182,6 +190,11 @@ public class AvlIndex<K> extends AbstractIndex<K, String>
                 {
                     Tuple<String, K> tuple = cursor.get();
                     forward.remove( tuple.getValue(), id );
+
+                    if ( statistics != null )
+                    {
+                        statistics.drop( tuple.getValue() );
+                    }
                 }
 
                 cursor.close();
@@ -191,6 +204,11 @@ public class AvlIndex<K> extends AbstractIndex<K, String>
             {
                 K key = reverse.get( id );
                 forward.remove( key );
+
+                if ( statistics != null )
+                {
+                    statistics.drop( key );
+                }
             }
 
             reverse.remove( id );
@@ -203,12 +221,19 @@ public class AvlIndex<K> extends AbstractIndex<K, String>
      */
     public void drop( K attrVal, String id ) throws Exception
     {
+        long before = forward.count();
         forward.remove( attrVal, id );
 
         if ( withReverse )
         {
             reverse.remove( id, attrVal );
         }
+
+        // Only count the pair if it was really present
+        if ( ( statistics != null ) && ( forward.count() < before ) )
+        {
+            statistics.drop( attrVal );
+        }
     }
 
 
@@ -24,6 +24,8 @@ import java.util.Comparator;
 import java.util.UUID;
 
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.xdbm.EntryProjection;
 import org.apache.directory.server.xdbm.MasterTable;
 
 
@@ -35,6 +37,10 @@ import org.apache.directory.server.xdbm.MasterTable;
  */
 public class AvlMasterTable extends AvlTable<String, Entry> implements MasterTable
 {
+    /** The greatest reserved compact ID. The table is not persistent, neither is the value */
+    private volatile long reservedCompactId = -1L;
+
+
     public AvlMasterTable( String name, Comparator<String> keyComparator, Comparator<Entry> valComparator,
         boolean dupsEnabled )
     {
@@ -49,4 +55,32 @@ public class AvlMasterTable extends AvlTable<String, Entry> implements MasterTab
     {
         return UUID.randomUUID().toString();
     }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getReservedCompactId() throws Exception
+    {
+        return reservedCompactId;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setReservedCompactId( long value ) throws Exception
+    {
+        reservedCompactId = value;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * The entries are not serialized, the full entry is returned.
+     */
+    public Entry get( String id, EntryProjection projection ) throws LdapException
+    {
+        return get( id );
+    }
 }
@@ -82,9 +82,9 @@ public class AvlRdnIndex extends AvlIndex<ParentIdAndRdn>
          * primary keys.  A value for an attribute can occur several times in
          * different entries so the forward map can have more than one value.
          */
-        forward = new AvlTable<ParentIdAndRdn, String>( attributeType.getName(), comp, UuidComparator.INSTANCE,
+        forward = new AvlTable<ParentIdAndRdn, String>( attributeType.getName(), comp, getIdComparator(),
             false );
-        reverse = new AvlTable<String, ParentIdAndRdn>( attributeType.getName(), UuidComparator.INSTANCE, comp,
+        reverse = new AvlTable<String, ParentIdAndRdn>( attributeType.getName(), getIdComparator(), comp,
             false );
     }
 }
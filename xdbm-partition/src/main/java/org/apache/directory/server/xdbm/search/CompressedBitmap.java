@@ -0,0 +1,680 @@
+/*
+ *   Licensed to the Apache Software Foundation (ASF) under one
+ *   or more contributor license agreements.  See the NOTICE file
+ *   distributed with this work for additional information
+ *   regarding copyright ownership.  The ASF licenses this file
+ *   to you under the Apache License, Version 2.0 (the
+ *   "License"); you may not use this file except in compliance
+ *   with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing,
+ *   software distributed under the License is distributed on an
+ *   "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *   KIND, either express or implied.  See the License for the
+ *   specific language governing permissions and limitations
+ *   under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search;
+
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+
+/**
+ * A compressed set of non negative int ordinals, used to store the candidates
+ * of a search. The 32 bits space is split in chunks of 65536 values, keyed by
+ * the 16 high bits of the ordinal. Each chunk is stored either as a sorted
+ * array of the low 16 bits when it's sparse, or as a plain bitset of 1024 longs
+ * when it's dense (more than 4096 elements). Intersections, unions and
+ * differences are computed chunk by chunk, without ever expanding the set.
+ * <br/>
+ * This class is not thread safe.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompressedBitmap
+{
+    /** The maximum number of elements in an array chunk before it's converted to a bitset */
+    private static final int ARRAY_MAX_SIZE = 4096;
+
+    /** The number of longs in a bitset chunk */
+    private static final int BITSET_SIZE = 1024;
+
+    /** The sorted high 16 bits of each chunk */
+    private char[] keys;
+
+    /** The chunks, either char[] (sorted low bits) or long[] (bitset) */
+    private Object[] chunks;
+
+    /** The number of elements in each chunk */
+    private int[] cardinalities;
+
+    /** The number of chunks in use */
+    private int size;
+
+
+    /**
+     * Creates an empty CompressedBitmap
+     */
+    public CompressedBitmap()
+    {
+        keys = new char[4];
+        chunks = new Object[4];
+        cardinalities = new int[4];
+        size = 0;
+    }
+
+
+    /**
+     * Adds an ordinal to the set
+     *
+     * @param ordinal The ordinal to add
+     * @return <code>true</code> if the ordinal was not already present
+     */
+    public boolean add( int ordinal )
+    {
+        checkOrdinal( ordinal );
+
+        char high = ( char ) ( ordinal >>> 16 );
+        char low = ( char ) ordinal;
+        int pos = Arrays.binarySearch( keys, 0, size, high );
+
+        if ( pos < 0 )
+        {
+            pos = -pos - 1;
+            insertChunk( pos, high, new char[4], 0 );
+        }
+
+        Object chunk = chunks[pos];
+
+        if ( chunk instanceof long[] )
+        {
+            long[] bits = ( long[] ) chunk;
+            long mask = 1L << low;
+            int index = low >>> 6;
+
+            if ( ( bits[index] & mask ) != 0 )
+            {
+                return false;
+            }
+
+            bits[index] |= mask;
+            cardinalities[pos]++;
+
+            return true;
+        }
+
+        char[] array = ( char[] ) chunk;
+        int cardinality = cardinalities[pos];
+        int lowPos = Arrays.binarySearch( array, 0, cardinality, low );
+
+        if ( lowPos >= 0 )
+        {
+            return false;
+        }
+
+        lowPos = -lowPos - 1;
+
+        if ( cardinality == ARRAY_MAX_SIZE )
+        {
+            // Switch to a bitset, then add the element
+            long[] bits = toBitset( array, cardinality );
+            bits[low >>> 6] |= 1L << low;
+            chunks[pos] = bits;
+            cardinalities[pos]++;
+
+            return true;
+        }
+
+        if ( cardinality == array.length )
+        {
+            array = Arrays.copyOf( array, Math.min( ARRAY_MAX_SIZE, array.length * 2 ) );
+            chunks[pos] = array;
+        }
+
+        System.arraycopy( array, lowPos, array, lowPos + 1, cardinality - lowPos );
+        array[lowPos] = low;
+        cardinalities[pos]++;
+
+        return true;
+    }
+
+
+    /**
+     * Tells if an ordinal is present in the set
+     *
+     * @param ordinal The ordinal to check
+     * @return <code>true</code> if the ordinal is present
+     */
+    public boolean contains( int ordinal )
+    {
+        if ( ordinal < 0 )
+        {
+            return false;
+        }
+
+        int pos = Arrays.binarySearch( keys, 0, size, ( char ) ( ordinal >>> 16 ) );
+
+        if ( pos < 0 )
+        {
+            return false;
+        }
+
+        char low = ( char ) ordinal;
+        Object chunk = chunks[pos];
+
+        if ( chunk instanceof long[] )
+        {
+            return ( ( ( long[] ) chunk )[low >>> 6] & ( 1L << low ) ) != 0;
+        }
+
+        return Arrays.binarySearch( ( char[] ) chunk, 0, cardinalities[pos], low ) >= 0;
+    }
+
+
+    /**
+     * @return The number of ordinals stored in this set
+     */
+    public long cardinality()
+    {
+        long cardinality = 0L;
+
+        for ( int i = 0; i < size; i++ )
+        {
+            cardinality += cardinalities[i];
+        }
+
+        return cardinality;
+    }
+
+
+    /**
+     * @return <code>true</code> if the set does not contain any ordinal
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    /**
+     * Adds all the ordinals of the given set into this set (union).
+     *
+     * @param other The set to merge into this one
+     */
+    public void or( CompressedBitmap other )
+    {
+        int i = 0;
+        int j = 0;
+
+        while ( j < other.size )
+        {
+            if ( ( i == size ) || ( other.keys[j] < keys[i] ) )
+            {
+                // The chunk is not present here, copy it
+                insertChunk( i, other.keys[j], copyChunk( other.chunks[j] ), other.cardinalities[j] );
+                i++;
+                j++;
+            }
+            else if ( other.keys[j] == keys[i] )
+            {
+                orChunk( i, other.chunks[j], other.cardinalities[j] );
+                i++;
+                j++;
+            }
+            else
+            {
+                i++;
+            }
+        }
+    }
+
+
+    /**
+     * Retains only the ordinals also present in the given set (intersection).
+     *
+     * @param other The set to intersect with
+     */
+    public void and( CompressedBitmap other )
+    {
+        int newSize = 0;
+        int j = 0;
+
+        for ( int i = 0; i < size; i++ )
+        {
+            while ( ( j < other.size ) && ( other.keys[j] < keys[i] ) )
+            {
+                j++;
+            }
+
+            if ( ( j == other.size ) || ( other.keys[j] != keys[i] ) )
+            {
+                // No matching chunk : everything is removed
+                continue;
+            }
+
+            int cardinality = andChunk( i, other.chunks[j], other.cardinalities[j], false );
+
+            if ( cardinality > 0 )
+            {
+                keys[newSize] = keys[i];
+                chunks[newSize] = chunks[i];
+                cardinalities[newSize] = cardinality;
+                newSize++;
+            }
+        }
+
+        clearFrom( newSize );
+    }
+
+
+    /**
+     * Removes all the ordinals present in the given set (difference).
+     *
+     * @param other The set containing the ordinals to remove
+     */
+    public void andNot( CompressedBitmap other )
+    {
+        int newSize = 0;
+        int j = 0;
+
+        for ( int i = 0; i < size; i++ )
+        {
+            while ( ( j < other.size ) && ( other.keys[j] < keys[i] ) )
+            {
+                j++;
+            }
+
+            int cardinality = cardinalities[i];
+
+            if ( ( j < other.size ) && ( other.keys[j] == keys[i] ) )
+            {
+                cardinality = andChunk( i, other.chunks[j], other.cardinalities[j], true );
+            }
+
+            if ( cardinality > 0 )
+            {
+                keys[newSize] = keys[i];
+                chunks[newSize] = chunks[i];
+                cardinalities[newSize] = cardinality;
+                newSize++;
+            }
+        }
+
+        clearFrom( newSize );
+    }
+
+
+    /**
+     * @return An iterator over the ordinals, in ascending order
+     */
+    public OrdinalIterator iterator()
+    {
+        return new OrdinalIterator();
+    }
+
+
+    /**
+     * An iterator over the ordinals stored in a CompressedBitmap. It avoids
+     * the boxing a java.util.Iterator would imply.
+     */
+    public final class OrdinalIterator
+    {
+        /** The current chunk */
+        private int chunkPos = 0;
+
+        /** The position in the current chunk (array index, or bit number) */
+        private int inChunkPos = 0;
+
+        /** The next ordinal to return, -1 if none */
+        private int nextOrdinal;
+
+
+        private OrdinalIterator()
+        {
+            nextOrdinal = advance();
+        }
+
+
+        /**
+         * @return <code>true</code> if there are some more ordinals to read
+         */
+        public boolean hasNext()
+        {
+            return nextOrdinal >= 0;
+        }
+
+
+        /**
+         * @return The next ordinal
+         */
+        public int next()
+        {
+            if ( nextOrdinal < 0 )
+            {
+                throw new NoSuchElementException();
+            }
+
+            int ordinal = nextOrdinal;
+            nextOrdinal = advance();
+
+            return ordinal;
+        }
+
+
+        private int advance()
+        {
+            while ( chunkPos < size )
+            {
+                int high = keys[chunkPos] << 16;
+                Object chunk = chunks[chunkPos];
+
+                if ( chunk instanceof long[] )
+                {
+                    long[] bits = ( long[] ) chunk;
+
+                    while ( inChunkPos < 65536 )
+                    {
+                        int index = inChunkPos >>> 6;
+                        long word = bits[index] & ( -1L << inChunkPos );
+
+                        if ( word != 0 )
+                        {
+                            int low = ( index << 6 ) + Long.numberOfTrailingZeros( word );
+                            inChunkPos = low + 1;
+
+                            return high | low;
+                        }
+
+                        inChunkPos = ( index + 1 ) << 6;
+                    }
+                }
+                else if ( inChunkPos < cardinalities[chunkPos] )
+                {
+                    return high | ( ( char[] ) chunk )[inChunkPos++];
+                }
+
+                chunkPos++;
+                inChunkPos = 0;
+            }
+
+            return -1;
+        }
+    }
+
+
+    private static void checkOrdinal( int ordinal )
+    {
+        if ( ordinal < 0 )
+        {
+            throw new IllegalArgumentException( "Negative ordinal : " + ordinal );
+        }
+    }
+
+
+    private void insertChunk( int pos, char key, Object chunk, int cardinality )
+    {
+        if ( size == keys.length )
+        {
+            int newLength = keys.length * 2;
+            keys = Arrays.copyOf( keys, newLength );
+            chunks = Arrays.copyOf( chunks, newLength );
+            cardinalities = Arrays.copyOf( cardinalities, newLength );
+        }
+
+        System.arraycopy( keys, pos, keys, pos + 1, size - pos );
+        System.arraycopy( chunks, pos, chunks, pos + 1, size - pos );
+        System.arraycopy( cardinalities, pos, cardinalities, pos + 1, size - pos );
+        keys[pos] = key;
+        chunks[pos] = chunk;
+        cardinalities[pos] = cardinality;
+        size++;
+    }
+
+
+    private void clearFrom( int newSize )
+    {
+        for ( int i = newSize; i < size; i++ )
+        {
+            chunks[i] = null;
+        }
+
+        size = newSize;
+    }
+
+
+    private static Object copyChunk( Object chunk )
+    {
+        if ( chunk instanceof long[] )
+        {
+            return ( ( long[] ) chunk ).clone();
+        }
+
+        return ( ( char[] ) chunk ).clone();
+    }
+
+
+    private static long[] toBitset( char[] array, int cardinality )
+    {
+        long[] bits = new long[BITSET_SIZE];
+
+        for ( int i = 0; i < cardinality; i++ )
+        {
+            char low = array[i];
+            bits[low >>> 6] |= 1L << low;
+        }
+
+        return bits;
+    }
+
+
+    /**
+     * Unions the given chunk into the chunk at position pos
+     */
+    private void orChunk( int pos, Object otherChunk, int otherCardinality )
+    {
+        Object chunk = chunks[pos];
+
+        if ( ( chunk instanceof long[] ) || ( otherChunk instanceof long[] )
+            || ( cardinalities[pos] + otherCardinality > ARRAY_MAX_SIZE ) )
+        {
+            long[] bits = ( chunk instanceof long[] ) ? ( long[] ) chunk : toBitset( ( char[] ) chunk,
+                cardinalities[pos] );
+            int cardinality = 0;
+
+            if ( otherChunk instanceof long[] )
+            {
+                long[] otherBits = ( long[] ) otherChunk;
+
+                for ( int k = 0; k < BITSET_SIZE; k++ )
+                {
+                    bits[k] |= otherBits[k];
+                    cardinality += Long.bitCount( bits[k] );
+                }
+            }
+            else
+            {
+                char[] otherArray = ( char[] ) otherChunk;
+
+                for ( int k = 0; k < otherCardinality; k++ )
+                {
+                    char low = otherArray[k];
+                    bits[low >>> 6] |= 1L << low;
+                }
+
+                for ( int k = 0; k < BITSET_SIZE; k++ )
+                {
+                    cardinality += Long.bitCount( bits[k] );
+                }
+            }
+
+            storeChunk( pos, bits, cardinality );
+
+            return;
+        }
+
+        // Two small sorted arrays : merge them
+        char[] array = ( char[] ) chunk;
+        char[] otherArray = ( char[] ) otherChunk;
+        int cardinality = cardinalities[pos];
+        char[] merged = new char[cardinality + otherCardinality];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+
+        while ( ( i < cardinality ) && ( j < otherCardinality ) )
+        {
+            if ( array[i] < otherArray[j] )
+            {
+                merged[k++] = array[i++];
+            }
+            else if ( array[i] > otherArray[j] )
+            {
+                merged[k++] = otherArray[j++];
+            }
+            else
+            {
+                merged[k++] = array[i++];
+                j++;
+            }
+        }
+
+        while ( i < cardinality )
+        {
+            merged[k++] = array[i++];
+        }
+
+        while ( j < otherCardinality )
+        {
+            merged[k++] = otherArray[j++];
+        }
+
+        chunks[pos] = merged;
+        cardinalities[pos] = k;
+    }
+
+
+    /**
+     * Intersects (or subtracts, if negate is true) the given chunk with the chunk
+     * at position pos. The result is stored at position pos.
+     *
+     * @return the resulting cardinality
+     */
+    private int andChunk( int pos, Object otherChunk, int otherCardinality, boolean negate )
+    {
+        Object chunk = chunks[pos];
+
+        if ( chunk instanceof long[] )
+        {
+            long[] bits = ( long[] ) chunk;
+            long[] otherBits = ( otherChunk instanceof long[] ) ? ( long[] ) otherChunk : toBitset(
+                ( char[] ) otherChunk, otherCardinality );
+            int cardinality = 0;
+
+            for ( int k = 0; k < BITSET_SIZE; k++ )
+            {
+                bits[k] = negate ? ( bits[k] & ~otherBits[k] ) : ( bits[k] & otherBits[k] );
+                cardinality += Long.bitCount( bits[k] );
+            }
+
+            storeChunk( pos, bits, cardinality );
+
+            return cardinalities[pos];
+        }
+
+        // Array chunk : keep the elements which are (or are not) in the other chunk
+        char[] array = ( char[] ) chunk;
+        int cardinality = cardinalities[pos];
+        int k = 0;
+
+        for ( int i = 0; i < cardinality; i++ )
+        {
+            char low = array[i];
+            boolean present;
+
+            if ( otherChunk instanceof long[] )
+            {
+                present = ( ( ( long[] ) otherChunk )[low >>> 6] & ( 1L << low ) ) != 0;
+            }
+            else
+            {
+                present = Arrays.binarySearch( ( char[] ) otherChunk, 0, otherCardinality, low ) >= 0;
+            }
+
+            if ( present != negate )
+            {
+                array[k++] = low;
+            }
+        }
+
+        cardinalities[pos] = k;
+
+        return k;
+    }
+
+
+    /**
+     * Stores a bitset chunk, converting it back to an array if it has become sparse
+     */
+    private void storeChunk( int pos, long[] bits, int cardinality )
+    {
+        cardinalities[pos] = cardinality;
+
+        if ( cardinality > ARRAY_MAX_SIZE )
+        {
+            chunks[pos] = bits;
+
+            return;
+        }
+
+        char[] array = new char[Math.max( 4, cardinality )];
+        int k = 0;
+
+        for ( int index = 0; index < BITSET_SIZE; index++ )
+        {
+            long word = bits[index];
+
+            while ( word != 0 )
+            {
+                array[k++] = ( char ) ( ( index << 6 ) + Long.numberOfTrailingZeros( word ) );
+                word &= word - 1;
+            }
+        }
+
+        chunks[pos] = array;
+    }
+
+
+    /**
+     * @see Object#toString()
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append( '{' );
+        OrdinalIterator iterator = iterator();
+        boolean isFirst = true;
+
+        while ( iterator.hasNext() )
+        {
+            if ( isFirst )
+            {
+                isFirst = false;
+            }
+            else
+            {
+                sb.append( ", " );
+            }
+
+            sb.append( iterator.next() );
+        }
+
+        sb.append( '}' );
+
+        return sb.toString();
+    }
+}
@@ -26,6 +26,7 @@ import org.apache.directory.api.ldap.model.cursor.SetCursor;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
 import org.apache.directory.api.ldap.model.message.AliasDerefMode;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.xdbm.EntryProjection;
 import org.apache.directory.server.xdbm.IndexEntry;
 
 
@@ -33,6 +34,7 @@ import org.apache.directory.server.xdbm.IndexEntry;
  * A class containing the result of a search :
  * <ul>
  * <li>A set of candidate UUIDs</li>
+ * <li>A bitmap of candidate ordinals, used while computing the candidates</li>
  * <li>A set of aliased entry if we have any</li>
  * <li>A flag telling if we are dereferencing aliases or not</li>
  * <li>A hierarchy of evaluators to use to validate the candidates</li>
@@ -44,8 +46,8 @@ public class PartitionSearchResult
     /** The set of candidate UUIDs selected by the search */
     private SetCursor<IndexEntry<String, String>> resultSet;
 
-    /** The set of candidate UUIDs */
-    private Set<String> candidateSet;
+    /** The set of candidate ordinals */
+    private CompressedBitmap candidateSet;
 
     /** The flag indicating if we are dereferencing the aliases. Default to Never. */
     private AliasDerefMode aliasDerefMode = AliasDerefMode.NEVER_DEREF_ALIASES;
@@ -56,6 +58,9 @@ public class PartitionSearchResult
     /** The SchemaManager */
     private SchemaManager schemaManager;
 
+    /** The attributes to decode for the candidates, null if all of them are needed */
+    private EntryProjection projection;
+
 
     /**
      * Create a PartitionSearchResult instance
@@ -85,9 +90,9 @@ public class PartitionSearchResult
 
 
     /**
-     * @return the candidateSet
+     * @return the candidateSet, containing the ordinals of the candidate entries
      */
-    public Set<String> getCandidateSet()
+    public CompressedBitmap getCandidateSet()
     {
         return candidateSet;
     }
@@ -96,7 +101,7 @@ public class PartitionSearchResult
     /**
      * @param candidateSet the candidateSet to set
      */
-    public void setCandidateSet( Set<String> set )
+    public void setCandidateSet( CompressedBitmap set )
     {
         candidateSet = set;
     }
@@ -183,6 +188,24 @@ public class PartitionSearchResult
     }
 
 
+    /**
+     * @return the projection, null if the candidates must be fully decoded
+     */
+    public EntryProjection getProjection()
+    {
+        return projection;
+    }
+
+
+    /**
+     * @param projection the projection to set
+     */
+    public void setProjection( EntryProjection projection )
+    {
+        this.projection = projection;
+    }
+
+
     /**
      * @see Object#toString()
      */
@@ -20,6 +20,9 @@
 package org.apache.directory.server.xdbm.search.impl;
 
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -48,11 +51,13 @@ import org.apache.directory.api.ldap.model.schema.normalizers.NoOpNormalizer;
 import org.apache.directory.api.util.exception.NotImplementedException;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryOrdinalMap;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.ParentIdAndRdn;
 import org.apache.directory.server.xdbm.SingletonIndexCursor;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.search.CompressedBitmap;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
 import org.apache.directory.server.xdbm.search.cursor.ApproximateCursor;
 import org.apache.directory.server.xdbm.search.cursor.ChildrenCursor;
@@ -61,7 +66,9 @@ import org.apache.directory.server.xdbm.search.evaluator.ApproximateEvaluator;
 
 
 /**
- * Builds Cursors over candidates that satisfy a filter expression.
+ * Builds Cursors over candidates that satisfy a filter expression. The candidates
+ * are stored in a {@link CompressedBitmap} of entry ordinals : they are resolved
+ * back to entry IDs only once the full filter has been computed.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -73,6 +80,27 @@ public class CursorBuilder
     /** Evaluator dependency on a EvaluatorBuilder */
     private EvaluatorBuilder evaluatorBuilder;
 
+    /** The database ordinals used to store the candidates in bitmaps */
+    private EntryOrdinalMap ordinals;
+
+    /**
+     * A conjunction child is not read if its count is this many times bigger
+     * than the current intersection : filtering with the evaluator is cheaper
+     */
+    private static final long INTERSECTION_RATIO = 16L;
+
+    /** Sorts expression nodes by ascending count */
+    private static final Comparator<ExprNode> COUNT_COMPARATOR = new Comparator<ExprNode>()
+    {
+        public int compare( ExprNode node1, ExprNode node2 )
+        {
+            long count1 = getCount( node1 );
+            long count2 = getCount( node2 );
+
+            return ( count1 < count2 ) ? -1 : ( ( count1 == count2 ) ? 0 : 1 );
+        }
+    };
+
 
     /**
      * Creates an expression tree enumerator.
@@ -84,6 +112,7 @@ public class CursorBuilder
     {
         this.db = db;
         this.evaluatorBuilder = evaluatorBuilder;
+        this.ordinals = db.getOrdinalMap();
     }
 
 
@@ -165,7 +194,7 @@ public class CursorBuilder
                 .build( node ) );
 
         int nbResults = 0;
-        Set<String> uuidSet = searchResult.getCandidateSet();
+        CompressedBitmap candidates = searchResult.getCandidateSet();
 
         while ( cursor.next() )
         {
@@ -173,9 +202,8 @@ public class CursorBuilder
 
             String uuid = indexEntry.getId();
 
-            if ( !uuidSet.contains( uuid ) )
+            if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
             {
-                uuidSet.add( uuid );
                 nbResults++;
             }
         }
@@ -197,14 +225,18 @@ public class CursorBuilder
 
         if ( thisCandidates != null )
         {
-            Set<String> candidates = searchResult.getCandidateSet();
+            CompressedBitmap candidates = searchResult.getCandidateSet();
+            int nbResults = 0;
 
             for ( String candidate : thisCandidates )
             {
-                candidates.add( candidate );
+                if ( candidates.add( ordinals.getOrdinal( candidate ) ) )
+                {
+                    nbResults++;
+                }
             }
 
-            return thisCandidates.size();
+            return nbResults;
         }
 
         AttributeType attributeType = node.getAttributeType();
@@ -217,7 +249,7 @@ public class CursorBuilder
             // Get the cursor using the index
             Index<T, String> userIndex = ( Index<T, String> ) db.getIndex( attributeType );
             Cursor<IndexEntry<T, String>> userIdxCursor = userIndex.forwardCursor( value.getValue() );
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            CompressedBitmap candidates = searchResult.getCandidateSet();
 
             // And loop on it
             while ( userIdxCursor.next() )
@@ -226,10 +258,8 @@ public class CursorBuilder
 
                 String uuid = indexEntry.getId();
 
-                if ( !uuidSet.contains( uuid ) )
+                if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
                 {
-                    // The UUID is not present in the Set, we add it
-                    uuidSet.add( uuid );
                     nbResults++;
                 }
             }
@@ -269,7 +299,7 @@ public class CursorBuilder
             indexEntry.setKey( value.getValue() );
 
             userIdxCursor.before( indexEntry );
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            CompressedBitmap candidates = searchResult.getCandidateSet();
 
             // And loop on it
             while ( userIdxCursor.next() )
@@ -278,10 +308,8 @@ public class CursorBuilder
 
                 String uuid = indexEntry.getId();
 
-                if ( !uuidSet.contains( uuid ) )
+                if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
                 {
-                    // The UUID is not present in the Set, we add it
-                    uuidSet.add( uuid );
                     nbResults++;
                 }
             }
@@ -321,7 +349,7 @@ public class CursorBuilder
             indexEntry.setKey( value.getValue() );
 
             userIdxCursor.after( indexEntry );
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            CompressedBitmap candidates = searchResult.getCandidateSet();
 
             // And loop on it
             while ( userIdxCursor.previous() )
@@ -330,10 +358,8 @@ public class CursorBuilder
 
                 String uuid = indexEntry.getId();
 
-                if ( !uuidSet.contains( uuid ) )
+                if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
                 {
-                    // The UUID is not present in the Set, we add it
-                    uuidSet.add( uuid );
                     nbResults++;
                 }
             }
@@ -369,7 +395,7 @@ public class CursorBuilder
 
             // Position the index on the element we should start from
             IndexEntry<String, String> indexEntry = new IndexEntry<String, String>();
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            CompressedBitmap candidates = searchResult.getCandidateSet();
 
             // And loop on it
             while ( presenceCursor.next() )
@@ -378,10 +404,8 @@ public class CursorBuilder
 
                 String uuid = indexEntry.getId();
 
-                if ( !uuidSet.contains( uuid ) )
+                if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
                 {
-                    // The UUID is not present in the Set, we add it
-                    uuidSet.add( uuid );
                     nbResults++;
                 }
             }
@@ -416,7 +440,7 @@ public class CursorBuilder
         rdnCursor.before( startingPos );
 
         Cursor<IndexEntry<String, String>> scopeCursor = new ChildrenCursor( db, node.getBaseId(), rdnCursor );
-        Set<String> candidateSet = searchResult.getCandidateSet();
+        CompressedBitmap candidates = searchResult.getCandidateSet();
 
         // Fetch all the UUIDs if we have an index
         // And loop on it
@@ -439,29 +463,24 @@ public class CursorBuilder
 
                     // This is an alias. Add it to the set of candidates to process, if it's not already
                     // present in the candidate set 
-                    if ( !candidateSet.contains( aliasedId ) )
+                    if ( candidates.add( ordinals.getOrdinal( aliasedId ) ) )
                     {
-                        candidateSet.add( aliasedId );
                         nbResults++;
                     }
                 }
                 else
                 {
                     // This is not an alias
-                    if ( !candidateSet.contains( uuid ) )
+                    if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
                     {
-                        // The UUID is not present in the Set, we add it
-                        candidateSet.add( uuid );
                         nbResults++;
                     }
                 }
             }
             else
             {
-                if ( !candidateSet.contains( uuid ) )
+                if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
                 {
-                    // The UUID is not present in the Set, we add it
-                    candidateSet.add( uuid );
                     nbResults++;
                 }
             }
@@ -504,7 +523,7 @@ public class CursorBuilder
         String parentId = parentIdAndRdn.getParentId();
 
         Cursor<IndexEntry<String, String>> scopeCursor = new DescendantCursor( db, baseId, parentId, rdnCursor );
-        Set<String> candidateSet = searchResult.getCandidateSet();
+        CompressedBitmap candidates = searchResult.getCandidateSet();
 
         // Fetch all the UUIDs if we have an index
         // And loop on it
@@ -527,9 +546,8 @@ public class CursorBuilder
 
                     // This is an alias. Add it to the set of candidates to process, if it's not already
                     // present in the candidate set 
-                    if ( !candidateSet.contains( aliasedId ) )
+                    if ( candidates.add( ordinals.getOrdinal( aliasedId ) ) )
                     {
-                        candidateSet.add( aliasedId );
                         nbResults++;
 
                         ScopeNode newScopeNode = new ScopeNode(
@@ -544,20 +562,16 @@ public class CursorBuilder
                 else
                 {
                     // This is not an alias
-                    if ( !candidateSet.contains( uuid ) )
+                    if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
                     {
-                        // The UUID is not present in the Set, we add it
-                        candidateSet.add( uuid );
                         nbResults++;
                     }
                 }
             }
             else
             {
-                if ( !candidateSet.contains( uuid ) )
+                if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
                 {
-                    // The UUID is not present in the Set, we add it
-                    candidateSet.add( uuid );
                     nbResults++;
                 }
             }
@@ -634,7 +648,7 @@ public class CursorBuilder
                 regexp = null;
             }
 
-            Set<String> uuidSet = searchResult.getCandidateSet();
+            CompressedBitmap candidates = searchResult.getCandidateSet();
 
             // And loop on it
             while ( cursor.next() )
@@ -659,10 +673,8 @@ public class CursorBuilder
                 
                 String uuid = indexEntry.getId();
 
-                if ( !uuidSet.contains( uuid ) )
+                if ( candidates.add( ordinals.getOrdinal( uuid ) ) )
                 {
-                    // The UUID is not present in the Set, we add it
-                    uuidSet.add( uuid );
                     nbResults++;
                 }
             }
@@ -680,10 +692,12 @@ public class CursorBuilder
 
 
     /**
-     * Creates a OrCursor over a disjunction expression branch node.
+     * Computes the union of the candidates of each child of a disjunction expression
+     * branch node. All the children are feeding the same candidate set.
      *
      * @param node the disjunction expression branch node
-     * @return Cursor over candidates satisfying disjunction expression
+     * @param searchResult the search result containing the candidate set to feed
+     * @return the number of added candidates, or Long.MAX_VALUE if a full scan is needed
      * @throws Exception on db access failures
      */
     private <T> long computeOr( OrNode node, PartitionSearchResult searchResult ) throws Exception
@@ -692,18 +706,18 @@ public class CursorBuilder
 
         long nbOrResults = 0;
 
-        // Recursively create Cursors and Evaluators for each child expression node
+        // Recursively compute the candidates for each child expression node
         for ( ExprNode child : children )
         {
             Object count = child.get( "count" );
 
-            if ( ( count != null ) && ( ( Long ) count == 0L ) )
+            if ( count != null )
             {
                 long countLong = ( Long ) count;
 
-                if ( countLong == 0 )
+                if ( countLong == 0L )
                 {
-                    // We can skip the cursor, it will not return any candidate
+                    // We can skip the child, it will not return any candidate
                     continue;
                 }
                 else if ( countLong == Long.MAX_VALUE )
@@ -731,85 +745,172 @@ public class CursorBuilder
 
 
     /**
-     * Creates an AndCursor over a conjunction expression branch node.
+     * Computes the intersection of the candidates of the children of a conjunction
+     * expression branch node. Each indexed child is computed in its own bitmap,
+     * starting with the smallest one, and the bitmaps are intersected. A child
+     * which is a lot bigger than the current intersection is not computed : the
+     * evaluator will anyway check the candidates against it. Negated children
+     * which can be computed using an index are removed from the intersection.
      *
      * @param node a conjunction expression branch node
-     * @return Cursor over the conjunction expression
+     * @param searchResult the search result containing the candidate set to feed
+     * @return the number of added candidates, or Long.MAX_VALUE if a full scan is needed
      * @throws Exception on db access failures
      */
     private long computeAnd( AndNode node, PartitionSearchResult searchResult ) throws Exception
     {
-        int minIndex = 0;
-        long minValue = Long.MAX_VALUE;
-        long value = Long.MAX_VALUE;
-
-        /*
-         * We scan the child nodes of a branch node searching for the child
-         * expression node with the smallest scan count.  This is the child
-         * we will use for iteration
-         */
-        final List<ExprNode> children = node.getChildren();
-
-        for ( int i = 0; i < children.size(); i++ )
+        List<ExprNode> indexedChildren = new ArrayList<ExprNode>();
+        List<ExprNode> negatedChildren = new ArrayList<ExprNode>();
+
+        for ( ExprNode child : node.getChildren() )
         {
-            ExprNode child = children.get( i );
-            Object count = child.get( "count" );
+            long value = getCount( child );
+
+            if ( value == 0L )
+            {
+                // No need to go any further : we won't have matching candidates anyway
+                return 0L;
+            }
+
+            if ( child instanceof NotNode )
+            {
+                ExprNode negated = ( ( NotNode ) child ).getFirstChild();
+
+                if ( getCount( negated ) < Long.MAX_VALUE )
+                {
+                    negatedChildren.add( negated );
+                }
+            }
+            else if ( value < Long.MAX_VALUE )
+            {
+                indexedChildren.add( child );
+            }
+        }
+
+        // Start with the smallest children
+        Collections.sort( indexedChildren, COUNT_COMPARATOR );
+
+        CompressedBitmap intersection = null;
+
+        for ( ExprNode child : indexedChildren )
+        {
+            if ( ( intersection != null )
+                && ( getCount( child ) / INTERSECTION_RATIO > intersection.cardinality() ) )
+            {
+                // Not worth reading this child's index, the evaluator will do the job
+                break;
+            }
+
+            CompressedBitmap childCandidates = buildChild( child, searchResult );
 
-            if ( count == null )
+            if ( childCandidates == null )
             {
+                // This child requires a full scan, it can't restrict the intersection
                 continue;
             }
 
-            value = ( Long ) count;
+            if ( intersection == null )
+            {
+                intersection = childCandidates;
+            }
+            else
+            {
+                intersection.and( childCandidates );
+            }
 
-            if ( value == 0L )
+            if ( intersection.isEmpty() )
             {
-                // No need to go any further : we won't have matching candidates anyway
                 return 0L;
             }
+        }
 
-            if ( value < minValue )
+        if ( intersection == null )
+        {
+            // No child has a known count, or they all require a full scan : try
+            // the first one, as it may still be computed using an index
+            if ( node.getChildren().isEmpty() )
             {
-                minValue = value;
-                minIndex = i;
+                return Long.MAX_VALUE;
             }
+
+            return build( node.getChildren().get( 0 ), searchResult );
         }
 
-        // Once found we return the number of candidates for this child
-        ExprNode minChild = children.get( minIndex );
-        long nbResults = build( minChild, searchResult );
+        for ( ExprNode negated : negatedChildren )
+        {
+            CompressedBitmap negatedCandidates = buildChild( negated, searchResult );
 
-        return nbResults;
+            if ( negatedCandidates != null )
+            {
+                intersection.andNot( negatedCandidates );
+            }
+        }
+
+        // Now, merge the intersection into the current candidate set
+        CompressedBitmap candidates = searchResult.getCandidateSet();
+        long before = candidates.cardinality();
+        candidates.or( intersection );
+
+        return candidates.cardinality() - before;
     }
 
 
     /**
-     * Creates an AndCursor over a conjunction expression branch node.
+     * A negation can't be computed on its own using the indexes : we would have
+     * to get the complement of the candidates over the full partition. It is
+     * handled by the parent conjunction if any, otherwise a full scan is done.
      *
-     * @param node a conjunction expression branch node
-     * @return Cursor over the conjunction expression
+     * @param node a negation expression branch node
+     * @param searchResult the search result containing the candidate set to feed
+     * @return Long.MAX_VALUE, as we need a full scan
      * @throws Exception on db access failures
      */
     private long computeNot( NotNode node, PartitionSearchResult searchResult ) throws Exception
     {
-        final List<ExprNode> children = node.getChildren();
+        return Long.MAX_VALUE;
+    }
 
-        ExprNode child = children.get( 0 );
-        Object count = child.get( "count" );
 
-        if ( count == null )
+    /**
+     * Computes the candidates of a node in a new bitmap, leaving the current
+     * candidate set untouched.
+     *
+     * @return the node's candidates, or null if the node requires a full scan
+     */
+    private CompressedBitmap buildChild( ExprNode child, PartitionSearchResult searchResult ) throws Exception
+    {
+        CompressedBitmap parentCandidates = searchResult.getCandidateSet();
+        CompressedBitmap childCandidates = new CompressedBitmap();
+        searchResult.setCandidateSet( childCandidates );
+
+        try
         {
-            return Long.MAX_VALUE;
+            if ( build( child, searchResult ) == Long.MAX_VALUE )
+            {
+                return null;
+            }
+
+            return childCandidates;
+        }
+        finally
+        {
+            searchResult.setCandidateSet( parentCandidates );
         }
+    }
 
-        long value = ( Long ) count;
 
-        if ( value == Long.MAX_VALUE )
+    /**
+     * @return the count annotation of a node, Long.MAX_VALUE if it has not been annotated
+     */
+    private static long getCount( ExprNode node )
+    {
+        Object count = node.get( "count" );
+
+        if ( count == null )
         {
-            // No need to go any further : we won't have matching candidates anyway
-            return 0L;
+            return Long.MAX_VALUE;
         }
 
-        return Long.MAX_VALUE;
+        return ( Long ) count;
     }
 }
@@ -47,12 +47,16 @@ import org.apache.directory.api.util.Strings;
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.i18n.I18n;
 import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.IndexStatistics;
 import org.apache.directory.server.xdbm.Store;
 import org.apache.directory.server.xdbm.search.Optimizer;
 
 
 /**
- * Optimizer that annotates the filter using scan counts.
+ * Optimizer that annotates the filter using scan counts. When an index has usable
+ * statistics (see {@link IndexStatistics}), the counts are estimated from its
+ * histogram instead of being read from the index B-trees. Otherwise, the index
+ * is probed.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  */
@@ -60,6 +64,9 @@ public class DefaultOptimizer<E> implements Optimizer
 {
     static final String CANDIDATES_ANNOTATION_KEY = "candidates";
 
+    /** The maximum number of candidates gathered when probing an index for an equality filter */
+    private static final int MAX_CANDIDATES = 100;
+
     /** the database this optimizer operates on */
     private final Store db;
     private String contextEntryId;
@@ -101,6 +108,35 @@ public class DefaultOptimizer<E> implements Optimizer
     }
 
 
+    /**
+     * Get the statistics of an index, if they can be used to estimate the counts.
+     *
+     * @param idx The index
+     * @return The index statistics, or null if they are not usable yet
+     */
+    private static <K> IndexStatistics<K> getStatistics( Index<K, String> idx )
+    {
+        IndexStatistics<K> statistics = idx.getStatistics();
+
+        if ( ( statistics != null ) && statistics.isUsable() )
+        {
+            return statistics;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * An estimate is never 0, as a 0 count makes the search stop without
+     * looking at the index.
+     */
+    private static long atLeastOne( long estimate )
+    {
+        return Math.max( 1L, estimate );
+    }
+
+
     /**
      * Annotates the expression tree to determine optimal evaluation order based
      * on the scan count for indices that exist for each expression node.  If an
@@ -305,6 +341,20 @@ public class DefaultOptimizer<E> implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<V, String> idx = ( Index<V, String> ) db.getIndex( node.getAttributeType() );
+            IndexStatistics<V> statistics = getStatistics( idx );
+
+            if ( statistics != null )
+            {
+                long estimate = statistics.estimateEquality( node.getValue().getValue() );
+
+                if ( estimate >= MAX_CANDIDATES )
+                {
+                    // Too many candidates to gather them, don't probe the index
+                    node.set( CANDIDATES_ANNOTATION_KEY, null );
+
+                    return estimate;
+                }
+            }
 
             Cursor<String> result = idx.forwardValueCursor( node.getValue().getValue() );
             Set<String> values = new HashSet<String>();
@@ -316,7 +366,7 @@ public class DefaultOptimizer<E> implements Optimizer
                 nbFound++;
 
                 // Arbitrary stop gathering the candidates if we have more than 100
-                if ( nbFound == 100 )
+                if ( nbFound == MAX_CANDIDATES )
                 {
                     break;
                 }
@@ -324,7 +374,7 @@ public class DefaultOptimizer<E> implements Optimizer
 
             result.close();
 
-            if ( nbFound < 100 )
+            if ( nbFound < MAX_CANDIDATES )
             {
                 // Store the found candidates in the node
                 node.set( CANDIDATES_ANNOTATION_KEY, values );
@@ -360,6 +410,19 @@ public class DefaultOptimizer<E> implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<V, String> idx = ( Index<V, String> ) db.getIndex( node.getAttributeType() );
+            IndexStatistics<V> statistics = getStatistics( idx );
+
+            if ( statistics != null )
+            {
+                if ( isGreaterThan )
+                {
+                    return atLeastOne( statistics.estimateGreaterOrEqual( node.getValue().getValue() ) );
+                }
+                else
+                {
+                    return atLeastOne( statistics.estimateLessOrEqual( node.getValue().getValue() ) );
+                }
+            }
 
             if ( isGreaterThan )
             {
@@ -391,16 +454,27 @@ public class DefaultOptimizer<E> implements Optimizer
         if ( db.hasIndexOn( node.getAttributeType() ) )
         {
             Index<String, String> idx = ( Index<String, String> ) db.getIndex( node.getAttributeType() );
+            IndexStatistics<String> statistics = getStatistics( idx );
 
             String initial = node.getInitial();
 
             if ( Strings.isEmpty( initial ) )
             {
                 // Not a (attr=ABC*) filter : full index scan
+                if ( statistics != null )
+                {
+                    return statistics.getCount();
+                }
+
                 return idx.count();
             }
             else
             {
+                if ( statistics != null )
+                {
+                    return atLeastOne( statistics.estimatePrefix( initial ) );
+                }
+
                 return idx.greaterThanCount( initial );
             }
         }
@@ -443,15 +517,16 @@ public class DefaultOptimizer<E> implements Optimizer
      */
     private long getPresenceScan( PresenceNode node ) throws Exception
     {
-        if ( db.hasUserIndexOn( node.getAttributeType() ) )
+        if ( db.hasUserIndexOn( node.getAttributeType() )
+            || node.getAttributeType().getOid().equals( SchemaConstants.ADMINISTRATIVE_ROLE_AT_OID ) )
         {
             Index<String, String> presenceIndex = db.getPresenceIndex();
+            IndexStatistics<String> statistics = getStatistics( presenceIndex );
 
-            return presenceIndex.count( node.getAttributeType().getOid() );
-        }
-        else if ( node.getAttributeType().getOid().equals( SchemaConstants.ADMINISTRATIVE_ROLE_AT_OID ) )
-        {
-            Index<String, String> presenceIndex = db.getPresenceIndex();
+            if ( statistics != null )
+            {
+                return atLeastOne( statistics.estimateEquality( node.getAttributeType().getOid() ) );
+            }
 
             return presenceIndex.count( node.getAttributeType().getOid() );
         }
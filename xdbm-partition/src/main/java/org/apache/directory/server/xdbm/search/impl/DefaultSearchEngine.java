@@ -40,8 +40,10 @@ import org.apache.directory.server.core.api.interceptor.context.SearchOperationC
 import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.partition.impl.btree.IndexCursorAdaptor;
 import org.apache.directory.server.i18n.I18n;
+import org.apache.directory.server.xdbm.EntryOrdinalMap;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.search.CompressedBitmap;
 import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.Optimizer;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
@@ -238,24 +240,46 @@ public class DefaultSearchEngine implements SearchEngine
         optimizer.annotate( root );
         Evaluator<? extends ExprNode> evaluator = evaluatorBuilder.build( root );
 
-        Set<String> uuidSet = new HashSet<String>();
+        CompressedBitmap candidates = new CompressedBitmap();
         searchResult.setAliasDerefMode( aliasDerefMode );
-        searchResult.setCandidateSet( uuidSet );
+        searchResult.setCandidateSet( candidates );
 
-        long nbResults = cursorBuilder.build( root, searchResult );
+        // The ordinals stored in the bitmap must not be reused until they are resolved
+        EntryOrdinalMap ordinals = db.getOrdinalMap();
+        ordinals.hold();
 
-        LOG.debug( "Nb results : {} for filter : {}", nbResults, root );
+        long nbResults = 0L;
 
-        if ( nbResults < Long.MAX_VALUE )
+        try
         {
-            for ( String uuid : uuidSet )
+            nbResults = cursorBuilder.build( root, searchResult );
+
+            LOG.debug( "Nb results : {} for filter : {}", nbResults, root );
+
+            if ( nbResults < Long.MAX_VALUE )
             {
-                IndexEntry<String, String> indexEntry = new IndexEntry<String, String>();
-                indexEntry.setId( uuid );
-                resultSet.add( indexEntry );
+                // Resolve the surviving ordinals back to entry IDs
+                CompressedBitmap.OrdinalIterator iterator = candidates.iterator();
+
+                while ( iterator.hasNext() )
+                {
+                    String uuid = ordinals.getId( iterator.next() );
+
+                    if ( uuid != null )
+                    {
+                        IndexEntry<String, String> indexEntry = new IndexEntry<String, String>();
+                        indexEntry.setId( uuid );
+                        resultSet.add( indexEntry );
+                    }
+                }
             }
         }
-        else
+        finally
+        {
+            ordinals.unhold();
+        }
+
+        if ( nbResults == Long.MAX_VALUE )
         {
             // Full scan : use the MasterTable
             Cursor<IndexEntry<String, String>> cursor = new IndexCursorAdaptor( db.getMasterTable().cursor(), true );
@@ -0,0 +1,73 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.directory.server.core.api.partition.Partition;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link CompactId} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompactIdTest
+{
+    @Test
+    public void testToIdToValue()
+    {
+        assertEquals( Partition.ROOT_ID, CompactId.toId( CompactId.ROOT_VALUE ) );
+        assertEquals( Partition.DEFAULT_ID, CompactId.toId( CompactId.DEFAULT_VALUE ) );
+        assertEquals( "0000000000000002", CompactId.toId( CompactId.FIRST_VALUE ) );
+        assertEquals( "00000000000001ff", CompactId.toId( 511L ) );
+
+        assertEquals( CompactId.ROOT_VALUE, CompactId.toValue( Partition.ROOT_ID ) );
+        assertEquals( CompactId.DEFAULT_VALUE, CompactId.toValue( Partition.DEFAULT_ID ) );
+        assertEquals( 511L, CompactId.toValue( "00000000000001ff" ) );
+        assertEquals( Long.MAX_VALUE, CompactId.toValue( CompactId.toId( Long.MAX_VALUE ) ) );
+    }
+
+
+    @Test
+    public void testCompare()
+    {
+        String id1 = CompactId.toId( 15L );
+        String id2 = CompactId.toId( 16L );
+
+        assertTrue( CompactId.compare( id1, id2 ) < 0 );
+        assertTrue( CompactId.compare( id2, id1 ) > 0 );
+        assertEquals( 0, CompactId.compare( id1, CompactId.toId( 15L ) ) );
+        assertTrue( CompactId.compare( Partition.ROOT_ID, id1 ) < 0 );
+
+        // The String order is the numeric order
+        assertTrue( id1.compareTo( id2 ) < 0 );
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotCompactId()
+    {
+        CompactId.toValue( "f81d4fae-7dec-11d0-a765-00a0c91e6bf6" );
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link EntryOrdinalMap} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class EntryOrdinalMapTest
+{
+    @Test
+    public void testReleasedOrdinalIsReused()
+    {
+        EntryOrdinalMap map = new EntryOrdinalMap();
+
+        int ordinal = map.getOrdinal( "entry1" );
+        assertEquals( ordinal, map.getOrdinal( "entry1" ) );
+        assertEquals( "entry1", map.getId( ordinal ) );
+
+        map.release( "entry1" );
+        assertNull( map.getId( ordinal ) );
+
+        assertEquals( ordinal, map.getOrdinal( "entry2" ) );
+        assertEquals( "entry2", map.getId( ordinal ) );
+    }
+
+
+    @Test
+    public void testReleasedOrdinalIsNotReusedWhileHeld()
+    {
+        EntryOrdinalMap map = new EntryOrdinalMap();
+
+        int ordinal = map.getOrdinal( "entry1" );
+
+        map.hold();
+        map.release( "entry1" );
+
+        // The held bitmap may still contain the ordinal : it must not resolve to another entry
+        int newOrdinal = map.getOrdinal( "entry2" );
+        assertFalse( ordinal == newOrdinal );
+        assertNull( map.getId( ordinal ) );
+
+        map.unhold();
+
+        assertEquals( ordinal, map.getOrdinal( "entry3" ) );
+    }
+
+
+    @Test
+    public void testClearedWhenTooLarge()
+    {
+        EntryOrdinalMap map = new EntryOrdinalMap( 10 );
+
+        map.hold();
+
+        for ( int i = 0; i < 20; i++ )
+        {
+            map.getOrdinal( "entry" + i );
+        }
+
+        // Not cleared while a search uses it
+        assertEquals( 20, map.size() );
+
+        map.unhold();
+
+        assertEquals( 0, map.size() );
+        assertEquals( 0, map.getOrdinal( "entry19" ) );
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link IndexStatistics} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class IndexStatisticsTest
+{
+    private static final Comparator<String> COMPARATOR = new Comparator<String>()
+    {
+        public int compare( String key1, String key2 )
+        {
+            return key1.compareTo( key2 );
+        }
+    };
+
+    /** The sorted index keys, one key out of ten being the same */
+    private List<String> keys;
+
+
+    @Before
+    public void initKeys()
+    {
+        keys = new ArrayList<String>();
+        Random random = new Random( 1L );
+
+        for ( int i = 0; i < 10000; i++ )
+        {
+            if ( random.nextInt( 10 ) == 0 )
+            {
+                keys.add( "khot" );
+            }
+            else
+            {
+                keys.add( String.format( "k%05d", random.nextInt( 3000 ) ) );
+            }
+        }
+
+        Collections.sort( keys );
+    }
+
+
+    private IndexStatistics<String> build() throws Exception
+    {
+        List<IndexEntry<String, String>> entries = new ArrayList<IndexEntry<String, String>>();
+
+        for ( String key : keys )
+        {
+            IndexEntry<String, String> entry = new IndexEntry<String, String>();
+            entry.setKey( key );
+            entries.add( entry );
+        }
+
+        IndexStatistics<String> statistics = new IndexStatistics<String>( COMPARATOR );
+        statistics.rebuild( new ListCursor<IndexEntry<String, String>>( entries ), entries.size() );
+
+        return statistics;
+    }
+
+
+    private static void assertAround( long expected, long estimate )
+    {
+        assertTrue( "expected " + expected + ", estimated " + estimate,
+            Math.abs( expected - estimate ) <= Math.max( 10L, expected / 10 ) );
+    }
+
+
+    @Test
+    public void testEmpty()
+    {
+        IndexStatistics<String> statistics = new IndexStatistics<String>( COMPARATOR );
+
+        assertTrue( statistics.isStale() );
+        assertFalse( statistics.isUsable() );
+        assertEquals( 0L, statistics.estimateEquality( "k" ) );
+    }
+
+
+    @Test
+    public void testRebuild() throws Exception
+    {
+        IndexStatistics<String> statistics = build();
+
+        assertTrue( statistics.isUsable() );
+        assertFalse( statistics.isStale() );
+        assertEquals( keys.size(), statistics.getCount() );
+        assertTrue( statistics.getNbBuckets() <= IndexStatistics.MAX_BUCKETS + 1 );
+    }
+
+
+    @Test
+    public void testEstimates() throws Exception
+    {
+        IndexStatistics<String> statistics = build();
+        long hot = 0L;
+        long greater = 0L;
+        long prefix = 0L;
+
+        for ( String key : keys )
+        {
+            if ( key.equals( "khot" ) )
+            {
+                hot++;
+            }
+
+            if ( key.compareTo( "k01500" ) >= 0 )
+            {
+                greater++;
+            }
+
+            if ( key.startsWith( "k001" ) )
+            {
+                prefix++;
+            }
+        }
+
+        // The frequent key has its own bucket
+        assertEquals( hot, statistics.estimateEquality( "khot" ) );
+        assertTrue( statistics.estimateEquality( "k00100" ) < 10L );
+        assertAround( greater, statistics.estimateGreaterOrEqual( "k01500" ) );
+        assertAround( keys.size() - greater, statistics.estimateLessOrEqual( "k01500" ) );
+        assertAround( prefix, statistics.estimatePrefix( "k001" ) );
+        assertEquals( 0L, statistics.estimatePrefix( "z" ) );
+    }
+
+
+    @Test
+    public void testUpdates() throws Exception
+    {
+        IndexStatistics<String> statistics = build();
+        long before = statistics.estimateLessOrEqual( "b" );
+
+        for ( int i = 0; i < 4000; i++ )
+        {
+            statistics.add( "a" + i );
+        }
+
+        assertEquals( keys.size() + 4000, statistics.getCount() );
+        assertTrue( statistics.isStale() );
+        assertTrue( statistics.estimateLessOrEqual( "b" ) > before + 1000L );
+    }
+
+
+    @Test
+    public void testWriteRead() throws Exception
+    {
+        IndexStatistics<String> statistics = build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertTrue( statistics.write( new DataOutputStream( out ) ) );
+
+        IndexStatistics<String> read = new IndexStatistics<String>( COMPARATOR );
+        read.read( new DataInputStream( new ByteArrayInputStream( out.toByteArray() ) ) );
+
+        assertTrue( read.isUsable() );
+        assertEquals( statistics.getCount(), read.getCount() );
+        assertEquals( statistics.getDistinctCount(), read.getDistinctCount() );
+        assertEquals( statistics.getNbBuckets(), read.getNbBuckets() );
+        assertEquals( statistics.estimateEquality( "khot" ), read.estimateEquality( "khot" ) );
+        assertEquals( statistics.estimatePrefix( "k001" ), read.estimatePrefix( "k001" ) );
+    }
+}
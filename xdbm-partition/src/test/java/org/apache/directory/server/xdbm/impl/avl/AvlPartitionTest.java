@@ -472,6 +472,36 @@ public class AvlPartitionTest
     }
 
 
+    @Test
+    public void testEntryIdCacheAfterRenameAndDelete() throws Exception
+    {
+        Dn parentDn = new Dn( schemaManager, "ou=Sales,o=Good Times Co." );
+        Dn childDn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Sales,o=Good Times Co." );
+        Dn siblingDn = new Dn( schemaManager, "cn=JIM BEAN,ou=Sales,o=Good Times Co." );
+
+        String parentId = partition.getEntryId( parentDn );
+        String childId = partition.getEntryId( childDn );
+        assertNotNull( childId );
+        assertEquals( childId, partition.getEntryId( childDn ) );
+        assertEquals( parentId, partition.getParentId( partition.getEntryId( siblingDn ) ) );
+
+        // Renaming the parent moves the whole subtree
+        partition.rename( parentDn, new Rdn( "ou=Marketing" ), false, null );
+
+        assertNull( partition.getEntryId( parentDn ) );
+        assertNull( partition.getEntryId( childDn ) );
+        assertNull( partition.getEntryId( siblingDn ) );
+
+        Dn newChildDn = new Dn( schemaManager, "cn=JOhnny WAlkeR,ou=Marketing,o=Good Times Co." );
+        assertEquals( childId, partition.getEntryId( newChildDn ) );
+        assertEquals( parentId, partition.getEntryId( new Dn( schemaManager, "ou=Marketing,o=Good Times Co." ) ) );
+
+        partition.delete( childId );
+
+        assertNull( partition.getEntryId( newChildDn ) );
+    }
+
+
     @Test
     public void testMove() throws Exception
     {
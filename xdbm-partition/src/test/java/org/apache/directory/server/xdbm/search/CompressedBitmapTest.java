@@ -0,0 +1,164 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.server.xdbm.search;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the {@link CompressedBitmap} class.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ */
+public class CompressedBitmapTest
+{
+    private static CompressedBitmap fill( TreeSet<Integer> expected, Random random, int nbElements, int range )
+    {
+        CompressedBitmap bitmap = new CompressedBitmap();
+
+        for ( int i = 0; i < nbElements; i++ )
+        {
+            int ordinal = random.nextInt( range );
+            assertEquals( expected.add( ordinal ), bitmap.add( ordinal ) );
+        }
+
+        return bitmap;
+    }
+
+
+    private static void check( TreeSet<Integer> expected, CompressedBitmap bitmap )
+    {
+        assertEquals( expected.size(), bitmap.cardinality() );
+        assertEquals( expected.isEmpty(), bitmap.isEmpty() );
+
+        CompressedBitmap.OrdinalIterator iterator = bitmap.iterator();
+
+        for ( int ordinal : expected )
+        {
+            assertTrue( iterator.hasNext() );
+            assertEquals( ordinal, iterator.next() );
+            assertTrue( bitmap.contains( ordinal ) );
+        }
+
+        assertFalse( iterator.hasNext() );
+    }
+
+
+    @Test
+    public void testAddContains()
+    {
+        CompressedBitmap bitmap = new CompressedBitmap();
+
+        assertTrue( bitmap.isEmpty() );
+        assertTrue( bitmap.add( 3 ) );
+        assertFalse( bitmap.add( 3 ) );
+        assertTrue( bitmap.add( 70000 ) );
+        assertTrue( bitmap.add( 0 ) );
+        assertTrue( bitmap.contains( 3 ) );
+        assertTrue( bitmap.contains( 70000 ) );
+        assertFalse( bitmap.contains( 4 ) );
+        assertFalse( bitmap.contains( -1 ) );
+        assertEquals( 3, bitmap.cardinality() );
+        assertEquals( "{0, 3, 70000}", bitmap.toString() );
+    }
+
+
+    @Test
+    public void testDenseChunk()
+    {
+        // Enough elements in one chunk to switch to a bitset
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        CompressedBitmap bitmap = fill( expected, new Random( 1L ), 20000, 65536 );
+
+        check( expected, bitmap );
+    }
+
+
+    @Test
+    public void testOr()
+    {
+        Random random = new Random( 2L );
+        TreeSet<Integer> expected1 = new TreeSet<Integer>();
+        TreeSet<Integer> expected2 = new TreeSet<Integer>();
+        CompressedBitmap bitmap1 = fill( expected1, random, 3000, 500000 );
+        CompressedBitmap bitmap2 = fill( expected2, random, 30000, 300000 );
+
+        bitmap1.or( bitmap2 );
+        expected1.addAll( expected2 );
+
+        check( expected1, bitmap1 );
+        check( expected2, bitmap2 );
+    }
+
+
+    @Test
+    public void testAnd()
+    {
+        Random random = new Random( 3L );
+        TreeSet<Integer> expected1 = new TreeSet<Integer>();
+        TreeSet<Integer> expected2 = new TreeSet<Integer>();
+        CompressedBitmap bitmap1 = fill( expected1, random, 50000, 200000 );
+        CompressedBitmap bitmap2 = fill( expected2, random, 5000, 400000 );
+
+        bitmap1.and( bitmap2 );
+        expected1.retainAll( expected2 );
+
+        check( expected1, bitmap1 );
+    }
+
+
+    @Test
+    public void testAndNot()
+    {
+        Random random = new Random( 4L );
+        TreeSet<Integer> expected1 = new TreeSet<Integer>();
+        TreeSet<Integer> expected2 = new TreeSet<Integer>();
+        CompressedBitmap bitmap1 = fill( expected1, random, 50000, 200000 );
+        CompressedBitmap bitmap2 = fill( expected2, random, 60000, 150000 );
+
+        bitmap1.andNot( bitmap2 );
+        expected1.removeAll( expected2 );
+
+        check( expected1, bitmap1 );
+    }
+
+
+    @Test
+    public void testAndEmpty()
+    {
+        CompressedBitmap bitmap1 = new CompressedBitmap();
+        CompressedBitmap bitmap2 = new CompressedBitmap();
+        bitmap1.add( 1 );
+        bitmap2.add( 2 );
+
+        bitmap1.and( bitmap2 );
+
+        assertTrue( bitmap1.isEmpty() );
+        assertEquals( 0, bitmap1.cardinality() );
+    }
+}
@@ -38,6 +38,7 @@ import org.apache.directory.server.core.partition.impl.btree.EntryCursorAdaptor;
 import org.apache.directory.server.core.partition.impl.btree.IndexCursorAdaptor;
 import org.apache.directory.server.xdbm.IndexEntry;
 import org.apache.directory.server.xdbm.Store;
+import org.apache.directory.server.xdbm.search.CompressedBitmap;
 import org.apache.directory.server.xdbm.search.Evaluator;
 import org.apache.directory.server.xdbm.search.PartitionSearchResult;
 
@@ -71,17 +72,19 @@ public class AbstractCursorTest
         PartitionSearchResult searchResult = new PartitionSearchResult( schemaManager );
         Set<IndexEntry<String, String>> resultSet = new HashSet<IndexEntry<String, String>>();
 
-        Set<String> uuids = new HashSet<String>();
-        searchResult.setCandidateSet( uuids );
+        CompressedBitmap ordinals = new CompressedBitmap();
+        searchResult.setCandidateSet( ordinals );
 
         long candidates = cursorBuilder.build( root, searchResult );
 
         if ( candidates < Long.MAX_VALUE )
         {
-            for ( String uuid : uuids )
+            CompressedBitmap.OrdinalIterator iterator = ordinals.iterator();
+
+            while ( iterator.hasNext() )
             {
                 IndexEntry<String, String> indexEntry = new IndexEntry<String, String>();
-                indexEntry.setId( uuid );
+                indexEntry.setId( store.getOrdinalMap().getId( iterator.next() ) );
                 resultSet.add( indexEntry );
             }
         }